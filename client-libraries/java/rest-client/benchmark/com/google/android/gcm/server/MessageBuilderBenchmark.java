@@ -0,0 +1,82 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the construction of a {@link Message} with its {@link Notification},
+ * which copies the payload data.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class MessageBuilderBenchmark {
+
+  @Param({"3", "50"})
+  public int dataEntries;
+
+  private String[] keys;
+  private String[] values;
+
+  @Setup
+  public void setUp() {
+    keys = new String[dataEntries];
+    values = new String[dataEntries];
+    for (int i = 0; i < dataEntries; i++) {
+      keys[i] = "key" + i;
+      values[i] = "Something happened somewhere, read all about it " + i;
+    }
+  }
+
+  @Benchmark
+  public Message build() {
+    Message.Builder builder = new Message.Builder()
+        .collapseKey("collapseKey")
+        .timeToLive(3600)
+        .delayWhileIdle(true)
+        .restrictedPackageName("com.example.app");
+    for (int i = 0; i < keys.length; i++) {
+      builder.addData(keys[i], values[i]);
+    }
+    return builder.notification(new Notification.Builder("ic_news")
+            .title("Breaking news")
+            .body("Something happened somewhere")
+            .titleLocArgs(Arrays.asList("a", "b"))
+            .badge(42)
+            .build())
+        .build();
+  }
+
+  /**
+   * Building a message and encoding its fields, as done by its first send.
+   */
+  @Benchmark
+  public byte[] buildAndEncode() {
+    return build().getJsonFields();
+  }
+
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import static com.google.android.gcm.server.Constants.*;
+
+import org.json.simple.JSONValue;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the streaming request serialization used by
+ * {@link Sender#sendNoRetry(Message, List)} with the json-simple based one it
+ * replaced, and the cost of the message fields which are encoded only once.
+ * Run with {@code -prof gc} to compare allocation rates.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RequestSerializationBenchmark {
+
+  @Param({"1", "1000"})
+  public int registrationIds;
+
+  private Message message;
+  private List<String> regIds;
+
+  @Setup
+  public void setUp() {
+    message = new Message.Builder()
+        .collapseKey("collapseKey")
+        .timeToLive(3600)
+        .delayWhileIdle(true)
+        .restrictedPackageName("com.example.app")
+        .addData("title", "Breaking news")
+        .addData("body", "Something happened somewhere, read all about it")
+        .addData("url", "https://example.com/news/4815162342")
+        .notification(new Notification.Builder("ic_news")
+            .title("Breaking news")
+            .body("Something happened somewhere")
+            .titleLocArgs(Arrays.asList("a", "b"))
+            .badge(42)
+            .build())
+        .build();
+    regIds = new ArrayList<String>(registrationIds);
+    for (int i = 0; i < registrationIds; i++) {
+      regIds.add(String.format("APA91bH%0145d", i));
+    }
+  }
+
+  @Benchmark
+  public byte[] streaming() throws IOException {
+    int size = Sender.estimateSize(message, regIds);
+    ByteArrayOutputStream out = new ByteArrayOutputStream(size);
+    Sender.writeRequest(message, regIds, out, Math.min(size, 8192));
+    return out.toByteArray();
+  }
+
+  /**
+   * Cost of encoding the message fields, which is only paid on the first
+   * request of a message.
+   */
+  @Benchmark
+  public byte[] encodeFields() {
+    return Sender.encodeFields(message);
+  }
+
+  @Benchmark
+  public byte[] jsonSimple() {
+    Map<Object, Object> jsonRequest = new HashMap<Object, Object>();
+    setJsonField(jsonRequest, PARAM_TIME_TO_LIVE, message.getTimeToLive());
+    setJsonField(jsonRequest, PARAM_COLLAPSE_KEY, message.getCollapseKey());
+    setJsonField(jsonRequest, PARAM_RESTRICTED_PACKAGE_NAME,
+        message.getRestrictedPackageName());
+    setJsonField(jsonRequest, PARAM_DELAY_WHILE_IDLE,
+        message.isDelayWhileIdle());
+    setJsonField(jsonRequest, PARAM_DRY_RUN, message.isDryRun());
+    jsonRequest.put(JSON_REGISTRATION_IDS, regIds);
+    Map<String, String> payload = message.getData();
+    if (!payload.isEmpty()) {
+      jsonRequest.put(JSON_PAYLOAD, payload);
+    }
+    Notification notification = message.getNotification();
+    Map<Object, Object> nMap = new HashMap<Object, Object>();
+    if (notification.getBadge() != null) {
+      setJsonField(nMap, JSON_NOTIFICATION_BADGE,
+          notification.getBadge().toString());
+    }
+    setJsonField(nMap, JSON_NOTIFICATION_BODY, notification.getBody());
+    setJsonField(nMap, JSON_NOTIFICATION_BODY_LOC_ARGS,
+        notification.getBodyLocArgs());
+    setJsonField(nMap, JSON_NOTIFICATION_BODY_LOC_KEY,
+        notification.getBodyLocKey());
+    setJsonField(nMap, JSON_NOTIFICATION_CLICK_ACTION,
+        notification.getClickAction());
+    setJsonField(nMap, JSON_NOTIFICATION_COLOR, notification.getColor());
+    setJsonField(nMap, JSON_NOTIFICATION_ICON, notification.getIcon());
+    setJsonField(nMap, JSON_NOTIFICATION_SOUND, notification.getSound());
+    setJsonField(nMap, JSON_NOTIFICATION_TAG, notification.getTag());
+    setJsonField(nMap, JSON_NOTIFICATION_TITLE, notification.getTitle());
+    setJsonField(nMap, JSON_NOTIFICATION_TITLE_LOC_ARGS,
+        notification.getTitleLocArgs());
+    setJsonField(nMap, JSON_NOTIFICATION_TITLE_LOC_KEY,
+        notification.getTitleLocKey());
+    jsonRequest.put(JSON_NOTIFICATION, nMap);
+    return JSONValue.toJSONString(jsonRequest)
+        .getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static void setJsonField(Map<Object, Object> json, String field,
+      Object value) {
+    if (value != null) {
+      json.put(field, value);
+    }
+  }
+
+}
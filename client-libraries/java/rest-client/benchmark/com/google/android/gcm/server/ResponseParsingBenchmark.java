@@ -0,0 +1,121 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import static com.google.android.gcm.server.Constants.*;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the streaming response parser used by
+ * {@link Sender#sendNoRetry(Message, List)} with the json-simple based one it
+ * replaced. Run with {@code -prof gc} to compare allocation rates.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ResponseParsingBenchmark {
+
+  @Param({"1", "1000"})
+  public int results;
+
+  private byte[] response;
+
+  @Setup
+  public void setUp() {
+    response = newResponse(results).getBytes(StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Creates a typical response, where most messages succeed, some have a
+   * canonical id, and the others failed with a handful of error codes.
+   */
+  static String newResponse(int results) {
+    StringBuilder json = new StringBuilder();
+    int failure = 0;
+    int canonicalIds = 0;
+    for (int i = 0; i < results; i++) {
+      json.append(i == 0 ? "" : ",");
+      if (i % 10 == 9) {
+        failure++;
+        json.append("{\"error\":\"")
+            .append(i % 20 == 19 ? ERROR_NOT_REGISTERED : ERROR_UNAVAILABLE)
+            .append("\"}");
+      } else if (i % 25 == 0) {
+        canonicalIds++;
+        json.append("{\"message_id\":\"0:1481516234").append(i)
+            .append("\",\"registration_id\":\"")
+            .append(String.format("APA91bH%0145d", i)).append("\"}");
+      } else {
+        json.append("{\"message_id\":\"0:1481516234").append(i)
+            .append("\"}");
+      }
+    }
+    return "{\"multicast_id\":8419543185418574651"
+        + ",\"success\":" + (results - failure)
+        + ",\"failure\":" + failure
+        + ",\"canonical_ids\":" + canonicalIds
+        + ",\"results\":[" + json + "]}";
+  }
+
+  @Benchmark
+  public MulticastResult streaming() throws IOException {
+    return new JsonResponseParser(new ByteArrayInputStream(response))
+        .parseMulticastResult().build();
+  }
+
+  @Benchmark
+  public MulticastResult jsonSimple() throws IOException, ParseException {
+    String responseBody = Sender.getString(
+        new ByteArrayInputStream(response));
+    JSONObject jsonResponse = (JSONObject) new JSONParser().parse(responseBody);
+    MulticastResult.Builder builder = new MulticastResult.Builder(
+        ((Number) jsonResponse.get(JSON_SUCCESS)).intValue(),
+        ((Number) jsonResponse.get(JSON_FAILURE)).intValue(),
+        ((Number) jsonResponse.get(JSON_CANONICAL_IDS)).intValue(),
+        ((Number) jsonResponse.get(JSON_MULTICAST_ID)).longValue());
+    @SuppressWarnings("unchecked")
+    List<Map<String, Object>> jsonResults =
+        (List<Map<String, Object>>) jsonResponse.get(JSON_RESULTS);
+    for (Map<String, Object> jsonResult : jsonResults) {
+      builder.addResult(new Result.Builder()
+          .messageId((String) jsonResult.get(JSON_MESSAGE_ID))
+          .canonicalRegistrationId(
+              (String) jsonResult.get(JSON_CANONICAL_REG_ID))
+          .errorCode((String) jsonResult.get(JSON_ERROR))
+          .build());
+    }
+    return builder.build();
+  }
+
+}
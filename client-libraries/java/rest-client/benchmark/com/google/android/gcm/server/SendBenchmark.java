@@ -0,0 +1,128 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import com.sun.net.httpserver.HttpServer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures a whole send, from the request serialization to the response
+ * parsing, against an in-process stub of GCM, with each {@link GcmTransport}.
+ *
+ * <p>
+ * The allocation rate reported by {@code -prof gc} only includes the
+ * benchmark thread, and not the threads of the stub server.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SendBenchmark {
+
+  @Param({"1", "1000"})
+  public int registrationIds;
+
+  @Param({"connection", "httpClient"})
+  public String transport;
+
+  private HttpServer server;
+  private ExecutorService serverExecutor;
+  private Sender sender;
+  private Message message;
+  private List<String> regIds;
+
+  @Setup
+  public void setUp() throws IOException {
+    byte[] response = ResponseParsingBenchmark.newResponse(registrationIds)
+        .getBytes(StandardCharsets.UTF_8);
+    // otherwise Nagle's algorithm and delayed ACKs add 40ms to each request
+    System.setProperty("sun.net.httpserver.nodelay", "true");
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    serverExecutor = Executors.newFixedThreadPool(4);
+    server.setExecutor(serverExecutor);
+    server.createContext("/gcm/send", exchange -> {
+      try (InputStream in = exchange.getRequestBody()) {
+        byte[] buffer = new byte[8192];
+        while (in.read(buffer) != -1) {
+          // discards the request
+        }
+      }
+      exchange.getResponseHeaders().add("Content-Type", "application/json");
+      exchange.sendResponseHeaders(200, response.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(response);
+      }
+    });
+    server.start();
+    String url =
+        "http://127.0.0.1:" + server.getAddress().getPort() + "/gcm/send";
+    sender = new Sender("key");
+    GcmTransport delegate;
+    if (transport.equals("httpClient")) {
+      delegate = new HttpClientTransport.Builder().build();
+    } else {
+      Sender connectionSender = new Sender("key");
+      delegate = (endpoint, contentType, authorization, body, offset,
+          length) -> connectionSender.getTransport().post(endpoint,
+          contentType, authorization, body, offset, length);
+    }
+    // redirects the requests to the stub
+    sender.setTransport((endpoint, contentType, authorization, body, offset,
+        length) -> delegate.post(url, contentType, authorization, body,
+        offset, length));
+    message = new Message.Builder()
+        .collapseKey("collapseKey")
+        .timeToLive(3600)
+        .addData("title", "Breaking news")
+        .addData("body", "Something happened somewhere, read all about it")
+        .build();
+    regIds = new ArrayList<String>(registrationIds);
+    for (int i = 0; i < registrationIds; i++) {
+      regIds.add(String.format("APA91bH%0145d", i));
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    server.stop(0);
+    serverExecutor.shutdownNow();
+  }
+
+  @Benchmark
+  public MulticastResult send() throws IOException {
+    return sender.send(message, regIds, 0);
+  }
+
+}
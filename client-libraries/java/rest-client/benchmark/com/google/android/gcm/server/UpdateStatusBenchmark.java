@@ -0,0 +1,94 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the bookkeeping of the attempts of a multicast message made by
+ * {@link Sender#send(Message, List, int)}: the first attempt, a retry of the
+ * devices that got {@link Constants#ERROR_UNAVAILABLE}, and both followed by
+ * merging the results in the order of the input.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class UpdateStatusBenchmark {
+
+  @Param({"1000"})
+  public int registrationIds;
+
+  private List<String> regIds;
+  private MulticastResult firstResult;
+  private MulticastResult retryResult;
+
+  @Setup
+  public void setUp() throws IOException {
+    regIds = new ArrayList<String>(registrationIds);
+    for (int i = 0; i < registrationIds; i++) {
+      regIds.add(String.format("APA91bH%0145d", i));
+    }
+    byte[] response = ResponseParsingBenchmark.newResponse(registrationIds)
+        .getBytes(StandardCharsets.UTF_8);
+    firstResult = new JsonResponseParser(new ByteArrayInputStream(response))
+        .parseMulticastResult().build();
+    MulticastStatus status = new MulticastStatus(regIds);
+    status.update(firstResult, RetryPolicy.DEFAULT, new HashSet<String>());
+    MulticastResult.Builder builder =
+        new MulticastResult.Builder(status.getPendingCount(), 0, 0, 42);
+    for (int i = 0; i < status.getPendingCount(); i++) {
+      builder.addResult(new Result.Builder().messageId("0:42" + i).build());
+    }
+    retryResult = builder.build();
+  }
+
+  @Benchmark
+  public MulticastStatus firstAttempt() {
+    MulticastStatus status = new MulticastStatus(regIds);
+    status.update(firstResult, RetryPolicy.DEFAULT, new HashSet<String>());
+    return status;
+  }
+
+  @Benchmark
+  public MulticastStatus retry() {
+    MulticastStatus status = new MulticastStatus(regIds);
+    status.update(firstResult, RetryPolicy.DEFAULT, new HashSet<String>());
+    status.getPendingRegistrationIds();
+    status.update(retryResult, RetryPolicy.DEFAULT, new HashSet<String>());
+    return status;
+  }
+
+  @Benchmark
+  public MulticastResult retryAndMerge() {
+    return retry().toBuilder().build();
+  }
+
+}
@@ -0,0 +1,354 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import static com.google.android.gcm.server.Constants.*;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Front-end of a {@link Sender} that coalesces messages sent to one device at
+ * a time into multicast messages.
+ *
+ * <p>
+ * Messages are queued, and a single thread groups the ones that are
+ * {@link Message#equals(Object) equal} into a multicast message, which is
+ * sent when it has {@link Builder#batchSize(int) enough devices} or when its
+ * first device has waited for the {@link Builder#lingerTime(long, TimeUnit)
+ * linger time}. Each device then gets its own result from the
+ * {@link MulticastResult}.
+ *
+ * <p>
+ * This class is thread-safe. Example:
+ *
+ * <pre><code>
+ * BatchingSender batching = new BatchingSender.Builder(sender, 5)
+ *    .lingerTime(5, TimeUnit.MILLISECONDS)
+ *    .build();
+ * CompletableFuture&lt;Result&gt; result = batching.send(message, regId);
+ * </code></pre>
+ */
+public final class BatchingSender {
+
+  private static final Logger logger =
+      Logger.getLogger(BatchingSender.class.getName());
+
+  private static final ThreadFactory THREAD_FACTORY =
+      Sender.newDaemonThreadFactory("gcm-batching-");
+
+  // queued by close() to stop the coalescer
+  private static final Entry CLOSE = new Entry(null, null);
+
+  private final Sender sender;
+  private final int retries;
+  private final int batchSize;
+  private final long lingerTime;
+  private final BlockingQueue<Entry> queue;
+  private final Thread coalescer;
+  private volatile boolean closed;
+
+  public static final class Builder {
+
+    // required parameters
+    private final Sender sender;
+    private final int retries;
+
+    // optional parameters
+    private int capacity = 10000;
+    private int batchSize = MULTICAST_SIZE_LIMIT;
+    private long lingerTime = TimeUnit.MILLISECONDS.toNanos(5);
+
+    /**
+     * @param sender sender of the multicast messages.
+     * @param retries number of retries of each multicast message.
+     */
+    public Builder(Sender sender, int retries) {
+      this.sender = Sender.nonNull(sender);
+      this.retries = retries;
+    }
+
+    /**
+     * Sets the number of messages that can be queued before being coalesced
+     * (default is {@literal 10000}); messages sent while the queue is full are
+     * rejected.
+     */
+    public Builder capacity(int value) {
+      capacity = positive(value);
+      return this;
+    }
+
+    /**
+     * Sets the maximum number of devices of a multicast message (default is
+     * {@link Constants#MULTICAST_SIZE_LIMIT}).
+     */
+    public Builder batchSize(int value) {
+      if (value > MULTICAST_SIZE_LIMIT) {
+        throw new IllegalArgumentException("batchSize can not be larger than "
+            + MULTICAST_SIZE_LIMIT);
+      }
+      batchSize = positive(value);
+      return this;
+    }
+
+    /**
+     * Sets how long a message can wait for others equal to it before being
+     * sent (default is {@literal 5} milliseconds).
+     */
+    public Builder lingerTime(long value, TimeUnit unit) {
+      if (value < 0) {
+        throw new IllegalArgumentException("time can not be negative");
+      }
+      lingerTime = unit.toNanos(value);
+      return this;
+    }
+
+    public BatchingSender build() {
+      return new BatchingSender(this);
+    }
+
+    private static int positive(int value) {
+      if (value <= 0) {
+        throw new IllegalArgumentException("value must be positive");
+      }
+      return value;
+    }
+  }
+
+  private BatchingSender(Builder builder) {
+    sender = builder.sender;
+    retries = builder.retries;
+    batchSize = builder.batchSize;
+    lingerTime = builder.lingerTime;
+    queue = new ArrayBlockingQueue<Entry>(builder.capacity);
+    coalescer = THREAD_FACTORY.newThread(this::coalesce);
+    coalescer.start();
+  }
+
+  /**
+   * Queues a message to a device.
+   *
+   * @param message message to be sent.
+   * @param registrationId device where the message will be sent.
+   *
+   * @return future result of the message, which fails with the same
+   *         exceptions as {@link Sender#sendAsync(Message, List, int)}.
+   *
+   * @throws RejectedExecutionException if the queue is full, or this sender
+   *         is closed.
+   */
+  public CompletableFuture<Result> send(Message message,
+      String registrationId) {
+    Entry entry =
+        new Entry(Sender.nonNull(message), Sender.nonNull(registrationId));
+    if (closed || !queue.offer(entry)) {
+      throw new RejectedExecutionException(closed ?
+          "sender is closed" : "queue is full");
+    }
+    // close() could have drained the queue before the entry was added
+    if (closed && queue.remove(entry)) {
+      throw new RejectedExecutionException("sender is closed");
+    }
+    return entry.future;
+  }
+
+  /**
+   * Sends the messages already queued without waiting for the linger time,
+   * and rejects the next ones.
+   *
+   * <p>
+   * It does not wait for the messages to be sent.
+   */
+  public void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    boolean interrupted = false;
+    for (;;) {
+      try {
+        // the coalescer could have stopped, leaving the queue full
+        while (coalescer.isAlive() &&
+            !queue.offer(CLOSE, 10, TimeUnit.MILLISECONDS)) {
+          continue;
+        }
+        coalescer.join();
+        break;
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    List<Entry> stranded = new ArrayList<Entry>();
+    queue.drainTo(stranded);
+    reject(stranded);
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Body of the coalescer thread.
+   */
+  private void coalesce() {
+    // insertion order is also the order of their deadlines
+    Map<Message, Batch> batches = new LinkedHashMap<Message, Batch>();
+    List<Entry> drained = new ArrayList<Entry>(batchSize);
+    for (;;) {
+      try {
+        Iterator<Batch> oldest = batches.values().iterator();
+        if (!oldest.hasNext()) {
+          drained.add(queue.take());
+        } else {
+          long wait = oldest.next().deadline - System.nanoTime();
+          Entry entry =
+              wait > 0 ? queue.poll(wait, TimeUnit.NANOSECONDS) : null;
+          if (entry != null) {
+            drained.add(entry);
+          }
+        }
+      } catch (InterruptedException e) {
+        logger.warning("Coalescer interrupted, sending queued messages");
+        closed = true;
+        queue.drainTo(drained);
+        drained.add(CLOSE);
+      }
+      queue.drainTo(drained, batchSize);
+      long now = System.nanoTime();
+      for (int i = 0; i < drained.size(); i++) {
+        Entry entry = drained.get(i);
+        if (entry == CLOSE) {
+          for (Batch batch : batches.values()) {
+            send(batch);
+          }
+          // the entries drained after it were queued after closing, as the
+          // ones still in the queue, whose senders could not remove them
+          List<Entry> rejected =
+              new ArrayList<Entry>(drained.subList(i + 1, drained.size()));
+          queue.drainTo(rejected);
+          reject(rejected);
+          return;
+        }
+        Batch batch = batches.get(entry.message);
+        if (batch == null) {
+          batch = new Batch(entry.message, now + lingerTime);
+          batches.put(entry.message, batch);
+        }
+        batch.registrationIds.add(entry.registrationId);
+        batch.futures.add(entry.future);
+        if (batch.registrationIds.size() == batchSize) {
+          batches.remove(entry.message);
+          send(batch);
+        }
+      }
+      drained.clear();
+      for (Iterator<Batch> iterator = batches.values().iterator();
+          iterator.hasNext();) {
+        Batch batch = iterator.next();
+        if (batch.deadline - now > 0) {
+          break;
+        }
+        iterator.remove();
+        send(batch);
+      }
+    }
+  }
+
+  /**
+   * Fails the futures of entries that will not be sent.
+   */
+  private static void reject(List<Entry> entries) {
+    for (Entry entry : entries) {
+      if (entry != CLOSE) {
+        entry.future.completeExceptionally(
+            new RejectedExecutionException("sender is closed"));
+      }
+    }
+  }
+
+  /**
+   * Sends a multicast message and completes the future of each device with
+   * its result.
+   */
+  private void send(Batch batch) {
+    List<CompletableFuture<Result>> futures = batch.futures;
+    if (logger.isLoggable(Level.FINE)) {
+      logger.fine("Coalesced " + futures.size() + " messages");
+    }
+    CompletableFuture<MulticastResult> future;
+    try {
+      future = sender.sendAsync(batch.message, batch.registrationIds, retries);
+    } catch (RuntimeException e) {
+      future = new CompletableFuture<MulticastResult>();
+      future.completeExceptionally(e);
+    }
+    future.whenComplete((multicastResult, e) -> {
+      if (e != null) {
+        for (CompletableFuture<Result> result : futures) {
+          result.completeExceptionally(e);
+        }
+        return;
+      }
+      List<Result> results = multicastResult.getResults();
+      for (int i = 0; i < futures.size(); i++) {
+        futures.get(i).complete(results.get(i));
+      }
+    });
+  }
+
+  /**
+   * Message queued for a device.
+   */
+  private static final class Entry {
+
+    final Message message;
+    final String registrationId;
+    final CompletableFuture<Result> future = new CompletableFuture<Result>();
+
+    Entry(Message message, String registrationId) {
+      this.message = message;
+      this.registrationId = registrationId;
+    }
+  }
+
+  /**
+   * Devices coalesced into a multicast message.
+   */
+  private static final class Batch {
+
+    final Message message;
+    final long deadline;
+    final List<String> registrationIds = new ArrayList<String>();
+    final List<CompletableFuture<Result>> futures =
+        new ArrayList<CompletableFuture<Result>>();
+
+    Batch(Message message, long deadline) {
+      this.message = message;
+      this.deadline = deadline;
+    }
+  }
+
+}
@@ -0,0 +1,809 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import static com.google.android.gcm.server.Constants.*;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+import javax.net.SocketFactory;
+import javax.net.ssl.SNIHostName;
+import javax.net.ssl.SNIServerName;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Connection to the GCM Cloud Connection Server (CCS), which sends messages
+ * over a persistent XMPP stream instead of making an HTTP request for each.
+ *
+ * <p>
+ * Messages are pipelined: {@link #send(Message, String)} writes a message
+ * without waiting for the previous ones to be acknowledged, up to the
+ * {@link Builder#windowSize(int) window} of messages that CCS allows to be
+ * waiting for their ACK or NACK. A reader thread completes the result of each
+ * message when its ACK or NACK arrives; NACK errors are mapped to the error
+ * codes of {@link Constants}, such as {@link Constants#ERROR_NOT_REGISTERED}.
+ *
+ * <p>
+ * Upstream messages are handed to the
+ * {@link Builder#upstreamDispatcher(UpstreamDispatcher) upstream dispatcher},
+ * which acknowledges them once handled; without one, they are acknowledged
+ * as soon as they are received, like delivery receipts.
+ *
+ * <p>
+ * When CCS announces that the connection is draining, new messages are
+ * rejected, and a new connection should be opened; messages that CCS did not
+ * process because of it fail as if the connection was lost.
+ *
+ * <p>
+ * This class is thread-safe. Example:
+ *
+ * <pre><code>
+ * CcsConnection connection = new CcsConnection.Builder(senderId, key).build();
+ * connection.connect();
+ * CompletableFuture&lt;Result&gt; result = connection.send(message, regId);
+ * </code></pre>
+ */
+public final class CcsConnection implements Closeable {
+
+  private static final Logger logger =
+      Logger.getLogger(CcsConnection.class.getName());
+
+  private static final ThreadFactory THREAD_FACTORY =
+      Sender.newDaemonThreadFactory("gcm-ccs-");
+
+  private static final String STREAM_START = "<stream:stream to=\""
+      + GCM_CCS_HOST + "\" version=\"1.0\" xmlns=\"jabber:client\""
+      + " xmlns:stream=\"http://etherx.jabber.org/streams\">";
+  private static final String STREAM_END = "</stream:stream>";
+  // IPv4 or IPv6 literal
+  private static final Pattern IP_ADDRESS = Pattern.compile("[0-9.]+|.*:.*");
+  private static final byte[] STANZA_START =
+      "<message id=\"\"><gcm xmlns=\"google:mobile:data\">"
+          .getBytes(StandardCharsets.UTF_8);
+  private static final byte[] STANZA_END =
+      "</gcm></message>".getBytes(StandardCharsets.UTF_8);
+  private static final byte[] AMP = "&amp;".getBytes(StandardCharsets.UTF_8);
+  private static final byte[] LT = "&lt;".getBytes(StandardCharsets.UTF_8);
+  private static final byte[] GT = "&gt;".getBytes(StandardCharsets.UTF_8);
+
+  // NACK errors, and the error codes of the HTTP API they match
+  private static final Map<String, String> NACK_ERRORS =
+      new HashMap<String, String>();
+
+  static {
+    NACK_ERRORS.put("BAD_REGISTRATION", ERROR_INVALID_REGISTRATION);
+    NACK_ERRORS.put("DEVICE_UNREGISTERED", ERROR_NOT_REGISTERED);
+    NACK_ERRORS.put("DEVICE_MESSAGE_RATE_EXCEEDED",
+        ERROR_DEVICE_MESSAGE_RATE_EXCEEDED);
+    NACK_ERRORS.put("TOPICS_MESSAGE_RATE_EXCEEDED",
+        ERROR_TOPICS_MESSAGE_RATE_EXCEEDED);
+    NACK_ERRORS.put("INTERNAL_SERVER_ERROR", ERROR_INTERNAL_SERVER_ERROR);
+    NACK_ERRORS.put("SERVICE_UNAVAILABLE", ERROR_UNAVAILABLE);
+    NACK_ERRORS.put("QUOTA_TRAFFIC_EXCEEDED", ERROR_QUOTA_EXCEEDED);
+  }
+
+  private final String senderId;
+  private final String key;
+  private final String host;
+  private final int port;
+  private final SocketFactory socketFactory;
+  private final int connectTimeout;
+  private final UpstreamDispatcher upstreamDispatcher;
+  private final Semaphore window;
+  // prefix of the ids of the messages sent on this connection
+  private final String messageIdPrefix;
+  private final AtomicLong sequence = new AtomicLong();
+  // future result of each message waiting for its ACK or NACK
+  private final Map<String, CompletableFuture<Result>> pending =
+      new ConcurrentHashMap<String, CompletableFuture<Result>>();
+  private Socket socket;
+  private OutputStream out;
+  private volatile boolean draining;
+  private volatile boolean closed;
+
+  public static final class Builder {
+
+    // required parameters
+    private final String senderId;
+    private final String key;
+
+    // optional parameters
+    private String host = GCM_CCS_HOST;
+    private int port = GCM_CCS_PORT;
+    private SocketFactory socketFactory;
+    private int windowSize = CCS_WINDOW_SIZE;
+    private int connectTimeout = 30000;
+    private UpstreamDispatcher upstreamDispatcher;
+
+    /**
+     * @param senderId project number of the sender.
+     * @param key API key obtained through the Google API Console.
+     */
+    public Builder(String senderId, String key) {
+      this.senderId = Sender.nonNull(senderId);
+      this.key = Sender.nonNull(key);
+    }
+
+    /**
+     * Sets the address of CCS (default is {@link Constants#GCM_CCS_HOST} and
+     * {@link Constants#GCM_CCS_PORT}).
+     */
+    public Builder address(String host, int port) {
+      this.host = Sender.nonNull(host);
+      this.port = port;
+      return this;
+    }
+
+    /**
+     * Sets the factory of the sockets (default uses TLS); the certificate of
+     * CCS is checked against its host name if the sockets use TLS.
+     */
+    public Builder socketFactory(SocketFactory value) {
+      socketFactory = Sender.nonNull(value);
+      return this;
+    }
+
+    /**
+     * Sets the maximum number of messages that can be waiting for their ACK
+     * or NACK (default is {@link Constants#CCS_WINDOW_SIZE}).
+     */
+    public Builder windowSize(int value) {
+      if (value <= 0 || value > CCS_WINDOW_SIZE) {
+        throw new IllegalArgumentException("windowSize must be between 1 and "
+            + CCS_WINDOW_SIZE);
+      }
+      windowSize = value;
+      return this;
+    }
+
+    /**
+     * Sets how long to wait for the connection to be established, including
+     * the authentication (default is {@literal 30} seconds).
+     */
+    public Builder connectTimeout(long value, TimeUnit unit) {
+      if (value < 0) {
+        throw new IllegalArgumentException("time can not be negative");
+      }
+      connectTimeout = (int) Math.min(Integer.MAX_VALUE, unit.toMillis(value));
+      return this;
+    }
+
+    /**
+     * Sets the dispatcher of the messages sent by devices (default is
+     * acknowledging and ignoring them).
+     */
+    public Builder upstreamDispatcher(UpstreamDispatcher value) {
+      upstreamDispatcher = Sender.nonNull(value);
+      return this;
+    }
+
+    public CcsConnection build() {
+      return new CcsConnection(this);
+    }
+  }
+
+  private CcsConnection(Builder builder) {
+    senderId = builder.senderId;
+    key = builder.key;
+    host = builder.host;
+    port = builder.port;
+    socketFactory = builder.socketFactory != null ?
+        builder.socketFactory : SSLSocketFactory.getDefault();
+    connectTimeout = builder.connectTimeout;
+    upstreamDispatcher = builder.upstreamDispatcher;
+    window = new Semaphore(builder.windowSize);
+    messageIdPrefix =
+        Long.toHexString(ThreadLocalRandom.current().nextLong()) + "-";
+  }
+
+  /**
+   * Opens the XMPP stream and authenticates the sender.
+   *
+   * @throws IllegalStateException if it was already called.
+   * @throws InvalidRequestException with a 401 status if the sender could not
+   *         be authenticated.
+   * @throws IOException if the connection could not be established.
+   */
+  public synchronized void connect() throws IOException {
+    if (socket != null) {
+      throw new IllegalStateException("connect() already called");
+    }
+    socket = createSocket();
+    XMLStreamReader reader;
+    try {
+      socket.connect(new InetSocketAddress(host, port), connectTimeout);
+      socket.setSoTimeout(connectTimeout);
+      socket.setTcpNoDelay(true);
+      out = new BufferedOutputStream(socket.getOutputStream());
+      reader = handshake(socket.getInputStream());
+      socket.setSoTimeout(0);
+    } catch (IOException e) {
+      closed = true;
+      Sender.close(socket);
+      throw e;
+    }
+    if (logger.isLoggable(Level.FINE)) {
+      logger.fine("Connected to CCS at " + host + ":" + port);
+    }
+    THREAD_FACTORY.newThread(() -> read(reader)).start();
+  }
+
+  /**
+   * Creates an unconnected socket which, if it uses TLS, checks that the
+   * certificate of CCS matches its host name before the key is sent.
+   */
+  private Socket createSocket() throws IOException {
+    Socket socket = socketFactory.createSocket();
+    if (socket instanceof SSLSocket) {
+      SSLSocket sslSocket = (SSLSocket) socket;
+      SSLParameters parameters = sslSocket.getSSLParameters();
+      parameters.setEndpointIdentificationAlgorithm("HTTPS");
+      // IP addresses are not sent as SNI
+      if (!IP_ADDRESS.matcher(host).matches()) {
+        try {
+          parameters.setServerNames(Collections.<SNIServerName>singletonList(
+              new SNIHostName(host)));
+        } catch (IllegalArgumentException e) {
+          logger.log(Level.FINEST, "Invalid SNI host name: " + host, e);
+        }
+      }
+      sslSocket.setSSLParameters(parameters);
+    }
+    return socket;
+  }
+
+  /**
+   * Authenticates the sender and binds a resource, returning the reader of
+   * the stream where the stanzas will come.
+   */
+  private XMLStreamReader handshake(InputStream in) throws IOException {
+    try {
+      write(STREAM_START);
+      XMLStreamReader reader = openStream(in);
+      Element features = readStanza(reader);
+      if (!features.hasChild("mechanisms", "PLAIN")) {
+        throw new IOException("CCS did not offer PLAIN authentication: " +
+            features);
+      }
+      String credentials = "\0" + senderId + "@" + GCM_CCS_HOST + "\0" + key;
+      write("<auth mechanism=\"PLAIN\""
+          + " xmlns=\"urn:ietf:params:xml:ns:xmpp-sasl\">"
+          + Base64.getEncoder().encodeToString(
+              credentials.getBytes(StandardCharsets.UTF_8))
+          + "</auth>");
+      Element auth = readStanza(reader);
+      if (!"success".equals(auth.name)) {
+        String condition = auth.children.isEmpty() ?
+            auth.name : auth.children.get(0).name;
+        throw new InvalidRequestException(401, condition);
+      }
+      // the stream is restarted after authentication
+      write(STREAM_START);
+      reader = openStream(in);
+      readStanza(reader);
+      write("<iq type=\"set\" id=\"bind\"><bind"
+          + " xmlns=\"urn:ietf:params:xml:ns:xmpp-bind\"/></iq>");
+      Element bind = readStanza(reader);
+      if (!"iq".equals(bind.name) || !"result".equals(bind.get("type"))) {
+        throw new IOException("CCS did not bind a resource: " + bind);
+      }
+      return reader;
+    } catch (XMLStreamException e) {
+      throw new IOException("Invalid XMPP stream", e);
+    }
+  }
+
+  /**
+   * Sends a message, waiting while the window of messages without ACK or
+   * NACK is full.
+   *
+   * @param message message to be sent.
+   * @param to registration id of the device, or topic, where the message
+   *        will be sent.
+   *
+   * @return future result of the message, completed when its ACK or NACK is
+   *         received; it fails with an {@link IOException} if the connection
+   *         is closed before, or CCS did not process it because the
+   *         connection is draining.
+   *
+   * @throws IOException if the connection is closed or draining, or the
+   *         message could not be written.
+   */
+  public CompletableFuture<Result> send(Message message, String to)
+      throws IOException {
+    Sender.nonNull(message);
+    Sender.nonNull(to);
+    try {
+      window.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("interrupted waiting for the window");
+    }
+    return sendAcquired(message, to);
+  }
+
+  /**
+   * Sends a message if the window is not full.
+   *
+   * @return future result of the message, or {@literal null} if the window is
+   *         full.
+   *
+   * @throws IOException if the connection is closed or draining, or the
+   *         message could not be written.
+   */
+  CompletableFuture<Result> trySend(Message message, String to)
+      throws IOException {
+    if (!window.tryAcquire()) {
+      return null;
+    }
+    return sendAcquired(message, to);
+  }
+
+  /**
+   * Sends a message once a slot of the window was acquired.
+   */
+  private CompletableFuture<Result> sendAcquired(Message message, String to)
+      throws IOException {
+    if (closed || draining) {
+      window.release();
+      throw new IOException("connection is " +
+          (closed ? "closed" : "draining"));
+    }
+    String messageId = messageIdPrefix + sequence.incrementAndGet();
+    CompletableFuture<Result> future = new CompletableFuture<Result>();
+    pending.put(messageId, future);
+    // the reader could have failed the pending messages before it was added
+    if (closed && remove(messageId) != null) {
+      throw new IOException("connection is closed");
+    }
+    try {
+      write(encodeMessage(message, to, messageId));
+    } catch (IOException e) {
+      // the stream is broken
+      remove(messageId);
+      close();
+      throw e;
+    }
+    return future;
+  }
+
+  /**
+   * Acknowledges a message received from CCS.
+   *
+   * @param from sender of the message.
+   * @param messageId id of the message.
+   */
+  void sendAck(String from, String messageId) throws IOException {
+    write(encodeAck(from, messageId));
+  }
+
+  /**
+   * Acknowledges messages sent by devices, in a single write.
+   */
+  void sendAcks(List<UpstreamMessage> messages) throws IOException {
+    ByteArrayOutputStream stanzas =
+        new ByteArrayOutputStream(192 * messages.size());
+    for (UpstreamMessage message : messages) {
+      stanzas.writeBytes(encodeAck(message.getFrom(), message.getMessageId()));
+    }
+    write(stanzas.toByteArray());
+  }
+
+  /**
+   * Gets the number of messages waiting for their ACK or NACK.
+   */
+  public int getPendingCount() {
+    return pending.size();
+  }
+
+  /**
+   * Gets the number of messages that can be sent before the window is full.
+   */
+  public int getAvailableWindow() {
+    return window.availablePermits();
+  }
+
+  /**
+   * Checks whether CCS announced that it will close this connection, in
+   * which case no more messages can be sent.
+   */
+  public boolean isDraining() {
+    return draining;
+  }
+
+  /**
+   * Checks whether this connection is closed.
+   */
+  public boolean isClosed() {
+    return closed;
+  }
+
+  /**
+   * Closes the stream, failing the messages still waiting for their ACK or
+   * NACK.
+   */
+  public void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    try {
+      write(STREAM_END);
+    } catch (IOException e) {
+      logger.log(Level.FINEST, "Could not close the stream", e);
+    }
+    synchronized (this) {
+      Sender.close(socket);
+    }
+    failPending(new IOException("connection closed"));
+  }
+
+  /**
+   * Body of the reader thread, which handles the stanzas until the stream is
+   * closed.
+   */
+  private void read(XMLStreamReader reader) {
+    IOException failure;
+    try {
+      Element stanza;
+      while ((stanza = readStanza(reader)) != null) {
+        handle(stanza);
+      }
+      failure = new IOException("stream closed by CCS");
+    } catch (XMLStreamException e) {
+      failure = new IOException("Invalid XMPP stream", e);
+    } catch (IOException e) {
+      failure = e;
+    } catch (RuntimeException e) {
+      logger.log(Level.SEVERE, "Unexpected error reading the stream", e);
+      failure = new IOException(e);
+    }
+    if (!closed) {
+      logger.log(Level.WARNING, "Connection to CCS lost", failure);
+      closed = true;
+      Sender.close(socket);
+    }
+    failPending(failure);
+  }
+
+  private void handle(Element stanza) throws IOException {
+    if ("iq".equals(stanza.name)) {
+      if ("get".equals(stanza.get("type")) && stanza.hasChild("ping", null)) {
+        write("<iq type=\"result\" id=\"" + escape(stanza.get("id"))
+            + "\" to=\"" + escape(stanza.get("from")) + "\"/>");
+      }
+      return;
+    }
+    if ("error".equals(stanza.name)) {
+      throw new IOException("CCS stream error: " + stanza);
+    }
+    Element gcm = stanza.child("gcm");
+    if (!"message".equals(stanza.name) || gcm == null) {
+      if (logger.isLoggable(Level.FINE)) {
+        logger.fine("Ignoring stanza " + stanza);
+      }
+      return;
+    }
+    CcsMessage message = new JsonResponseParser(new ByteArrayInputStream(
+        gcm.text.getBytes(StandardCharsets.UTF_8))).parseCcsMessage();
+    if (logger.isLoggable(Level.FINEST)) {
+      logger.finest("Received " + message);
+    }
+    String type = message.messageType;
+    if (CcsMessage.TYPE_ACK.equals(type)) {
+      complete(message.messageId, new Result.Builder()
+          .messageId(message.messageId)
+          .canonicalRegistrationId(message.canonicalRegistrationId)
+          .build());
+    } else if (CcsMessage.TYPE_NACK.equals(type)) {
+      if (logger.isLoggable(Level.FINE)) {
+        logger.fine("NACK of message " + message.messageId + ": " +
+            message.error + " (" + message.errorDescription + ")");
+      }
+      if (CcsMessage.CONTROL_CONNECTION_DRAINING.equals(message.error)) {
+        // not processed, as if the connection was lost before its ACK
+        draining = true;
+        CompletableFuture<Result> future = remove(message.messageId);
+        if (future != null) {
+          future.completeExceptionally(
+              new IOException("connection is draining"));
+        }
+        return;
+      }
+      complete(message.messageId, new Result.Builder()
+          .errorCode(toErrorCode(message.error))
+          .build());
+    } else if (CcsMessage.TYPE_CONTROL.equals(type)) {
+      if (CcsMessage.CONTROL_CONNECTION_DRAINING.equals(
+          message.controlType)) {
+        logger.info("CCS connection is draining");
+        draining = true;
+      }
+    } else if (message.from != null && message.messageId != null) {
+      if (type == null && upstreamDispatcher != null) {
+        upstreamDispatcher.dispatch(this, new UpstreamMessage(message.from,
+            message.messageId, message.category, message.data));
+      } else {
+        // upstream messages and receipts
+        sendAck(message.from, message.messageId);
+      }
+    }
+  }
+
+  /**
+   * Completes the result of a message that was sent on this connection.
+   */
+  private void complete(String messageId, Result result) {
+    CompletableFuture<Result> future = remove(messageId);
+    if (future == null) {
+      logger.warning("Received result of unknown message " + messageId);
+      return;
+    }
+    future.complete(result);
+  }
+
+  private CompletableFuture<Result> remove(String messageId) {
+    CompletableFuture<Result> future =
+        messageId == null ? null : pending.remove(messageId);
+    if (future != null) {
+      window.release();
+    }
+    return future;
+  }
+
+  private void failPending(IOException cause) {
+    for (String messageId : pending.keySet()) {
+      CompletableFuture<Result> future = remove(messageId);
+      if (future != null) {
+        future.completeExceptionally(cause);
+      }
+    }
+  }
+
+  /**
+   * Gets the error code of a NACK error, which is one of {@link Constants}
+   * when there is an equivalent one.
+   */
+  static String toErrorCode(String nackError) {
+    if (nackError == null) {
+      return ERROR_INTERNAL_SERVER_ERROR;
+    }
+    String errorCode = NACK_ERRORS.get(nackError);
+    return errorCode != null ? errorCode : nackError;
+  }
+
+  /**
+   * Encodes the stanza of a downstream message, as UTF-8.
+   */
+  static byte[] encodeMessage(Message message, String to, String messageId)
+      throws IOException {
+    ByteArrayOutputStream json = new ByteArrayOutputStream(
+        64 + message.getJsonFields().length + to.length());
+    new JsonWriter(json, 256)
+        .beginObject()
+        .name(JSON_TO).value(to)
+        .name(JSON_MESSAGE_ID).value(messageId)
+        .members(message.getJsonFields())
+        .endObject()
+        .flush();
+    return wrap(json.toByteArray());
+  }
+
+  /**
+   * Encodes the stanza of the ACK of a message received from CCS, as UTF-8.
+   */
+  private static byte[] encodeAck(String from, String messageId)
+      throws IOException {
+    ByteArrayOutputStream json = new ByteArrayOutputStream(128);
+    new JsonWriter(json, 128)
+        .beginObject()
+        .name(JSON_TO).value(from)
+        .name(JSON_MESSAGE_ID).value(messageId)
+        .name(JSON_MESSAGE_TYPE).value(CcsMessage.TYPE_ACK)
+        .endObject()
+        .flush();
+    return wrap(json.toByteArray());
+  }
+
+  /**
+   * Wraps a JSON payload into a message stanza, escaping the characters that
+   * are special in XML.
+   */
+  private static byte[] wrap(byte[] json) {
+    ByteArrayOutputStream stanza = new ByteArrayOutputStream(
+        STANZA_START.length + json.length + STANZA_END.length + 16);
+    stanza.writeBytes(STANZA_START);
+    for (byte b : json) {
+      switch (b) {
+        case '&':
+          stanza.writeBytes(AMP);
+          break;
+        case '<':
+          stanza.writeBytes(LT);
+          break;
+        case '>':
+          stanza.writeBytes(GT);
+          break;
+        default:
+          stanza.write(b);
+      }
+    }
+    stanza.writeBytes(STANZA_END);
+    return stanza.toByteArray();
+  }
+
+  private static String escape(String value) {
+    if (value == null) {
+      return "";
+    }
+    return value.replace("&", "&amp;").replace("<", "&lt;")
+        .replace(">", "&gt;").replace("\"", "&quot;");
+  }
+
+  private void write(String xml) throws IOException {
+    write(xml.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private void write(byte[] bytes) throws IOException {
+    OutputStream out = this.out;
+    if (out == null) {
+      throw new IOException("not connected");
+    }
+    synchronized (out) {
+      out.write(bytes);
+      out.flush();
+    }
+  }
+
+  /**
+   * Creates a reader of a stream opened by CCS, positioned after its start.
+   */
+  private static XMLStreamReader openStream(InputStream in)
+      throws XMLStreamException {
+    XMLInputFactory factory = XMLInputFactory.newFactory();
+    factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES,
+        false);
+    XMLStreamReader reader = factory.createXMLStreamReader(in, "UTF-8");
+    if (reader.nextTag() != XMLStreamConstants.START_ELEMENT ||
+        !"stream".equals(reader.getLocalName())) {
+      throw new XMLStreamException("expected the start of a stream");
+    }
+    return reader;
+  }
+
+  /**
+   * Reads the next child of the stream.
+   *
+   * @return the stanza, or {@literal null} if the stream was closed.
+   */
+  private static Element readStanza(XMLStreamReader reader)
+      throws XMLStreamException {
+    if (reader.nextTag() == XMLStreamConstants.END_ELEMENT) {
+      return null;
+    }
+    return readElement(reader);
+  }
+
+  /**
+   * Reads the element whose start was just read, up to its end.
+   */
+  private static Element readElement(XMLStreamReader reader)
+      throws XMLStreamException {
+    Element element = new Element(reader.getLocalName());
+    for (int i = 0; i < reader.getAttributeCount(); i++) {
+      element.attributes.put(reader.getAttributeLocalName(i),
+          reader.getAttributeValue(i));
+    }
+    StringBuilder text = new StringBuilder();
+    for (;;) {
+      int event = reader.next();
+      if (event == XMLStreamConstants.START_ELEMENT) {
+        element.children.add(readElement(reader));
+      } else if (event == XMLStreamConstants.CHARACTERS ||
+          event == XMLStreamConstants.CDATA) {
+        text.append(reader.getText());
+      } else if (event == XMLStreamConstants.END_ELEMENT) {
+        break;
+      }
+    }
+    element.text = text.toString();
+    return element;
+  }
+
+  /**
+   * Element of the stream, with its children.
+   */
+  private static final class Element {
+
+    final String name;
+    final Map<String, String> attributes = new HashMap<String, String>();
+    final List<Element> children = new ArrayList<Element>();
+    String text;
+
+    Element(String name) {
+      this.name = name;
+    }
+
+    String get(String attribute) {
+      return attributes.get(attribute);
+    }
+
+    Element child(String name) {
+      for (Element child : children) {
+        if (child.name.equals(name)) {
+          return child;
+        }
+      }
+      return null;
+    }
+
+    /**
+     * Checks whether it has a child with the given name that has a child with
+     * the given text, or any child if {@literal null}.
+     */
+    boolean hasChild(String name, String text) {
+      Element child = child(name);
+      if (child == null || text == null) {
+        return child != null;
+      }
+      for (Element grandChild : child.children) {
+        if (text.equals(grandChild.text.trim())) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    @Override
+    public String toString() {
+      return "<" + name + " " + attributes + ">" + children;
+    }
+  }
+
+}
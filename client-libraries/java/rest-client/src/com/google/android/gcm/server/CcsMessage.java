@@ -0,0 +1,71 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import java.util.Map;
+
+/**
+ * JSON payload of a message received from CCS, such as the ACK of a message
+ * sent on the connection.
+ *
+ * <p>
+ * Members that do not apply to the type of the message are {@literal null}.
+ */
+final class CcsMessage {
+
+  /**
+   * Type of the ACK of a message sent on the connection.
+   */
+  static final String TYPE_ACK = "ack";
+
+  /**
+   * Type of the NACK of a message sent on the connection.
+   */
+  static final String TYPE_NACK = "nack";
+
+  /**
+   * Type of the control messages sent by CCS.
+   */
+  static final String TYPE_CONTROL = "control";
+
+  /**
+   * Type of the delivery receipts of downstream messages.
+   */
+  static final String TYPE_RECEIPT = "receipt";
+
+  /**
+   * Control type of a connection that is about to be closed by CCS.
+   */
+  static final String CONTROL_CONNECTION_DRAINING = "CONNECTION_DRAINING";
+
+  // null for upstream messages
+  String messageType;
+  String messageId;
+  String from;
+  String canonicalRegistrationId;
+  String error;
+  String errorDescription;
+  String controlType;
+  String category;
+  Map<String, String> data;
+
+  @Override
+  public String toString() {
+    return "CcsMessage(type=" + messageType + ", messageId=" + messageId +
+        ", from=" + from + (error == null ? "" : ", error=" + error) + ")";
+  }
+
+}
@@ -0,0 +1,434 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Pool of {@link CcsConnection CCS connections} that spreads messages across
+ * them, so the throughput is not capped by the window of a single connection.
+ *
+ * <p>
+ * Messages are queued, and a single thread sends each one on the connection
+ * with the most room left in its window, waiting while all windows are full.
+ * When CCS drains a connection, a new one is opened in its place, and the
+ * messages that the old connection could not deliver, because CCS closed it
+ * or NACKed them as draining, are queued again; a message is sent on at most
+ * {@link Builder#maxAttempts(int) some} connections before failing.
+ *
+ * <p>
+ * This class is thread-safe. Example:
+ *
+ * <pre><code>
+ * CcsPool pool = new CcsPool.Builder(
+ *    new CcsConnection.Builder(senderId, key), 4).build();
+ * CompletableFuture&lt;Result&gt; result = pool.send(message, regId);
+ * </code></pre>
+ */
+public final class CcsPool implements Closeable {
+
+  private static final Logger logger =
+      Logger.getLogger(CcsPool.class.getName());
+
+  private static final ThreadFactory THREAD_FACTORY =
+      Sender.newDaemonThreadFactory("gcm-ccs-pool-");
+
+  // queued by close() to stop the dispatcher
+  private static final Entry CLOSE = new Entry(null, null);
+
+  private final CcsConnection.Builder connectionBuilder;
+  private final int capacity;
+  private final int maxAttempts;
+  private final long reconnectDelay;
+  // null while a connection is being opened
+  private final AtomicReferenceArray<CcsConnection> connections;
+  // drained connections, closed once they have no pending messages
+  private final List<CcsConnection> retired = new ArrayList<CcsConnection>();
+  private final BlockingDeque<Entry> queue = new LinkedBlockingDeque<Entry>();
+  // notified when a window may have room, or a connection was opened
+  private final Object monitor = new Object();
+  private final Thread dispatcher;
+  private volatile boolean closed;
+
+  public static final class Builder {
+
+    // required parameters
+    private final CcsConnection.Builder connectionBuilder;
+    private final int size;
+
+    // optional parameters
+    private int capacity = 10000;
+    private int maxAttempts = 3;
+    private long reconnectDelay = 1000;
+
+    /**
+     * @param connectionBuilder builder of the connections.
+     * @param size number of connections.
+     */
+    public Builder(CcsConnection.Builder connectionBuilder, int size) {
+      this.connectionBuilder = Sender.nonNull(connectionBuilder);
+      this.size = positive(size);
+    }
+
+    /**
+     * Sets the number of messages that can be queued before being sent
+     * (default is {@literal 10000}); messages sent while the queue is full are
+     * rejected.
+     */
+    public Builder capacity(int value) {
+      capacity = positive(value);
+      return this;
+    }
+
+    /**
+     * Sets on how many connections a message can be sent before failing, if
+     * they are closed or drained before its ACK or NACK (default is
+     * {@literal 3}).
+     */
+    public Builder maxAttempts(int value) {
+      maxAttempts = positive(value);
+      return this;
+    }
+
+    /**
+     * Sets how long to wait before trying again to open a connection, which
+     * doubles after each failure up to a minute (default is {@literal 1}
+     * second).
+     */
+    public Builder reconnectDelay(long value, TimeUnit unit) {
+      if (value < 0) {
+        throw new IllegalArgumentException("time can not be negative");
+      }
+      reconnectDelay = unit.toMillis(value);
+      return this;
+    }
+
+    /**
+     * Opens the connections and starts sending messages.
+     *
+     * @throws IOException if a connection could not be opened.
+     */
+    public CcsPool build() throws IOException {
+      return new CcsPool(this);
+    }
+
+    private static int positive(int value) {
+      if (value <= 0) {
+        throw new IllegalArgumentException("value must be positive");
+      }
+      return value;
+    }
+  }
+
+  private CcsPool(Builder builder) throws IOException {
+    connectionBuilder = builder.connectionBuilder;
+    capacity = builder.capacity;
+    maxAttempts = builder.maxAttempts;
+    reconnectDelay = builder.reconnectDelay;
+    connections = new AtomicReferenceArray<CcsConnection>(builder.size);
+    try {
+      for (int i = 0; i < builder.size; i++) {
+        CcsConnection connection = connectionBuilder.build();
+        connections.set(i, connection);
+        connection.connect();
+      }
+    } catch (IOException e) {
+      closeConnections();
+      throw e;
+    }
+    dispatcher = THREAD_FACTORY.newThread(this::dispatch);
+    dispatcher.start();
+  }
+
+  /**
+   * Queues a message.
+   *
+   * @param message message to be sent.
+   * @param to registration id of the device, or topic, where the message
+   *        will be sent.
+   *
+   * @return future result of the message; it fails with an
+   *         {@link IOException} if the message could not be sent on any
+   *         connection.
+   *
+   * @throws RejectedExecutionException if the queue is full, or this pool is
+   *         closed.
+   */
+  public CompletableFuture<Result> send(Message message, String to) {
+    Entry entry = new Entry(Sender.nonNull(message), Sender.nonNull(to));
+    // the capacity is not exact, as messages queued again are not limited
+    if (closed || queue.size() >= capacity) {
+      throw new RejectedExecutionException(closed ?
+          "pool is closed" : "queue is full");
+    }
+    queue.add(entry);
+    // close() could have drained the queue before the entry was added
+    if (closed && queue.remove(entry)) {
+      throw new RejectedExecutionException("pool is closed");
+    }
+    return entry.future;
+  }
+
+  /**
+   * Gets the number of messages waiting to be sent.
+   */
+  public int getQueuedCount() {
+    return queue.size();
+  }
+
+  /**
+   * Stops sending messages and closes the connections, failing the messages
+   * queued or waiting for their ACK or NACK.
+   */
+  public void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    queue.addFirst(CLOSE);
+    synchronized (monitor) {
+      monitor.notifyAll();
+    }
+    boolean interrupted = false;
+    for (;;) {
+      try {
+        dispatcher.join();
+        break;
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    closeConnections();
+    List<Entry> stranded = new ArrayList<Entry>();
+    queue.drainTo(stranded);
+    for (Entry entry : stranded) {
+      if (entry != CLOSE) {
+        entry.future.completeExceptionally(
+            new RejectedExecutionException("pool is closed"));
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void closeConnections() {
+    for (int i = 0; i < connections.length(); i++) {
+      CcsConnection connection = connections.getAndSet(i, null);
+      if (connection != null) {
+        connection.close();
+      }
+    }
+    synchronized (retired) {
+      for (CcsConnection connection : retired) {
+        connection.close();
+      }
+      retired.clear();
+    }
+  }
+
+  /**
+   * Body of the dispatcher thread.
+   */
+  private void dispatch() {
+    try {
+      for (;;) {
+        Entry entry = queue.take();
+        if (entry == CLOSE) {
+          return;
+        }
+        send(entry);
+      }
+    } catch (InterruptedException e) {
+      logger.warning("Dispatcher interrupted, closing pool");
+      closed = true;
+    }
+  }
+
+  /**
+   * Sends a message on the connection with the most room in its window,
+   * waiting until one has room.
+   */
+  private void send(Entry entry) throws InterruptedException {
+    for (;;) {
+      if (closed) {
+        entry.future.completeExceptionally(
+            new RejectedExecutionException("pool is closed"));
+        return;
+      }
+      CcsConnection connection = pick();
+      if (connection != null) {
+        CompletableFuture<Result> future;
+        try {
+          future = connection.trySend(entry.message, entry.to);
+        } catch (IOException e) {
+          // closed or draining meanwhile, it will be replaced
+          logger.log(Level.FINEST, "Could not send message", e);
+          continue;
+        }
+        if (future != null) {
+          entry.attempts++;
+          future.whenComplete((result, e) -> completed(entry, result, e));
+          return;
+        }
+      }
+      synchronized (monitor) {
+        // bounded, since windows are not watched
+        monitor.wait(50);
+      }
+    }
+  }
+
+  /**
+   * Completes the result of a message, or queues it again if it could not be
+   * sent on its connection.
+   */
+  private void completed(Entry entry, Result result, Throwable e) {
+    if (e == null) {
+      entry.future.complete(result);
+    } else if (closed || entry.attempts >= maxAttempts) {
+      entry.future.completeExceptionally(e);
+    } else {
+      if (logger.isLoggable(Level.FINE)) {
+        logger.fine("Queuing again message to " + entry.to + " after " +
+            e.getMessage());
+      }
+      queue.addFirst(entry);
+      // close() could have drained the queue before the entry was added
+      if (closed && queue.remove(entry)) {
+        entry.future.completeExceptionally(e);
+      }
+    }
+    synchronized (monitor) {
+      monitor.notifyAll();
+    }
+  }
+
+  /**
+   * Gets the open connection with the most room in its window, replacing the
+   * ones that are drained or closed.
+   *
+   * @return the connection, or {@literal null} if no window has room.
+   */
+  private CcsConnection pick() {
+    CcsConnection best = null;
+    int bestWindow = 0;
+    for (int i = 0; i < connections.length(); i++) {
+      CcsConnection connection = connections.get(i);
+      if (connection == null) {
+        continue;
+      }
+      if (connection.isDraining() || connection.isClosed()) {
+        replace(i, connection);
+        continue;
+      }
+      int window = connection.getAvailableWindow();
+      if (window > bestWindow) {
+        best = connection;
+        bestWindow = window;
+      }
+    }
+    synchronized (retired) {
+      for (Iterator<CcsConnection> iterator = retired.iterator();
+          iterator.hasNext();) {
+        CcsConnection connection = iterator.next();
+        if (connection.getPendingCount() == 0) {
+          iterator.remove();
+          connection.close();
+        }
+      }
+    }
+    return best;
+  }
+
+  /**
+   * Opens a new connection in place of one drained or closed, which is
+   * closed once it has no pending messages.
+   */
+  private void replace(int slot, CcsConnection connection) {
+    if (!connections.compareAndSet(slot, connection, null)) {
+      return;
+    }
+    logger.info("Replacing CCS connection #" + slot);
+    synchronized (retired) {
+      retired.add(connection);
+    }
+    THREAD_FACTORY.newThread(() -> reconnect(slot)).start();
+  }
+
+  /**
+   * Body of the threads that open a connection, until it succeeds or the
+   * pool is closed.
+   */
+  private void reconnect(int slot) {
+    long delay = reconnectDelay;
+    while (!closed) {
+      CcsConnection connection = connectionBuilder.build();
+      try {
+        connection.connect();
+        connections.set(slot, connection);
+        // close() could have closed the connections before it was set
+        if (closed && connections.compareAndSet(slot, connection, null)) {
+          connection.close();
+        }
+        synchronized (monitor) {
+          monitor.notifyAll();
+        }
+        return;
+      } catch (IOException e) {
+        logger.log(Level.WARNING, "Could not open CCS connection #" + slot +
+            ", trying again in " + delay + "ms", e);
+      }
+      try {
+        Thread.sleep(delay);
+      } catch (InterruptedException e) {
+        return;
+      }
+      delay = Math.min(delay * 2, 60000);
+    }
+  }
+
+  /**
+   * Message queued to be sent.
+   */
+  private static final class Entry {
+
+    final Message message;
+    final String to;
+    final CompletableFuture<Result> future = new CompletableFuture<Result>();
+    // number of connections where it was sent
+    int attempts;
+
+    Entry(Message message, String to) {
+      this.message = message;
+      this.to = to;
+    }
+  }
+
+}
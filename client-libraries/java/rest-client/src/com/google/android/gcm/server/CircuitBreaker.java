@@ -0,0 +1,340 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Circuit breaker that stops a {@link Sender} from posting requests while GCM
+ * is failing, so sends fail fast instead of walking their retry schedule.
+ *
+ * <p>
+ * The outcome of each request is recorded over a sliding
+ * {@link Builder#window(long, TimeUnit) window}. A request fails if it could
+ * not be posted or GCM returned a 5xx status, and it is slow if its response
+ * took longer than the {@link Builder#slowCallThreshold(long, TimeUnit) slow
+ * call threshold}. Once the window has enough requests, and the rate of
+ * failed or slow ones reaches its threshold, the circuit opens: requests are
+ * rejected with a {@link CircuitOpenException}, which is not retried, for the
+ * {@link Builder#openTime(long, TimeUnit) open time}. Then the circuit is
+ * half-open, and lets a few probe requests through: it closes if they all
+ * succeed, and opens again as soon as one fails.
+ *
+ * <p>
+ * Other errors, such as 4xx statuses, count as successes, since GCM is
+ * answering. This class is thread-safe. Example:
+ *
+ * <pre><code>
+ * CircuitBreaker breaker = new CircuitBreaker.Builder()
+ *    .failureRateThreshold(0.5)
+ *    .slowCallThreshold(5, TimeUnit.SECONDS)
+ *    .openTime(30, TimeUnit.SECONDS)
+ *    .build();
+ * sender.setCircuitBreaker(breaker);
+ * </code></pre>
+ */
+public final class CircuitBreaker {
+
+  private static final Logger logger =
+      Logger.getLogger(CircuitBreaker.class.getName());
+
+  /**
+   * State of a circuit breaker.
+   */
+  public enum State {
+
+    /**
+     * Requests are posted, and their outcome recorded.
+     */
+    CLOSED,
+
+    /**
+     * Requests are rejected.
+     */
+    OPEN,
+
+    /**
+     * A few probe requests are posted to find out whether GCM recovered.
+     */
+    HALF_OPEN
+  }
+
+  private final double failureRateThreshold;
+  private final long slowCallThreshold;
+  private final double slowCallRateThreshold;
+  private final int minimumRequests;
+  private final long openTime;
+  private final int probes;
+  private final LongSupplier ticker;
+  private final long bucketTime;
+  // counts of the window, in ring buffers indexed by bucket number
+  private final long[] bucketNumbers;
+  private final int[] totals;
+  private final int[] failures;
+  private final int[] slowCalls;
+  private State state = State.CLOSED;
+  // in the ticker's nanoseconds
+  private long openedAt;
+  private int probesStarted;
+  private int probesSucceeded;
+
+  public static final class Builder {
+
+    // optional parameters
+    private double failureRateThreshold = 0.5;
+    private long slowCallThreshold;
+    private double slowCallRateThreshold = 1;
+    private int minimumRequests = 20;
+    private long window = TimeUnit.SECONDS.toNanos(10);
+    private int buckets = 10;
+    private long openTime = TimeUnit.SECONDS.toNanos(30);
+    private int probes = 3;
+    private LongSupplier ticker = System::nanoTime;
+
+    /**
+     * Sets the rate of failed requests that opens the circuit (default is
+     * {@literal 0.5}).
+     */
+    public Builder failureRateThreshold(double value) {
+      failureRateThreshold = rate(value);
+      return this;
+    }
+
+    /**
+     * Sets how long a response can take before its request counts as slow
+     * (default is {@literal 0}, which means requests are never slow).
+     */
+    public Builder slowCallThreshold(long value, TimeUnit unit) {
+      if (value < 0) {
+        throw new IllegalArgumentException("time can not be negative");
+      }
+      slowCallThreshold = unit.toNanos(value);
+      return this;
+    }
+
+    /**
+     * Sets the rate of slow requests that opens the circuit (default is
+     * {@literal 1}).
+     */
+    public Builder slowCallRateThreshold(double value) {
+      slowCallRateThreshold = rate(value);
+      return this;
+    }
+
+    /**
+     * Sets the number of requests the window must have before the circuit
+     * can open (default is {@literal 20}).
+     */
+    public Builder minimumRequests(int value) {
+      minimumRequests = positive(value);
+      return this;
+    }
+
+    /**
+     * Sets the time span of the outcomes considered, which slides in
+     * {@literal 10} steps (default is {@literal 10} seconds).
+     */
+    public Builder window(long value, TimeUnit unit) {
+      if (value <= 0) {
+        throw new IllegalArgumentException("time must be positive");
+      }
+      window = unit.toNanos(value);
+      return this;
+    }
+
+    /**
+     * Sets how long the circuit stays open before letting probe requests
+     * through (default is {@literal 30} seconds).
+     */
+    public Builder openTime(long value, TimeUnit unit) {
+      if (value < 0) {
+        throw new IllegalArgumentException("time can not be negative");
+      }
+      openTime = unit.toNanos(value);
+      return this;
+    }
+
+    /**
+     * Sets the number of probe requests that must succeed to close the
+     * circuit (default is {@literal 3}).
+     */
+    public Builder probes(int value) {
+      probes = positive(value);
+      return this;
+    }
+
+    Builder ticker(LongSupplier value) {
+      ticker = Sender.nonNull(value);
+      return this;
+    }
+
+    public CircuitBreaker build() {
+      return new CircuitBreaker(this);
+    }
+
+    private static double rate(double value) {
+      if (!(value > 0 && value <= 1)) {
+        throw new IllegalArgumentException("rate must be in (0, 1]");
+      }
+      return value;
+    }
+
+    private static int positive(int value) {
+      if (value <= 0) {
+        throw new IllegalArgumentException("value must be positive");
+      }
+      return value;
+    }
+  }
+
+  private CircuitBreaker(Builder builder) {
+    failureRateThreshold = builder.failureRateThreshold;
+    slowCallThreshold = builder.slowCallThreshold;
+    slowCallRateThreshold = builder.slowCallRateThreshold;
+    minimumRequests = builder.minimumRequests;
+    openTime = builder.openTime;
+    probes = builder.probes;
+    ticker = builder.ticker;
+    bucketTime = Math.max(1, builder.window / builder.buckets);
+    bucketNumbers = new long[builder.buckets];
+    totals = new int[builder.buckets];
+    failures = new int[builder.buckets];
+    slowCalls = new int[builder.buckets];
+  }
+
+  /**
+   * Gets the current state, which turns from open to half-open once the
+   * open time has passed.
+   */
+  public synchronized State getState() {
+    if (state == State.OPEN && ticker.getAsLong() - openedAt >= openTime) {
+      halfOpen();
+    }
+    return state;
+  }
+
+  /**
+   * Lets a request through, or rejects it.
+   *
+   * @throws CircuitOpenException if the circuit is open, or half-open with
+   *         all probe requests already being made.
+   */
+  synchronized void acquire() throws CircuitOpenException {
+    if (getState() == State.CLOSED) {
+      return;
+    }
+    if (state == State.OPEN) {
+      long remaining = openTime - (ticker.getAsLong() - openedAt);
+      throw new CircuitOpenException("circuit is open",
+          TimeUnit.NANOSECONDS.toMillis(remaining));
+    }
+    if (probesStarted >= probes) {
+      throw new CircuitOpenException("circuit is half-open", 0);
+    }
+    probesStarted++;
+  }
+
+  /**
+   * Records the outcome of a request that was let through.
+   *
+   * @param success whether GCM answered with a non-5xx status.
+   * @param nanos time it took, until the status was received.
+   */
+  synchronized void record(boolean success, long nanos) {
+    boolean slow = slowCallThreshold > 0 && nanos >= slowCallThreshold;
+    long now = ticker.getAsLong();
+    if (state == State.HALF_OPEN) {
+      if (!success || slow) {
+        open(now, "probe request " + (success ? "was slow" : "failed"));
+      } else if (++probesSucceeded >= probes) {
+        close();
+      }
+      return;
+    }
+    if (state == State.OPEN) {
+      // made before the circuit opened
+      return;
+    }
+    long number = Math.floorDiv(now, bucketTime);
+    int index = (int) Math.floorMod(number, (long) totals.length);
+    if (bucketNumbers[index] != number) {
+      bucketNumbers[index] = number;
+      totals[index] = 0;
+      failures[index] = 0;
+      slowCalls[index] = 0;
+    }
+    totals[index]++;
+    if (!success) {
+      failures[index]++;
+    }
+    if (slow) {
+      slowCalls[index]++;
+    }
+    int total = 0;
+    int failed = 0;
+    int slowed = 0;
+    for (int i = 0; i < totals.length; i++) {
+      if (number - bucketNumbers[i] < totals.length) {
+        total += totals[i];
+        failed += failures[i];
+        slowed += slowCalls[i];
+      }
+    }
+    if (total < minimumRequests) {
+      return;
+    }
+    if (failed >= failureRateThreshold * total) {
+      open(now, failed + " of " + total + " requests failed");
+    } else if (slowed > 0 && slowed >= slowCallRateThreshold * total) {
+      open(now, slowed + " of " + total + " requests were slow");
+    }
+  }
+
+  private void open(long now, String reason) {
+    if (logger.isLoggable(Level.WARNING)) {
+      logger.warning("Opening circuit for " +
+          TimeUnit.NANOSECONDS.toMillis(openTime) + "ms, as " + reason);
+    }
+    state = State.OPEN;
+    openedAt = now;
+  }
+
+  private void halfOpen() {
+    logger.info("Circuit is half-open, probing GCM");
+    state = State.HALF_OPEN;
+    probesStarted = 0;
+    probesSucceeded = 0;
+  }
+
+  private void close() {
+    logger.info("Closing circuit, as GCM recovered");
+    state = State.CLOSED;
+    for (int i = 0; i < totals.length; i++) {
+      totals[i] = 0;
+      failures[i] = 0;
+      slowCalls[i] = 0;
+    }
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "CircuitBreaker(" + state + ")";
+  }
+
+}
@@ -26,6 +26,44 @@ public final class Constants {
   public static final String GCM_SEND_ENDPOINT =
       "https://android.googleapis.com/gcm/send";
 
+  /**
+   * Endpoint for managing device groups.
+   */
+  public static final String GCM_NOTIFICATION_ENDPOINT =
+      "https://android.googleapis.com/gcm/notification";
+
+  /**
+   * Maximum number of registration ids allowed in a single multicast request.
+   */
+  public static final int MULTICAST_SIZE_LIMIT = 1000;
+
+  /**
+   * Maximum number of devices allowed in a device group.
+   */
+  public static final int DEVICE_GROUP_SIZE_LIMIT = 20;
+
+  /**
+   * Host of the GCM Cloud Connection Server (CCS), which sends messages over
+   * XMPP; it is also the domain of the XMPP accounts of the senders.
+   */
+  public static final String GCM_CCS_HOST = "gcm.googleapis.com";
+
+  /**
+   * Port of the GCM Cloud Connection Server.
+   */
+  public static final int GCM_CCS_PORT = 5235;
+
+  /**
+   * Maximum number of messages sent on a CCS connection that can be waiting
+   * for their ACK or NACK.
+   */
+  public static final int CCS_WINDOW_SIZE = 100;
+
+  /**
+   * Prefix of the target of a message sent to the subscribers of a topic.
+   */
+  public static final String TOPIC_PREFIX = "/topics/";
+
   /**
    * HTTP parameter for collapse key.
    */
@@ -64,6 +102,13 @@ public final class Constants {
   public static final String ERROR_DEVICE_QUOTA_EXCEEDED =
       "DeviceQuotaExceeded";
 
+  /**
+   * The rate of messages to a particular device is too high. Reduce the number
+   * of messages sent to this device and retry after a while.
+   */
+  public static final String ERROR_DEVICE_MESSAGE_RATE_EXCEEDED =
+      "DeviceMessageRateExceeded";
+
   /**
    * Missing registration_id.
    * Sender should always add the registration_id to the request.
@@ -120,6 +165,19 @@ public final class Constants {
    */
   public static final String ERROR_INVALID_TTL= "InvalidTtl";
 
+  /**
+   * The rate of messages to the subscribers of a topic is too high. Reduce the
+   * number of messages sent to this topic and retry after a while.
+   */
+  public static final String ERROR_TOPICS_MESSAGE_RATE_EXCEEDED =
+      "TopicsMessageRateExceeded";
+
+  /**
+   * The message was not sent to the device before its {@link Deadline}
+   * expired or was cancelled. This error is set by the library, not by GCM.
+   */
+  public static final String ERROR_DEADLINE_EXCEEDED = "DeadlineExceeded";
+
   /**
    * Token returned by GCM when the requested registration id has a canonical
    * value.
@@ -131,6 +189,18 @@ public final class Constants {
    */
   public static final String JSON_REGISTRATION_IDS = "registration_ids";
 
+  /**
+   * JSON-only field representing the single target of a message, either a
+   * registration id, a topic or the notification key of a device group.
+   */
+  public static final String JSON_TO = "to";
+
+  /**
+   * JSON-only field representing a condition on the topics of the devices
+   * that will receive a message.
+   */
+  public static final String JSON_CONDITION = "condition";
+
   /**
    * JSON-only field representing the payload data.
    */
@@ -237,6 +307,57 @@ public final class Constants {
    */
   public static final String JSON_MESSAGE_ID = "message_id";
 
+  /**
+   * JSON-only field sent by GCM with the devices of a group that did not get
+   * a message.
+   */
+  public static final String JSON_FAILED_REGISTRATION_IDS =
+      "failed_registration_ids";
+
+  /**
+   * JSON-only field representing the operation made on a device group.
+   */
+  public static final String JSON_OPERATION = "operation";
+
+  /**
+   * JSON-only field representing the name given to a device group by the
+   * application server.
+   */
+  public static final String JSON_NOTIFICATION_KEY_NAME =
+      "notification_key_name";
+
+  /**
+   * JSON-only field representing the notification key of a device group, used
+   * as the target of the messages sent to the group.
+   */
+  public static final String JSON_NOTIFICATION_KEY = "notification_key";
+
+  /**
+   * JSON-only field representing the type of a CCS message, such as an ACK.
+   */
+  public static final String JSON_MESSAGE_TYPE = "message_type";
+
+  /**
+   * JSON-only field representing the sender of a CCS message.
+   */
+  public static final String JSON_FROM = "from";
+
+  /**
+   * JSON-only field representing the description of the error of a CCS NACK.
+   */
+  public static final String JSON_ERROR_DESCRIPTION = "error_description";
+
+  /**
+   * JSON-only field representing the type of a CCS control message.
+   */
+  public static final String JSON_CONTROL_TYPE = "control_type";
+
+  /**
+   * JSON-only field representing the package name of the application that
+   * sent an upstream message.
+   */
+  public static final String JSON_CATEGORY = "category";
+
   private Constants() {
     throw new UnsupportedOperationException();
   }
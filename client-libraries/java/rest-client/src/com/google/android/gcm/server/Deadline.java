@@ -0,0 +1,114 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Time budget of a message across all its attempts, which can also be
+ * cancelled before it expires.
+ *
+ * <p>
+ * A {@link Sender} checks the deadline before each attempt, bounds the
+ * timeouts of each attempt by the time left, and does not retry when the
+ * back-off would outlast it. Devices that did not get a final result are
+ * reported with {@link Constants#ERROR_DEADLINE_EXCEEDED}.
+ *
+ * <p>
+ * This class is thread-safe: a deadline can be cancelled from any thread,
+ * which is noticed before the next attempt.
+ */
+public final class Deadline {
+
+  private final LongSupplier ticker;
+  // in the ticker's nanoseconds, ignored if unbounded
+  private final long expiration;
+  private final boolean unbounded;
+  private volatile boolean cancelled;
+
+  Deadline(long nanos, LongSupplier ticker) {
+    this.ticker = ticker;
+    unbounded = nanos == Long.MAX_VALUE;
+    expiration = unbounded ? 0 : ticker.getAsLong() + nanos;
+  }
+
+  /**
+   * Creates a deadline that expires after the given time.
+   *
+   * @throws IllegalArgumentException if the time is negative.
+   */
+  public static Deadline after(long time, TimeUnit unit) {
+    if (time < 0) {
+      throw new IllegalArgumentException("time can not be negative");
+    }
+    long nanos = Sender.nonNull(unit).toNanos(time);
+    // Long.MAX_VALUE means unbounded
+    return new Deadline(Math.min(nanos, Long.MAX_VALUE - 1),
+        System::nanoTime);
+  }
+
+  /**
+   * Creates a deadline that never expires, but can be cancelled.
+   */
+  public static Deadline unbounded() {
+    return new Deadline(Long.MAX_VALUE, System::nanoTime);
+  }
+
+  /**
+   * Cancels the message: no more attempts will be made.
+   */
+  public void cancel() {
+    cancelled = true;
+  }
+
+  /**
+   * Checks whether the deadline was {@link #cancel() cancelled}.
+   */
+  public boolean isCancelled() {
+    return cancelled;
+  }
+
+  /**
+   * Checks whether the deadline expired or was cancelled.
+   */
+  public boolean isExpired() {
+    return getRemaining(TimeUnit.NANOSECONDS) == 0;
+  }
+
+  /**
+   * Gets the time left before the deadline expires, which is {@literal 0} if
+   * it expired or was cancelled, and {@link Long#MAX_VALUE} if it is
+   * unbounded.
+   */
+  public long getRemaining(TimeUnit unit) {
+    if (cancelled) {
+      return 0;
+    }
+    if (unbounded) {
+      return Long.MAX_VALUE;
+    }
+    long remaining = expiration - ticker.getAsLong();
+    return remaining <= 0 ? 0 : unit.convert(remaining, TimeUnit.NANOSECONDS);
+  }
+
+  @Override
+  public String toString() {
+    return "Deadline(" + (cancelled ? "cancelled" : unbounded ? "unbounded" :
+        getRemaining(TimeUnit.MILLISECONDS) + "ms left") + ")";
+  }
+
+}
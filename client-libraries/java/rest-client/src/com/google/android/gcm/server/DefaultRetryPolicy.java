@@ -0,0 +1,65 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import java.util.Map;
+
+/**
+ * {@link RetryPolicy} created by a {@link RetryPolicy.Builder}.
+ */
+final class DefaultRetryPolicy implements RetryPolicy {
+
+  // back-off by retryable error code; null values use the default one
+  private final Map<String, Backoff> retryable;
+  private final Backoff backoff;
+  private final long retryBudget;
+  private final long attemptTimeout;
+
+  DefaultRetryPolicy(Map<String, Backoff> retryable, Backoff backoff,
+      long retryBudget, long attemptTimeout) {
+    this.retryable = retryable;
+    this.backoff = backoff;
+    this.retryBudget = retryBudget;
+    this.attemptTimeout = attemptTimeout;
+  }
+
+  public boolean isRetryable(String errorCode) {
+    return errorCode != null && retryable.containsKey(errorCode);
+  }
+
+  public long getDelay(String errorCode, int retry, long previousDelay) {
+    Backoff errorBackoff = errorCode == null ? null : retryable.get(errorCode);
+    if (errorBackoff == null) {
+      errorBackoff = backoff;
+    }
+    return errorBackoff.getDelay(retry, previousDelay);
+  }
+
+  public long getRetryBudget() {
+    return retryBudget;
+  }
+
+  public long getAttemptTimeout() {
+    return attemptTimeout;
+  }
+
+  @Override
+  public String toString() {
+    return "RetryPolicy(retryable=" + retryable.keySet() + ", retryBudget=" +
+        retryBudget + ", attemptTimeout=" + attemptTimeout + ")";
+  }
+
+}
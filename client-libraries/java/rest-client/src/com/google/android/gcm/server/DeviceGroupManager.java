@@ -0,0 +1,467 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import static com.google.android.gcm.server.Constants.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Helper class to create device groups and manage their members.
+ *
+ * <p>
+ * Device groups are identified by the {@code notification_key_name} given by
+ * the application server, while messages are sent to them through the
+ * {@code notification_key} returned by GCM (see
+ * {@link Sender#sendToDeviceGroup(Message, String, int)}). The keys returned
+ * or looked up by this class are cached, so getting the key of a known group
+ * does not make a request.
+ *
+ * <p>
+ * Operations on many registration ids are split in batches of at most
+ * {@link #setBatchSize(int)} devices, which are posted concurrently.
+ *
+ * <p>
+ * A manager created with a {@link Sender} makes its requests through the
+ * {@link Sender#setTransport(GcmTransport) transport} and
+ * {@link Sender#setCircuitBreaker(CircuitBreaker) circuit breaker} of the
+ * sender, so they share its connections and are rejected while GCM is
+ * failing.
+ */
+public class DeviceGroupManager {
+
+  private static final String OPERATION_CREATE = "create";
+  private static final String OPERATION_ADD = "add";
+  private static final String OPERATION_REMOVE = "remove";
+
+  protected static final Logger logger =
+      Logger.getLogger(DeviceGroupManager.class.getName());
+
+  // exactly one of them is set
+  private final String key;
+  private final Sender sender;
+  private final String senderId;
+  private final ConcurrentMap<String, String> notificationKeys =
+      new ConcurrentHashMap<String, String>();
+
+  private volatile Executor executor;
+  private volatile int batchSize = DEVICE_GROUP_SIZE_LIMIT;
+  private volatile int connectTimeout;
+  private volatile int readTimeout;
+
+  /**
+   * Creates a manager whose requests are made using the connections returned
+   * by {@link #getConnection(String)}.
+   *
+   * @param key API key obtained through the Google API Console.
+   * @param senderId project number the groups belong to.
+   */
+  public DeviceGroupManager(String key, String senderId) {
+    this.key = Sender.nonNull(key);
+    this.sender = null;
+    this.senderId = Sender.nonNull(senderId);
+  }
+
+  /**
+   * Creates a manager whose requests are made through a sender, with its API
+   * key.
+   *
+   * @param sender sender of the messages to the groups.
+   * @param senderId project number the groups belong to.
+   */
+  public DeviceGroupManager(Sender sender, String senderId) {
+    this.key = null;
+    this.sender = Sender.nonNull(sender);
+    this.senderId = Sender.nonNull(senderId);
+  }
+
+  /**
+   * Sets the executor used to post the batches of an operation concurrently.
+   *
+   * <p>
+   * If not set, a shared pool of daemon threads is used.
+   */
+  public void setExecutor(Executor executor) {
+    this.executor = Sender.nonNull(executor);
+  }
+
+  /**
+   * Gets the executor used to post the batches of an operation.
+   */
+  protected Executor getExecutor() {
+    Executor executor = this.executor;
+    return executor != null ? executor : DefaultExecutorHolder.EXECUTOR;
+  }
+
+  /**
+   * Sets the maximum number of registration ids posted in a single request
+   * (default value is {@link Constants#DEVICE_GROUP_SIZE_LIMIT}).
+   */
+  public void setBatchSize(int batchSize) {
+    if (batchSize <= 0) {
+      throw new IllegalArgumentException("batchSize must be positive");
+    }
+    this.batchSize = batchSize;
+  }
+
+  /**
+   * Sets the connect timeout, in milliseconds, of the connections returned by
+   * {@link #getConnection(String)} (default value is {@literal 0}, which means
+   * no timeout). A manager created with a {@link Sender} uses its timeouts
+   * instead.
+   */
+  public void setConnectTimeout(int connectTimeout) {
+    if (connectTimeout < 0) {
+      throw new IllegalArgumentException("timeout can not be negative");
+    }
+    this.connectTimeout = connectTimeout;
+  }
+
+  /**
+   * Sets the read timeout, in milliseconds, of the connections returned by
+   * {@link #getConnection(String)} (default value is {@literal 0}, which means
+   * no timeout). A manager created with a {@link Sender} uses its timeouts
+   * instead.
+   */
+  public void setReadTimeout(int readTimeout) {
+    if (readTimeout < 0) {
+      throw new IllegalArgumentException("timeout can not be negative");
+    }
+    this.readTimeout = readTimeout;
+  }
+
+  /**
+   * Creates a device group.
+   *
+   * <p>
+   * The group is created with the first batch of devices, and the others are
+   * then added to it.
+   *
+   * @param notificationKeyName name of the group, unique in the project.
+   * @param registrationIds devices in the group.
+   *
+   * @return notification key of the group.
+   *
+   * @throws IllegalArgumentException if registrationIds is {@literal null} or
+   *         empty.
+   * @throws InvalidRequestException if GCM rejected any of the requests.
+   * @throws IOException if a request could not be posted.
+   */
+  public String create(String notificationKeyName,
+      List<String> registrationIds) throws IOException {
+    List<List<String>> batches = split(notificationKeyName, registrationIds);
+    String notificationKey = post(OPERATION_CREATE, notificationKeyName, null,
+        batches.get(0));
+    notificationKeys.put(notificationKeyName, notificationKey);
+    if (batches.size() > 1) {
+      update(OPERATION_ADD, notificationKeyName, notificationKey,
+          batches.subList(1, batches.size()));
+    }
+    return notificationKey;
+  }
+
+  /**
+   * Adds devices to a group.
+   *
+   * @param notificationKeyName name of the group.
+   * @param registrationIds devices to add.
+   *
+   * @return notification key of the group.
+   *
+   * @throws IllegalArgumentException if registrationIds is {@literal null} or
+   *         empty.
+   * @throws InvalidRequestException if GCM rejected any of the requests.
+   * @throws IOException if a request could not be posted.
+   */
+  public String add(String notificationKeyName, List<String> registrationIds)
+      throws IOException {
+    List<List<String>> batches = split(notificationKeyName, registrationIds);
+    return update(OPERATION_ADD, notificationKeyName,
+        getNotificationKey(notificationKeyName), batches);
+  }
+
+  /**
+   * Removes devices from a group.
+   *
+   * <p>
+   * GCM deletes a group when its last device is removed; its cached key
+   * should then be {@link #invalidate(String) invalidated}.
+   *
+   * @param notificationKeyName name of the group.
+   * @param registrationIds devices to remove.
+   *
+   * @return notification key of the group.
+   *
+   * @throws IllegalArgumentException if registrationIds is {@literal null} or
+   *         empty.
+   * @throws InvalidRequestException if GCM rejected any of the requests.
+   * @throws IOException if a request could not be posted.
+   */
+  public String remove(String notificationKeyName,
+      List<String> registrationIds) throws IOException {
+    List<List<String>> batches = split(notificationKeyName, registrationIds);
+    return update(OPERATION_REMOVE, notificationKeyName,
+        getNotificationKey(notificationKeyName), batches);
+  }
+
+  /**
+   * Gets the notification key of a group, looking it up in GCM only if it is
+   * not cached.
+   *
+   * @param notificationKeyName name of the group.
+   *
+   * @return notification key of the group.
+   *
+   * @throws InvalidRequestException if GCM rejected the lookup, for instance
+   *         because there is no such group.
+   * @throws IOException if the lookup could not be made.
+   */
+  public String getNotificationKey(String notificationKeyName)
+      throws IOException {
+    String notificationKey =
+        notificationKeys.get(Sender.nonNull(notificationKeyName));
+    if (notificationKey == null) {
+      notificationKey = read(request("GET", GCM_NOTIFICATION_ENDPOINT + "?" +
+          JSON_NOTIFICATION_KEY_NAME + "=" +
+          URLEncoder.encode(notificationKeyName, StandardCharsets.UTF_8),
+          null));
+      notificationKeys.put(notificationKeyName, notificationKey);
+    }
+    return notificationKey;
+  }
+
+  /**
+   * Removes the cached notification key of a group, so it is looked up again
+   * the next time it is needed.
+   */
+  public void invalidate(String notificationKeyName) {
+    notificationKeys.remove(Sender.nonNull(notificationKeyName));
+  }
+
+  /**
+   * Posts the batches of an operation, all but the last one through the
+   * executor, and waits for all of them to complete.
+   *
+   * <p>
+   * If a batch is rejected by GCM, the cached key of the group is removed,
+   * as it could be the cause.
+   */
+  private String update(String operation, String notificationKeyName,
+      String notificationKey, List<List<String>> batches) throws IOException {
+    Executor executor = getExecutor();
+    List<FutureTask<String>> tasks =
+        new ArrayList<FutureTask<String>>(batches.size() - 1);
+    int last = batches.size() - 1;
+    for (int i = 0; i < last; i++) {
+      List<String> batch = batches.get(i);
+      FutureTask<String> task = new FutureTask<String>(() ->
+          post(operation, notificationKeyName, notificationKey, batch));
+      executor.execute(task);
+      tasks.add(task);
+    }
+    IOException failure = null;
+    try {
+      post(operation, notificationKeyName, notificationKey,
+          batches.get(last));
+    } catch (IOException e) {
+      failure = e;
+    }
+    for (FutureTask<String> task : tasks) {
+      try {
+        task.get();
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof RuntimeException) {
+          throw (RuntimeException) cause;
+        }
+        if (cause instanceof Error) {
+          throw (Error) cause;
+        }
+        if (failure == null) {
+          failure = (IOException) cause;
+        } else {
+          failure.addSuppressed(cause);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        for (FutureTask<String> pending : tasks) {
+          pending.cancel(true);
+        }
+        throw new InterruptedIOException("interrupted while posting " +
+            operation + " to " + notificationKeyName);
+      }
+    }
+    if (failure != null) {
+      if (failure instanceof InvalidRequestException &&
+          !((InvalidRequestException) failure).isRetryable()) {
+        notificationKeys.remove(notificationKeyName, notificationKey);
+      }
+      throw failure;
+    }
+    return notificationKey;
+  }
+
+  /**
+   * Splits the registration ids of an operation in batches.
+   */
+  private List<List<String>> split(String notificationKeyName,
+      List<String> registrationIds) {
+    Sender.nonNull(notificationKeyName);
+    if (Sender.nonNull(registrationIds).isEmpty()) {
+      throw new IllegalArgumentException("registrationIds cannot be empty");
+    }
+    int batchSize = this.batchSize;
+    int size = registrationIds.size();
+    List<List<String>> batches =
+        new ArrayList<List<String>>((size + batchSize - 1) / batchSize);
+    for (int start = 0; start < size; start += batchSize) {
+      batches.add(registrationIds.subList(start,
+          Math.min(start + batchSize, size)));
+    }
+    return batches;
+  }
+
+  /**
+   * Posts a single batch of an operation.
+   *
+   * @return notification key of the group.
+   */
+  private String post(String operation, String notificationKeyName,
+      String notificationKey, List<String> registrationIds)
+      throws IOException {
+    ByteArrayOutputStream body =
+        new ByteArrayOutputStream(128 + 160 * registrationIds.size());
+    writeRequest(operation, notificationKeyName, notificationKey,
+        registrationIds, body);
+    if (logger.isLoggable(Level.FINEST)) {
+      logger.finest("JSON request: " + body.toString(StandardCharsets.UTF_8));
+    }
+    return read(request("POST", GCM_NOTIFICATION_ENDPOINT,
+        body.toByteArray()));
+  }
+
+  /**
+   * Writes the JSON body of an operation on a group.
+   */
+  static void writeRequest(String operation, String notificationKeyName,
+      String notificationKey, List<String> registrationIds, OutputStream out)
+      throws IOException {
+    new JsonWriter(out)
+        .beginObject()
+        .name(JSON_OPERATION).value(operation)
+        .name(JSON_NOTIFICATION_KEY_NAME).value(notificationKeyName)
+        .optional(JSON_NOTIFICATION_KEY, notificationKey)
+        .optional(JSON_REGISTRATION_IDS, registrationIds)
+        .endObject()
+        .flush();
+  }
+
+  /**
+   * Makes a request through the sender, with the project of the groups.
+   *
+   * @param body JSON body of the request, or {@literal null} if there is none.
+   */
+  private GcmTransport.Response request(String method, String url,
+      byte[] body) throws IOException {
+    Map<String, String> headers = new LinkedHashMap<String, String>(4);
+    if (body != null) {
+      headers.put("Content-Type", "application/json");
+    }
+    headers.put("project_id", senderId);
+    // created for each request, so it has the current timeouts
+    Sender sender = this.sender != null ? this.sender : new ConnectionSender();
+    return sender.request(method, url, headers, body);
+  }
+
+  /**
+   * Reads the notification key returned by a request, closing its body.
+   *
+   * @throws InvalidRequestException if the status is not 200.
+   */
+  private String read(GcmTransport.Response response) throws IOException {
+    int status = response.getStatusCode();
+    InputStream in = response.getBody();
+    try {
+      if (status != 200) {
+        String description = Sender.getString(in);
+        if (logger.isLoggable(Level.FINEST)) {
+          logger.finest("JSON error response: " + description);
+        }
+        throw new InvalidRequestException(status, description,
+            Sender.parseRetryAfter(response.getHeader("Retry-After"),
+                System.currentTimeMillis()));
+      }
+      return new JsonResponseParser(in).parseNotificationKey();
+    } finally {
+      if (in != null) {
+        in.close();
+      }
+    }
+  }
+
+  /**
+   * Gets an {@link HttpURLConnection} given an URL, for the requests of a
+   * manager created with an API key.
+   */
+  protected HttpURLConnection getConnection(String url) throws IOException {
+    return (HttpURLConnection) new URL(url).openConnection();
+  }
+
+  /**
+   * Sender whose connections are the ones of this manager.
+   */
+  private final class ConnectionSender extends Sender {
+
+    ConnectionSender() {
+      super(key);
+      setConnectTimeout(connectTimeout);
+      setReadTimeout(readTimeout);
+    }
+
+    @Override
+    protected HttpURLConnection getConnection(String url) throws IOException {
+      return DeviceGroupManager.this.getConnection(url);
+    }
+  }
+
+  private static final class DefaultExecutorHolder {
+
+    static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(
+        Sender.newDaemonThreadFactory("gcm-groups-"));
+  }
+
+}
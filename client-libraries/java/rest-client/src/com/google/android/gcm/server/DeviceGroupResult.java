@@ -0,0 +1,104 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Result of a GCM message sent to a device group, through its notification
+ * key.
+ *
+ * <p>
+ * GCM does not return a result per device, only how many devices got the
+ * message and the registration ids of those that did not.
+ */
+public final class DeviceGroupResult implements Serializable {
+
+  private final int success;
+  private final int failure;
+  private final List<String> failedRegistrationIds;
+
+  public static final class Builder {
+
+    // required parameters
+    private final int success;
+    private final int failure;
+
+    // optional parameters
+    private List<String> failedRegistrationIds;
+
+    public Builder(int success, int failure) {
+      this.success = success;
+      this.failure = failure;
+    }
+
+    public Builder failedRegistrationIds(List<String> failedRegistrationIds) {
+      this.failedRegistrationIds = failedRegistrationIds;
+      return this;
+    }
+
+    public DeviceGroupResult build() {
+      return new DeviceGroupResult(this);
+    }
+  }
+
+  private DeviceGroupResult(Builder builder) {
+    success = builder.success;
+    failure = builder.failure;
+    List<String> tmpList = builder.failedRegistrationIds;
+    if (tmpList == null) {
+      tmpList = Collections.emptyList();
+    }
+    failedRegistrationIds = Collections.unmodifiableList(tmpList);
+  }
+
+  /**
+   * Gets the number of devices of the group that got the message.
+   */
+  public int getSuccess() {
+    return success;
+  }
+
+  /**
+   * Gets the number of devices of the group that did not get the message.
+   */
+  public int getFailure() {
+    return failure;
+  }
+
+  /**
+   * Gets the registration ids of the devices that did not get the message,
+   * which is immutable.
+   */
+  public List<String> getFailedRegistrationIds() {
+    return failedRegistrationIds;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder builder = new StringBuilder("DeviceGroupResult(")
+        .append("success=").append(success).append(",")
+        .append("failure=").append(failure);
+    if (!failedRegistrationIds.isEmpty()) {
+      builder.append(",failed_registration_ids: ")
+          .append(failedRegistrationIds);
+    }
+    return builder.append(")").toString();
+  }
+
+}
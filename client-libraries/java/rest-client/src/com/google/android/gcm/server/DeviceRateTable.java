@@ -0,0 +1,144 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Fixed-size table of per-device token buckets, used by a {@link RateLimiter}.
+ *
+ * <p>
+ * Each bucket is stored as the theoretical arrival time (GCRA) of the next
+ * message to its device, next to a 64-bit hash of the registration id, in two
+ * parallel arrays. A device is looked up in a small window of slots; when the
+ * window is full, the entry that would be allowed to send the earliest is
+ * evicted, starting with those whose bucket is already full (and are thus
+ * equivalent to a missing entry).
+ */
+final class DeviceRateTable {
+
+  // slots looked up for each device
+  private static final int PROBES = 8;
+
+  private final long[] keys;
+  private final long[] tats;
+  private final int mask;
+  private final long interval;
+  private final long tolerance;
+
+  /**
+   * @param capacity maximum number of devices tracked.
+   * @param interval nanoseconds between two messages at the allowed rate.
+   * @param burst number of messages that can be sent at once.
+   */
+  DeviceRateTable(int capacity, long interval, int burst) {
+    int size = Integer.highestOneBit(Math.max(capacity, PROBES) - 1) << 1;
+    keys = new long[size];
+    tats = new long[size];
+    mask = size - 1;
+    this.interval = interval;
+    this.tolerance = (burst - 1) * interval;
+  }
+
+  /**
+   * Takes a token for each device that has one.
+   *
+   * @param registrationIds devices the message is sent to.
+   * @param now current time, in nanoseconds.
+   * @param shed set with the indexes of the devices without tokens.
+   *
+   * @return nanoseconds until the first device without tokens gets one, or
+   *         {@literal 0} if all devices had one.
+   */
+  synchronized long acquire(List<String> registrationIds, long now,
+      BitSet shed) {
+    long minWait = Long.MAX_VALUE;
+    for (int i = 0; i < registrationIds.size(); i++) {
+      int slot = slot(registrationIds.get(i), now);
+      long tat = tats[slot];
+      long wait = tat - tolerance - now;
+      if (wait > 0) {
+        shed.set(i);
+        minWait = Math.min(minWait, wait);
+      } else {
+        tats[slot] = Math.max(tat, now) + interval;
+      }
+    }
+    return minWait == Long.MAX_VALUE ? 0 : minWait;
+  }
+
+  /**
+   * Gives back the tokens taken for the devices that were not shed.
+   */
+  synchronized void release(List<String> registrationIds, long now,
+      BitSet shed) {
+    for (int i = shed.nextClearBit(0); i < registrationIds.size();
+        i = shed.nextClearBit(i + 1)) {
+      int slot = slot(registrationIds.get(i), now);
+      tats[slot] = Math.max(tats[slot] - interval, now);
+    }
+  }
+
+  /**
+   * Takes all the tokens of a device, as if it had just sent a burst.
+   */
+  synchronized void drain(String registrationId, long now) {
+    int slot = slot(registrationId, now);
+    tats[slot] = Math.max(tats[slot], now) + tolerance + interval;
+  }
+
+  /**
+   * Finds the slot of a device, evicting another one if needed.
+   */
+  private int slot(String registrationId, long now) {
+    long key = hash(registrationId);
+    int start = (int) (key ^ (key >>> 32)) & mask;
+    int victim = -1;
+    for (int i = 0; i < PROBES; i++) {
+      int slot = (start + i) & mask;
+      long current = keys[slot];
+      if (current == key) {
+        return slot;
+      }
+      if (current == 0) {
+        if (victim < 0 || keys[victim] != 0) {
+          victim = slot;
+        }
+      } else if (victim < 0 ||
+          (keys[victim] != 0 && tats[slot] < tats[victim])) {
+        victim = slot;
+      }
+    }
+    keys[victim] = key;
+    // a new entry has a full bucket
+    tats[victim] = now;
+    return victim;
+  }
+
+  // FNV-1a, never 0 since it marks empty slots
+  private static long hash(String registrationId) {
+    long hash = 0xcbf29ce484222325L;
+    if (registrationId != null) {
+      for (int i = 0; i < registrationId.length(); i++) {
+        hash ^= registrationId.charAt(i);
+        hash *= 0x100000001b3L;
+      }
+    }
+    return hash == 0 ? 1 : hash;
+  }
+
+}
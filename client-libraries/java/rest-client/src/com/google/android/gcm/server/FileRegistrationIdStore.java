@@ -0,0 +1,169 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * {@link RegistrationIdStore} that appends the changes to a text file, one per
+ * line, and reads them back in order.
+ *
+ * <p>
+ * Each line is either {@code C <tab> registrationId <tab> canonicalId} or
+ * {@code T <tab> registrationId <tab> errorCode}. Lines that can not be parsed
+ * are ignored, and a last line partially written before a crash is truncated
+ * when the file is loaded.
+ *
+ * <p>
+ * The file is compacted when the changes are
+ * {@link #replace(Map, Map) replaced}, by writing them to a temporary file
+ * that is then renamed.
+ */
+public final class FileRegistrationIdStore implements RegistrationIdStore {
+
+  private static final Logger logger =
+      Logger.getLogger(FileRegistrationIdStore.class.getName());
+
+  private final File file;
+
+  public FileRegistrationIdStore(File file) {
+    this.file = Sender.nonNull(file);
+  }
+
+  public void load(Map<String, String> canonicalIds,
+      Map<String, String> tombstones) throws IOException {
+    InputStream in;
+    try {
+      in = new BufferedInputStream(new FileInputStream(file));
+    } catch (FileNotFoundException e) {
+      // nothing stored yet
+      return;
+    }
+    long length = 0;
+    // length of the complete lines, the last one might be partially written
+    long complete = 0;
+    try {
+      ByteArrayOutputStream line = new ByteArrayOutputStream();
+      int b;
+      while ((b = in.read()) != -1) {
+        length++;
+        if (b == '\n') {
+          parseLine(line.toString(StandardCharsets.UTF_8), canonicalIds,
+              tombstones);
+          line.reset();
+          complete = length;
+        } else {
+          line.write(b);
+        }
+      }
+    } finally {
+      in.close();
+    }
+    if (complete < length) {
+      // so the next change is not appended to it
+      logger.warning("Truncating incomplete last line in " + file);
+      RandomAccessFile raf = new RandomAccessFile(file, "rw");
+      try {
+        raf.setLength(complete);
+      } finally {
+        raf.close();
+      }
+    }
+  }
+
+  private void parseLine(String line, Map<String, String> canonicalIds,
+      Map<String, String> tombstones) {
+    String[] fields = line.split("\t", -1);
+    if (fields.length != 3 || fields[1].isEmpty() || fields[2].isEmpty()) {
+      logger.warning("Ignoring invalid line in " + file + ": " + line);
+    } else if (fields[0].equals("C")) {
+      // removed first so the latest changes are put last
+      tombstones.remove(fields[1]);
+      canonicalIds.remove(fields[1]);
+      canonicalIds.put(fields[1], fields[2]);
+    } else if (fields[0].equals("T")) {
+      canonicalIds.remove(fields[1]);
+      tombstones.remove(fields[1]);
+      tombstones.put(fields[1], fields[2]);
+    } else {
+      logger.warning("Ignoring invalid line in " + file + ": " + line);
+    }
+  }
+
+  public void append(Map<String, String> canonicalIds,
+      Map<String, String> tombstones) throws IOException {
+    write(new FileOutputStream(file, true), canonicalIds, tombstones);
+  }
+
+  public void replace(Map<String, String> canonicalIds,
+      Map<String, String> tombstones) throws IOException {
+    File temp = new File(file.getPath() + ".tmp");
+    write(new FileOutputStream(temp), canonicalIds, tombstones);
+    Files.move(temp.toPath(), file.toPath(),
+        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private static void write(FileOutputStream out,
+      Map<String, String> canonicalIds, Map<String, String> tombstones)
+      throws IOException {
+    try {
+      Writer writer = new BufferedWriter(
+          new OutputStreamWriter(out, StandardCharsets.UTF_8));
+      for (Map.Entry<String, String> entry : canonicalIds.entrySet()) {
+        writeLine(writer, "C", entry.getKey(), entry.getValue());
+      }
+      for (Map.Entry<String, String> entry : tombstones.entrySet()) {
+        writeLine(writer, "T", entry.getKey(), entry.getValue());
+      }
+      writer.flush();
+      out.getFD().sync();
+    } finally {
+      out.close();
+    }
+  }
+
+  private static void writeLine(Writer writer, String type, String key,
+      String value) throws IOException {
+    writer.write(type);
+    writer.write('\t');
+    writer.write(key);
+    writer.write('\t');
+    writer.write(value);
+    writer.write('\n');
+  }
+
+  @Override
+  public String toString() {
+    return "FileRegistrationIdStore(" + file + ")";
+  }
+
+}
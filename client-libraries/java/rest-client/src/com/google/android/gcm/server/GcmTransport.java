@@ -0,0 +1,89 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+/**
+ * HTTP transport used by {@link Sender} to post requests to GCM.
+ *
+ * <p>
+ * Implementations must be thread-safe, as the same transport can be shared by
+ * many senders. See {@link HttpClientTransport} for a pooled implementation.
+ */
+public interface GcmTransport {
+
+  /**
+   * Makes an HTTP POST request to a given endpoint.
+   *
+   * @param url endpoint to post the request.
+   * @param contentType type of request.
+   * @param authorization value of the {@code Authorization} header.
+   * @param body buffer holding the body of the request.
+   * @param offset offset of the body in the buffer.
+   * @param length length of the body.
+   *
+   * @return the response, whose body must be closed by the caller.
+   *
+   * @throws IOException if the request could not be posted or no response
+   *         was received.
+   */
+  Response post(String url, String contentType, String authorization,
+      byte[] body, int offset, int length) throws IOException;
+
+  /**
+   * Makes an HTTP request other than a message, such as the ones of a
+   * {@link DeviceGroupManager}.
+   *
+   * @param method HTTP method, such as {@code GET} or {@code POST}.
+   * @param url endpoint of the request.
+   * @param authorization value of the {@code Authorization} header.
+   * @param headers other headers of the request, by name.
+   * @param body body of the request, or {@literal null} if there is none.
+   *
+   * @return the response, whose body must be closed by the caller.
+   *
+   * @throws IOException if the request could not be made or no response
+   *         was received.
+   */
+  Response request(String method, String url, String authorization,
+      Map<String, String> headers, byte[] body) throws IOException;
+
+  /**
+   * Response of a request posted by a {@link GcmTransport}.
+   */
+  interface Response {
+
+    /**
+     * Gets the HTTP status code.
+     */
+    int getStatusCode();
+
+    /**
+     * Gets the value of a response header, or {@literal null} if not present.
+     */
+    String getHeader(String name);
+
+    /**
+     * Gets the response body, which is the error body if the status is not
+     * 200; it could be {@literal null} if there is no body.
+     */
+    InputStream getBody() throws IOException;
+  }
+
+}
@@ -0,0 +1,380 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * {@link GcmTransport} based on {@link HttpClient}, with an explicit pool of
+ * connections per route (scheme, host and port).
+ *
+ * <p>
+ * Each pooled connection is backed by its own {@link HttpClient}, which
+ * multiplexes concurrent requests over a single connection when HTTP/2 is
+ * negotiated. Requests are spread over the least loaded connection of the
+ * route, and a new connection is only opened when all the others are busy.
+ * When all connections of a route are serving
+ * {@link Builder#maxRequestsPerConnection(int) their maximum} number of
+ * requests, callers block until one of them is released.
+ *
+ * <p>
+ * A connection is released when the body of its response is closed, and it is
+ * evicted once it has been idle for longer than the
+ * {@link Builder#idleTimeout(long, TimeUnit) idle timeout}, dropping its
+ * client. The client is closed when running on Java 21 or later; on older
+ * versions, which can not close it, its socket and selector thread are
+ * released once it is garbage collected.
+ *
+ * <p>
+ * Instances of this class are thread-safe and should be created using a
+ * {@link Builder}. Example:
+ *
+ * <pre><code>
+ * GcmTransport transport = new HttpClientTransport.Builder()
+ *    .maxConnectionsPerRoute(8)
+ *    .connectTimeout(5, TimeUnit.SECONDS)
+ *    .readTimeout(30, TimeUnit.SECONDS)
+ *    .build();
+ * sender.setTransport(transport);
+ * </code></pre>
+ */
+public final class HttpClientTransport implements GcmTransport {
+
+  private final int maxConnectionsPerRoute;
+  private final int maxRequestsPerConnection;
+  private final long idleTimeoutNanos;
+  private final Duration connectTimeout;
+  private final Duration readTimeout;
+  private final HttpClient.Version version;
+  private final ConcurrentMap<String, Route> routes =
+      new ConcurrentHashMap<String, Route>();
+
+  public static final class Builder {
+
+    // optional parameters
+    private int maxConnectionsPerRoute = 4;
+    private int maxRequestsPerConnection;
+    private long idleTimeoutNanos = TimeUnit.SECONDS.toNanos(60);
+    private Duration connectTimeout = Duration.ofSeconds(10);
+    private Duration readTimeout = Duration.ofSeconds(30);
+    private HttpClient.Version version = HttpClient.Version.HTTP_2;
+
+    /**
+     * Sets the maximum number of connections per route (default value is
+     * {@literal 4}).
+     */
+    public Builder maxConnectionsPerRoute(int value) {
+      maxConnectionsPerRoute = positive(value);
+      return this;
+    }
+
+    /**
+     * Sets the maximum number of concurrent requests per connection (default
+     * value is {@literal 100} for HTTP/2 and {@literal 1} for HTTP/1.1).
+     */
+    public Builder maxRequestsPerConnection(int value) {
+      maxRequestsPerConnection = positive(value);
+      return this;
+    }
+
+    /**
+     * Sets how long a connection can be idle before it is evicted and its
+     * client dropped (default value is {@literal 60} seconds).
+     */
+    public Builder idleTimeout(long value, TimeUnit unit) {
+      idleTimeoutNanos = unit.toNanos(value);
+      return this;
+    }
+
+    /**
+     * Sets the connect timeout (default value is {@literal 10} seconds).
+     */
+    public Builder connectTimeout(long value, TimeUnit unit) {
+      connectTimeout = Duration.ofMillis(unit.toMillis(positive(value)));
+      return this;
+    }
+
+    /**
+     * Sets how long to wait for the response after the request is sent
+     * (default value is {@literal 30} seconds).
+     */
+    public Builder readTimeout(long value, TimeUnit unit) {
+      readTimeout = Duration.ofMillis(unit.toMillis(positive(value)));
+      return this;
+    }
+
+    /**
+     * Sets the preferred HTTP version (default value is
+     * {@link HttpClient.Version#HTTP_2}, which falls back to HTTP/1.1 if the
+     * server does not support it).
+     */
+    public Builder version(HttpClient.Version value) {
+      version = Sender.nonNull(value);
+      return this;
+    }
+
+    public HttpClientTransport build() {
+      return new HttpClientTransport(this);
+    }
+
+    private static <T extends Number> T positive(T value) {
+      if (value.longValue() <= 0) {
+        throw new IllegalArgumentException("value must be positive: " + value);
+      }
+      return value;
+    }
+  }
+
+  private HttpClientTransport(Builder builder) {
+    maxConnectionsPerRoute = builder.maxConnectionsPerRoute;
+    if (builder.maxRequestsPerConnection > 0) {
+      maxRequestsPerConnection = builder.maxRequestsPerConnection;
+    } else {
+      maxRequestsPerConnection =
+          builder.version == HttpClient.Version.HTTP_2 ? 100 : 1;
+    }
+    idleTimeoutNanos = builder.idleTimeoutNanos;
+    connectTimeout = builder.connectTimeout;
+    readTimeout = builder.readTimeout;
+    version = builder.version;
+  }
+
+  public Response post(String url, String contentType, String authorization,
+      byte[] body, int offset, int length) throws IOException {
+    return send(HttpRequest.newBuilder(URI.create(url))
+        .header("Content-Type", contentType)
+        .header("Authorization", authorization)
+        .POST(HttpRequest.BodyPublishers.ofByteArray(body, offset, length)));
+  }
+
+  public Response request(String method, String url, String authorization,
+      Map<String, String> headers, byte[] body) throws IOException {
+    HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(url))
+        .header("Authorization", authorization)
+        .method(method, body == null ? HttpRequest.BodyPublishers.noBody() :
+            HttpRequest.BodyPublishers.ofByteArray(body));
+    for (Map.Entry<String, String> header : headers.entrySet()) {
+      request.header(header.getKey(), header.getValue());
+    }
+    return send(request);
+  }
+
+  private Response send(HttpRequest.Builder builder) throws IOException {
+    HttpRequest request = builder.timeout(readTimeout).build();
+    Route route = getRoute(request.uri());
+    Connection connection = route.acquire();
+    boolean sent = false;
+    try {
+      HttpResponse<InputStream> response = connection.client.send(request,
+          HttpResponse.BodyHandlers.ofInputStream());
+      sent = true;
+      return new ClientResponse(response, route, connection);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while sending " +
+          request.method() + " to " + request.uri());
+    } finally {
+      if (!sent) {
+        route.release(connection);
+      }
+    }
+  }
+
+  /**
+   * Gets the number of open connections to the route of a given URL.
+   */
+  int getConnectionCount(String url) {
+    return getRoute(URI.create(url)).getConnectionCount();
+  }
+
+  private Route getRoute(URI uri) {
+    String key = uri.getScheme() + "://" + uri.getHost() + ":" + uri.getPort();
+    return routes.computeIfAbsent(key, k -> new Route());
+  }
+
+  private HttpClient newClient() {
+    return HttpClient.newBuilder()
+        .version(version)
+        .connectTimeout(connectTimeout)
+        .build();
+  }
+
+  /**
+   * Closes a client that is no longer used, if it can be closed, which is the
+   * case since Java 21.
+   */
+  private static void close(HttpClient client) {
+    if (client instanceof AutoCloseable) {
+      try {
+        ((AutoCloseable) client).close();
+      } catch (Exception e) {
+        // nothing else to release
+      }
+    }
+  }
+
+  /**
+   * A pooled connection.
+   */
+  private static final class Connection {
+
+    private final HttpClient client;
+    // guarded by the route
+    private int inFlight;
+    private long lastUsedNanos;
+
+    Connection(HttpClient client) {
+      this.client = client;
+      lastUsedNanos = System.nanoTime();
+    }
+  }
+
+  /**
+   * Connections to the same scheme, host and port.
+   */
+  private final class Route {
+
+    private final Semaphore permits =
+        new Semaphore(maxConnectionsPerRoute * maxRequestsPerConnection, true);
+    private final Connection[] connections =
+        new Connection[maxConnectionsPerRoute];
+
+    /**
+     * Gets the least loaded connection, opening a new one if all are busy,
+     * blocking if all are serving their maximum number of requests.
+     */
+    Connection acquire() throws InterruptedIOException {
+      try {
+        permits.acquire();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted waiting for connection");
+      }
+      synchronized (this) {
+        evictIdle();
+        Connection best = null;
+        int free = -1;
+        for (int i = 0; i < connections.length; i++) {
+          Connection connection = connections[i];
+          if (connection == null) {
+            if (free < 0) {
+              free = i;
+            }
+          } else if (connection.inFlight < maxRequestsPerConnection &&
+              (best == null || connection.inFlight < best.inFlight)) {
+            best = connection;
+          }
+        }
+        if (free >= 0 && (best == null || best.inFlight > 0)) {
+          best = new Connection(newClient());
+          connections[free] = best;
+        }
+        best.inFlight++;
+        best.lastUsedNanos = System.nanoTime();
+        return best;
+      }
+    }
+
+    void release(Connection connection) {
+      synchronized (this) {
+        connection.inFlight--;
+        connection.lastUsedNanos = System.nanoTime();
+      }
+      permits.release();
+    }
+
+    synchronized int getConnectionCount() {
+      evictIdle();
+      int count = 0;
+      for (Connection connection : connections) {
+        if (connection != null) {
+          count++;
+        }
+      }
+      return count;
+    }
+
+    /**
+     * Drops the connections that have been idle for too long, closing their
+     * clients if possible.
+     */
+    private void evictIdle() {
+      long now = System.nanoTime();
+      for (int i = 0; i < connections.length; i++) {
+        Connection connection = connections[i];
+        if (connection != null && connection.inFlight == 0 &&
+            now - connection.lastUsedNanos > idleTimeoutNanos) {
+          connections[i] = null;
+          close(connection.client);
+        }
+      }
+    }
+  }
+
+  /**
+   * Response that releases its connection when the body is closed.
+   */
+  private static final class ClientResponse implements Response {
+
+    private final HttpResponse<InputStream> response;
+    private final InputStream body;
+
+    ClientResponse(HttpResponse<InputStream> response, final Route route,
+        final Connection connection) {
+      this.response = response;
+      final AtomicBoolean released = new AtomicBoolean();
+      body = new FilterInputStream(response.body()) {
+        @Override
+        public void close() throws IOException {
+          try {
+            super.close();
+          } finally {
+            if (released.compareAndSet(false, true)) {
+              route.release(connection);
+            }
+          }
+        }
+      };
+    }
+
+    public int getStatusCode() {
+      return response.statusCode();
+    }
+
+    public String getHeader(String name) {
+      return response.headers().firstValue(name).orElse(null);
+    }
+
+    public InputStream getBody() {
+      return body;
+    }
+  }
+
+}
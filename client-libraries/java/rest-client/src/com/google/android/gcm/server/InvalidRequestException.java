@@ -26,15 +26,22 @@ public final class InvalidRequestException extends IOException {
 
   private final int status;
   private final String description;
+  private final long retryAfter;
 
   public InvalidRequestException(int status) {
     this(status, null);
   }
 
   public InvalidRequestException(int status, String description) {
+    this(status, description, 0);
+  }
+
+  public InvalidRequestException(int status, String description,
+      long retryAfter) {
     super(getMessage(status, description));
     this.status = status;
     this.description = description;
+    this.retryAfter = retryAfter;
   }
 
   private static String getMessage(int status, String description) {
@@ -59,4 +66,20 @@ public final class InvalidRequestException extends IOException {
     return description;
   }
 
+  /**
+   * Gets how long, in milliseconds, GCM asked to wait before retrying, as
+   * indicated by the {@code Retry-After} header, or {@literal 0} if it did not.
+   */
+  public long getRetryAfter() {
+    return retryAfter;
+  }
+
+  /**
+   * Checks whether the request could succeed if retried later, which is the
+   * case for 5xx and 429 (too many requests) status codes.
+   */
+  public boolean isRetryable() {
+    return status >= 500 && status <= 599 || status == 429;
+  }
+
 }
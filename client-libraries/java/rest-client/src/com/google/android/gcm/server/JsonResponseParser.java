@@ -0,0 +1,692 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import static com.google.android.gcm.server.Constants.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Pull parser that reads the JSON response of a message request straight from
+ * its UTF-8 bytes into a {@link MulticastResult}, {@link TopicResult} or
+ * {@link DeviceGroupResult}, without building a string or a tree of the whole
+ * response.
+ *
+ * <p>
+ * Member names are matched in place, and error codes known to
+ * {@link Constants} are returned as the constants themselves instead of new
+ * strings. Unknown members are skipped, and trailing commas are tolerated.
+ * Instances are not thread-safe.
+ */
+final class JsonResponseParser {
+
+  private final InputStream in;
+  private final byte[] buffer;
+  private int position;
+  private int limit;
+  // last string read, decoded
+  private char[] chars = new char[64];
+  private int length;
+
+  /**
+   * Exception thrown when the response is not valid JSON, or misses a
+   * required member.
+   */
+  static final class MalformedJsonException extends IOException {
+
+    MalformedJsonException(String message) {
+      super(message);
+    }
+  }
+
+  JsonResponseParser(InputStream in) {
+    this(in, 8192);
+  }
+
+  JsonResponseParser(InputStream in, int bufferSize) {
+    this.in = in;
+    buffer = new byte[bufferSize];
+  }
+
+  /**
+   * Parses a multicast response into a builder, to which callers can add what
+   * is not in the body.
+   *
+   * @throws MalformedJsonException if the response could not be parsed.
+   * @throws IOException if the stream could not be read.
+   */
+  MulticastResult.Builder parseMulticastResult() throws IOException {
+    if (in == null || nextToken() != '{') {
+      throw syntaxError("expected an object");
+    }
+    long success = -1;
+    long failure = -1;
+    long canonicalIds = -1;
+    long multicastId = -1;
+    boolean hasMulticastId = false;
+    MulticastResult.Builder builder = null;
+    // results read before the counters, which are needed by the builder
+    MulticastResult pending = null;
+    int c = nextToken();
+    while (c != '}') {
+      if (c != '"') {
+        throw syntaxError("expected a member name");
+      }
+      readString();
+      expect(':');
+      if (nameIs(JSON_SUCCESS)) {
+        success = readNumber(JSON_SUCCESS);
+      } else if (nameIs(JSON_FAILURE)) {
+        failure = readNumber(JSON_FAILURE);
+      } else if (nameIs(JSON_CANONICAL_IDS)) {
+        canonicalIds = readNumber(JSON_CANONICAL_IDS);
+      } else if (nameIs(JSON_MULTICAST_ID)) {
+        multicastId = readNumber(JSON_MULTICAST_ID);
+        hasMulticastId = true;
+      } else if (nameIs(JSON_RESULTS)) {
+        if (success >= 0 && failure >= 0 && canonicalIds >= 0 &&
+            hasMulticastId) {
+          builder = new MulticastResult.Builder((int) success, (int) failure,
+              (int) canonicalIds, multicastId);
+          readResults(builder);
+        } else {
+          MulticastResult.Builder pendingBuilder =
+              new MulticastResult.Builder(0, 0, 0, 0);
+          readResults(pendingBuilder);
+          pending = pendingBuilder.build();
+        }
+      } else {
+        skipValue();
+      }
+      c = nextMember('}');
+    }
+    checkPresent(JSON_SUCCESS, success >= 0);
+    checkPresent(JSON_FAILURE, failure >= 0);
+    checkPresent(JSON_CANONICAL_IDS, canonicalIds >= 0);
+    checkPresent(JSON_MULTICAST_ID, hasMulticastId);
+    if (builder == null) {
+      builder = new MulticastResult.Builder((int) success, (int) failure,
+          (int) canonicalIds, multicastId);
+    }
+    if (pending != null) {
+      builder.addResults(pending);
+    }
+    return builder;
+  }
+
+  /**
+   * Parses the response of a message sent to a topic or to a condition.
+   *
+   * @throws MalformedJsonException if the response could not be parsed, or
+   *         has neither a message id nor an error.
+   * @throws IOException if the stream could not be read.
+   */
+  TopicResult.Builder parseTopicResult() throws IOException {
+    if (in == null || nextToken() != '{') {
+      throw syntaxError("expected an object");
+    }
+    String messageId = null;
+    String errorCode = null;
+    int c = nextToken();
+    while (c != '}') {
+      if (c != '"') {
+        throw syntaxError("expected a member name");
+      }
+      readString();
+      expect(':');
+      if (nameIs(JSON_MESSAGE_ID)) {
+        messageId = readId(JSON_MESSAGE_ID);
+      } else if (nameIs(JSON_ERROR)) {
+        errorCode = readNullableString(true);
+      } else {
+        skipValue();
+      }
+      c = nextMember('}');
+    }
+    if (messageId == null && errorCode == null) {
+      throw new MalformedJsonException("Missing field: " + JSON_MESSAGE_ID);
+    }
+    return new TopicResult.Builder().messageId(messageId).errorCode(errorCode);
+  }
+
+  /**
+   * Parses the response of a message sent to a device group.
+   *
+   * @throws MalformedJsonException if the response could not be parsed, or
+   *         misses a counter.
+   * @throws IOException if the stream could not be read.
+   */
+  DeviceGroupResult.Builder parseDeviceGroupResult() throws IOException {
+    if (in == null || nextToken() != '{') {
+      throw syntaxError("expected an object");
+    }
+    long success = -1;
+    long failure = -1;
+    List<String> failedRegistrationIds = null;
+    int c = nextToken();
+    while (c != '}') {
+      if (c != '"') {
+        throw syntaxError("expected a member name");
+      }
+      readString();
+      expect(':');
+      if (nameIs(JSON_SUCCESS)) {
+        success = readNumber(JSON_SUCCESS);
+      } else if (nameIs(JSON_FAILURE)) {
+        failure = readNumber(JSON_FAILURE);
+      } else if (nameIs(JSON_FAILED_REGISTRATION_IDS)) {
+        failedRegistrationIds = readStrings();
+      } else {
+        skipValue();
+      }
+      c = nextMember('}');
+    }
+    checkPresent(JSON_SUCCESS, success >= 0);
+    checkPresent(JSON_FAILURE, failure >= 0);
+    return new DeviceGroupResult.Builder((int) success, (int) failure)
+        .failedRegistrationIds(failedRegistrationIds);
+  }
+
+  /**
+   * Parses the response of an operation on a device group.
+   *
+   * @return the notification key of the group.
+   *
+   * @throws MalformedJsonException if the response could not be parsed, or
+   *         misses the notification key.
+   * @throws IOException if the stream could not be read.
+   */
+  String parseNotificationKey() throws IOException {
+    if (in == null || nextToken() != '{') {
+      throw syntaxError("expected an object");
+    }
+    String notificationKey = null;
+    int c = nextToken();
+    while (c != '}') {
+      if (c != '"') {
+        throw syntaxError("expected a member name");
+      }
+      readString();
+      expect(':');
+      if (nameIs(JSON_NOTIFICATION_KEY)) {
+        notificationKey = readNullableString(false);
+      } else {
+        skipValue();
+      }
+      c = nextMember('}');
+    }
+    checkPresent(JSON_NOTIFICATION_KEY, notificationKey != null);
+    return notificationKey;
+  }
+
+  /**
+   * Parses the JSON payload of a message received from CCS.
+   *
+   * @throws MalformedJsonException if the payload could not be parsed.
+   * @throws IOException if the stream could not be read.
+   */
+  CcsMessage parseCcsMessage() throws IOException {
+    if (in == null || nextToken() != '{') {
+      throw syntaxError("expected an object");
+    }
+    CcsMessage message = new CcsMessage();
+    int c = nextToken();
+    while (c != '}') {
+      if (c != '"') {
+        throw syntaxError("expected a member name");
+      }
+      readString();
+      expect(':');
+      if (nameIs(JSON_MESSAGE_TYPE)) {
+        message.messageType = readNullableString(false);
+      } else if (nameIs(JSON_MESSAGE_ID)) {
+        message.messageId = readId(JSON_MESSAGE_ID);
+      } else if (nameIs(JSON_FROM)) {
+        message.from = readNullableString(false);
+      } else if (nameIs(JSON_CANONICAL_REG_ID)) {
+        message.canonicalRegistrationId = readNullableString(false);
+      } else if (nameIs(JSON_ERROR)) {
+        message.error = readNullableString(false);
+      } else if (nameIs(JSON_ERROR_DESCRIPTION)) {
+        message.errorDescription = readNullableString(false);
+      } else if (nameIs(JSON_CONTROL_TYPE)) {
+        message.controlType = readNullableString(false);
+      } else if (nameIs(JSON_CATEGORY)) {
+        message.category = readNullableString(false);
+      } else if (nameIs(JSON_PAYLOAD)) {
+        message.data = readStringMap();
+      } else {
+        skipValue();
+      }
+      c = nextMember('}');
+    }
+    return message;
+  }
+
+  private void readResults(MulticastResult.Builder builder)
+      throws IOException {
+    int c = nextToken();
+    if (c == 'n') {
+      expectLiteral("null");
+      return;
+    }
+    if (c != '[') {
+      throw syntaxError("expected an array of results");
+    }
+    c = nextToken();
+    while (c != ']') {
+      if (c != '{') {
+        throw syntaxError("expected a result object");
+      }
+      readResult(builder);
+      c = nextMember(']');
+    }
+  }
+
+  /**
+   * Reads a result into the columns of a builder, so its message id is not
+   * decoded into a string.
+   */
+  private void readResult(MulticastResult.Builder builder) throws IOException {
+    String canonicalRegistrationId = null;
+    String errorCode = null;
+    int c = nextToken();
+    while (c != '}') {
+      if (c != '"') {
+        throw syntaxError("expected a member name");
+      }
+      readString();
+      expect(':');
+      if (nameIs(JSON_MESSAGE_ID)) {
+        if (readNullable()) {
+          builder.messageId(chars, 0, length);
+        }
+      } else if (nameIs(JSON_CANONICAL_REG_ID)) {
+        canonicalRegistrationId = readNullableString(false);
+      } else if (nameIs(JSON_ERROR)) {
+        errorCode = readNullableString(true);
+      } else {
+        skipValue();
+      }
+      c = nextMember('}');
+    }
+    builder.addResult(canonicalRegistrationId, errorCode);
+  }
+
+  /**
+   * Consumes the separator after a value, returning the first token of the
+   * next member or element, or the closing token if there are no more.
+   */
+  private int nextMember(char close) throws IOException {
+    int c = nextToken();
+    if (c == ',') {
+      // a trailing comma is tolerated
+      return nextToken();
+    }
+    if (c != close) {
+      throw syntaxError("expected ',' or '" + close + "'");
+    }
+    return c;
+  }
+
+  /**
+   * Reads a string that may be {@literal null}.
+   *
+   * @return {@literal false} if it was {@literal null}.
+   */
+  private boolean readNullable() throws IOException {
+    int c = nextToken();
+    if (c == 'n') {
+      expectLiteral("null");
+      return false;
+    }
+    if (c != '"') {
+      throw syntaxError("expected a string");
+    }
+    readString();
+    return true;
+  }
+
+  private String readNullableString(boolean intern) throws IOException {
+    if (!readNullable()) {
+      return null;
+    }
+    if (intern) {
+      for (String code : MulticastResult.ERROR_CODES) {
+        if (nameIs(code)) {
+          return code;
+        }
+      }
+    }
+    return new String(chars, 0, length);
+  }
+
+  /**
+   * Reads an id that GCM sends either as a string or as a number.
+   */
+  private String readId(String name) throws IOException {
+    int c = nextToken();
+    if (c == '"') {
+      readString();
+      return new String(chars, 0, length);
+    }
+    if (c == 'n') {
+      expectLiteral("null");
+      return null;
+    }
+    unread(c);
+    return Long.toString(readNumber(name));
+  }
+
+  /**
+   * Reads an array of strings, which may be {@literal null}.
+   */
+  private List<String> readStrings() throws IOException {
+    int c = nextToken();
+    if (c == 'n') {
+      expectLiteral("null");
+      return null;
+    }
+    if (c != '[') {
+      throw syntaxError("expected an array of strings");
+    }
+    List<String> values = new ArrayList<String>();
+    c = nextToken();
+    while (c != ']') {
+      unread(c);
+      values.add(readNullableString(false));
+      c = nextMember(']');
+    }
+    return values;
+  }
+
+  /**
+   * Reads an object whose values are strings, which may be {@literal null}.
+   */
+  private Map<String, String> readStringMap() throws IOException {
+    int c = nextToken();
+    if (c == 'n') {
+      expectLiteral("null");
+      return null;
+    }
+    if (c != '{') {
+      throw syntaxError("expected an object of strings");
+    }
+    Map<String, String> values = new LinkedHashMap<String, String>();
+    c = nextToken();
+    while (c != '}') {
+      if (c != '"') {
+        throw syntaxError("expected a member name");
+      }
+      readString();
+      String name = new String(chars, 0, length);
+      expect(':');
+      values.put(name, readNullableString(false));
+      c = nextMember('}');
+    }
+    return values;
+  }
+
+  /**
+   * Reads a number, truncating its fractional part if any.
+   */
+  private long readNumber(String name) throws IOException {
+    int c = nextToken();
+    boolean negative = c == '-';
+    if (negative) {
+      c = read();
+    }
+    if (c < '0' || c > '9') {
+      throw new MalformedJsonException("Field " + name +
+          " does not contain a number");
+    }
+    long value = 0;
+    while (c >= '0' && c <= '9') {
+      if (value > (Long.MAX_VALUE - (c - '0')) / 10) {
+        throw new MalformedJsonException("Field " + name +
+            " is out of range");
+      }
+      value = value * 10 + (c - '0');
+      c = read();
+    }
+    if (c == '.' || c == 'e' || c == 'E') {
+      // rare, so decode it the slow way
+      StringBuilder number = new StringBuilder(negative ? "-" : "")
+          .append(value);
+      while (c == '.' || c == 'e' || c == 'E' || c == '+' || c == '-' ||
+          c >= '0' && c <= '9') {
+        number.append((char) c);
+        c = read();
+      }
+      unread(c);
+      try {
+        return (long) Double.parseDouble(number.toString());
+      } catch (NumberFormatException e) {
+        throw new MalformedJsonException("Field " + name +
+            " does not contain a number: " + number);
+      }
+    }
+    unread(c);
+    return negative ? -value : value;
+  }
+
+  /**
+   * Reads the rest of a string, whose opening quote was already consumed,
+   * into {@link #chars}.
+   */
+  private void readString() throws IOException {
+    length = 0;
+    while (true) {
+      int c = read();
+      if (c == '"') {
+        return;
+      }
+      if (c < 0) {
+        throw syntaxError("unterminated string");
+      }
+      if (length + 2 > chars.length) {
+        chars = Arrays.copyOf(chars, chars.length * 2);
+      }
+      if (c == '\\') {
+        chars[length++] = readEscaped();
+      } else if (c < 0x80) {
+        chars[length++] = (char) c;
+      } else if ((c & 0xe0) == 0xc0) {
+        chars[length++] = (char) ((c & 0x1f) << 6 | continuation());
+      } else if ((c & 0xf0) == 0xe0) {
+        int high = (c & 0x0f) << 12 | continuation() << 6;
+        chars[length++] = (char) (high | continuation());
+      } else if ((c & 0xf8) == 0xf0) {
+        int codePoint = (c & 0x07) << 18 | continuation() << 12;
+        codePoint |= continuation() << 6;
+        codePoint |= continuation();
+        chars[length++] = Character.highSurrogate(codePoint);
+        chars[length++] = Character.lowSurrogate(codePoint);
+      } else {
+        throw syntaxError("invalid UTF-8 byte");
+      }
+    }
+  }
+
+  private int continuation() throws IOException {
+    int c = read();
+    if ((c & 0xc0) != 0x80) {
+      throw syntaxError("invalid UTF-8 sequence");
+    }
+    return c & 0x3f;
+  }
+
+  private char readEscaped() throws IOException {
+    int c = read();
+    switch (c) {
+      case '"':
+      case '\\':
+      case '/':
+        return (char) c;
+      case 'b':
+        return '\b';
+      case 'f':
+        return '\f';
+      case 'n':
+        return '\n';
+      case 'r':
+        return '\r';
+      case 't':
+        return '\t';
+      case 'u':
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+          int digit = Character.digit(read(), 16);
+          if (digit < 0) {
+            throw syntaxError("invalid unicode escape");
+          }
+          value = value << 4 | digit;
+        }
+        return (char) value;
+      default:
+        throw syntaxError("invalid escape");
+    }
+  }
+
+  private void skipValue() throws IOException {
+    int c = nextToken();
+    switch (c) {
+      case '"':
+        readString();
+        break;
+      case '{':
+        c = nextToken();
+        while (c != '}') {
+          if (c != '"') {
+            throw syntaxError("expected a member name");
+          }
+          readString();
+          expect(':');
+          skipValue();
+          c = nextMember('}');
+        }
+        break;
+      case '[':
+        c = nextToken();
+        while (c != ']') {
+          unread(c);
+          skipValue();
+          c = nextMember(']');
+        }
+        break;
+      case 't':
+        expectLiteral("true");
+        break;
+      case 'f':
+        expectLiteral("false");
+        break;
+      case 'n':
+        expectLiteral("null");
+        break;
+      default:
+        if (c != '-' && (c < '0' || c > '9')) {
+          throw syntaxError("unexpected character");
+        }
+        do {
+          c = read();
+        } while (c == '.' || c == 'e' || c == 'E' || c == '+' || c == '-' ||
+            c >= '0' && c <= '9');
+        unread(c);
+    }
+  }
+
+  private boolean nameIs(String name) {
+    if (name.length() != length) {
+      return false;
+    }
+    for (int i = 0; i < length; i++) {
+      if (name.charAt(i) != chars[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void checkPresent(String name, boolean present)
+      throws MalformedJsonException {
+    if (!present) {
+      throw new MalformedJsonException("Missing field: " + name);
+    }
+  }
+
+  private void expect(char expected) throws IOException {
+    if (nextToken() != expected) {
+      throw syntaxError("expected '" + expected + "'");
+    }
+  }
+
+  /**
+   * Checks the rest of a literal whose first character was already consumed.
+   */
+  private void expectLiteral(String literal) throws IOException {
+    for (int i = 1; i < literal.length(); i++) {
+      if (read() != literal.charAt(i)) {
+        throw syntaxError("expected " + literal);
+      }
+    }
+  }
+
+  private MalformedJsonException syntaxError(String message) {
+    return new MalformedJsonException("Invalid JSON response, " + message);
+  }
+
+  /**
+   * Reads the next byte that is not whitespace, or {@literal -1} at the end of
+   * the stream.
+   */
+  private int nextToken() throws IOException {
+    int c;
+    do {
+      c = read();
+    } while (c == ' ' || c == '\n' || c == '\r' || c == '\t');
+    return c;
+  }
+
+  private int read() throws IOException {
+    if (position == limit) {
+      int read = in.read(buffer, 0, buffer.length);
+      if (read <= 0) {
+        // keeps returning -1, and unread() does not move back
+        position = limit = 0;
+        return -1;
+      }
+      position = 0;
+      limit = read;
+    }
+    return buffer[position++] & 0xff;
+  }
+
+  /**
+   * Pushes back the byte just returned by {@link #read()}.
+   */
+  private void unread(int c) {
+    if (c >= 0) {
+      position--;
+    }
+  }
+
+}
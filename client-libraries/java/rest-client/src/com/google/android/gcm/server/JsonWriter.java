@@ -0,0 +1,297 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Minimal streaming JSON writer that encodes straight to UTF-8 bytes, without
+ * building intermediate strings.
+ *
+ * <p>
+ * Commas are added automatically between values and members; the writer does
+ * not otherwise validate the structure of the document. Instances are not
+ * thread-safe.
+ */
+final class JsonWriter {
+
+  private static final byte[] HEX = "0123456789abcdef".getBytes();
+  private static final byte[] NULL = "null".getBytes();
+  private static final byte[] TRUE = "true".getBytes();
+  private static final byte[] FALSE = "false".getBytes();
+
+  private final OutputStream out;
+  private final byte[] buffer;
+  private int position;
+  // whether the next value in each nesting level must be preceded by a comma
+  private boolean[] hasValue = new boolean[8];
+  private int depth;
+  private boolean afterName;
+
+  JsonWriter(OutputStream out) {
+    this(out, 8192);
+  }
+
+  /**
+   * Creates a writer with a given buffer size, which should be at least
+   * {@literal 64} bytes.
+   */
+  JsonWriter(OutputStream out, int bufferSize) {
+    this.out = out;
+    buffer = new byte[Math.max(64, bufferSize)];
+  }
+
+  JsonWriter beginObject() throws IOException {
+    beforeValue();
+    write('{');
+    push();
+    return this;
+  }
+
+  JsonWriter endObject() throws IOException {
+    depth--;
+    write('}');
+    return this;
+  }
+
+  JsonWriter beginArray() throws IOException {
+    beforeValue();
+    write('[');
+    push();
+    return this;
+  }
+
+  JsonWriter endArray() throws IOException {
+    depth--;
+    write(']');
+    return this;
+  }
+
+  /**
+   * Writes the name of an object member; {@literal null} is written as
+   * {@code "null"}.
+   */
+  JsonWriter name(String name) throws IOException {
+    beforeValue();
+    writeString(name == null ? "null" : name);
+    write(':');
+    afterName = true;
+    return this;
+  }
+
+  JsonWriter value(String value) throws IOException {
+    beforeValue();
+    if (value == null) {
+      write(NULL);
+    } else {
+      writeString(value);
+    }
+    return this;
+  }
+
+  JsonWriter value(long value) throws IOException {
+    beforeValue();
+    if (value == Long.MIN_VALUE) {
+      write(Long.toString(value).getBytes());
+      return this;
+    }
+    if (value < 0) {
+      write('-');
+      value = -value;
+    }
+    ensureCapacity(19);
+    int start = position;
+    do {
+      buffer[position++] = (byte) ('0' + value % 10);
+      value /= 10;
+    } while (value != 0);
+    // digits were written backwards
+    for (int i = start, j = position - 1; i < j; i++, j--) {
+      byte digit = buffer[i];
+      buffer[i] = buffer[j];
+      buffer[j] = digit;
+    }
+    return this;
+  }
+
+  JsonWriter value(boolean value) throws IOException {
+    beforeValue();
+    write(value ? TRUE : FALSE);
+    return this;
+  }
+
+  /**
+   * Writes a member, but only if the value is not {@literal null}.
+   */
+  JsonWriter optional(String name, String value) throws IOException {
+    return value == null ? this : name(name).value(value);
+  }
+
+  JsonWriter optional(String name, Number value) throws IOException {
+    return value == null ? this : name(name).value(value.longValue());
+  }
+
+  JsonWriter optional(String name, Boolean value) throws IOException {
+    return value == null ? this : name(name).value(value.booleanValue());
+  }
+
+  JsonWriter optional(String name, Iterable<String> values)
+      throws IOException {
+    if (values == null) {
+      return this;
+    }
+    name(name).beginArray();
+    for (String value : values) {
+      value(value);
+    }
+    return endArray();
+  }
+
+  /**
+   * Copies object members that were already encoded by another writer, which
+   * must be a comma-separated list of members, possibly empty.
+   */
+  JsonWriter members(byte[] members) throws IOException {
+    if (members.length == 0) {
+      return this;
+    }
+    beforeValue();
+    if (members.length > buffer.length) {
+      ensureCapacity(buffer.length);
+      out.write(members);
+    } else {
+      write(members);
+    }
+    return this;
+  }
+
+  /**
+   * Writes the buffered bytes to the underlying stream.
+   */
+  void flush() throws IOException {
+    out.write(buffer, 0, position);
+    position = 0;
+    out.flush();
+  }
+
+  private void beforeValue() throws IOException {
+    if (afterName) {
+      afterName = false;
+      return;
+    }
+    if (hasValue[depth]) {
+      write(',');
+    }
+    hasValue[depth] = true;
+  }
+
+  private void push() {
+    if (++depth == hasValue.length) {
+      hasValue = Arrays.copyOf(hasValue, depth * 2);
+    }
+    hasValue[depth] = false;
+  }
+
+  private void writeString(String value) throws IOException {
+    write('"');
+    int length = value.length();
+    for (int i = 0; i < length; i++) {
+      // worst case is an escaped char, 6 bytes
+      ensureCapacity(6);
+      char c = value.charAt(i);
+      if (c < 0x80) {
+        if (c >= 0x20 && c != '"' && c != '\\') {
+          buffer[position++] = (byte) c;
+          continue;
+        }
+        switch (c) {
+          case '"':
+          case '\\':
+            buffer[position++] = '\\';
+            buffer[position++] = (byte) c;
+            break;
+          case '\n':
+            buffer[position++] = '\\';
+            buffer[position++] = 'n';
+            break;
+          case '\r':
+            buffer[position++] = '\\';
+            buffer[position++] = 'r';
+            break;
+          case '\t':
+            buffer[position++] = '\\';
+            buffer[position++] = 't';
+            break;
+          default:
+            writeEscaped(c);
+        }
+      } else if (c < 0x800) {
+        buffer[position++] = (byte) (0xc0 | c >> 6);
+        buffer[position++] = (byte) (0x80 | c & 0x3f);
+      } else if (Character.isSurrogate(c)) {
+        if (Character.isHighSurrogate(c) && i + 1 < length &&
+            Character.isLowSurrogate(value.charAt(i + 1))) {
+          int codePoint = Character.toCodePoint(c, value.charAt(++i));
+          buffer[position++] = (byte) (0xf0 | codePoint >> 18);
+          buffer[position++] = (byte) (0x80 | codePoint >> 12 & 0x3f);
+          buffer[position++] = (byte) (0x80 | codePoint >> 6 & 0x3f);
+          buffer[position++] = (byte) (0x80 | codePoint & 0x3f);
+        } else {
+          // unpaired surrogates can not be encoded in UTF-8
+          writeEscaped(c);
+        }
+      } else if (c == 0x2028 || c == 0x2029) {
+        // valid JSON, but not valid JavaScript
+        writeEscaped(c);
+      } else {
+        buffer[position++] = (byte) (0xe0 | c >> 12);
+        buffer[position++] = (byte) (0x80 | c >> 6 & 0x3f);
+        buffer[position++] = (byte) (0x80 | c & 0x3f);
+      }
+    }
+    write('"');
+  }
+
+  private void writeEscaped(char c) {
+    buffer[position++] = '\\';
+    buffer[position++] = 'u';
+    buffer[position++] = HEX[c >> 12];
+    buffer[position++] = HEX[c >> 8 & 0xf];
+    buffer[position++] = HEX[c >> 4 & 0xf];
+    buffer[position++] = HEX[c & 0xf];
+  }
+
+  private void write(char c) throws IOException {
+    ensureCapacity(1);
+    buffer[position++] = (byte) c;
+  }
+
+  private void write(byte[] bytes) throws IOException {
+    ensureCapacity(bytes.length);
+    System.arraycopy(bytes, 0, buffer, position, bytes.length);
+    position += bytes.length;
+  }
+
+  private void ensureCapacity(int length) throws IOException {
+    if (position + length > buffer.length) {
+      out.write(buffer, 0, position);
+      position = 0;
+    }
+  }
+
+}
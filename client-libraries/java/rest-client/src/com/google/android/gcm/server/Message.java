@@ -16,6 +16,7 @@
 package com.google.android.gcm.server;
 
 import java.io.Serializable;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.Map;
@@ -65,6 +66,8 @@ public final class Message implements Serializable {
   private final Boolean dryRun;
   private final String restrictedPackageName;
   private final Notification notification;
+  // JSON encoding of the fields above, see getJsonFields()
+  private transient volatile byte[] jsonFields;
 
   public static final class Builder {
 
@@ -147,7 +150,8 @@ public final class Message implements Serializable {
   private Message(Builder builder) {
     collapseKey = builder.collapseKey;
     delayWhileIdle = builder.delayWhileIdle;
-    data = Collections.unmodifiableMap(builder.data);
+    data = Collections.unmodifiableMap(
+        new LinkedHashMap<String, String>(builder.data));
     timeToLive = builder.timeToLive;
     dryRun = builder.dryRun;
     restrictedPackageName = builder.restrictedPackageName;
@@ -203,6 +207,46 @@ public final class Message implements Serializable {
     return notification;
   }
 
+  /**
+   * Gets the JSON members representing this message, which are the same
+   * regardless of the devices it is sent to, encoded as UTF-8.
+   *
+   * <p>
+   * They are encoded on the first call and cached, so a message sent in many
+   * chunks or retried is only serialized once; callers must not modify the
+   * returned array.
+   */
+  byte[] getJsonFields() {
+    byte[] fields = jsonFields;
+    if (fields == null) {
+      // benign race: concurrent callers would encode the same bytes
+      fields = Sender.encodeFields(this);
+      jsonFields = fields;
+    }
+    return fields;
+  }
+
+  /**
+   * Compares the JSON encoding of two messages, so messages are equal if GCM
+   * would get the same request for them; the order of their payload data
+   * matters.
+   */
+  @Override
+  public boolean equals(Object obj) {
+    if (this == obj) {
+      return true;
+    }
+    if (!(obj instanceof Message)) {
+      return false;
+    }
+    return Arrays.equals(getJsonFields(), ((Message) obj).getJsonFields());
+  }
+
+  @Override
+  public int hashCode() {
+    return Arrays.hashCode(getJsonFields());
+  }
+
   @Override
   public String toString() {
     StringBuilder builder = new StringBuilder("Message(");
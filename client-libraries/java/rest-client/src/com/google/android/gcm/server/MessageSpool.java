@@ -0,0 +1,554 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * Durable log of the multicast messages being sent by a {@link Sender}, so
+ * the devices that did not get them yet can be resumed after a restart.
+ *
+ * <p>
+ * Each message is appended with its registration ids before it is sent, the
+ * positions of the devices that got a final result are appended after each
+ * attempt, and the message is marked as done when the send completes. After a
+ * crash, {@link #getPending()} returns the messages whose send did not
+ * complete, to be resumed with {@link Sender#resume(MessageSpool.Entry, int)}.
+ *
+ * <p>
+ * Records are appended to memory-mapped segment files in a directory, each
+ * with its length and CRC32 checksum; when a segment is full, a new one is
+ * started with a snapshot of the messages still pending, and the older ones
+ * are deleted. Records that were partially written before a crash are
+ * ignored. Messages are stored using Java serialization, so the directory
+ * must only be writable by the application.
+ *
+ * <p>
+ * This class is thread-safe. Example:
+ *
+ * <pre><code>
+ * MessageSpool spool = new MessageSpool.Builder(new File("spool")).build();
+ * sender.setSpool(spool);
+ * for (MessageSpool.Entry entry : spool.getPending()) {
+ *   sender.resume(entry, 5);
+ * }
+ * </code></pre>
+ */
+public final class MessageSpool implements Closeable {
+
+  private static final Logger logger =
+      Logger.getLogger(MessageSpool.class.getName());
+
+  private static final byte MESSAGE = 1;
+  private static final byte CHECKPOINT = 2;
+  private static final byte DONE = 3;
+
+  // length and checksum of each record
+  private static final int HEADER = 8;
+
+  private static final Pattern SEGMENT_NAME =
+      Pattern.compile("segment-(\\d+)\\.log");
+
+  // only the classes of a message can be deserialized
+  private static final ObjectInputFilter MESSAGE_FILTER =
+      ObjectInputFilter.Config.createFilter(
+          "com.google.android.gcm.server.*;java.lang.*;java.util.*;!*");
+
+  private final File directory;
+  private final int segmentSize;
+  private final boolean sync;
+  private final Map<Long, Entry> entries = new LinkedHashMap<Long, Entry>();
+  private long nextId;
+  // numbers of the oldest and of the current segment
+  private long firstSegment;
+  private long segment;
+  private FileChannel channel;
+  private MappedByteBuffer buffer;
+  private boolean closed;
+
+  public static final class Builder {
+
+    // required parameters
+    private final File directory;
+
+    // optional parameters
+    private int segmentSize = 16 * 1024 * 1024;
+    private boolean sync = true;
+
+    /**
+     * @param directory directory of the segment files, which is created if
+     *        it does not exist.
+     */
+    public Builder(File directory) {
+      this.directory = Sender.nonNull(directory);
+    }
+
+    /**
+     * Sets the size of each segment file, in bytes (default is 16 MB); a
+     * segment can be larger if the messages pending do not fit.
+     */
+    public Builder segmentSize(int value) {
+      if (value < 1024) {
+        throw new IllegalArgumentException(
+            "segmentSize must be at least 1024");
+      }
+      segmentSize = value;
+      return this;
+    }
+
+    /**
+     * Sets whether each record is forced to the storage device before
+     * returning (default is {@literal true}); otherwise records written
+     * before a crash of the operating system could be lost.
+     */
+    public Builder sync(boolean value) {
+      sync = value;
+      return this;
+    }
+
+    /**
+     * Opens the spool, reading the records of the existing segments.
+     */
+    public MessageSpool build() throws IOException {
+      return new MessageSpool(this);
+    }
+  }
+
+  /**
+   * Message that was appended to the spool and is not done yet.
+   */
+  public final class Entry {
+
+    private final long id;
+    private final Message message;
+    private final List<String> registrationIds;
+    // positions of the devices that got a final result
+    private final BitSet completed;
+
+    private Entry(long id, Message message, List<String> registrationIds,
+        BitSet completed) {
+      this.id = id;
+      this.message = message;
+      this.registrationIds = registrationIds;
+      this.completed = completed;
+    }
+
+    /**
+     * Gets the id of the entry, unique in the spool.
+     */
+    public long getId() {
+      return id;
+    }
+
+    /**
+     * Gets the message.
+     */
+    public Message getMessage() {
+      return message;
+    }
+
+    /**
+     * Gets the registration ids the message was sent to.
+     */
+    public List<String> getRegistrationIds() {
+      return registrationIds;
+    }
+
+    /**
+     * Gets the registration ids of the devices that did not get a final
+     * result yet.
+     */
+    public List<String> getPendingRegistrationIds() {
+      int[] positions = getPendingPositions();
+      List<String> pending = new ArrayList<String>(positions.length);
+      for (int position : positions) {
+        pending.add(registrationIds.get(position));
+      }
+      return pending;
+    }
+
+    /**
+     * Gets the positions of the devices that did not get a final result yet.
+     */
+    int[] getPendingPositions() {
+      synchronized (MessageSpool.this) {
+        int size = registrationIds.size();
+        int[] positions = new int[size - completed.cardinality()];
+        int count = 0;
+        for (int i = completed.nextClearBit(0); i < size;
+            i = completed.nextClearBit(i + 1)) {
+          positions[count++] = i;
+        }
+        return positions;
+      }
+    }
+
+    @Override
+    public String toString() {
+      return "Entry(id=" + id + ", message=" + message + ")";
+    }
+  }
+
+  private MessageSpool(Builder builder) throws IOException {
+    directory = builder.directory;
+    segmentSize = builder.segmentSize;
+    sync = builder.sync;
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Could not create directory " + directory);
+    }
+    TreeMap<Long, File> segments = new TreeMap<Long, File>();
+    File[] files = directory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        Matcher matcher = SEGMENT_NAME.matcher(file.getName());
+        if (matcher.matches()) {
+          segments.put(Long.parseLong(matcher.group(1)), file);
+        }
+      }
+    }
+    for (Map.Entry<Long, File> file : segments.entrySet()) {
+      segment = file.getKey();
+      map(file.getValue(), Math.max(file.getValue().length(), HEADER));
+      recover();
+    }
+    if (segments.isEmpty()) {
+      segment = 1;
+      map(getSegmentFile(segment), segmentSize);
+    }
+    firstSegment = segments.isEmpty() ? segment : segments.firstKey();
+    if (segments.size() > 1) {
+      compact();
+    }
+  }
+
+  /**
+   * Appends a message that is about to be sent.
+   *
+   * @return the id of the entry.
+   */
+  public synchronized long append(Message message,
+      List<String> registrationIds) throws IOException {
+    checkOpen();
+    long id = nextId++;
+    List<String> copy = Collections.unmodifiableList(
+        new ArrayList<String>(registrationIds));
+    Entry entry = new Entry(id, Sender.nonNull(message), copy, new BitSet());
+    write(encodeMessage(entry));
+    entries.put(id, entry);
+    return id;
+  }
+
+  /**
+   * Records the devices of a message that got a final result, so they are not
+   * resumed; the message is done when all its devices are.
+   *
+   * @param id id of the entry.
+   * @param positions positions of the devices in the registration ids of the
+   *        entry.
+   */
+  public synchronized void checkpoint(long id, int[] positions)
+      throws IOException {
+    checkOpen();
+    Entry entry = entries.get(id);
+    if (entry == null || positions.length == 0) {
+      return;
+    }
+    write(encodeCheckpoint(CHECKPOINT, id, positions));
+    for (int position : positions) {
+      entry.completed.set(position);
+    }
+    if (entry.completed.cardinality() == entry.registrationIds.size()) {
+      complete(id);
+    }
+  }
+
+  /**
+   * Marks a message as done, so it is not resumed.
+   *
+   * @param id id of the entry; unknown ids are ignored.
+   */
+  public synchronized void complete(long id) throws IOException {
+    checkOpen();
+    if (entries.containsKey(id)) {
+      write(encodeCheckpoint(DONE, id, null));
+      entries.remove(id);
+    }
+  }
+
+  /**
+   * Gets the messages that are not done, in the order they were appended.
+   */
+  public synchronized List<Entry> getPending() {
+    return new ArrayList<Entry>(entries.values());
+  }
+
+  /**
+   * Starts a new segment with a snapshot of the messages that are not done,
+   * and deletes the older segments.
+   */
+  public synchronized void compact() throws IOException {
+    checkOpen();
+    roll(0);
+  }
+
+  /**
+   * Closes the current segment; the messages that are not done are kept for
+   * the next time the spool is opened.
+   */
+  public synchronized void close() throws IOException {
+    if (!closed) {
+      closed = true;
+      buffer.force();
+      channel.close();
+      buffer = null;
+    }
+  }
+
+  private void checkOpen() throws IOException {
+    if (closed) {
+      throw new IOException("spool is closed");
+    }
+  }
+
+  /**
+   * Writes a record in the current segment, starting a new one if it does
+   * not fit.
+   */
+  private void write(byte[] payload) throws IOException {
+    // a zero length must follow the last record
+    if (buffer.remaining() < HEADER + payload.length + 4) {
+      roll(payload.length);
+    }
+    CRC32 crc = new CRC32();
+    crc.update(payload);
+    int start = buffer.position();
+    buffer.putInt(start + 4, (int) crc.getValue());
+    buffer.position(start + HEADER);
+    buffer.put(payload);
+    // the length is written last, so a partial record looks like the end
+    buffer.putInt(start, payload.length);
+    if (sync) {
+      buffer.force();
+    }
+  }
+
+  /**
+   * Starts a new segment with a snapshot of the pending entries, and deletes
+   * the older ones.
+   *
+   * @param reserved bytes that must fit after the snapshots.
+   */
+  private void roll(int reserved) throws IOException {
+    List<byte[]> snapshots = new ArrayList<byte[]>();
+    int size = reserved + HEADER + 4;
+    for (Entry entry : entries.values()) {
+      byte[] message = encodeMessage(entry);
+      snapshots.add(message);
+      size += HEADER + message.length;
+      if (!entry.completed.isEmpty()) {
+        byte[] checkpoint = encodeCheckpoint(CHECKPOINT, entry.id,
+            entry.completed.stream().toArray());
+        snapshots.add(checkpoint);
+        size += HEADER + checkpoint.length;
+      }
+    }
+    buffer.force();
+    long previous = segment;
+    segment++;
+    map(getSegmentFile(segment), Math.max(segmentSize, size + size / 2));
+    for (byte[] snapshot : snapshots) {
+      write(snapshot);
+    }
+    buffer.force();
+    // deleted once the snapshots are durable
+    for (long old = firstSegment; old <= previous; old++) {
+      File file = getSegmentFile(old);
+      if (file.exists() && !file.delete()) {
+        logger.warning("Could not delete segment " + file);
+      }
+    }
+    firstSegment = segment;
+    if (logger.isLoggable(Level.FINE)) {
+      logger.fine("Rolled to segment " + segment + " with " + entries.size() +
+          " pending messages");
+    }
+  }
+
+  private File getSegmentFile(long number) {
+    return new File(directory, String.format("segment-%016d.log", number));
+  }
+
+  private void map(File file, long size) throws IOException {
+    if (channel != null) {
+      channel.close();
+    }
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      channel = raf.getChannel();
+      buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    } catch (IOException e) {
+      raf.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Reads the records of the current segment, leaving the buffer after the
+   * last valid one.
+   */
+  private void recover() throws IOException {
+    int end = 0;
+    while (buffer.limit() - end >= HEADER) {
+      int length = buffer.getInt(end);
+      if (length <= 0 || length > buffer.limit() - end - HEADER) {
+        break;
+      }
+      byte[] payload = new byte[length];
+      buffer.position(end + HEADER);
+      buffer.get(payload);
+      CRC32 crc = new CRC32();
+      crc.update(payload);
+      if ((int) crc.getValue() != buffer.getInt(end + 4)) {
+        break;
+      }
+      try {
+        apply(payload);
+      } catch (IOException | ClassNotFoundException | RuntimeException e) {
+        logger.log(Level.WARNING, "Ignoring invalid record in segment " +
+            segment, e);
+      }
+      end += HEADER + length;
+    }
+    // clears a record partially written before a crash
+    for (int i = end; i < buffer.limit() && i < end + HEADER; i++) {
+      buffer.put(i, (byte) 0);
+    }
+    buffer.position(end);
+  }
+
+  private void apply(byte[] payload)
+      throws IOException, ClassNotFoundException {
+    DataInputStream in =
+        new DataInputStream(new ByteArrayInputStream(payload));
+    byte type = in.readByte();
+    long id = in.readLong();
+    nextId = Math.max(nextId, id + 1);
+    switch (type) {
+      case MESSAGE:
+        byte[] serialized = new byte[in.readInt()];
+        in.readFully(serialized);
+        ObjectInputStream objects =
+            new ObjectInputStream(new ByteArrayInputStream(serialized));
+        objects.setObjectInputFilter(MESSAGE_FILTER);
+        Message message = (Message) objects.readObject();
+        String[] registrationIds = new String[in.readInt()];
+        for (int i = 0; i < registrationIds.length; i++) {
+          registrationIds[i] = in.readUTF();
+        }
+        Entry previous = entries.remove(id);
+        // a snapshot keeps the devices completed in older segments
+        BitSet completed = previous != null ? previous.completed : new BitSet();
+        entries.put(id, new Entry(id, message, Collections.unmodifiableList(
+            Arrays.asList(registrationIds)), completed));
+        break;
+      case CHECKPOINT:
+        Entry entry = entries.get(id);
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+          int position = in.readInt();
+          if (entry != null) {
+            entry.completed.set(position);
+          }
+        }
+        break;
+      case DONE:
+        entries.remove(id);
+        break;
+      default:
+        throw new IOException("Unknown record type: " + type);
+    }
+  }
+
+  private static byte[] encodeMessage(Entry entry) throws IOException {
+    ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+    ObjectOutputStream objects = new ObjectOutputStream(serialized);
+    objects.writeObject(entry.message);
+    objects.close();
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+        serialized.size() + 64 * entry.registrationIds.size());
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeByte(MESSAGE);
+    out.writeLong(entry.id);
+    out.writeInt(serialized.size());
+    serialized.writeTo(out);
+    out.writeInt(entry.registrationIds.size());
+    for (String registrationId : entry.registrationIds) {
+      out.writeUTF(Sender.nonNull(registrationId));
+    }
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Encodes a record that only refers to the positions of an entry, which
+   * are {@literal null} for a {@link #DONE} record.
+   */
+  private static byte[] encodeCheckpoint(byte type, long id, int[] positions)
+      throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+        13 + (positions == null ? 0 : 4 * positions.length));
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeByte(type);
+    out.writeLong(id);
+    if (positions != null) {
+      out.writeInt(positions.length);
+      for (int position : positions) {
+        out.writeInt(position);
+      }
+    }
+    return bytes.toByteArray();
+  }
+
+  @Override
+  public String toString() {
+    return "MessageSpool(" + directory + ")";
+  }
+
+}
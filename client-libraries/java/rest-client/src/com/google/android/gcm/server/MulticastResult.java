@@ -15,26 +15,82 @@
  */
 package com.google.android.gcm.server;
 
+import static com.google.android.gcm.server.Constants.*;
+
 import java.io.Serializable;
-import java.util.ArrayList;
+import java.util.AbstractList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.Objects;
+import java.util.RandomAccess;
 
 /**
  * Result of a GCM multicast message request .
+ *
+ * <p>
+ * The result of each device is stored in columns rather than as a
+ * {@link Result} object: error codes as bytes, message ids in a shared array of
+ * chars, and canonical registration ids only for the devices that have one.
+ * {@link #getResults()} creates the {@link Result} objects on demand; jobs
+ * going through many results can use the accessors by index, such as
+ * {@link #getIndexes(String)}, instead.
  */
 public final class MulticastResult implements Serializable {
 
+  /**
+   * Error codes stored as a byte, which is their position in this array plus
+   * one; other error codes are stored aside.
+   */
+  static final String[] ERROR_CODES = {
+      ERROR_UNAVAILABLE,
+      ERROR_NOT_REGISTERED,
+      ERROR_INVALID_REGISTRATION,
+      ERROR_MISMATCH_SENDER_ID,
+      ERROR_MISSING_REGISTRATION,
+      ERROR_INTERNAL_SERVER_ERROR,
+      ERROR_DEVICE_QUOTA_EXCEEDED,
+      ERROR_DEVICE_MESSAGE_RATE_EXCEEDED,
+      ERROR_QUOTA_EXCEEDED,
+      ERROR_MESSAGE_TOO_BIG,
+      ERROR_MISSING_COLLAPSE_KEY,
+      ERROR_INVALID_TTL,
+      ERROR_TOPICS_MESSAGE_RATE_EXCEEDED,
+      ERROR_DEADLINE_EXCEEDED,
+  };
+
+  private static final byte NO_ERROR = 0;
+  private static final byte OTHER_ERROR = -1;
+
   private final int success;
   private final int failure;
   private final int canonicalIds;
   private final long multicastId;
-  private final List<Result> results;
   private final List<Long> retryMulticastIds;
+  private final long retryAfter;
+  private final List<Long> retryDelays;
+
+  // columns of the device results
+  private final int size;
+  private final byte[] errors;
+  // end of the message id of each result in messageIds, or its complement if
+  // the result has no message id
+  private final int[] messageIdEnds;
+  private final char[] messageIds;
+  private final SparseStrings canonicalRegistrationIds;
+  private final SparseStrings otherErrors;
+  private transient List<Result> results;
 
   public static final class Builder {
 
-    private final List<Result> results = new ArrayList<Result>();
+    private byte[] errors = new byte[16];
+    private int[] messageIdEnds = new int[16];
+    private char[] messageIds = new char[256];
+    private int charCount;
+    private boolean hasMessageId;
+    private final SparseStrings canonicalRegistrationIds = new SparseStrings();
+    private final SparseStrings otherErrors = new SparseStrings();
+    private int size;
 
     // required parameters
     private final int success;
@@ -44,6 +100,8 @@ public final class MulticastResult implements Serializable {
 
     // optional parameters
     private List<Long> retryMulticastIds;
+    private long retryAfter;
+    private List<Long> retryDelays;
 
     public Builder(int success, int failure, int canonicalIds,
         long multicastId) {
@@ -54,15 +112,144 @@ public final class MulticastResult implements Serializable {
     }
 
     public Builder addResult(Result result) {
-      results.add(result);
+      String messageId = result.getMessageId();
+      if (messageId != null) {
+        int length = messageId.length();
+        int start = startMessageId(length);
+        messageId.getChars(0, length, messageIds, start);
+      }
+      return addResult(result.getCanonicalRegistrationId(),
+          result.getErrorCodeName());
+    }
+
+    /**
+     * Adds the result of a device of another multicast, without creating a
+     * {@link Result}.
+     */
+    Builder addResult(MulticastResult result, int index) {
+      Objects.checkIndex(index, result.size);
+      return addResult(result, index,
+          result.canonicalRegistrationIds.get(index));
+    }
+
+    /**
+     * Adds the result of a device of another multicast, with the given
+     * canonical registration id instead of its own.
+     */
+    Builder addResult(MulticastResult result, int index,
+        String canonicalRegistrationId) {
+      Objects.checkIndex(index, result.size);
+      if (result.messageIdEnds[index] >= 0) {
+        int start = result.messageIdStart(index);
+        int length = result.messageIdEnds[index] - start;
+        int destination = startMessageId(length);
+        System.arraycopy(result.messageIds, start, messageIds, destination,
+            length);
+      }
+      byte error = result.errors[index];
+      if (error == OTHER_ERROR) {
+        otherErrors.add(size, result.otherErrors.get(index));
+      }
+      return add(canonicalRegistrationId, error);
+    }
+
+    /**
+     * Adds the results of all devices of another multicast.
+     */
+    Builder addResults(MulticastResult result) {
+      for (int i = 0; i < result.size; i++) {
+        addResult(result, i);
+      }
       return this;
     }
 
+    /**
+     * Sets the message id of the next result added by
+     * {@link #addResult(String, String)}, replacing the previous one if any.
+     */
+    void messageId(char[] chars, int offset, int length) {
+      int start = startMessageId(length);
+      System.arraycopy(chars, offset, messageIds, start, length);
+    }
+
+    /**
+     * Adds a result with the message id set by
+     * {@link #messageId(char[], int, int)}, if any.
+     */
+    Builder addResult(String canonicalRegistrationId, String errorCode) {
+      byte error = encode(errorCode);
+      if (error == OTHER_ERROR) {
+        otherErrors.add(size, errorCode);
+      }
+      return add(canonicalRegistrationId, error);
+    }
+
+    private Builder add(String canonicalRegistrationId, byte error) {
+      if (size == errors.length) {
+        errors = Arrays.copyOf(errors, size * 2);
+        messageIdEnds = Arrays.copyOf(messageIdEnds, size * 2);
+      }
+      errors[size] = error;
+      messageIdEnds[size] = hasMessageId ? charCount
+          : ~(size == 0 ? 0 : decode(messageIdEnds[size - 1]));
+      if (canonicalRegistrationId != null) {
+        canonicalRegistrationIds.add(size, canonicalRegistrationId);
+      }
+      size++;
+      hasMessageId = false;
+      return this;
+    }
+
+    /**
+     * Makes room for more results, so they are added without growing the
+     * columns.
+     *
+     * @param results number of results.
+     * @param chars total length of their message ids.
+     */
+    Builder ensureCapacity(int results, int chars) {
+      if (size + results > errors.length) {
+        errors = Arrays.copyOf(errors, size + results);
+        messageIdEnds = Arrays.copyOf(messageIdEnds, size + results);
+      }
+      int start = size == 0 ? 0 : decode(messageIdEnds[size - 1]);
+      if (start + chars > messageIds.length) {
+        messageIds = Arrays.copyOf(messageIds, start + chars);
+      }
+      return this;
+    }
+
+    /**
+     * Makes room for the message id of the next result.
+     *
+     * @return where the message id starts.
+     */
+    private int startMessageId(int length) {
+      int start = size == 0 ? 0 : decode(messageIdEnds[size - 1]);
+      if (start + length > messageIds.length) {
+        messageIds = Arrays.copyOf(messageIds,
+            Math.max(start + length, messageIds.length * 2));
+      }
+      charCount = start + length;
+      hasMessageId = true;
+      return start;
+    }
+
     public Builder retryMulticastIds(List<Long> retryMulticastIds) {
       this.retryMulticastIds = retryMulticastIds;
       return this;
     }
 
+    public Builder retryAfter(long retryAfter) {
+      this.retryAfter = retryAfter;
+      return this;
+    }
+
+    public Builder retryDelays(List<Long> retryDelays) {
+      this.retryDelays = retryDelays;
+      return this;
+    }
+
     public MulticastResult build() {
       return new MulticastResult(this);
     }
@@ -73,12 +260,26 @@ public final class MulticastResult implements Serializable {
     failure = builder.failure;
     canonicalIds = builder.canonicalIds;
     multicastId = builder.multicastId;
-    results = Collections.unmodifiableList(builder.results);
+    size = builder.size;
+    // columns that are full are shared, since the builder only appends
+    errors = trim(builder.errors, size);
+    messageIdEnds = trim(builder.messageIdEnds, size);
+    int chars = size == 0 ? 0 : decode(messageIdEnds[size - 1]);
+    messageIds = builder.messageIds.length == chars ?
+        builder.messageIds : Arrays.copyOf(builder.messageIds, chars);
+    canonicalRegistrationIds = builder.canonicalRegistrationIds.copy();
+    otherErrors = builder.otherErrors.copy();
     List<Long> tmpList = builder.retryMulticastIds;
     if (tmpList == null) {
       tmpList = Collections.emptyList();
     }
     retryMulticastIds = Collections.unmodifiableList(tmpList);
+    retryAfter = builder.retryAfter;
+    tmpList = builder.retryDelays;
+    if (tmpList == null) {
+      tmpList = Collections.emptyList();
+    }
+    retryDelays = Collections.unmodifiableList(tmpList);
   }
 
   /**
@@ -119,11 +320,110 @@ public final class MulticastResult implements Serializable {
 
   /**
    * Gets the results of each individual message, which is immutable.
+   *
+   * <p>
+   * The list is a view whose {@link Result} objects are created each time they
+   * are read.
    */
   public List<Result> getResults() {
+    List<Result> results = this.results;
+    if (results == null) {
+      results = this.results =
+          Collections.unmodifiableList(new ResultList());
+    }
     return results;
   }
 
+  /**
+   * Gets the message id of a result, if any.
+   *
+   * @param index position of the result, as in {@link #getResults()}.
+   *
+   * @throws IndexOutOfBoundsException if there is no such result.
+   */
+  public String getMessageId(int index) {
+    Objects.checkIndex(index, size);
+    int end = messageIdEnds[index];
+    if (end < 0) {
+      return null;
+    }
+    int start = messageIdStart(index);
+    return new String(messageIds, start, end - start);
+  }
+
+  /**
+   * Checks whether a result has a message id, without creating its string.
+   */
+  boolean hasMessageId(int index) {
+    Objects.checkIndex(index, size);
+    return messageIdEnds[index] >= 0;
+  }
+
+  /**
+   * Gets the canonical registration id of a result, if any.
+   *
+   * @param index position of the result, as in {@link #getResults()}.
+   *
+   * @throws IndexOutOfBoundsException if there is no such result.
+   */
+  public String getCanonicalRegistrationId(int index) {
+    Objects.checkIndex(index, size);
+    return canonicalRegistrationIds.get(index);
+  }
+
+  /**
+   * Gets the error code of a result, if any.
+   *
+   * @param index position of the result, as in {@link #getResults()}.
+   *
+   * @throws IndexOutOfBoundsException if there is no such result.
+   */
+  public String getErrorCodeName(int index) {
+    Objects.checkIndex(index, size);
+    byte error = errors[index];
+    if (error == NO_ERROR) {
+      return null;
+    }
+    return error == OTHER_ERROR ?
+        otherErrors.get(index) : ERROR_CODES[error - 1];
+  }
+
+  /**
+   * Gets the position of the results with a given error code, such as
+   * {@link Constants#ERROR_NOT_REGISTERED}, in increasing order.
+   *
+   * @param errorCode error code, or {@literal null} to get the results without
+   *        errors.
+   */
+  public int[] getIndexes(String errorCode) {
+    byte error = encode(errorCode);
+    if (error == OTHER_ERROR) {
+      return otherErrors.indexesOf(errorCode);
+    }
+    int count = 0;
+    for (int i = 0; i < size; i++) {
+      if (errors[i] == error) {
+        count++;
+      }
+    }
+    int[] indexes = new int[count];
+    for (int i = 0, next = 0; next < count; i++) {
+      if (errors[i] == error) {
+        indexes[next++] = i;
+      }
+    }
+    return indexes;
+  }
+
+  /**
+   * Gets the position of the results with a canonical registration id, in
+   * increasing order.
+   */
+  public int[] getCanonicalIdIndexes() {
+    return Arrays.copyOf(canonicalRegistrationIds.indexes,
+        canonicalRegistrationIds.size);
+  }
+
   /**
    * Gets additional ids if more than one multicast message was sent.
    */
@@ -131,6 +431,23 @@ public final class MulticastResult implements Serializable {
     return retryMulticastIds;
   }
 
+  /**
+   * Gets how long, in milliseconds, GCM asked to wait before retrying the
+   * messages that failed with {@link Constants#ERROR_UNAVAILABLE}, as
+   * indicated by the {@code Retry-After} header of the last response, or
+   * {@literal 0} if it did not.
+   */
+  public long getRetryAfter() {
+    return retryAfter;
+  }
+
+  /**
+   * Gets how long, in milliseconds, was waited before each retry.
+   */
+  public List<Long> getRetryDelays() {
+    return retryDelays;
+  }
+
   @Override
   public String toString() {
     StringBuilder builder = new StringBuilder("MulticastResult(")
@@ -139,10 +456,127 @@ public final class MulticastResult implements Serializable {
         .append("success=").append(success).append(",")
         .append("failure=").append(failure).append(",")
         .append("canonical_ids=").append(canonicalIds).append(",");
-    if (!results.isEmpty()) {
-      builder.append("results: " + results);
+    if (size > 0) {
+      builder.append("results: " + getResults());
     }
     return builder.toString();
   }
 
+  private int messageIdStart(int index) {
+    return index == 0 ? 0 : decode(messageIdEnds[index - 1]);
+  }
+
+  /**
+   * Gets the length of the message ids of all results.
+   */
+  int getMessageIdChars() {
+    return messageIds.length;
+  }
+
+  private static byte[] trim(byte[] column, int size) {
+    return column.length == size ? column : Arrays.copyOf(column, size);
+  }
+
+  private static int[] trim(int[] column, int size) {
+    return column.length == size ? column : Arrays.copyOf(column, size);
+  }
+
+  private static int decode(int messageIdEnd) {
+    return messageIdEnd < 0 ? ~messageIdEnd : messageIdEnd;
+  }
+
+  private static byte encode(String errorCode) {
+    if (errorCode == null) {
+      return NO_ERROR;
+    }
+    for (int i = 0; i < ERROR_CODES.length; i++) {
+      if (ERROR_CODES[i].equals(errorCode)) {
+        return (byte) (i + 1);
+      }
+    }
+    return OTHER_ERROR;
+  }
+
+  /**
+   * Read-only view of the results.
+   */
+  private final class ResultList extends AbstractList<Result>
+      implements RandomAccess {
+
+    @Override
+    public Result get(int index) {
+      return new Result.Builder()
+          .messageId(getMessageId(index))
+          .canonicalRegistrationId(getCanonicalRegistrationId(index))
+          .errorCode(getErrorCodeName(index))
+          .build();
+    }
+
+    @Override
+    public int size() {
+      return size;
+    }
+  }
+
+  /**
+   * Strings of a few positions, sorted by position.
+   */
+  private static final class SparseStrings implements Serializable {
+
+    private int[] indexes;
+    private String[] values;
+    private int size;
+
+    SparseStrings() {
+      this(new int[4], new String[4], 0);
+    }
+
+    private SparseStrings(int[] indexes, String[] values, int size) {
+      this.indexes = indexes;
+      this.values = values;
+      this.size = size;
+    }
+
+    /**
+     * Adds the string of a position after the last one added.
+     */
+    void add(int index, String value) {
+      if (size > 0 && indexes[size - 1] == index) {
+        values[size - 1] = value;
+        return;
+      }
+      if (size == indexes.length) {
+        indexes = Arrays.copyOf(indexes, size * 2);
+        values = Arrays.copyOf(values, size * 2);
+      }
+      indexes[size] = index;
+      values[size] = value;
+      size++;
+    }
+
+    String get(int index) {
+      int i = Arrays.binarySearch(indexes, 0, size, index);
+      return i >= 0 ? values[i] : null;
+    }
+
+    int[] indexesOf(String value) {
+      int[] matches = new int[size];
+      int count = 0;
+      for (int i = 0; i < size; i++) {
+        if (values[i].equals(value)) {
+          matches[count++] = indexes[i];
+        }
+      }
+      return Arrays.copyOf(matches, count);
+    }
+
+    SparseStrings copy() {
+      if (size == indexes.length) {
+        return this;
+      }
+      return new SparseStrings(Arrays.copyOf(indexes, size),
+          Arrays.copyOf(values, size), size);
+    }
+  }
+
 }
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Status of the devices of a multicast message across its attempts.
+ *
+ * <p>
+ * Devices are tracked by their position in the input: the devices still
+ * pending are an array of positions, and the latest result of each device is
+ * the attempt and the position in that attempt's result, in two arrays sized
+ * once. Registration ids are neither hashed nor compared, so duplicated ids
+ * keep a result each. This class is not thread-safe.
+ */
+final class MulticastStatus {
+
+  private final List<String> registrationIds;
+  private final List<MulticastResult> attempts =
+      new ArrayList<MulticastResult>();
+  // attempt with the latest result of each device, and its position there
+  private final int[] resultAttempts;
+  private final int[] resultPositions;
+  // positions of the devices to be sent in the next attempt
+  private final int[] pending;
+  private int pendingCount;
+
+  MulticastStatus(List<String> registrationIds) {
+    this.registrationIds = registrationIds;
+    int size = registrationIds.size();
+    resultAttempts = new int[size];
+    resultPositions = new int[size];
+    pending = new int[size];
+    for (int i = 0; i < size; i++) {
+      pending[i] = i;
+    }
+    pendingCount = size;
+  }
+
+  /**
+   * Gets the registration ids of the devices to be sent in the next attempt.
+   */
+  List<String> getPendingRegistrationIds() {
+    if (pendingCount == registrationIds.size()) {
+      return registrationIds;
+    }
+    List<String> pendingIds = new ArrayList<String>(pendingCount);
+    for (int i = 0; i < pendingCount; i++) {
+      pendingIds.add(registrationIds.get(pending[i]));
+    }
+    return pendingIds;
+  }
+
+  /**
+   * Gets the positions in the input of the devices to be sent in the next
+   * attempt, in ascending order.
+   */
+  int[] getPendingPositions() {
+    return Arrays.copyOf(pending, pendingCount);
+  }
+
+  /**
+   * Gets the number of devices to be sent in the next attempt.
+   */
+  int getPendingCount() {
+    return pendingCount;
+  }
+
+  /**
+   * Updates the status of the devices of the last attempt, keeping as pending
+   * those that should be retried.
+   *
+   * @param result result of the last attempt, in the same order as
+   *        {@link #getPendingRegistrationIds()}.
+   * @param policy policy that tells which errors are retried.
+   * @param retryErrors set where the error codes of the devices that should
+   *        be retried are added.
+   */
+  void update(MulticastResult result, RetryPolicy policy,
+      Set<String> retryErrors) {
+    int size = result.getResults().size();
+    if (size != pendingCount) {
+      // should never happen, unless there is a flaw in the algorithm
+      throw new RuntimeException("Internal error: sizes do not match. " +
+          "currentResults: " + result.getResults() + "; unsentRegIds: " +
+          getPendingRegistrationIds());
+    }
+    int attempt = attempts.size();
+    attempts.add(result);
+    int newPendingCount = 0;
+    for (int i = 0; i < size; i++) {
+      int index = pending[i];
+      resultAttempts[index] = attempt;
+      resultPositions[index] = i;
+      String error = result.getErrorCodeName(i);
+      if (error != null && policy.isRetryable(error)) {
+        // in place, since it is never ahead of i
+        pending[newPendingCount++] = index;
+        retryErrors.add(error);
+      }
+    }
+    pendingCount = newPendingCount;
+  }
+
+  /**
+   * Creates a builder with the latest result of each device, in the same
+   * order as the input, and the multicast id of the first attempt.
+   */
+  MulticastResult.Builder toBuilder() {
+    return toBuilder(null);
+  }
+
+  /**
+   * Creates a builder with the latest result of each device, in the same
+   * order as the input, and the multicast id of the first attempt, if any.
+   *
+   * @param pendingError error code of the devices still pending, or
+   *        {@literal null} if they keep their latest result.
+   */
+  MulticastResult.Builder toBuilder(String pendingError) {
+    if (attempts.isEmpty() && pendingError == null) {
+      throw new IllegalStateException("No attempt was made");
+    }
+    int size = registrationIds.size();
+    int pendingSize = pendingError == null ? 0 : pendingCount;
+    int chars = 0;
+    for (MulticastResult result : attempts) {
+      chars += result.getMessageIdChars();
+    }
+    int success = 0, canonicalIds = 0;
+    // pending is ascending, so it is walked along the input
+    for (int i = 0, p = 0; i < size; i++) {
+      if (p < pendingSize && pending[p] == i) {
+        p++;
+        continue;
+      }
+      MulticastResult result = attempts.get(resultAttempts[i]);
+      int position = resultPositions[i];
+      if (result.hasMessageId(position)) {
+        success++;
+        if (result.getCanonicalRegistrationId(position) != null) {
+          canonicalIds++;
+        }
+      }
+    }
+    long multicastId =
+        attempts.isEmpty() ? 0 : attempts.get(0).getMulticastId();
+    MulticastResult.Builder builder = new MulticastResult.Builder(success,
+        size - success, canonicalIds, multicastId)
+        .ensureCapacity(size, chars);
+    for (int i = 0, p = 0; i < size; i++) {
+      if (p < pendingSize && pending[p] == i) {
+        p++;
+        builder.addResult(null, pendingError);
+      } else {
+        builder.addResult(attempts.get(resultAttempts[i]), resultPositions[i]);
+      }
+    }
+    return builder;
+  }
+
+}
@@ -144,7 +144,7 @@ public final class Notification implements Serializable {
      * Sets the body localization values property.
      */
     public Builder bodyLocArgs(List<String> value) {
-      bodyLocArgs = Collections.unmodifiableList(value);
+      bodyLocArgs = Collections.unmodifiableList(new ArrayList<String>(value));
       return this;
     }
 
@@ -160,7 +160,7 @@ public final class Notification implements Serializable {
      * Sets the title localization values property.
      */
     public Builder titleLocArgs(List<String> value) {
-      titleLocArgs = Collections.unmodifiableList(value);
+      titleLocArgs = Collections.unmodifiableList(new ArrayList<String>(value));
       return this;
     }
 
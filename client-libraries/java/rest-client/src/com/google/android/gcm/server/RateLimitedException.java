@@ -0,0 +1,41 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import java.io.IOException;
+
+/**
+ * Exception thrown when a message was not sent because it would exceed the
+ * rate allowed by a {@link RateLimiter}, or because the key it would be sent
+ * with is ejected from a {@link SenderPool}.
+ */
+public final class RateLimitedException extends IOException {
+
+  private final long retryAfter;
+
+  public RateLimitedException(String message, long retryAfter) {
+    super(message + " (retry after " + retryAfter + "ms)");
+    this.retryAfter = retryAfter;
+  }
+
+  /**
+   * Gets how long, in milliseconds, to wait before the message can be sent.
+   */
+  public long getRetryAfter() {
+    return retryAfter;
+  }
+
+}
@@ -0,0 +1,448 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import static com.google.android.gcm.server.Constants.*;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Client-side limit of the rate of messages sent by a {@link Sender}, so they
+ * are not rejected by GCM with {@link Constants#ERROR_QUOTA_EXCEEDED} or
+ * {@link Constants#ERROR_DEVICE_MESSAGE_RATE_EXCEEDED}.
+ *
+ * <p>
+ * Messages are counted per device: a multicast message to 1000 devices takes
+ * 1000 tokens from the global bucket, and one from the bucket of each device.
+ * When the global bucket is empty, the request is delayed up to a maximum
+ * delay, or else shed by throwing a {@link RateLimitedException}, which the
+ * {@link Sender} retries according to its {@link RetryPolicy}. Devices whose
+ * bucket is empty are left out of the request, and get a
+ * {@link Constants#ERROR_DEVICE_MESSAGE_RATE_EXCEEDED} result.
+ *
+ * <p>
+ * When GCM still returns quota errors, the global rate is halved (at most
+ * once per second), and then recovers linearly to the configured one, and the
+ * buckets of the devices that got a per-device error are emptied.
+ *
+ * <p>
+ * This class is thread-safe, and is meant to be shared by the senders that
+ * use the same API key. Example:
+ *
+ * <pre><code>
+ * RateLimiter limiter = new RateLimiter.Builder()
+ *    .globalRate(10000, 5000)
+ *    .deviceRate(1, 20)
+ *    .maxDelay(500, TimeUnit.MILLISECONDS)
+ *    .build();
+ * sender.setRateLimiter(limiter);
+ * </code></pre>
+ */
+public final class RateLimiter {
+
+  private static final Logger logger =
+      Logger.getLogger(RateLimiter.class.getName());
+
+  private static final long DECREASE_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+  private final double globalRate;
+  private final int globalBurst;
+  private final double minRate;
+  private final long maxDelay;
+  private final boolean adaptive;
+  private final long recoveryTime;
+  private final LongSupplier ticker;
+  // theoretical arrival time of the next message (GCRA)
+  private final AtomicLong globalTat;
+  private final AtomicReference<Decrease> decrease =
+      new AtomicReference<Decrease>();
+  private final DeviceRateTable devices;
+
+  public static final class Builder {
+
+    // optional parameters
+    private double globalRate;
+    private int globalBurst;
+    private double deviceRate;
+    private int deviceBurst;
+    private int maxDevices = 65536;
+    private long maxDelay;
+    private boolean adaptive = true;
+    private double minRate;
+    private long recoveryTime = TimeUnit.MINUTES.toNanos(1);
+    private LongSupplier ticker = System::nanoTime;
+
+    /**
+     * Limits the number of messages sent per second to all devices (default
+     * is no limit).
+     *
+     * @param messagesPerSecond sustained rate.
+     * @param burst number of messages that can be sent at once after being
+     *        idle; a larger multicast message is still sent, but delays the
+     *        next ones.
+     */
+    public Builder globalRate(double messagesPerSecond, int burst) {
+      globalRate = positive(messagesPerSecond);
+      globalBurst = positive(burst);
+      return this;
+    }
+
+    /**
+     * Limits the number of messages sent per second to each device (default
+     * is no limit).
+     *
+     * @param messagesPerSecond sustained rate.
+     * @param burst number of messages that can be sent at once after being
+     *        idle.
+     */
+    public Builder deviceRate(double messagesPerSecond, int burst) {
+      deviceRate = positive(messagesPerSecond);
+      deviceBurst = positive(burst);
+      return this;
+    }
+
+    /**
+     * Sets the number of devices whose rate is tracked (default is
+     * {@literal 65536}); when there are more, the least limited ones are
+     * forgotten.
+     */
+    public Builder maxDevices(int value) {
+      maxDevices = positive(value);
+      return this;
+    }
+
+    /**
+     * Sets how long a request can be delayed when the global rate is exceeded
+     * before being shed (default is {@literal 0}, always shed).
+     */
+    public Builder maxDelay(long value, TimeUnit unit) {
+      if (value < 0) {
+        throw new IllegalArgumentException("delay can not be negative");
+      }
+      maxDelay = unit.toNanos(value);
+      return this;
+    }
+
+    /**
+     * Sets whether the global rate is lowered when GCM returns quota errors
+     * (default is {@literal true}).
+     */
+    public Builder adaptive(boolean value) {
+      adaptive = value;
+      return this;
+    }
+
+    /**
+     * Sets the lowest global rate the adaptive limit can reach (default is a
+     * tenth of the configured rate).
+     */
+    public Builder minRate(double messagesPerSecond) {
+      minRate = positive(messagesPerSecond);
+      return this;
+    }
+
+    /**
+     * Sets how long the global rate takes to get back to the configured one
+     * after being lowered (default is {@literal 1} minute).
+     */
+    public Builder recoveryTime(long value, TimeUnit unit) {
+      recoveryTime = positive(unit.toNanos(value));
+      return this;
+    }
+
+    /**
+     * Sets the source of time, in nanoseconds.
+     */
+    Builder ticker(LongSupplier value) {
+      ticker = Sender.nonNull(value);
+      return this;
+    }
+
+    public RateLimiter build() {
+      return new RateLimiter(this);
+    }
+
+    private static double positive(double value) {
+      if (!(value > 0)) {
+        throw new IllegalArgumentException("rate must be positive");
+      }
+      return value;
+    }
+
+    private static int positive(int value) {
+      if (value <= 0) {
+        throw new IllegalArgumentException("value must be positive");
+      }
+      return value;
+    }
+
+    private static long positive(long value) {
+      if (value <= 0) {
+        throw new IllegalArgumentException("time must be positive");
+      }
+      return value;
+    }
+  }
+
+  private RateLimiter(Builder builder) {
+    globalRate = builder.globalRate;
+    globalBurst = builder.globalBurst;
+    minRate = Math.min(globalRate, builder.minRate > 0 ? builder.minRate :
+        globalRate / 10);
+    maxDelay = builder.maxDelay;
+    adaptive = builder.adaptive;
+    recoveryTime = builder.recoveryTime;
+    ticker = builder.ticker;
+    globalTat = new AtomicLong(ticker.getAsLong());
+    devices = builder.deviceRate == 0 ? null : new DeviceRateTable(
+        builder.maxDevices, interval(builder.deviceRate), builder.deviceBurst);
+  }
+
+  /**
+   * Gets the current limit of messages per second to all devices, which is
+   * lower than the configured one after quota errors, or {@literal 0} if there
+   * is no limit.
+   */
+  public double getRate() {
+    return getRate(decrease.get(), ticker.getAsLong());
+  }
+
+  private double getRate(Decrease current, long now) {
+    if (current == null) {
+      return globalRate;
+    }
+    long elapsed = now - current.time;
+    if (elapsed >= recoveryTime) {
+      return globalRate;
+    }
+    return current.rate +
+        (globalRate - current.rate) * elapsed / recoveryTime;
+  }
+
+  /**
+   * Takes the tokens needed to send a message.
+   *
+   * @param registrationIds devices the message is sent to.
+   *
+   * @return which devices can be sent to, and how long to wait before.
+   *
+   * @throws RateLimitedException if no device can be sent to, or the global
+   *         rate is exceeded for longer than the maximum delay.
+   */
+  Admission acquire(List<String> registrationIds)
+      throws RateLimitedException {
+    long now = ticker.getAsLong();
+    int size = registrationIds.size();
+    BitSet shed = new BitSet();
+    if (devices != null) {
+      long wait = devices.acquire(registrationIds, now, shed);
+      if (shed.cardinality() == size) {
+        throw new RateLimitedException("Device rate exceeded", millis(wait));
+      }
+    }
+    long delay = 0;
+    if (globalRate > 0) {
+      delay = acquireGlobal(size - shed.cardinality(), now);
+      if (delay > maxDelay) {
+        if (devices != null) {
+          devices.release(registrationIds, now, shed);
+        }
+        throw new RateLimitedException("Global rate exceeded", millis(delay));
+      }
+    }
+    return new Admission(registrationIds, shed, millis(delay));
+  }
+
+  // GCRA allowing to go over the burst, so the debt is paid by the next ones
+  private long acquireGlobal(int permits, long now) {
+    long interval = interval(getRate(decrease.get(), now));
+    long tolerance = (globalBurst - 1) * interval;
+    while (true) {
+      long tat = globalTat.get();
+      long wait = tat - tolerance - now;
+      if (wait > maxDelay) {
+        return wait;
+      }
+      long next = Math.max(tat, now) + permits * interval;
+      if (globalTat.compareAndSet(tat, next)) {
+        return Math.max(0, wait);
+      }
+    }
+  }
+
+  /**
+   * Updates the rates with the errors returned by GCM.
+   *
+   * @param registrationIds devices the message was sent to.
+   * @param result result of the request.
+   */
+  void onResult(List<String> registrationIds, MulticastResult result) {
+    long now = ticker.getAsLong();
+    int size = Math.min(result.getResults().size(), registrationIds.size());
+    boolean quotaExceeded = false;
+    for (int i = 0; i < size; i++) {
+      String error = result.getErrorCodeName(i);
+      if (error == null) {
+        continue;
+      }
+      if (error.equals(ERROR_QUOTA_EXCEEDED)) {
+        quotaExceeded = true;
+      } else if (devices != null &&
+          (error.equals(ERROR_DEVICE_QUOTA_EXCEEDED) ||
+          error.equals(ERROR_DEVICE_MESSAGE_RATE_EXCEEDED))) {
+        devices.drain(registrationIds.get(i), now);
+      }
+    }
+    if (quotaExceeded) {
+      onQuotaExceeded(now);
+    }
+  }
+
+  /**
+   * Lowers the global rate after GCM rejected a request for exceeding the
+   * quota of the sender.
+   */
+  void onQuotaExceeded() {
+    onQuotaExceeded(ticker.getAsLong());
+  }
+
+  private void onQuotaExceeded(long now) {
+    if (!adaptive || globalRate == 0) {
+      return;
+    }
+    while (true) {
+      Decrease current = decrease.get();
+      if (current != null && now - current.time < DECREASE_INTERVAL) {
+        return;
+      }
+      double rate = Math.max(minRate, getRate(current, now) / 2);
+      if (decrease.compareAndSet(current, new Decrease(rate, now))) {
+        if (logger.isLoggable(Level.FINE)) {
+          logger.fine("Quota exceeded, lowering rate to " + rate + "/s");
+        }
+        return;
+      }
+    }
+  }
+
+  private static long interval(double rate) {
+    return Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / rate));
+  }
+
+  private static long millis(long nanos) {
+    return (nanos + 999999) / 1000000;
+  }
+
+  @Override
+  public String toString() {
+    return "RateLimiter(rate=" + getRate() + ", burst=" + globalBurst +
+        ", devices=" + (devices != null) + ")";
+  }
+
+  /**
+   * Global rate after it was lowered.
+   */
+  private static final class Decrease {
+
+    final double rate;
+    final long time;
+
+    Decrease(double rate, long time) {
+      this.rate = rate;
+      this.time = time;
+    }
+  }
+
+  /**
+   * Devices a message can be sent to right now.
+   */
+  static final class Admission {
+
+    private final List<String> registrationIds;
+    private final BitSet shed;
+    private final long delay;
+
+    Admission(List<String> registrationIds, BitSet shed, long delay) {
+      this.registrationIds = registrationIds;
+      this.shed = shed;
+      this.delay = delay;
+    }
+
+    /**
+     * Gets how long to wait before sending, in milliseconds.
+     */
+    long getDelay() {
+      return delay;
+    }
+
+    /**
+     * Checks whether it was acquired to send to the given devices.
+     */
+    boolean isFor(List<String> registrationIds) {
+      return this.registrationIds.equals(registrationIds);
+    }
+
+    /**
+     * Gets the devices the message can be sent to.
+     */
+    List<String> getRegistrationIds() {
+      if (shed.isEmpty()) {
+        return registrationIds;
+      }
+      List<String> admitted = new ArrayList<String>(
+          registrationIds.size() - shed.cardinality());
+      for (int i = shed.nextClearBit(0); i < registrationIds.size();
+          i = shed.nextClearBit(i + 1)) {
+        admitted.add(registrationIds.get(i));
+      }
+      return admitted;
+    }
+
+    /**
+     * Adds the results of the shed devices to the result of the request.
+     */
+    MulticastResult merge(MulticastResult result) {
+      if (shed.isEmpty()) {
+        return result;
+      }
+      int shedCount = shed.cardinality();
+      MulticastResult.Builder builder = new MulticastResult.Builder(
+          result.getSuccess(), result.getFailure() + shedCount,
+          result.getCanonicalIds(), result.getMulticastId())
+          .retryAfter(result.getRetryAfter());
+      Result rateExceeded = new Result.Builder()
+          .errorCode(ERROR_DEVICE_MESSAGE_RATE_EXCEEDED).build();
+      int next = 0;
+      for (int i = 0; i < registrationIds.size(); i++) {
+        if (shed.get(i)) {
+          builder.addResult(rateExceeded);
+        } else {
+          builder.addResult(result, next++);
+        }
+      }
+      return builder.build();
+    }
+  }
+
+}
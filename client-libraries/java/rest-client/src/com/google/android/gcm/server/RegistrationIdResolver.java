@@ -0,0 +1,555 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import static com.google.android.gcm.server.Constants.*;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Cache of the registration ids that GCM replaced by a canonical id, or
+ * reported as {@link Constants#ERROR_NOT_REGISTERED not registered} or
+ * {@link Constants#ERROR_INVALID_REGISTRATION invalid}.
+ *
+ * <p>
+ * When set on a {@link Sender}, it is filled from the results of each
+ * request, and consulted before the next ones: messages are sent to the
+ * canonical id instead of the replaced one, whose result then has the
+ * canonical id as {@link Result#getCanonicalRegistrationId()}, and messages to
+ * dead ids are not sent at all, but get the error code GCM returned for them.
+ *
+ * <p>
+ * The cache keeps up to a maximum number of ids, forgetting the oldest ones
+ * first. Changes can be written in the background to a
+ * {@link RegistrationIdStore}, such as a file, and are read back when the
+ * resolver is created; the store is compacted then, and whenever it would
+ * hold more than twice the maximum number of ids. Changes are only kept in
+ * memory unless a store is set, since there is no location a library could
+ * safely write to by default. This class is thread-safe. Example:
+ *
+ * <pre><code>
+ * RegistrationIdResolver resolver = new RegistrationIdResolver.Builder()
+ *    .file(new File("registration-ids.txt"))
+ *    .build();
+ * sender.setRegistrationIdResolver(resolver);
+ * ...
+ * resolver.close();
+ * </code></pre>
+ */
+public final class RegistrationIdResolver implements Closeable {
+
+  private static final Logger logger =
+      Logger.getLogger(RegistrationIdResolver.class.getName());
+
+  // canonical ids can be replaced too, but not forever
+  private static final int MAX_HOPS = 8;
+
+  private final int maxSize;
+  private final ConcurrentHashMap<String, Mapping> mappings =
+      new ConcurrentHashMap<String, Mapping>();
+  // registration ids in the order they were added, to evict the oldest
+  private final ConcurrentLinkedQueue<String> order =
+      new ConcurrentLinkedQueue<String>();
+  // changes not stored yet
+  private final ConcurrentHashMap<String, Mapping> pending =
+      new ConcurrentHashMap<String, Mapping>();
+  private final RegistrationIdStore store;
+  private final ScheduledExecutorService executor;
+  private final boolean ownsExecutor;
+  private final ScheduledFuture<?> flushTask;
+  // changes written to the store since it was compacted, guarded by this
+  private long appended;
+
+  public static final class Builder {
+
+    // optional parameters
+    private int maxSize = 100000;
+    private RegistrationIdStore store;
+    private long flushInterval = TimeUnit.SECONDS.toMillis(5);
+    private ScheduledExecutorService executor;
+
+    /**
+     * Sets the maximum number of registration ids kept (default is
+     * {@literal 100000}).
+     */
+    public Builder maxSize(int value) {
+      if (value <= 0) {
+        throw new IllegalArgumentException("size must be positive");
+      }
+      maxSize = value;
+      return this;
+    }
+
+    /**
+     * Stores the changes in a {@link FileRegistrationIdStore}.
+     */
+    public Builder file(File value) {
+      store = new FileRegistrationIdStore(value);
+      return this;
+    }
+
+    /**
+     * Sets where changes are stored (default is keeping them only in
+     * memory).
+     */
+    public Builder store(RegistrationIdStore value) {
+      store = Sender.nonNull(value);
+      return this;
+    }
+
+    /**
+     * Sets how often changes are written to the store (default is every
+     * {@literal 5} seconds).
+     */
+    public Builder flushInterval(long value, TimeUnit unit) {
+      if (value <= 0) {
+        throw new IllegalArgumentException("interval must be positive");
+      }
+      flushInterval = unit.toMillis(value);
+      return this;
+    }
+
+    /**
+     * Sets the executor that writes changes to the store (default is a
+     * daemon thread owned by the resolver).
+     */
+    public Builder executor(ScheduledExecutorService value) {
+      executor = Sender.nonNull(value);
+      return this;
+    }
+
+    /**
+     * Creates the resolver, with the changes read from the store; if they
+     * can not be read, the resolver starts empty.
+     */
+    public RegistrationIdResolver build() {
+      return new RegistrationIdResolver(this);
+    }
+  }
+
+  private RegistrationIdResolver(Builder builder) {
+    maxSize = builder.maxSize;
+    store = builder.store;
+    if (store == null) {
+      executor = null;
+      ownsExecutor = false;
+      flushTask = null;
+      return;
+    }
+    load();
+    ownsExecutor = builder.executor == null;
+    executor = ownsExecutor ? Executors.newSingleThreadScheduledExecutor(
+        Sender.newDaemonThreadFactory("gcm-resolver-")) : builder.executor;
+    flushTask = executor.scheduleWithFixedDelay(this::flushQuietly,
+        builder.flushInterval, builder.flushInterval, TimeUnit.MILLISECONDS);
+  }
+
+  private void load() {
+    Map<String, String> canonicalIds = newBoundedMap(maxSize);
+    Map<String, String> tombstones = newBoundedMap(maxSize);
+    boolean loaded = false;
+    try {
+      store.load(canonicalIds, tombstones);
+      loaded = true;
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Could not load registration ids from " +
+          store, e);
+    }
+    for (Map.Entry<String, String> entry : canonicalIds.entrySet()) {
+      put(entry.getKey(), new Mapping(entry.getValue(), null));
+    }
+    for (Map.Entry<String, String> entry : tombstones.entrySet()) {
+      put(entry.getKey(), new Mapping(null, entry.getValue()));
+    }
+    // the changes that could not be read are not overwritten
+    if (loaded) {
+      try {
+        compact();
+      } catch (IOException e) {
+        logger.log(Level.WARNING, "Could not compact registration ids in " +
+            store, e);
+      }
+    }
+  }
+
+  /**
+   * Creates a map that keeps only the entries put last.
+   */
+  private static Map<String, String> newBoundedMap(final int maxSize) {
+    return new LinkedHashMap<String, String>() {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+        return size() > maxSize;
+      }
+    };
+  }
+
+  /**
+   * Gets the registration id that should be used instead of a given one.
+   *
+   * @return the canonical id if the registration id was replaced, the same
+   *         registration id if it was not, or {@literal null} if it is not
+   *         registered anymore.
+   */
+  public String resolve(String registrationId) {
+    String current = registrationId;
+    for (int i = 0; i < MAX_HOPS; i++) {
+      Mapping mapping = mappings.get(current);
+      if (mapping == null) {
+        return current;
+      }
+      if (mapping.errorCode != null) {
+        return null;
+      }
+      current = mapping.canonicalId;
+    }
+    return current;
+  }
+
+  /**
+   * Gets the error code that made a registration id, or the ids that
+   * replaced it, not to be used anymore, or {@literal null} if it is usable.
+   */
+  public String getErrorCode(String registrationId) {
+    String current = registrationId;
+    for (int i = 0; i < MAX_HOPS; i++) {
+      Mapping mapping = mappings.get(current);
+      if (mapping == null) {
+        return null;
+      }
+      if (mapping.errorCode != null) {
+        return mapping.errorCode;
+      }
+      current = mapping.canonicalId;
+    }
+    return null;
+  }
+
+  /**
+   * Records that a registration id was replaced by a canonical id.
+   */
+  public void addCanonicalId(String registrationId, String canonicalId) {
+    if (!Sender.nonNull(registrationId).equals(Sender.nonNull(canonicalId))) {
+      update(registrationId, new Mapping(canonicalId, null));
+    }
+  }
+
+  /**
+   * Records that a registration id should not be used anymore.
+   *
+   * @param errorCode error returned by GCM, such as
+   *        {@link Constants#ERROR_NOT_REGISTERED}.
+   */
+  public void addTombstone(String registrationId, String errorCode) {
+    update(Sender.nonNull(registrationId),
+        new Mapping(null, Sender.nonNull(errorCode)));
+  }
+
+  /**
+   * Records the canonical ids and the dead registration ids found in the
+   * result of a request.
+   *
+   * @param registrationIds devices the message was sent to.
+   * @param result result of the request, in the same order.
+   */
+  public void update(List<String> registrationIds, MulticastResult result) {
+    int size = Math.min(result.getResults().size(), registrationIds.size());
+    for (int i = 0; i < size; i++) {
+      String registrationId = registrationIds.get(i);
+      if (registrationId == null) {
+        continue;
+      }
+      String canonicalId = result.getCanonicalRegistrationId(i);
+      String errorCode = result.getErrorCodeName(i);
+      if (canonicalId != null) {
+        addCanonicalId(registrationId, canonicalId);
+      } else if (ERROR_NOT_REGISTERED.equals(errorCode) ||
+          ERROR_INVALID_REGISTRATION.equals(errorCode)) {
+        addTombstone(registrationId, errorCode);
+      }
+    }
+  }
+
+  private void update(String registrationId, Mapping mapping) {
+    put(registrationId, mapping);
+    if (store != null) {
+      pending.put(registrationId, mapping);
+    }
+  }
+
+  private void put(String registrationId, Mapping mapping) {
+    if (mappings.put(registrationId, mapping) == null) {
+      order.add(registrationId);
+      while (mappings.size() > maxSize) {
+        String oldest = order.poll();
+        if (oldest == null) {
+          break;
+        }
+        mappings.remove(oldest);
+      }
+    }
+  }
+
+  /**
+   * Gets the number of registration ids kept.
+   */
+  public int size() {
+    return mappings.size();
+  }
+
+  /**
+   * Writes the pending changes to the store.
+   */
+  public synchronized void flush() throws IOException {
+    if (store == null || pending.isEmpty()) {
+      return;
+    }
+    Map<String, Mapping> batch = new HashMap<String, Mapping>();
+    Map<String, String> canonicalIds = new HashMap<String, String>();
+    Map<String, String> tombstones = new HashMap<String, String>();
+    for (Map.Entry<String, Mapping> entry : pending.entrySet()) {
+      Mapping mapping = entry.getValue();
+      batch.put(entry.getKey(), mapping);
+      if (mapping.errorCode != null) {
+        tombstones.put(entry.getKey(), mapping.errorCode);
+      } else {
+        canonicalIds.put(entry.getKey(), mapping.canonicalId);
+      }
+    }
+    if (appended + batch.size() > 2L * maxSize) {
+      // the batch is already in the mappings
+      compact();
+    } else {
+      store.append(canonicalIds, tombstones);
+      appended += batch.size();
+    }
+    // changes made while writing are kept for the next flush
+    for (Map.Entry<String, Mapping> entry : batch.entrySet()) {
+      pending.remove(entry.getKey(), entry.getValue());
+    }
+  }
+
+  /**
+   * Replaces the changes in the store by the registration ids kept, oldest
+   * first.
+   */
+  private synchronized void compact() throws IOException {
+    Map<String, String> canonicalIds = new LinkedHashMap<String, String>();
+    Map<String, String> tombstones = new LinkedHashMap<String, String>();
+    for (String registrationId : order) {
+      Mapping mapping = mappings.get(registrationId);
+      if (mapping == null) {
+        continue;
+      }
+      if (mapping.errorCode != null) {
+        tombstones.put(registrationId, mapping.errorCode);
+      } else {
+        canonicalIds.put(registrationId, mapping.canonicalId);
+      }
+    }
+    store.replace(canonicalIds, tombstones);
+    appended = canonicalIds.size() + tombstones.size();
+  }
+
+  private void flushQuietly() {
+    try {
+      flush();
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Could not store registration ids in " +
+          store, e);
+    } catch (RuntimeException e) {
+      logger.log(Level.WARNING, "Could not store registration ids in " +
+          store, e);
+    }
+  }
+
+  /**
+   * Stops writing changes in the background, and writes the pending ones.
+   */
+  public void close() throws IOException {
+    if (flushTask != null) {
+      flushTask.cancel(false);
+      if (ownsExecutor) {
+        executor.shutdown();
+      }
+    }
+    flush();
+  }
+
+  /**
+   * Replaces the registration ids of a request by the ones to use.
+   */
+  Resolution resolveAll(List<String> registrationIds) {
+    return new Resolution(this, registrationIds);
+  }
+
+  @Override
+  public String toString() {
+    return "RegistrationIdResolver(size=" + mappings.size() + ", pending=" +
+        pending.size() + ", store=" + store + ")";
+  }
+
+  /**
+   * Canonical id or error code of a registration id.
+   */
+  private static final class Mapping {
+
+    final String canonicalId;
+    final String errorCode;
+
+    Mapping(String canonicalId, String errorCode) {
+      this.canonicalId = canonicalId;
+      this.errorCode = errorCode;
+    }
+  }
+
+  /**
+   * Registration ids of a request, after being resolved.
+   */
+  static final class Resolution {
+
+    // null if no registration id changed
+    private final String[] resolved;
+    private final String[] errorCodes;
+    private final List<String> sent;
+    // index in sent of each registration id, or -1 if it is dead; null if no
+    // registration id changed
+    private final int[] positions;
+
+    Resolution(RegistrationIdResolver resolver, List<String> registrationIds) {
+      String[] resolved = null;
+      String[] errorCodes = null;
+      int size = registrationIds.size();
+      for (int i = 0; i < size; i++) {
+        String registrationId = registrationIds.get(i);
+        if (registrationId == null) {
+          continue;
+        }
+        String current = resolver.resolve(registrationId);
+        if (current != registrationId) {
+          if (resolved == null) {
+            resolved = new String[size];
+            errorCodes = new String[size];
+          }
+          resolved[i] = current;
+          if (current == null) {
+            errorCodes[i] = resolver.getErrorCode(registrationId);
+          }
+        }
+      }
+      this.resolved = resolved;
+      this.errorCodes = errorCodes;
+      if (resolved == null) {
+        sent = registrationIds;
+        positions = null;
+      } else {
+        // registration ids that now have the same canonical id are sent once
+        sent = new ArrayList<String>(size);
+        positions = new int[size];
+        Map<String, Integer> indexes = new HashMap<String, Integer>();
+        for (int i = 0; i < size; i++) {
+          if (errorCodes[i] != null) {
+            positions[i] = -1;
+            continue;
+          }
+          String current = resolved[i] != null ? resolved[i] :
+              registrationIds.get(i);
+          Integer index = indexes.putIfAbsent(current, sent.size());
+          if (index == null) {
+            positions[i] = sent.size();
+            sent.add(current);
+          } else {
+            positions[i] = index;
+          }
+        }
+      }
+    }
+
+    /**
+     * Gets the registration ids the message should be sent to.
+     */
+    List<String> getRegistrationIds() {
+      return sent;
+    }
+
+    /**
+     * Maps the result of the request back to the original registration ids.
+     *
+     * @param result result of the request, or {@literal null} if no request
+     *        was made since all registration ids are dead.
+     */
+    MulticastResult merge(MulticastResult result) {
+      if (resolved == null) {
+        return result;
+      }
+      int success = 0;
+      int canonicalIds = 0;
+      for (int i = 0; i < positions.length; i++) {
+        int position = positions[i];
+        if (position >= 0 && result.hasMessageId(position)) {
+          success++;
+          if (getCanonicalId(result, i) != null) {
+            canonicalIds++;
+          }
+        }
+      }
+      MulticastResult.Builder builder = new MulticastResult.Builder(success,
+          positions.length - success, canonicalIds,
+          result != null ? result.getMulticastId() : 0);
+      if (result != null) {
+        builder.retryAfter(result.getRetryAfter());
+      }
+      for (int i = 0; i < positions.length; i++) {
+        if (positions[i] < 0) {
+          builder.addResult(null, errorCodes[i]);
+        } else {
+          builder.addResult(result, positions[i], getCanonicalId(result, i));
+        }
+      }
+      return builder.build();
+    }
+
+    /**
+     * Gets the canonical id of a registration id that was sent: the one
+     * returned by GCM, if any, or else the one it was resolved to, if the
+     * message was sent.
+     */
+    private String getCanonicalId(MulticastResult result, int i) {
+      String canonicalId = result.getCanonicalRegistrationId(positions[i]);
+      if (canonicalId == null && resolved[i] != null &&
+          result.hasMessageId(positions[i])) {
+        return resolved[i];
+      }
+      return canonicalId;
+    }
+  }
+
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import java.util.List;
+
+/**
+ * Set of registration ids that numbers them in the order they are added,
+ * used to send a message only once to each device.
+ *
+ * <p>
+ * It is an open-addressing hash table with linear probing, storing the ids and
+ * their numbers in two parallel arrays, so it takes two array slots per id
+ * instead of the node objects of a {@link java.util.HashMap}, and relies on the
+ * hash code cached by each {@link String}. A {@literal null} id is a valid
+ * member. This class is not thread-safe.
+ */
+final class RegistrationIdSet {
+
+  private String[] keys;
+  private int[] indexes;
+  private int mask;
+  private int size;
+  private int nullIndex = -1;
+
+  RegistrationIdSet(int expectedSize) {
+    // at most half full
+    int capacity = Integer.highestOneBit(Math.max(2, expectedSize) * 2 - 1)
+        << 1;
+    keys = new String[capacity];
+    indexes = new int[capacity];
+    mask = capacity - 1;
+  }
+
+  /**
+   * Adds a registration id if not present yet.
+   *
+   * @return the number of the registration id, which is {@link #size()} before
+   *         the call if it was not present.
+   */
+  int add(String registrationId) {
+    if (registrationId == null) {
+      if (nullIndex < 0) {
+        nullIndex = size++;
+      }
+      return nullIndex;
+    }
+    int slot = slot(registrationId);
+    while (true) {
+      String key = keys[slot];
+      if (key == null) {
+        break;
+      }
+      if (key.equals(registrationId)) {
+        return indexes[slot];
+      }
+      slot = (slot + 1) & mask;
+    }
+    keys[slot] = registrationId;
+    indexes[slot] = size;
+    if (++size * 2 > keys.length) {
+      resize();
+    }
+    return size - 1;
+  }
+
+  /**
+   * Gets the number of registration ids in the set.
+   */
+  int size() {
+    return size;
+  }
+
+  private int slot(String registrationId) {
+    // spreads the hash code, which is weak in the lower bits for similar ids
+    int hash = registrationId.hashCode() * 0x9e3779b9;
+    return (hash ^ (hash >>> 16)) & mask;
+  }
+
+  private void resize() {
+    String[] oldKeys = keys;
+    int[] oldIndexes = indexes;
+    keys = new String[oldKeys.length * 2];
+    indexes = new int[oldKeys.length * 2];
+    mask = keys.length - 1;
+    for (int i = 0; i < oldKeys.length; i++) {
+      String key = oldKeys[i];
+      if (key != null) {
+        int slot = slot(key);
+        while (keys[slot] != null) {
+          slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        indexes[slot] = oldIndexes[i];
+      }
+    }
+  }
+
+  /**
+   * Removes the duplicates of a list of registration ids.
+   *
+   * @param registrationIds registration ids, possibly duplicated.
+   * @param unique list where each registration id is added once, in the order
+   *        they first appear.
+   *
+   * @return the position in {@code unique} of each registration id, or
+   *         {@literal null} if there were no duplicates.
+   */
+  static int[] deduplicate(List<String> registrationIds, List<String> unique) {
+    RegistrationIdSet set = new RegistrationIdSet(registrationIds.size());
+    int[] positions = new int[registrationIds.size()];
+    for (int i = 0; i < positions.length; i++) {
+      String registrationId = registrationIds.get(i);
+      positions[i] = set.add(registrationId);
+      if (positions[i] == unique.size()) {
+        unique.add(registrationId);
+      }
+    }
+    return unique.size() == positions.length ? null : positions;
+  }
+
+  @Override
+  public String toString() {
+    return "RegistrationIdSet(size=" + size + ", capacity=" + keys.length + ")";
+  }
+
+}
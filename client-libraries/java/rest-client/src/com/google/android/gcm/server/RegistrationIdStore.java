@@ -0,0 +1,66 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Storage of the changes of registration ids learned by a
+ * {@link RegistrationIdResolver}, so they survive restarts.
+ *
+ * <p>
+ * Changes are written in batches, from a background thread, and read once
+ * when the resolver is created. See {@link FileRegistrationIdStore} for an
+ * implementation backed by a file.
+ */
+public interface RegistrationIdStore {
+
+  /**
+   * Reads all changes stored, in the order they were made, so the maps can
+   * keep only the most recent ones.
+   *
+   * @param canonicalIds map where the canonical id of each registration id
+   *        that was replaced is put.
+   * @param tombstones map where the error code of each registration id that
+   *        should not be used anymore is put.
+   */
+  void load(Map<String, String> canonicalIds, Map<String, String> tombstones)
+      throws IOException;
+
+  /**
+   * Stores a batch of changes, which override the previous changes of the
+   * same registration ids.
+   *
+   * @param canonicalIds canonical ids by replaced registration id.
+   * @param tombstones error codes by registration id that should not be used
+   *        anymore.
+   */
+  void append(Map<String, String> canonicalIds, Map<String, String> tombstones)
+      throws IOException;
+
+  /**
+   * Replaces all changes stored by the given ones, which the resolver does
+   * from time to time so the changes it overrode or forgot are dropped.
+   *
+   * @param canonicalIds canonical ids by replaced registration id.
+   * @param tombstones error codes by registration id that should not be used
+   *        anymore.
+   */
+  void replace(Map<String, String> canonicalIds,
+      Map<String, String> tombstones) throws IOException;
+
+}
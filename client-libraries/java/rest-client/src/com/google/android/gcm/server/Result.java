@@ -16,6 +16,7 @@
 package com.google.android.gcm.server;
 
 import java.io.Serializable;
+import java.util.Objects;
 
 /**
  * Result of a GCM message request that returned HTTP status code 200.
@@ -103,6 +104,26 @@ public final class Result implements Serializable {
     return errorCode;
   }
 
+  @Override
+  public boolean equals(Object obj) {
+    if (this == obj) {
+      return true;
+    }
+    if (!(obj instanceof Result)) {
+      return false;
+    }
+    Result other = (Result) obj;
+    return Objects.equals(messageId, other.messageId) &&
+        Objects.equals(canonicalRegistrationId,
+            other.canonicalRegistrationId) &&
+        Objects.equals(errorCode, other.errorCode);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(messageId, canonicalRegistrationId, errorCode);
+  }
+
   @Override
   public String toString() {
     StringBuilder builder = new StringBuilder("[");
@@ -0,0 +1,238 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Policy that decides which failed messages are retried by a {@link Sender},
+ * and how long to wait before each retry.
+ *
+ * <p>
+ * A retry is made either because the whole request failed (for instance, it
+ * could not be posted or GCM returned a 5xx status), or because some devices
+ * got a retryable error code, such as {@link Constants#ERROR_UNAVAILABLE}. The
+ * number of retries is given on each send, and the delays are never shorter
+ * than what GCM asks for using the {@code Retry-After} header.
+ *
+ * <p>
+ * Implementations must be thread-safe. The default policy, and custom ones,
+ * can be created using a {@link Builder}. Example:
+ *
+ * <pre><code>
+ * RetryPolicy policy = new RetryPolicy.Builder()
+ *    .backoff(Backoff.decorrelatedJitter(1, 60, TimeUnit.SECONDS))
+ *    .retry(Constants.ERROR_DEVICE_MESSAGE_RATE_EXCEEDED,
+ *        Backoff.exponential(1, 30, TimeUnit.MINUTES))
+ *    .retryBudget(1, TimeUnit.HOURS)
+ *    .attemptTimeout(20, TimeUnit.SECONDS)
+ *    .build();
+ * sender.setRetryPolicy(policy);
+ * </code></pre>
+ */
+public interface RetryPolicy {
+
+  /**
+   * Policy used when none is set: devices that got
+   * {@link Constants#ERROR_UNAVAILABLE} or
+   * {@link Constants#ERROR_INTERNAL_SERVER_ERROR} are retried with an
+   * exponential back-off, without limiting the total time spent.
+   */
+  RetryPolicy DEFAULT = new Builder().build();
+
+  /**
+   * Checks whether devices that got a given error code should be retried.
+   */
+  boolean isRetryable(String errorCode);
+
+  /**
+   * Gets how long to wait before a retry.
+   *
+   * @param errorCode error code of the devices being retried, or
+   *        {@literal null} if the whole request failed.
+   * @param retry number of the retry, starting at {@literal 1}.
+   * @param previousDelay delay before the previous retry, in milliseconds, or
+   *        {@literal 0} for the first retry.
+   *
+   * @return delay in milliseconds.
+   */
+  long getDelay(String errorCode, int retry, long previousDelay);
+
+  /**
+   * Gets the maximum time, in milliseconds, to wait between the attempts of a
+   * message, all retries included; a retry that would exceed it is not made.
+   */
+  long getRetryBudget();
+
+  /**
+   * Gets the maximum duration, in milliseconds, of each attempt, or
+   * {@literal 0} if attempts are only bounded by the timeouts of the
+   * {@link Sender}.
+   */
+  long getAttemptTimeout();
+
+  /**
+   * Strategy that computes the delays of successive retries.
+   */
+  interface Backoff {
+
+    /**
+     * Gets how long to wait before a retry.
+     *
+     * @param retry number of the retry, starting at {@literal 1}.
+     * @param previousDelay delay before the previous retry, in milliseconds,
+     *        or {@literal 0} for the first retry.
+     *
+     * @return delay in milliseconds.
+     */
+    long getDelay(int retry, long previousDelay);
+
+    /**
+     * Gets a back-off that doubles on each retry, starting from an initial
+     * delay, until it reaches half of a maximum delay; each delay is picked
+     * at random between half and one and a half times the back-off.
+     */
+    static Backoff exponential(long initialDelay, long maxDelay,
+        TimeUnit unit) {
+      long initial = positive(unit.toMillis(initialDelay));
+      long max = positive(unit.toMillis(maxDelay));
+      return (retry, previousDelay) -> {
+        long backoff = initial;
+        for (int i = 1; i < retry && 2 * backoff < max; i++) {
+          backoff *= 2;
+        }
+        return backoff / 2 + ThreadLocalRandom.current().nextLong(backoff);
+      };
+    }
+
+    /**
+     * Gets a back-off whose delays are picked at random between a base delay
+     * and three times the previous delay, up to a maximum delay, which spreads
+     * the retries of concurrent senders better than an exponential back-off.
+     */
+    static Backoff decorrelatedJitter(long baseDelay, long maxDelay,
+        TimeUnit unit) {
+      long base = positive(unit.toMillis(baseDelay));
+      long max = positive(unit.toMillis(maxDelay));
+      return (retry, previousDelay) -> {
+        long bound = Math.max(base, Math.min(max, 3 * previousDelay));
+        return ThreadLocalRandom.current().nextLong(base, bound + 1);
+      };
+    }
+
+    /**
+     * Gets a back-off that always waits the same delay.
+     */
+    static Backoff fixed(long delay, TimeUnit unit) {
+      long millis = unit.toMillis(delay);
+      if (millis < 0) {
+        throw new IllegalArgumentException("delay can not be negative");
+      }
+      return (retry, previousDelay) -> millis;
+    }
+
+    private static long positive(long millis) {
+      if (millis <= 0) {
+        throw new IllegalArgumentException("delay must be positive");
+      }
+      return millis;
+    }
+  }
+
+  final class Builder {
+
+    private final Map<String, Backoff> retryable =
+        new LinkedHashMap<String, Backoff>();
+
+    // optional parameters
+    private Backoff backoff = Backoff.exponential(Sender.BACKOFF_INITIAL_DELAY,
+        Sender.MAX_BACKOFF_DELAY, TimeUnit.MILLISECONDS);
+    private long retryBudget = Long.MAX_VALUE;
+    private long attemptTimeout;
+
+    public Builder() {
+      retryable.put(Constants.ERROR_UNAVAILABLE, null);
+      retryable.put(Constants.ERROR_INTERNAL_SERVER_ERROR, null);
+    }
+
+    /**
+     * Sets the back-off used when the whole request failed, and for the
+     * retryable error codes that do not have their own (default is an
+     * exponential back-off starting at {@literal 1} second).
+     */
+    public Builder backoff(Backoff value) {
+      backoff = Sender.nonNull(value);
+      return this;
+    }
+
+    /**
+     * Retries devices that got a given error code, with the default back-off.
+     */
+    public Builder retry(String errorCode) {
+      retryable.put(Sender.nonNull(errorCode), null);
+      return this;
+    }
+
+    /**
+     * Retries devices that got a given error code, with its own back-off.
+     */
+    public Builder retry(String errorCode, Backoff value) {
+      retryable.put(Sender.nonNull(errorCode), Sender.nonNull(value));
+      return this;
+    }
+
+    /**
+     * Does not retry devices that got a given error code.
+     */
+    public Builder noRetry(String errorCode) {
+      retryable.remove(errorCode);
+      return this;
+    }
+
+    /**
+     * Sets the maximum time to wait between the attempts of a message (default
+     * is no limit).
+     */
+    public Builder retryBudget(long value, TimeUnit unit) {
+      if (value < 0) {
+        throw new IllegalArgumentException("budget can not be negative");
+      }
+      retryBudget = unit.toMillis(value);
+      return this;
+    }
+
+    /**
+     * Sets the maximum duration of each attempt (default is no limit other
+     * than the timeouts of the {@link Sender}).
+     */
+    public Builder attemptTimeout(long value, TimeUnit unit) {
+      if (value < 0) {
+        throw new IllegalArgumentException("timeout can not be negative");
+      }
+      attemptTimeout = unit.toMillis(value);
+      return this;
+    }
+
+    public RetryPolicy build() {
+      return new DefaultRetryPolicy(new LinkedHashMap<String, Backoff>(
+          retryable), backoff, retryBudget, attemptTimeout);
+    }
+  }
+
+}
@@ -15,27 +15,44 @@
  */
 package com.google.android.gcm.server;
 
-import org.json.simple.JSONObject;
-import org.json.simple.JSONValue;
-import org.json.simple.parser.JSONParser;
-import org.json.simple.parser.ParseException;
-
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.Set;
 import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.regex.Pattern;
 
 import static com.google.android.gcm.server.Constants.*;
 
@@ -53,12 +70,52 @@ public class Sender {
    */
   protected static final int MAX_BACKOFF_DELAY = 1024000;
 
+  /**
+   * Source of the jitter of the retries.
+   *
+   * @deprecated it is ignored, since the {@link RetryPolicy retry policies}
+   *             pick their jitter from
+   *             {@link java.util.concurrent.ThreadLocalRandom}; use
+   *             {@link #setRetryPolicy(RetryPolicy)} to customize the delays
+   *             between retries.
+   */
+  @Deprecated
   protected final Random random = new Random();
+
+  // error codes of a retry after the whole request failed
+  private static final Set<String> REQUEST_FAILED = Collections.singleton(null);
+
+  // characters allowed by GCM in the name of a topic
+  private static final Pattern TOPIC_NAME =
+      Pattern.compile("[a-zA-Z0-9-_.~%]+");
+
   protected static final Logger logger =
       Logger.getLogger(Sender.class.getName());
 
+  // deadline of the attempt being made by the current thread, if any, which
+  // bounds the timeouts of its connections
+  private static final ThreadLocal<Deadline> ATTEMPT_DEADLINE =
+      new ThreadLocal<Deadline>();
+
+  // asynchronous send whose attempt is being made by the current thread, if
+  // any, so a delay of the rate limiter is scheduled instead of slept
+  private static final ThreadLocal<RetryingSend<?>> ASYNC_SEND =
+      new ThreadLocal<RetryingSend<?>>();
+
   private final String key;
 
+  private volatile ScheduledExecutorService executor;
+  private volatile GcmTransport transport;
+  private volatile RetryPolicy retryPolicy;
+  private volatile RateLimiter rateLimiter;
+  private volatile CircuitBreaker circuitBreaker;
+  private volatile RegistrationIdResolver registrationIdResolver;
+  private volatile SenderMetrics metrics;
+  private volatile MessageSpool spool;
+  private volatile boolean deduplicate;
+  private volatile int connectTimeout;
+  private volatile int readTimeout;
+
   /**
    * Default constructor.
    *
@@ -68,13 +125,215 @@ public class Sender {
     this.key = nonNull(key);
   }
 
+  /**
+   * Sets the executor used by the asynchronous methods to make the requests
+   * and to schedule their retries.
+   *
+   * <p>
+   * If not set, a shared pool of daemon threads is used.
+   */
+  public void setExecutor(ScheduledExecutorService executor) {
+    this.executor = nonNull(executor);
+  }
+
+  /**
+   * Gets the executor used by the asynchronous methods.
+   */
+  protected ScheduledExecutorService getExecutor() {
+    ScheduledExecutorService executor = this.executor;
+    return executor != null ? executor : DefaultExecutorHolder.EXECUTOR;
+  }
+
+  /**
+   * Sets the transport used to post requests to GCM.
+   *
+   * <p>
+   * If not set, requests are posted using the {@link HttpURLConnection}
+   * returned by {@link #getConnection(String)}.
+   */
+  public void setTransport(GcmTransport transport) {
+    this.transport = nonNull(transport);
+  }
+
+  /**
+   * Gets the transport used to post requests to GCM.
+   */
+  protected GcmTransport getTransport() {
+    GcmTransport transport = this.transport;
+    return transport != null ? transport : new ConnectionTransport();
+  }
+
+  /**
+   * Sets the policy that decides which failures are retried and how long to
+   * wait before each retry.
+   *
+   * <p>
+   * If not set, {@link RetryPolicy#DEFAULT} is used.
+   */
+  public void setRetryPolicy(RetryPolicy retryPolicy) {
+    this.retryPolicy = nonNull(retryPolicy);
+  }
+
+  /**
+   * Gets the policy that decides which failures are retried.
+   */
+  protected RetryPolicy getRetryPolicy() {
+    RetryPolicy retryPolicy = this.retryPolicy;
+    return retryPolicy != null ? retryPolicy : RetryPolicy.DEFAULT;
+  }
+
+  /**
+   * Sets the limiter that delays or sheds messages exceeding the allowed rate.
+   *
+   * <p>
+   * The asynchronous methods schedule the attempts delayed by it, instead of
+   * blocking a thread of the {@link #getExecutor() executor}. Messages to
+   * topics, conditions and device groups are not limited, since its quotas
+   * are per device. If not set, messages are sent as fast as requested.
+   */
+  public void setRateLimiter(RateLimiter rateLimiter) {
+    this.rateLimiter = nonNull(rateLimiter);
+  }
+
+  /**
+   * Gets the limiter of the rate of messages, or {@literal null} if there is
+   * none.
+   */
+  protected RateLimiter getRateLimiter() {
+    return rateLimiter;
+  }
+
+  /**
+   * Sets the circuit breaker that rejects requests while GCM is failing.
+   *
+   * <p>
+   * Sends rejected by it fail with a {@link CircuitOpenException} instead of
+   * being retried. Multicast messages stay pending in the
+   * {@link #setSpool(MessageSpool) spool}, if any, when the circuit opens
+   * before or between their attempts, so they can be resumed later. If it
+   * opens between attempts, no more retries are made and the result of the
+   * attempts made so far is returned.
+   *
+   * <p>
+   * If not set, requests are always posted.
+   */
+  public void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+    this.circuitBreaker = nonNull(circuitBreaker);
+  }
+
+  /**
+   * Gets the circuit breaker, or {@literal null} if there is none.
+   */
+  protected CircuitBreaker getCircuitBreaker() {
+    return circuitBreaker;
+  }
+
+  /**
+   * Sets the cache of canonical and dead registration ids, which is updated
+   * with the results of each request and used to rewrite the registration ids
+   * of the next ones.
+   *
+   * <p>
+   * If not set, messages are sent to the given registration ids.
+   */
+  public void setRegistrationIdResolver(RegistrationIdResolver resolver) {
+    this.registrationIdResolver = nonNull(resolver);
+  }
+
+  /**
+   * Gets the cache of registration ids, or {@literal null} if there is none.
+   */
+  protected RegistrationIdResolver getRegistrationIdResolver() {
+    return registrationIdResolver;
+  }
+
+  /**
+   * Sets whether duplicated registration ids are removed before sending a
+   * message to many devices, so each device gets it only once (default is
+   * {@literal false}).
+   *
+   * <p>
+   * The results are still in the same order as the input, and all copies of
+   * a registration id get the same result. Removing duplicates from a
+   * {@link #sendBulk(Message, Iterable, int, int) bulk message} keeps the
+   * registration ids in memory until all chunks are sent.
+   */
+  public void setDeduplicate(boolean deduplicate) {
+    this.deduplicate = deduplicate;
+  }
+
+  /**
+   * Sets the spool where multicast messages are logged while they are sent,
+   * so the devices that did not get them can be
+   * {@link #resume(MessageSpool.Entry, int) resumed} after a crash.
+   *
+   * <p>
+   * If not set, messages are only kept in memory.
+   */
+  public void setSpool(MessageSpool spool) {
+    this.spool = nonNull(spool);
+  }
+
+  /**
+   * Gets the spool of multicast messages, or {@literal null} if there is
+   * none.
+   */
+  protected MessageSpool getSpool() {
+    return spool;
+  }
+
+  /**
+   * Sets the listener that is told about the requests made, to record their
+   * metrics.
+   *
+   * <p>
+   * If not set, {@link SenderMetrics#NONE} is used.
+   */
+  public void setMetrics(SenderMetrics metrics) {
+    this.metrics = nonNull(metrics);
+  }
+
+  /**
+   * Gets the listener that records the metrics of the requests.
+   */
+  protected SenderMetrics getMetrics() {
+    SenderMetrics metrics = this.metrics;
+    return metrics != null ? metrics : SenderMetrics.NONE;
+  }
+
+  /**
+   * Sets the connect timeout, in milliseconds, of the connections returned by
+   * {@link #getConnection(String)} (default value is {@literal 0}, which means
+   * no timeout).
+   */
+  public void setConnectTimeout(int connectTimeout) {
+    if (connectTimeout < 0) {
+      throw new IllegalArgumentException("timeout can not be negative");
+    }
+    this.connectTimeout = connectTimeout;
+  }
+
+  /**
+   * Sets the read timeout, in milliseconds, of the connections returned by
+   * {@link #getConnection(String)} (default value is {@literal 0}, which means
+   * no timeout).
+   */
+  public void setReadTimeout(int readTimeout) {
+    if (readTimeout < 0) {
+      throw new IllegalArgumentException("timeout can not be negative");
+    }
+    this.readTimeout = readTimeout;
+  }
+
   /**
    * Sends a message to one device, retrying in case of unavailability.
    *
    * <p>
-   * <strong>Note: </strong> this method uses exponential back-off to retry in
-   * case of service unavailability and hence could block the calling thread
-   * for many seconds.
+   * <strong>Note: </strong> this method uses exponential back-off, or the
+   * back-off of the {@link #setRetryPolicy(RetryPolicy) retry policy}, to retry
+   * in case of service unavailability and hence could block the calling thread
+   * for many seconds. Retries wait at least as long as requested by the
+   * {@code Retry-After} header of 5xx and 429 responses.
    *
    * @param message message to be sent, including the device's registration id.
    * @param registrationId device where the message will be sent.
@@ -83,36 +342,36 @@ public class Sender {
    * @return result of the request (see its javadoc for more details).
    *
    * @throws IllegalArgumentException if registrationId is {@literal null}.
-   * @throws InvalidRequestException if GCM didn't returned a 200 or 5xx status.
+   * @throws InvalidRequestException if GCM didn't returned a 200, 5xx or 429
+   *         status, or the last attempt failed with a 5xx or 429 status.
    * @throws IOException if message could not be sent.
    */
   public Result send(Message message, String registrationId, int retries)
       throws IOException {
-    int attempt = 0;
-    Result result;
-    int backoff = BACKOFF_INITIAL_DELAY;
-    boolean tryAgain;
-    do {
-      attempt++;
-      if (logger.isLoggable(Level.FINE)) {
-        logger.fine("Attempt #" + attempt + " to send message " +
-            message + " to regIds " + registrationId);
-      }
-      result = sendNoRetry(message, registrationId);
-      tryAgain = result == null && attempt <= retries;
-      if (tryAgain) {
-        int sleepTime = backoff / 2 + random.nextInt(backoff);
-        sleep(sleepTime);
-        if (2 * backoff < MAX_BACKOFF_DELAY) {
-          backoff *= 2;
-        }
-      }
-    } while (tryAgain);
-    if (result == null) {
-      throw new IOException("Could not send message after " + attempt +
-          " attempts");
-    }
-    return result;
+    return send(new SingleSend(message, registrationId, retries));
+  }
+
+  /**
+   * Sends a message to one device, retrying in case of unavailability, without
+   * blocking the calling thread.
+   *
+   * <p>
+   * The request is made on the {@link #getExecutor() executor}, and retries
+   * are scheduled on it with the same exponential back-off used by
+   * {@link #send(Message, String, int)}, instead of sleeping.
+   *
+   * @param message message to be sent, including the device's registration id.
+   * @param registrationId device where the message will be sent.
+   * @param retries number of retries in case of service unavailability errors.
+   *
+   * @return future result of the request; it fails with the same exceptions
+   *         thrown by {@link #send(Message, String, int)}.
+   *
+   * @throws IllegalArgumentException if registrationId is {@literal null}.
+   */
+  public CompletableFuture<Result> sendAsync(Message message,
+      String registrationId, int retries) {
+    return sendAsync(new SingleSend(message, registrationId, retries));
   }
 
   /**
@@ -146,9 +405,13 @@ public class Sender {
    * Sends a message to many devices, retrying in case of unavailability.
    *
    * <p>
-   * <strong>Note: </strong> this method uses exponential back-off to retry in
-   * case of service unavailability and hence could block the calling thread
-   * for many seconds.
+   * <strong>Note: </strong> this method uses exponential back-off, or the
+   * back-off of the {@link #setRetryPolicy(RetryPolicy) retry policy}, to retry
+   * in case of service unavailability and hence could block the calling thread
+   * for many seconds. Retries wait at least as long as requested by the
+   * {@code Retry-After} header, either of a 5xx or 429 response, or of a
+   * response with {@link Constants#ERROR_UNAVAILABLE} results; the delays are
+   * reported by {@link MulticastResult#getRetryDelays()}.
    *
    * @param message message to be sent.
    * @param regIds registration id of the devices that will receive
@@ -159,110 +422,1066 @@ public class Sender {
    *
    * @throws IllegalArgumentException if registrationIds is {@literal null} or
    *         empty.
-   * @throws InvalidRequestException if GCM didn't returned a 200 or 503 status.
-   * @throws IOException if message could not be sent.
+   * @throws InvalidRequestException if GCM didn't returned a 200, 5xx or 429
+   *         status.
+   * @throws IOException if message could not be sent; its cause is the error
+   *         of the last attempt, such as a 5xx or 429 status, if any.
    */
   public MulticastResult send(Message message, List<String> regIds, int retries)
       throws IOException {
-    int attempt = 0;
-    MulticastResult multicastResult;
-    int backoff = BACKOFF_INITIAL_DELAY;
-    // Map of results by registration id, it will be updated after each attempt
-    // to send the messages
-    Map<String, Result> results = new HashMap<String, Result>();
-    List<String> unsentRegIds = new ArrayList<String>(regIds);
-    boolean tryAgain;
-    List<Long> multicastIds = new ArrayList<Long>();
-    do {
-      multicastResult = null;
+    return sendMulticast(message, regIds, retries, null);
+  }
+
+  /**
+   * Sends a message to many devices, retrying in case of unavailability until
+   * a deadline.
+   *
+   * <p>
+   * It works like {@link #send(Message, List, int)}, but no attempt is made
+   * once the deadline expires or is cancelled, no retry is made if its
+   * back-off would outlast the deadline, and the connect and read timeouts of
+   * each attempt are bounded by the time left. The devices that did not get a
+   * final result by then have {@link Constants#ERROR_DEADLINE_EXCEEDED} as
+   * error code, even if no request could be made, and are left pending in the
+   * {@link #setSpool(MessageSpool) spool}, if any, to be resumed later.
+   *
+   * <p>
+   * Timeouts are only bounded for connections made by
+   * {@link #getConnection(String)}; a custom {@link #setTransport(GcmTransport)
+   * transport} keeps its own.
+   *
+   * @param message message to be sent.
+   * @param regIds registration id of the devices that will receive
+   *        the message.
+   * @param retries number of retries in case of service unavailability errors.
+   * @param deadline time budget of all attempts.
+   *
+   * @return combined result of all requests made.
+   *
+   * @throws IllegalArgumentException if registrationIds is {@literal null} or
+   *         empty.
+   * @throws InvalidRequestException if GCM didn't returned a 200, 5xx or 429
+   *         status.
+   * @throws IOException if message could not be sent; its cause is the error
+   *         of the last attempt, such as a 5xx or 429 status, if any.
+   */
+  public MulticastResult send(Message message, List<String> regIds,
+      int retries, Deadline deadline) throws IOException {
+    return sendMulticast(message, regIds, retries, nonNull(deadline));
+  }
+
+  private MulticastResult sendMulticast(Message message, List<String> regIds,
+      int retries, Deadline deadline) throws IOException {
+    if (deduplicate) {
+      List<String> unique = new ArrayList<String>();
+      int[] positions = RegistrationIdSet.deduplicate(nonNull(regIds), unique);
+      if (positions != null) {
+        return expand(send(new MulticastSend(message, unique, retries,
+            deadline)), positions);
+      }
+    }
+    return send(new MulticastSend(message, regIds, retries, deadline));
+  }
+
+  /**
+   * Sends a message to many devices, retrying in case of unavailability,
+   * without blocking the calling thread.
+   *
+   * <p>
+   * Each attempt is made on the {@link #getExecutor() executor}, and retries
+   * are scheduled on it with the same exponential back-off used by
+   * {@link #send(Message, List, int)}, so a small pool can drive many
+   * concurrent multicasts.
+   *
+   * @param message message to be sent.
+   * @param regIds registration id of the devices that will receive
+   *        the message.
+   * @param retries number of retries in case of service unavailability errors.
+   *
+   * @return future combined result of all requests made; it fails with the
+   *         same exceptions thrown by {@link #send(Message, List, int)}.
+   *
+   * @throws IllegalArgumentException if registrationIds is {@literal null} or
+   *         empty.
+   */
+  public CompletableFuture<MulticastResult> sendAsync(Message message,
+      List<String> regIds, int retries) {
+    return sendMulticastAsync(message, regIds, retries, null);
+  }
+
+  /**
+   * Sends a message to many devices, retrying in case of unavailability until
+   * a deadline, without blocking the calling thread.
+   *
+   * <p>
+   * The deadline works as in {@link #send(Message, List, int, Deadline)}.
+   *
+   * @param message message to be sent.
+   * @param regIds registration id of the devices that will receive
+   *        the message.
+   * @param retries number of retries in case of service unavailability errors.
+   * @param deadline time budget of all attempts.
+   *
+   * @return future combined result of all requests made; it fails with the
+   *         same exceptions thrown by
+   *         {@link #send(Message, List, int, Deadline)}.
+   *
+   * @throws IllegalArgumentException if registrationIds is {@literal null} or
+   *         empty.
+   */
+  public CompletableFuture<MulticastResult> sendAsync(Message message,
+      List<String> regIds, int retries, Deadline deadline) {
+    return sendMulticastAsync(message, regIds, retries, nonNull(deadline));
+  }
+
+  private CompletableFuture<MulticastResult> sendMulticastAsync(
+      Message message, List<String> regIds, int retries, Deadline deadline) {
+    if (nonNull(regIds).isEmpty()) {
+      throw new IllegalArgumentException("registrationIds cannot be empty");
+    }
+    if (deduplicate) {
+      List<String> unique = new ArrayList<String>();
+      int[] positions = RegistrationIdSet.deduplicate(regIds, unique);
+      if (positions != null) {
+        return sendAsync(new MulticastSend(message, unique, retries, deadline))
+            .thenApply(result -> expand(result, positions));
+      }
+    }
+    return sendAsync(new MulticastSend(message, regIds, retries, deadline));
+  }
+
+  /**
+   * Sends a message left in the {@link #setSpool(MessageSpool) spool} by a
+   * previous process to the devices that did not get a final result, retrying
+   * in case of unavailability.
+   *
+   * @param entry message pending in the spool of this sender.
+   * @param retries number of retries in case of service unavailability errors.
+   *
+   * @return combined result of all requests made, for the pending
+   *         registration ids of the entry, in the same order.
+   *
+   * @throws IllegalStateException if this sender has no spool.
+   * @throws IllegalArgumentException if no device of the entry is pending.
+   * @throws InvalidRequestException if GCM didn't returned a 200, 5xx or 429
+   *         status.
+   * @throws IOException if message could not be sent; its cause is the error
+   *         of the last attempt, such as a 5xx or 429 status, if any.
+   */
+  public MulticastResult resume(MessageSpool.Entry entry, int retries)
+      throws IOException {
+    if (spool == null) {
+      throw new IllegalStateException("sender has no spool");
+    }
+    int[] positions = nonNull(entry).getPendingPositions();
+    if (positions.length == 0) {
+      throw new IllegalArgumentException("no device of " + entry +
+          " is pending");
+    }
+    List<String> regIds = entry.getRegistrationIds();
+    List<String> pending = new ArrayList<String>(positions.length);
+    for (int position : positions) {
+      pending.add(regIds.get(position));
+    }
+    return send(new MulticastSend(entry.getMessage(), pending, retries,
+        entry.getId(), positions));
+  }
+
+  /**
+   * Gets the result of each registration id of a message that was sent
+   * without duplicates.
+   *
+   * @param result result of the registration ids without duplicates.
+   * @param positions position in {@code result} of each registration id.
+   */
+  static MulticastResult expand(MulticastResult result, int[] positions) {
+    int success = 0, canonicalIds = 0;
+    for (int position : positions) {
+      if (result.getMessageId(position) != null) {
+        success++;
+        if (result.getCanonicalRegistrationId(position) != null) {
+          canonicalIds++;
+        }
+      }
+    }
+    MulticastResult.Builder builder = new MulticastResult.Builder(success,
+        positions.length - success, canonicalIds, result.getMulticastId())
+        .retryMulticastIds(result.getRetryMulticastIds())
+        .retryAfter(result.getRetryAfter())
+        .retryDelays(result.getRetryDelays());
+    for (int position : positions) {
+      builder.addResult(result, position);
+    }
+    return builder.build();
+  }
+
+  /**
+   * Sends a message to the subscribers of a topic, retrying in case of
+   * unavailability.
+   *
+   * <p>
+   * GCM delivers the message to all subscribers after a single request, with
+   * the same exponential back-off and retry policy used by
+   * {@link #send(Message, String, int)}. Unlike messages to registration ids,
+   * it is not delayed by the {@link #setRateLimiter(RateLimiter) rate
+   * limiter} and there is no variant with a {@link Deadline}; its result is
+   * reported to the {@link #setMetrics(SenderMetrics) metrics} as the one of
+   * a single device.
+   *
+   * @param message message to be sent.
+   * @param topic name of the topic, with or without the
+   *        {@link Constants#TOPIC_PREFIX}.
+   * @param retries number of retries in case of service unavailability errors.
+   *
+   * @return result of the request.
+   *
+   * @throws IllegalArgumentException if topic is {@literal null} or not a
+   *         valid topic name.
+   * @throws InvalidRequestException if GCM didn't returned a 200, 5xx or 429
+   *         status, or the last attempt failed with a 5xx or 429 status.
+   * @throws IOException if message could not be sent.
+   */
+  public TopicResult sendToTopic(Message message, String topic, int retries)
+      throws IOException {
+    return send(newTopicSend(message, topic, retries));
+  }
+
+  /**
+   * Sends a message to the subscribers of a topic, retrying in case of
+   * unavailability, without blocking the calling thread. See
+   * {@link #sendToTopic(Message, String, int)} for more info.
+   *
+   * @return future result of the request.
+   */
+  public CompletableFuture<TopicResult> sendToTopicAsync(Message message,
+      String topic, int retries) {
+    return sendAsync(newTopicSend(message, topic, retries));
+  }
+
+  /**
+   * Sends a message to the devices subscribed to a combination of topics,
+   * retrying in case of unavailability.
+   *
+   * <p>
+   * As with {@link #sendToTopic(Message, String, int)}, it is not delayed by
+   * the rate limiter and its result is reported as the one of a single
+   * device.
+   *
+   * @param message message to be sent.
+   * @param condition condition on the topics, such as
+   *        {@code "'dogs' in topics || 'cats' in topics"}.
+   * @param retries number of retries in case of service unavailability errors.
+   *
+   * @return result of the request.
+   *
+   * @throws IllegalArgumentException if condition is {@literal null} or
+   *         empty.
+   * @throws InvalidRequestException if GCM didn't returned a 200, 5xx or 429
+   *         status, or the last attempt failed with a 5xx or 429 status.
+   * @throws IOException if message could not be sent.
+   */
+  public TopicResult sendToCondition(Message message, String condition,
+      int retries) throws IOException {
+    return send(newConditionSend(message, condition, retries));
+  }
+
+  /**
+   * Sends a message to the devices subscribed to a combination of topics,
+   * retrying in case of unavailability, without blocking the calling thread.
+   * See {@link #sendToCondition(Message, String, int)} for more info.
+   *
+   * @return future result of the request.
+   */
+  public CompletableFuture<TopicResult> sendToConditionAsync(Message message,
+      String condition, int retries) {
+    return sendAsync(newConditionSend(message, condition, retries));
+  }
+
+  /**
+   * Sends a message to the devices of a group, retrying in case of
+   * unavailability.
+   *
+   * <p>
+   * Only requests that fail as a whole are retried: if some devices of the
+   * group do not get the message, they are reported by
+   * {@link DeviceGroupResult#getFailedRegistrationIds()} instead.
+   *
+   * <p>
+   * As with {@link #sendToTopic(Message, String, int)}, it is not delayed by
+   * the rate limiter. Only the devices that got the message are reported to
+   * the metrics, since GCM returns no error code for the others.
+   *
+   * @param message message to be sent.
+   * @param notificationKey notification key of the group.
+   * @param retries number of retries in case of service unavailability errors.
+   *
+   * @return result of the request.
+   *
+   * @throws IllegalArgumentException if notificationKey is {@literal null} or
+   *         empty.
+   * @throws InvalidRequestException if GCM didn't returned a 200, 5xx or 429
+   *         status, or the last attempt failed with a 5xx or 429 status.
+   * @throws IOException if message could not be sent.
+   */
+  public DeviceGroupResult sendToDeviceGroup(Message message,
+      String notificationKey, int retries) throws IOException {
+    return send(newDeviceGroupSend(message, notificationKey, retries));
+  }
+
+  /**
+   * Sends a message to the devices of a group, retrying in case of
+   * unavailability, without blocking the calling thread. See
+   * {@link #sendToDeviceGroup(Message, String, int)} for more info.
+   *
+   * @return future result of the request.
+   */
+  public CompletableFuture<DeviceGroupResult> sendToDeviceGroupAsync(
+      Message message, String notificationKey, int retries) {
+    return sendAsync(newDeviceGroupSend(message, notificationKey, retries));
+  }
+
+  private TargetSend<TopicResult> newTopicSend(Message message, String topic,
+      int retries) {
+    String name = nonNull(topic).startsWith(TOPIC_PREFIX) ?
+        topic.substring(TOPIC_PREFIX.length()) : topic;
+    if (!TOPIC_NAME.matcher(name).matches()) {
+      throw new IllegalArgumentException("Invalid topic name: " + topic);
+    }
+    return new TargetSend<TopicResult>(message, JSON_TO, TOPIC_PREFIX + name,
+        retries, (parser, retryAfter) -> parser.parseTopicResult().build(),
+        TopicResult::getErrorCodeName, Sender::recordResult);
+  }
+
+  private TargetSend<TopicResult> newConditionSend(Message message,
+      String condition, int retries) {
+    if (nonNull(condition).isEmpty()) {
+      throw new IllegalArgumentException("condition cannot be empty");
+    }
+    return new TargetSend<TopicResult>(message, JSON_CONDITION, condition,
+        retries, (parser, retryAfter) -> parser.parseTopicResult().build(),
+        TopicResult::getErrorCodeName, Sender::recordResult);
+  }
+
+  private TargetSend<DeviceGroupResult> newDeviceGroupSend(Message message,
+      String notificationKey, int retries) {
+    if (nonNull(notificationKey).isEmpty()) {
+      throw new IllegalArgumentException("notificationKey cannot be empty");
+    }
+    return new TargetSend<DeviceGroupResult>(message, JSON_TO,
+        notificationKey, retries,
+        (parser, retryAfter) -> parser.parseDeviceGroupResult().build(),
+        result -> null, (metrics, result) -> {
+          if (result.getSuccess() > 0) {
+            metrics.resultsReceived(null, result.getSuccess());
+          }
+        });
+  }
+
+  private <T> T send(RetryingSend<T> send) throws IOException {
+    while (send.attempt()) {
+      sleep(send.getDelay());
+    }
+    return send.getResult();
+  }
+
+  private <T> CompletableFuture<T> sendAsync(RetryingSend<T> send) {
+    CompletableFuture<T> future = new CompletableFuture<T>();
+    getExecutor().execute(() -> attemptAsync(send, future));
+    return future;
+  }
+
+  private <T> void attemptAsync(RetryingSend<T> send,
+      CompletableFuture<T> future) {
+    if (future.isDone()) {
+      // cancelled by the caller
+      return;
+    }
+    ASYNC_SEND.set(send);
+    try {
+      long delay;
+      try {
+        if (!send.attempt()) {
+          future.complete(send.getResult());
+          return;
+        }
+        delay = send.getDelay();
+      } catch (AdmissionDelayed e) {
+        // made again once the rate limiter allows it, as the same attempt
+        send.attempt--;
+        delay = send.admission.getDelay();
+      }
+      getExecutor().schedule(() -> attemptAsync(send, future), delay,
+          TimeUnit.MILLISECONDS);
+    } catch (Exception e) {
+      future.completeExceptionally(e);
+    } finally {
+      ASYNC_SEND.remove();
+    }
+  }
+
+  /**
+   * Thrown by an asynchronous attempt that has to wait for the rate limiter
+   * before posting its request.
+   */
+  private static final class AdmissionDelayed extends RuntimeException {
+
+    AdmissionDelayed() {
+      super(null, null, false, false);
+    }
+  }
+
+  /**
+   * State of a message across its attempts, which are retried as decided by
+   * the {@link #getRetryPolicy() retry policy}.
+   */
+  private abstract class RetryingSend<T> {
+
+    private final RetryPolicy policy = getRetryPolicy();
+    private final SenderMetrics metrics = getMetrics();
+    private final int retries;
+    final Deadline deadline;
+    final List<Long> delays = new ArrayList<Long>();
+    int attempt;
+    // admission of a request delayed by the rate limiter, which is used by
+    // the next attempt of an asynchronous send
+    RateLimiter.Admission admission;
+    private long delay;
+    private long totalDelay;
+    // whether attempts were stopped by the deadline
+    boolean deadlineExceeded;
+
+    RetryingSend(int retries) {
+      this(retries, null);
+    }
+
+    RetryingSend(int retries, Deadline deadline) {
+      this.retries = retries;
+      this.deadline = deadline;
+    }
+
+    /**
+     * Makes the next attempt.
+     *
+     * @return whether another attempt should be made, after
+     *         {@link #getDelay()}.
+     */
+    abstract boolean attempt() throws IOException;
+
+    /**
+     * Gets the result of all attempts made.
+     */
+    abstract T getResult() throws IOException;
+
+    /**
+     * Checks whether a retry can be made, which is the case if there are
+     * retries left and both the retry budget and the deadline allow waiting
+     * for the back-off of all given error codes, and for as long as GCM asked.
+     *
+     * @param errorCodes error codes of the devices to retry, {@literal null}
+     *        if the whole request failed.
+     * @param retryAfter delay requested by GCM, in milliseconds.
+     */
+    boolean canRetry(Collection<String> errorCodes, long retryAfter) {
+      if (attempt > retries) {
+        return false;
+      }
+      long nextDelay = retryAfter;
+      for (String errorCode : errorCodes) {
+        nextDelay = Math.max(nextDelay,
+            policy.getDelay(errorCode, attempt, delay));
+      }
+      if (nextDelay > policy.getRetryBudget() - totalDelay) {
+        if (logger.isLoggable(Level.FINE)) {
+          logger.fine("Retry budget exhausted after " + attempt + " attempts");
+        }
+        return false;
+      }
+      if (deadline != null &&
+          nextDelay >= deadline.getRemaining(TimeUnit.MILLISECONDS)) {
+        if (logger.isLoggable(Level.FINE)) {
+          logger.fine("Deadline exceeded after " + attempt + " attempts");
+        }
+        deadlineExceeded = true;
+        return false;
+      }
+      delay = nextDelay;
+      totalDelay += nextDelay;
+      delays.add(nextDelay);
+      metrics.retried(attempt, nextDelay);
+      return true;
+    }
+
+    /**
+     * Gets how long to wait before the next attempt, in milliseconds.
+     */
+    int getDelay() {
+      return (int) Math.min(Integer.MAX_VALUE, delay);
+    }
+
+    /**
+     * Checks whether the deadline, if any, expired or was cancelled, in which
+     * case no more attempts should be made.
+     */
+    boolean isExpired() {
+      if (deadline != null && deadline.isExpired()) {
+        if (logger.isLoggable(Level.FINE)) {
+          logger.fine("Deadline exceeded after " + attempt + " attempts");
+        }
+        deadlineExceeded = true;
+      }
+      return deadlineExceeded;
+    }
+  }
+
+  /**
+   * State of a message to one device across its attempts.
+   */
+  private final class SingleSend extends RetryingSend<Result> {
+
+    private final Message message;
+    private final String registrationId;
+    private Result result;
+
+    SingleSend(Message message, String registrationId, int retries) {
+      super(retries);
+      this.message = message;
+      this.registrationId = nonNull(registrationId);
+    }
+
+    boolean attempt() throws IOException {
+      attempt++;
+      if (logger.isLoggable(Level.FINE)) {
+        logger.fine("Attempt #" + attempt + " to send message " +
+            message + " to regIds " + registrationId);
+      }
+      try {
+        result = sendNoRetry(message, registrationId);
+      } catch (InvalidRequestException e) {
+        if (!e.isRetryable() ||
+            !canRetry(REQUEST_FAILED, e.getRetryAfter())) {
+          throw e;
+        }
+        logger.log(Level.FINEST, "Retryable error on attempt " + attempt, e);
+        return true;
+      } catch (RateLimitedException e) {
+        if (!canRetry(REQUEST_FAILED, e.getRetryAfter())) {
+          throw e;
+        }
+        logger.log(Level.FINEST, "Rate limited on attempt " + attempt, e);
+        return true;
+      }
+      return result == null && canRetry(REQUEST_FAILED, 0);
+    }
+
+    Result getResult() throws IOException {
+      if (result == null) {
+        throw new IOException("Could not send message after " + attempt +
+            " attempts");
+      }
+      return result;
+    }
+  }
+
+  /**
+   * State of a multicast message across its attempts.
+   */
+  private final class MulticastSend extends RetryingSend<MulticastResult> {
+
+    private final Message message;
+    // status of each device, it will be updated after each attempt to send
+    // the messages
+    private final MulticastStatus status;
+    private final List<Long> multicastIds = new ArrayList<Long>();
+    // as requested by the last response
+    private long retryAfter;
+    // error of the last request that failed as a whole, if any
+    private IOException lastError;
+    // whether attempts were stopped by the circuit breaker
+    private boolean circuitOpen;
+    private final MessageSpool spool = getSpool();
+    // entry of the message in the spool, and the position there of each
+    // device, or null if they are the same
+    private long spoolId;
+    private final int[] spoolPositions;
+
+    MulticastSend(Message message, List<String> regIds, int retries) {
+      this(message, regIds, retries, null);
+    }
+
+    MulticastSend(Message message, List<String> regIds, int retries,
+        Deadline deadline) {
+      this(message, regIds, retries, deadline, -1, null);
+    }
+
+    MulticastSend(Message message, List<String> regIds, int retries,
+        long spoolId, int[] spoolPositions) {
+      this(message, regIds, retries, null, spoolId, spoolPositions);
+    }
+
+    private MulticastSend(Message message, List<String> regIds, int retries,
+        Deadline deadline, long spoolId, int[] spoolPositions) {
+      super(retries, deadline);
+      this.message = message;
+      status = new MulticastStatus(regIds);
+      this.spoolId = spoolId;
+      this.spoolPositions = spoolPositions;
+    }
+
+    /**
+     * Sends the message to the devices still pending, logging them in the
+     * spool if there is one.
+     *
+     * @return whether another attempt should be made.
+     *
+     * @throws IOException if the spool could not be written.
+     */
+    boolean attempt() throws IOException {
+      if (isExpired()) {
+        // left pending in the spool, if any, to be resumed
+        return false;
+      }
+      if (spool == null) {
+        return attemptNoSpool();
+      }
+      if (spoolId < 0) {
+        spoolId = spool.append(message, status.getPendingRegistrationIds());
+      }
+      int[] attempted = status.getPendingPositions();
+      boolean retry;
+      try {
+        retry = attemptNoSpool();
+      } catch (InvalidRequestException e) {
+        // rejected by GCM, so it can not be sent as it is
+        spool.complete(spoolId);
+        throw e;
+      }
+      if (status.getPendingCount() == 0 ||
+          !retry && !deadlineExceeded && !circuitOpen) {
+        spool.complete(spoolId);
+      } else if (status.getPendingCount() < attempted.length) {
+        spool.checkpoint(spoolId, getCompleted(attempted));
+      }
+      return retry;
+    }
+
+    /**
+     * Gets the spool positions of the devices that were attempted and are no
+     * longer pending.
+     */
+    private int[] getCompleted(int[] attempted) {
+      int[] pending = status.getPendingPositions();
+      int[] completed = new int[attempted.length - pending.length];
+      int count = 0;
+      // both are ascending, and pending is a subsequence of attempted
+      for (int i = 0, j = 0; i < attempted.length; i++) {
+        if (j < pending.length && pending[j] == attempted[i]) {
+          j++;
+        } else {
+          completed[count++] = spoolPositions == null ?
+              attempted[i] : spoolPositions[attempted[i]];
+        }
+      }
+      return completed;
+    }
+
+    private boolean attemptNoSpool() throws IOException {
+      MulticastResult multicastResult = null;
       attempt++;
+      List<String> unsentRegIds = status.getPendingRegistrationIds();
       if (logger.isLoggable(Level.FINE)) {
         logger.fine("Attempt #" + attempt + " to send message " +
             message + " to regIds " + unsentRegIds);
       }
+      retryAfter = 0;
+      ATTEMPT_DEADLINE.set(deadline);
       try {
         multicastResult = sendNoRetry(message, unsentRegIds);
+      } catch (CircuitOpenException e) {
+        if (multicastIds.isEmpty()) {
+          // nothing to return, it fails fast
+          throw e;
+        }
+        logger.log(Level.FINE, "Circuit open on attempt " + attempt, e);
+        circuitOpen = true;
+        return false;
       } catch(IOException e) {
+        if (e instanceof InvalidRequestException &&
+            !((InvalidRequestException) e).isRetryable()) {
+          throw e;
+        }
         // no need for WARNING since exception might be already logged
         logger.log(Level.FINEST, "IOException on attempt " + attempt, e);
+        lastError = e;
+        if (e instanceof InvalidRequestException) {
+          retryAfter = ((InvalidRequestException) e).getRetryAfter();
+        } else if (e instanceof RateLimitedException) {
+          retryAfter = ((RateLimitedException) e).getRetryAfter();
+        }
+      } finally {
+        ATTEMPT_DEADLINE.remove();
       }
       if (multicastResult != null) {
+        retryAfter = multicastResult.getRetryAfter();
         long multicastId = multicastResult.getMulticastId();
-        logger.fine("multicast_id on attempt # " + attempt + ": " +
-            multicastId);
+        if (logger.isLoggable(Level.FINE)) {
+          logger.fine("multicast_id on attempt # " + attempt + ": " +
+              multicastId);
+        }
         multicastIds.add(multicastId);
-        unsentRegIds = updateStatus(unsentRegIds, results, multicastResult);
-        tryAgain = !unsentRegIds.isEmpty() && attempt <= retries;
-      } else {
-        tryAgain = attempt <= retries;
+        Set<String> retryErrors = new HashSet<String>();
+        status.update(multicastResult, getRetryPolicy(), retryErrors);
+        return status.getPendingCount() > 0 &&
+            canRetry(retryErrors, retryAfter);
       }
-      if (tryAgain) {
-        int sleepTime = backoff / 2 + random.nextInt(backoff);
-        sleep(sleepTime);
-        if (2 * backoff < MAX_BACKOFF_DELAY) {
-          backoff *= 2;
-        }
+      return canRetry(REQUEST_FAILED, retryAfter);
+    }
+
+    /**
+     * Gets the combined result of all attempts made.
+     */
+    MulticastResult getResult() throws IOException {
+      if (multicastIds.isEmpty() && !deadlineExceeded) {
+        // all JSON posts failed due to GCM unavailability
+        throw new IOException("Could not post JSON requests to GCM after "
+            + attempt + " attempts", lastError);
       }
-    } while (tryAgain);
-    if (multicastIds.isEmpty()) {
-      // all JSON posts failed due to GCM unavailability
-      throw new IOException("Could not post JSON requests to GCM after "
-          + attempt + " attempts");
+      // build a new object with the overall result, in the same order as
+      // the input
+      List<Long> retryMulticastIds = new ArrayList<Long>();
+      if (multicastIds.size() > 1) {
+        retryMulticastIds.addAll(multicastIds.subList(1, multicastIds.size()));
+      }
+      return status.toBuilder(deadlineExceeded ? ERROR_DEADLINE_EXCEEDED : null)
+          .retryMulticastIds(retryMulticastIds)
+          .retryAfter(retryAfter)
+          .retryDelays(delays)
+          .build();
     }
-    // calculate summary
-    int success = 0, failure = 0 , canonicalIds = 0;
-    for (Result result : results.values()) {
-      if (result.getMessageId() != null) {
-        success++;
-        if (result.getCanonicalRegistrationId() != null) {
-          canonicalIds++;
+  }
+
+  /**
+   * State of a message to a single target, such as a topic, across its
+   * attempts.
+   */
+  private final class TargetSend<T> extends RetryingSend<T> {
+
+    private final Message message;
+    private final String name;
+    private final String target;
+    private final ResponseReader<T> reader;
+    // error code of a result, which is retried if the policy says so
+    private final Function<T, String> errorCode;
+    // reports a result to the metrics
+    private final BiConsumer<SenderMetrics, T> recorder;
+    private T result;
+
+    TargetSend(Message message, String name, String target, int retries,
+        ResponseReader<T> reader, Function<T, String> errorCode,
+        BiConsumer<SenderMetrics, T> recorder) {
+      super(retries);
+      this.message = message;
+      this.name = name;
+      this.target = target;
+      this.reader = reader;
+      this.errorCode = errorCode;
+      this.recorder = recorder;
+    }
+
+    boolean attempt() throws IOException {
+      attempt++;
+      if (logger.isLoggable(Level.FINE)) {
+        logger.fine("Attempt #" + attempt + " to send message " +
+            message + " to " + target);
+      }
+      try {
+        result = postTo(message, name, target, reader, recorder);
+      } catch (InvalidRequestException e) {
+        if (!e.isRetryable() ||
+            !canRetry(REQUEST_FAILED, e.getRetryAfter())) {
+          throw e;
         }
-      } else {
-        failure++;
+        logger.log(Level.FINEST, "Retryable error on attempt " + attempt, e);
+        return true;
+      }
+      if (result == null) {
+        return canRetry(REQUEST_FAILED, 0);
       }
+      String error = errorCode.apply(result);
+      return error != null && getRetryPolicy().isRetryable(error) &&
+          canRetry(Collections.singleton(error), 0);
     }
-    // build a new object with the overall result
-    long multicastId = multicastIds.remove(0);
-    MulticastResult.Builder builder = new MulticastResult.Builder(success,
-        failure, canonicalIds, multicastId).retryMulticastIds(multicastIds);
-    // add results, in the same order as the input
-    for (String regId : regIds) {
-      Result result = results.get(regId);
-      builder.addResult(result);
+
+    T getResult() throws IOException {
+      if (result == null) {
+        throw new IOException("Could not send message after " + attempt +
+            " attempts");
+      }
+      return result;
     }
-    return builder.build();
   }
 
   /**
-   * Updates the status of the messages sent to devices and the list of devices
-   * that should be retried.
+   * Sends a message to any number of devices, retrying in case of
+   * unavailability.
+   *
+   * <p>
+   * The registration ids are split in chunks of up to
+   * {@link Constants#MULTICAST_SIZE_LIMIT}, which are sent as separate
+   * multicasts, at most {@code parallelism} at a time. A {@code Stream} can be
+   * passed as {@code stream::iterator}; ids are only read from it as chunks
+   * are sent.
+   *
+   * <p>
+   * <strong>Note: </strong> this method blocks the calling thread until all
+   * chunks are sent, see {@link #sendBulkAsync(Message, Iterable, int, int)}
+   * for a non-blocking version.
+   *
+   * @param message message to be sent.
+   * @param regIds registration id of the devices that will receive
+   *        the message.
+   * @param retries number of retries of each chunk in case of service
+   *        unavailability errors.
+   * @param parallelism maximum number of chunks being sent at the same time.
    *
-   * @param unsentRegIds list of devices that are still pending an update.
-   * @param allResults map of status that will be updated.
-   * @param multicastResult result of the last multicast sent.
+   * @return combined result of all chunks, with the results in the same order
+   *         as the input. If a chunk could not be posted at all, its devices
+   *         get a {@link Constants#ERROR_UNAVAILABLE} result.
    *
-   * @return updated version of devices that should be retried.
+   * @throws IllegalArgumentException if registrationIds is {@literal null} or
+   *         empty, or parallelism is not positive.
+   * @throws InvalidRequestException if GCM rejected a chunk with a status that
+   *         is not retried, such as 400 or 401; no more chunks are sent.
+   * @throws IOException if no chunk could be sent; its cause is the error of
+   *         the last chunk.
    */
-  private List<String> updateStatus(List<String> unsentRegIds,
-      Map<String, Result> allResults, MulticastResult multicastResult) {
-    List<Result> results = multicastResult.getResults();
-    if (results.size() != unsentRegIds.size()) {
-      // should never happen, unless there is a flaw in the algorithm
-      throw new RuntimeException("Internal error: sizes do not match. " +
-          "currentResults: " + results + "; unsentRegIds: " + unsentRegIds);
+  public MulticastResult sendBulk(Message message, Iterable<String> regIds,
+      int retries, int parallelism) throws IOException {
+    CompletableFuture<MulticastResult> future =
+        sendBulkAsync(message, regIds, retries, parallelism);
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      future.cancel(false);
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while sending chunks");
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new RuntimeException(cause);
+    }
+  }
+
+  /**
+   * Sends a message to any number of devices, retrying in case of
+   * unavailability, without blocking the calling thread. See
+   * {@link #sendBulk(Message, Iterable, int, int)} for more info.
+   *
+   * @return future combined result of all chunks.
+   */
+  public CompletableFuture<MulticastResult> sendBulkAsync(Message message,
+      Iterable<String> regIds, int retries, int parallelism) {
+    Iterator<String> iterator = nonNull(regIds).iterator();
+    if (!iterator.hasNext()) {
+      throw new IllegalArgumentException("registrationIds cannot be empty");
+    }
+    if (parallelism < 1) {
+      throw new IllegalArgumentException("parallelism must be positive");
+    }
+    BulkSend bulk = new BulkSend(message, iterator, retries);
+    for (int i = 0; i < parallelism; i++) {
+      bulk.sendNextChunk();
+    }
+    return bulk.future;
+  }
+
+  /**
+   * State of a bulk message, whose chunks are sent as asynchronous multicasts.
+   */
+  private final class BulkSend {
+
+    private final Message message;
+    private final Iterator<String> regIds;
+    private final int retries;
+    private final CompletableFuture<MulticastResult> future =
+        new CompletableFuture<MulticastResult>();
+    // indexed by chunk; null if the chunk failed
+    private final List<MulticastResult> chunkResults =
+        new ArrayList<MulticastResult>();
+    private final List<Integer> chunkSizes = new ArrayList<Integer>();
+    // when removing duplicates, the registration ids read so far and the
+    // position of each one in the merged result
+    private final RegistrationIdSet uniqueRegIds;
+    private int[] positions;
+    private int positionCount;
+    private int inFlight;
+    // error of the last chunk that could not be sent
+    private Throwable lastError;
+
+    BulkSend(Message message, Iterator<String> regIds, int retries) {
+      this.message = message;
+      this.regIds = regIds;
+      this.retries = retries;
+      if (deduplicate) {
+        uniqueRegIds = new RegistrationIdSet(MULTICAST_SIZE_LIMIT);
+        positions = new int[MULTICAST_SIZE_LIMIT];
+      } else {
+        uniqueRegIds = null;
+      }
+    }
+
+    /**
+     * Adds the next registration id to a chunk, skipping those already read.
+     *
+     * @return {@literal false} if there are no registration ids left.
+     */
+    private boolean readNext(List<String> chunk) {
+      while (regIds.hasNext()) {
+        String regId = regIds.next();
+        if (uniqueRegIds == null) {
+          chunk.add(regId);
+          return true;
+        }
+        int size = uniqueRegIds.size();
+        int position = uniqueRegIds.add(regId);
+        if (positionCount == positions.length) {
+          positions = Arrays.copyOf(positions, positionCount * 2);
+        }
+        positions[positionCount++] = position;
+        if (position == size) {
+          chunk.add(regId);
+          return true;
+        }
+      }
+      return false;
+    }
+
+    /**
+     * Sends the next chunk of registration ids, if any; completes the future
+     * if all chunks are done.
+     */
+    void sendNextChunk() {
+      List<String> chunk;
+      int index;
+      synchronized (this) {
+        if (future.isDone()) {
+          return;
+        }
+        chunk = new ArrayList<String>(MULTICAST_SIZE_LIMIT);
+        try {
+          while (chunk.size() < MULTICAST_SIZE_LIMIT && readNext(chunk)) {
+            // fills the chunk
+          }
+        } catch (RuntimeException e) {
+          // thrown by the caller's iterator, which could be called from the
+          // callback of a chunk, where it would be lost
+          future.completeExceptionally(e);
+          return;
+        }
+        if (chunk.isEmpty()) {
+          if (inFlight == 0) {
+            complete();
+          }
+          return;
+        }
+        index = chunkSizes.size();
+        chunkSizes.add(chunk.size());
+        chunkResults.add(null);
+        inFlight++;
+      }
+      if (logger.isLoggable(Level.FINE)) {
+        logger.fine("Sending chunk #" + index + " with " + chunk.size()
+            + " regIds");
+      }
+      int chunkIndex = index;
+      try {
+        sendAsync(new MulticastSend(message, chunk, retries)).whenComplete(
+            (result, error) -> onChunkDone(chunkIndex, result, error));
+      } catch (RuntimeException e) {
+        onChunkDone(chunkIndex, null, e);
+      }
+    }
+
+    private void onChunkDone(int index, MulticastResult result,
+        Throwable error) {
+      synchronized (this) {
+        inFlight--;
+        if (error == null) {
+          chunkResults.set(index, result);
+        } else if (error instanceof IOException &&
+            !(error instanceof InvalidRequestException)) {
+          logger.log(Level.FINE, "Could not send chunk #" + index, error);
+          lastError = error;
+        } else {
+          // not retried, such as a rejected request; the next chunks would
+          // fail the same way
+          future.completeExceptionally(error);
+          return;
+        }
+      }
+      sendNextChunk();
     }
-    List<String> newUnsentRegIds = new ArrayList<String>();
-    for (int i = 0; i < unsentRegIds.size(); i++) {
-      String regId = unsentRegIds.get(i);
-      Result result = results.get(i);
-      allResults.put(regId, result);
-      String error = result.getErrorCodeName();
-      if (error != null && (error.equals(Constants.ERROR_UNAVAILABLE)
-          || error.equals(Constants.ERROR_INTERNAL_SERVER_ERROR))) {
-        newUnsentRegIds.add(regId);
+
+    /**
+     * Merges the results of all chunks, in the order they were read.
+     */
+    private void complete() {
+      int success = 0, failure = 0, canonicalIds = 0;
+      Long multicastId = null;
+      List<Long> retryMulticastIds = new ArrayList<Long>();
+      List<Long> retryDelays = new ArrayList<Long>();
+      long retryAfter = 0;
+      for (int i = 0; i < chunkResults.size(); i++) {
+        MulticastResult result = chunkResults.get(i);
+        if (result == null) {
+          failure += chunkSizes.get(i);
+          continue;
+        }
+        success += result.getSuccess();
+        failure += result.getFailure();
+        canonicalIds += result.getCanonicalIds();
+        if (multicastId == null) {
+          multicastId = result.getMulticastId();
+        } else {
+          retryMulticastIds.add(result.getMulticastId());
+        }
+        retryMulticastIds.addAll(result.getRetryMulticastIds());
+        retryDelays.addAll(result.getRetryDelays());
+        retryAfter = Math.max(retryAfter, result.getRetryAfter());
+      }
+      if (multicastId == null) {
+        future.completeExceptionally(new IOException(
+            "Could not post any of the " + chunkResults.size() + " chunks",
+            lastError));
+        return;
+      }
+      Result unavailable = new Result.Builder()
+          .errorCode(Constants.ERROR_UNAVAILABLE).build();
+      MulticastResult.Builder builder = new MulticastResult.Builder(success,
+          failure, canonicalIds, multicastId)
+          .retryMulticastIds(retryMulticastIds)
+          .retryAfter(retryAfter)
+          .retryDelays(retryDelays);
+      for (int i = 0; i < chunkResults.size(); i++) {
+        MulticastResult result = chunkResults.get(i);
+        if (result != null) {
+          builder.addResults(result);
+        } else {
+          for (int j = 0; j < chunkSizes.get(i); j++) {
+            builder.addResult(unavailable);
+          }
+        }
       }
+      MulticastResult result = builder.build();
+      if (uniqueRegIds != null && positionCount > uniqueRegIds.size()) {
+        result = expand(result, Arrays.copyOf(positions, positionCount));
+      }
+      future.complete(result);
     }
-    return newUnsentRegIds;
   }
 
   /**
@@ -270,11 +1489,19 @@ public class Sender {
    * {@link #send(Message, List, int)} for more info.
    *
    * @return multicast results if the message was sent successfully,
-   *         {@literal null} if it failed but could be retried.
+   *         {@literal null} if it failed but could be retried. If the
+   *         {@link #setRegistrationIdResolver(RegistrationIdResolver)
+   *         resolver} knows that all devices are dead, no request is made
+   *         and the multicast id is {@literal 0}.
    *
    * @throws IllegalArgumentException if registrationIds is {@literal null} or
    *         empty.
    * @throws InvalidRequestException if GCM didn't returned a 200 status.
+   * @throws RateLimitedException if the {@link #setRateLimiter(RateLimiter)
+   *         rate limiter} did not allow to send to any device.
+   * @throws CircuitOpenException if the
+   *         {@link #setCircuitBreaker(CircuitBreaker) circuit breaker} did not
+   *         let the request through.
    * @throws IOException if there was a JSON parsing error
    */
   public MulticastResult sendNoRetry(Message message,
@@ -282,111 +1509,282 @@ public class Sender {
     if (nonNull(registrationIds).isEmpty()) {
       throw new IllegalArgumentException("registrationIds cannot be empty");
     }
-    Map<Object, Object> jsonRequest = new HashMap<Object, Object>();
-    setJsonField(jsonRequest, PARAM_TIME_TO_LIVE, message.getTimeToLive());
-    setJsonField(jsonRequest, PARAM_COLLAPSE_KEY, message.getCollapseKey());
-    setJsonField(jsonRequest, PARAM_RESTRICTED_PACKAGE_NAME, message.getRestrictedPackageName());
-    setJsonField(jsonRequest, PARAM_DELAY_WHILE_IDLE, message.isDelayWhileIdle());
-    setJsonField(jsonRequest, PARAM_DRY_RUN, message.isDryRun());
-    jsonRequest.put(JSON_REGISTRATION_IDS, registrationIds);
-    Map<String, String> payload = message.getData();
-    if (!payload.isEmpty()) {
-      jsonRequest.put(JSON_PAYLOAD, payload);
-    }
-    if (message.getNotification() != null) {
-      Notification notification = message.getNotification();
-      Map<Object, Object> nMap = new HashMap<Object, Object>();
-      if (notification.getBadge() != null) {
-        setJsonField(nMap, JSON_NOTIFICATION_BADGE, notification.getBadge().toString());
-      }
-      setJsonField(nMap, JSON_NOTIFICATION_BODY, notification.getBody());
-      setJsonField(nMap, JSON_NOTIFICATION_BODY_LOC_ARGS, notification.getBodyLocArgs());
-      setJsonField(nMap, JSON_NOTIFICATION_BODY_LOC_KEY, notification.getBodyLocKey());
-      setJsonField(nMap, JSON_NOTIFICATION_CLICK_ACTION, notification.getClickAction());
-      setJsonField(nMap, JSON_NOTIFICATION_COLOR, notification.getColor());
-      setJsonField(nMap, JSON_NOTIFICATION_ICON, notification.getIcon());
-      setJsonField(nMap, JSON_NOTIFICATION_SOUND, notification.getSound());
-      setJsonField(nMap, JSON_NOTIFICATION_TAG, notification.getTag());
-      setJsonField(nMap, JSON_NOTIFICATION_TITLE, notification.getTitle());
-      setJsonField(nMap, JSON_NOTIFICATION_TITLE_LOC_ARGS, notification.getTitleLocArgs());
-      setJsonField(nMap, JSON_NOTIFICATION_TITLE_LOC_KEY, notification.getTitleLocKey());
-      jsonRequest.put(JSON_NOTIFICATION, nMap);
-    }
-    String requestBody = JSONValue.toJSONString(jsonRequest);
-    logger.finest("JSON request: " + requestBody);
-    HttpURLConnection conn;
+    RegistrationIdResolver resolver = getRegistrationIdResolver();
+    if (resolver == null) {
+      return sendLimited(message, registrationIds);
+    }
+    RegistrationIdResolver.Resolution resolution =
+        resolver.resolveAll(registrationIds);
+    List<String> resolved = resolution.getRegistrationIds();
+    if (resolved.isEmpty()) {
+      logger.fine("All registration ids are dead, not sending message");
+      return resolution.merge(null);
+    }
+    MulticastResult result = sendLimited(message, resolved);
+    if (result == null) {
+      return null;
+    }
+    resolver.update(resolved, result);
+    return resolution.merge(result);
+  }
+
+  /**
+   * Sends a message within the limits of the
+   * {@link #setRateLimiter(RateLimiter) rate limiter}.
+   */
+  private MulticastResult sendLimited(Message message,
+      List<String> registrationIds) throws IOException {
+    RateLimiter limiter = getRateLimiter();
+    if (limiter == null) {
+      return postMulticast(message, registrationIds);
+    }
+    RetryingSend<?> async = ASYNC_SEND.get();
+    RateLimiter.Admission admission = null;
+    if (async != null && async.admission != null) {
+      // its delay is over, unless the devices changed meanwhile
+      if (async.admission.isFor(registrationIds)) {
+        admission = async.admission;
+      }
+      async.admission = null;
+    }
+    if (admission == null) {
+      admission = limiter.acquire(registrationIds);
+      if (admission.getDelay() > 0) {
+        if (logger.isLoggable(Level.FINE)) {
+          logger.fine("Rate exceeded, delaying message " +
+              admission.getDelay() + "ms");
+        }
+        if (async != null) {
+          async.admission = admission;
+          throw new AdmissionDelayed();
+        }
+        sleep(admission.getDelay());
+      }
+    }
+    List<String> admitted = admission.getRegistrationIds();
+    MulticastResult result;
+    try {
+      result = postMulticast(message, admitted);
+    } catch (InvalidRequestException e) {
+      if (e.getHttpStatusCode() == 429) {
+        limiter.onQuotaExceeded();
+      }
+      throw e;
+    }
+    if (result == null) {
+      return null;
+    }
+    limiter.onResult(admitted, result);
+    return admission.merge(result);
+  }
+
+  /**
+   * Posts a message to GCM, see {@link #sendNoRetry(Message, List)}.
+   */
+  private MulticastResult postMulticast(Message message,
+      List<String> registrationIds) throws IOException {
+    SenderMetrics metrics = getMetrics();
+    long start = System.nanoTime();
+    int size = estimateSize(message, registrationIds);
+    RequestBuffer body = new RequestBuffer(size);
+    writeRequest(message, registrationIds, body, Math.min(size, 8192));
+    metrics.requestSerialized(registrationIds.size(), body.size(),
+        System.nanoTime() - start);
+    MulticastResult result = post(body, (parser, retryAfter) ->
+        parser.parseMulticastResult().retryAfter(retryAfter).build());
+    if (result != null && metrics != SenderMetrics.NONE) {
+      recordResults(metrics, result);
+    }
+    return result;
+  }
+
+  /**
+   * Posts a message to a single target, such as a topic.
+   *
+   * @param name name of the JSON field with the target.
+   * @param target value of the field.
+   * @param reader reads the response.
+   * @param recorder reports the result to the metrics.
+   *
+   * @return result of the post, or {@literal null} if the GCM service was
+   *         unavailable or any network exception caused the request to fail.
+   */
+  private <T> T postTo(Message message, String name, String target,
+      ResponseReader<T> reader, BiConsumer<SenderMetrics, T> recorder)
+      throws IOException {
+    SenderMetrics metrics = getMetrics();
+    long start = System.nanoTime();
+    int size = 64 + message.getJsonFields().length + target.length();
+    RequestBuffer body = new RequestBuffer(size);
+    writeRequest(message, name, target, body, Math.min(size, 8192));
+    metrics.requestSerialized(1, body.size(), System.nanoTime() - start);
+    T result = post(body, reader);
+    if (result != null && metrics != SenderMetrics.NONE) {
+      recorder.accept(metrics, result);
+    }
+    return result;
+  }
+
+  /**
+   * Reads the response of a request.
+   */
+  private interface ResponseReader<T> {
+
+    /**
+     * @param parser parser of the response body.
+     * @param retryAfter delay requested by the {@code Retry-After} header.
+     */
+    T read(JsonResponseParser parser, long retryAfter) throws IOException;
+  }
+
+  /**
+   * Posts a JSON request to GCM and reads its response.
+   *
+   * @return the response, or {@literal null} if the GCM service was
+   *         unavailable or any network exception caused the request to fail.
+   */
+  private <T> T post(RequestBuffer body, ResponseReader<T> reader)
+      throws IOException {
+    SenderMetrics metrics = getMetrics();
+    CircuitBreaker breaker = getCircuitBreaker();
+    if (breaker != null) {
+      breaker.acquire();
+    }
+    long serialized = System.nanoTime();
+    if (logger.isLoggable(Level.FINEST)) {
+      logger.finest("JSON request: " + body.toString(StandardCharsets.UTF_8));
+    }
+    GcmTransport.Response response;
     int status;
     try {
-      conn = post(GCM_SEND_ENDPOINT, "application/json", requestBody);
-      status = conn.getResponseCode();
+      response = getTransport().post(GCM_SEND_ENDPOINT, "application/json",
+          "key=" + key, body.getBuffer(), 0, body.size());
+      status = response.getStatusCode();
     } catch (IOException e) {
+      if (breaker != null) {
+        breaker.record(false, System.nanoTime() - serialized);
+      }
       logger.log(Level.FINE, "IOException posting to GCM", e);
+      metrics.requestFailed(e);
       return null;
+    } catch (RuntimeException e) {
+      // so a probe request is not left unfinished
+      if (breaker != null) {
+        breaker.record(false, System.nanoTime() - serialized);
+      }
+      throw e;
+    }
+    long received = System.nanoTime();
+    if (breaker != null) {
+      breaker.record(status < 500, received - serialized);
     }
+    metrics.responseReceived(status, received - serialized);
+    long retryAfter = parseRetryAfter(response.getHeader("Retry-After"),
+        System.currentTimeMillis());
     String responseBody;
     if (status != 200) {
       try {
-        responseBody = getAndClose(conn.getErrorStream());
-        logger.finest("JSON error response: " + responseBody);
+        responseBody = getAndClose(response.getBody());
+        if (logger.isLoggable(Level.FINEST)) {
+          logger.finest("JSON error response: " + responseBody);
+        }
       } catch (IOException e) {
         // ignore the exception since it will thrown an InvalidRequestException
         // anyways
         responseBody = "N/A";
         logger.log(Level.FINE, "Exception reading response: ", e);
       }
-      throw new InvalidRequestException(status, responseBody);
+      throw new InvalidRequestException(status, responseBody, retryAfter);
     }
+    InputStream content = null;
     try {
-      responseBody = getAndClose(conn.getInputStream());
-    } catch(IOException e) {
+      content = response.getBody();
+      InputStream stream = content;
+      if (logger.isLoggable(Level.FINEST)) {
+        responseBody = getString(stream);
+        logger.finest("JSON response: " + responseBody);
+        stream = new ByteArrayInputStream(
+            responseBody.getBytes(StandardCharsets.UTF_8));
+      }
+      T result = reader.read(new JsonResponseParser(stream), retryAfter);
+      metrics.responseParsed(System.nanoTime() - received);
+      return result;
+    } catch (JsonResponseParser.MalformedJsonException e) {
+      String msg = "Error parsing JSON response";
+      logger.log(Level.WARNING, msg, e);
+      metrics.requestFailed(e);
+      throw new IOException(msg + ": " + e.getMessage(), e);
+    } catch (IOException e) {
       logger.log(Level.WARNING, "IOException reading response", e);
+      metrics.requestFailed(e);
       return null;
+    } finally {
+      close(content);
+    }
+  }
+
+  /**
+   * Makes a request other than a message through the transport and circuit
+   * breaker of this sender, authorized with its API key.
+   *
+   * @see GcmTransport#request(String, String, String, Map, byte[])
+   */
+  GcmTransport.Response request(String method, String url,
+      Map<String, String> headers, byte[] body) throws IOException {
+    CircuitBreaker breaker = getCircuitBreaker();
+    if (breaker != null) {
+      breaker.acquire();
     }
-    logger.finest("JSON response: " + responseBody);
-    JSONParser parser = new JSONParser();
-    JSONObject jsonResponse;
+    long start = System.nanoTime();
+    GcmTransport.Response response;
     try {
-      jsonResponse = (JSONObject) parser.parse(responseBody);
-      int success = getNumber(jsonResponse, JSON_SUCCESS).intValue();
-      int failure = getNumber(jsonResponse, JSON_FAILURE).intValue();
-      int canonicalIds = getNumber(jsonResponse, JSON_CANONICAL_IDS).intValue();
-      long multicastId = getNumber(jsonResponse, JSON_MULTICAST_ID).longValue();
-      MulticastResult.Builder builder = new MulticastResult.Builder(success,
-          failure, canonicalIds, multicastId);
-      @SuppressWarnings("unchecked")
-      List<Map<String, Object>> results =
-          (List<Map<String, Object>>) jsonResponse.get(JSON_RESULTS);
-      if (results != null) {
-        for (Map<String, Object> jsonResult : results) {
-          String messageId = (String) jsonResult.get(JSON_MESSAGE_ID);
-          String canonicalRegId =
-              (String) jsonResult.get(JSON_CANONICAL_REG_ID);
-          String error = (String) jsonResult.get(JSON_ERROR);
-          Result result = new Result.Builder()
-              .messageId(messageId)
-              .canonicalRegistrationId(canonicalRegId)
-              .errorCode(error)
-              .build();
-          builder.addResult(result);
-        }
+      response = getTransport().request(method, url, "key=" + key, headers,
+          body);
+    } catch (IOException | RuntimeException e) {
+      // so a probe request is not left unfinished
+      if (breaker != null) {
+        breaker.record(false, System.nanoTime() - start);
       }
-      return builder.build();
-    } catch (ParseException e) {
-      throw newIoException(responseBody, e);
-    } catch (CustomParserException e) {
-      throw newIoException(responseBody, e);
+      throw e;
     }
+    if (breaker != null) {
+      breaker.record(response.getStatusCode() < 500,
+          System.nanoTime() - start);
+    }
+    return response;
+  }
+
+  /**
+   * Counts the result of a message to a topic or condition.
+   */
+  private static void recordResult(SenderMetrics metrics, TopicResult result) {
+    metrics.resultsReceived(result.getErrorCodeName(), 1);
   }
 
-  private IOException newIoException(String responseBody, Exception e) {
-    // log exception, as IOException constructor that takes a message and cause
-    // is only available on Java 6
-    String msg = "Error parsing JSON response (" + responseBody + ")";
-    logger.log(Level.WARNING, msg, e);
-    return new IOException(msg + ":" + e);
+  /**
+   * Counts the results of a response by outcome.
+   */
+  private static void recordResults(SenderMetrics metrics,
+      MulticastResult result) {
+    Map<String, int[]> counts = new LinkedHashMap<String, int[]>();
+    int size = result.getResults().size();
+    for (int i = 0; i < size; i++) {
+      String errorCode = result.getErrorCodeName(i);
+      int[] count = counts.get(errorCode);
+      if (count == null) {
+        counts.put(errorCode, count = new int[1]);
+      }
+      count[0]++;
+    }
+    for (Map.Entry<String, int[]> entry : counts.entrySet()) {
+      metrics.resultsReceived(entry.getKey(), entry.getValue()[0]);
+    }
+    if (result.getCanonicalIds() > 0) {
+      metrics.canonicalIdsReceived(result.getCanonicalIds());
+    }
   }
 
-  private static void close(Closeable closeable) {
+  static void close(Closeable closeable) {
     if (closeable != null) {
       try {
         closeable.close();
@@ -398,30 +1796,115 @@ public class Sender {
   }
 
   /**
-   * Sets a JSON field, but only if the value is not {@literal null}.
+   * Writes the JSON request to send a message to many devices, encoded as
+   * UTF-8.
+   *
+   * <p>
+   * Only the registration ids are encoded for each request, the rest of the
+   * message is {@link Message#getJsonFields() encoded once} and copied.
    */
-  private void setJsonField(Map<Object, Object> json, String field,
-      Object value) {
-    if (value != null) {
-      json.put(field, value);
-    }
+  static void writeRequest(Message message, List<String> registrationIds,
+      OutputStream out, int bufferSize) throws IOException {
+    new JsonWriter(out, bufferSize)
+        .beginObject()
+        .members(message.getJsonFields())
+        .optional(JSON_REGISTRATION_IDS, registrationIds)
+        .endObject()
+        .flush();
   }
 
-  private Number getNumber(Map<?, ?> json, String field) {
-    Object value = json.get(field);
-    if (value == null) {
-      throw new CustomParserException("Missing field: " + field);
+  /**
+   * Writes the JSON request to send a message to a single target, such as a
+   * topic, encoded as UTF-8.
+   *
+   * @param name name of the JSON field with the target.
+   * @param target value of the field.
+   */
+  static void writeRequest(Message message, String name, String target,
+      OutputStream out, int bufferSize) throws IOException {
+    new JsonWriter(out, bufferSize)
+        .beginObject()
+        .members(message.getJsonFields())
+        .name(name).value(target)
+        .endObject()
+        .flush();
+  }
+
+  /**
+   * Encodes the JSON members representing a message as UTF-8.
+   */
+  static byte[] encodeFields(Message message) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+    JsonWriter writer = new JsonWriter(out, 256);
+    try {
+      writer.optional(PARAM_TIME_TO_LIVE, message.getTimeToLive())
+          .optional(PARAM_COLLAPSE_KEY, message.getCollapseKey())
+          .optional(PARAM_RESTRICTED_PACKAGE_NAME,
+              message.getRestrictedPackageName())
+          .optional(PARAM_DELAY_WHILE_IDLE, message.isDelayWhileIdle())
+          .optional(PARAM_DRY_RUN, message.isDryRun());
+      Map<String, String> payload = message.getData();
+      if (!payload.isEmpty()) {
+        writer.name(JSON_PAYLOAD).beginObject();
+        for (Map.Entry<String, String> entry : payload.entrySet()) {
+          writer.name(entry.getKey()).value(entry.getValue());
+        }
+        writer.endObject();
+      }
+      Notification notification = message.getNotification();
+      if (notification != null) {
+        Integer badge = notification.getBadge();
+        writer.name(JSON_NOTIFICATION).beginObject()
+            .optional(JSON_NOTIFICATION_BADGE,
+                badge == null ? null : badge.toString())
+            .optional(JSON_NOTIFICATION_BODY, notification.getBody())
+            .optional(JSON_NOTIFICATION_BODY_LOC_ARGS,
+                notification.getBodyLocArgs())
+            .optional(JSON_NOTIFICATION_BODY_LOC_KEY,
+                notification.getBodyLocKey())
+            .optional(JSON_NOTIFICATION_CLICK_ACTION,
+                notification.getClickAction())
+            .optional(JSON_NOTIFICATION_COLOR, notification.getColor())
+            .optional(JSON_NOTIFICATION_ICON, notification.getIcon())
+            .optional(JSON_NOTIFICATION_SOUND, notification.getSound())
+            .optional(JSON_NOTIFICATION_TAG, notification.getTag())
+            .optional(JSON_NOTIFICATION_TITLE, notification.getTitle())
+            .optional(JSON_NOTIFICATION_TITLE_LOC_ARGS,
+                notification.getTitleLocArgs())
+            .optional(JSON_NOTIFICATION_TITLE_LOC_KEY,
+                notification.getTitleLocKey())
+            .endObject();
+      }
+      writer.flush();
+    } catch (IOException e) {
+      // should never happen, as it is an in-memory stream
+      throw new IllegalStateException(e);
     }
-    if (!(value instanceof Number)) {
-      throw new CustomParserException("Field " + field +
-          " does not contain a number: " + value);
+    return out.toByteArray();
+  }
+
+  /**
+   * Estimates the size of a request, so its buffer rarely needs to grow.
+   */
+  static int estimateSize(Message message, List<String> registrationIds) {
+    int size = 64 + message.getJsonFields().length;
+    for (String registrationId : registrationIds) {
+      size += registrationId == null ? 7 : registrationId.length() + 3;
     }
-    return (Number) value;
+    return size;
   }
 
-  class CustomParserException extends RuntimeException {
-    CustomParserException(String message) {
-      super(message);
+  /**
+   * Request body whose buffer can be posted without copying it.
+   */
+  private static final class RequestBuffer extends ByteArrayOutputStream {
+
+    RequestBuffer(int size) {
+      super(size);
+    }
+
+    byte[] getBuffer() {
+      return buf;
     }
   }
 
@@ -439,7 +1922,14 @@ public class Sender {
    * @return the underlying connection.
    *
    * @throws IOException propagated from underlying methods.
+   *
+   * @deprecated messages are no longer sent through this method, so
+   *             overriding it has no effect on them; use
+   *             {@link #setTransport(GcmTransport)} to customize how requests
+   *             are posted, or {@link #getConnection(String)} to customize
+   *             the connections of the default transport.
    */
+  @Deprecated
   protected HttpURLConnection post(String url, String contentType, String body)
       throws IOException {
     if (url == null || contentType == null || body == null) {
@@ -448,25 +1938,107 @@ public class Sender {
     if (!url.startsWith("https://")) {
       logger.warning("URL does not use https: " + url);
     }
-    logger.fine("Sending POST to " + url);
-    logger.finest("POST body: " + body);
-    byte[] bytes = body.getBytes();
+    if (logger.isLoggable(Level.FINEST)) {
+      logger.finest("POST body: " + body);
+    }
+    byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+    return connect("POST", url, "key=" + key,
+        Collections.singletonMap("Content-Type", contentType), bytes, 0,
+        bytes.length);
+  }
+
+  /**
+   * Makes an HTTP request using {@link #getConnection(String)}.
+   *
+   * @param body buffer holding the body of the request, or {@literal null} if
+   *        there is none.
+   */
+  private HttpURLConnection connect(String method, String url,
+      String authorization, Map<String, String> headers, byte[] body,
+      int offset, int length) throws IOException {
+    if (logger.isLoggable(Level.FINE)) {
+      logger.fine("Sending " + method + " to " + url);
+    }
     HttpURLConnection conn = getConnection(url);
-    conn.setDoOutput(true);
+    long timeout = getRetryPolicy().getAttemptTimeout();
+    Deadline deadline = ATTEMPT_DEADLINE.get();
+    if (deadline != null) {
+      // at least 1ms, as 0 means no timeout
+      long remaining =
+          Math.max(1, deadline.getRemaining(TimeUnit.MILLISECONDS));
+      timeout = timeout == 0 ? remaining : Math.min(timeout, remaining);
+    }
+    int attemptTimeout = (int) Math.min(Integer.MAX_VALUE, timeout);
+    conn.setConnectTimeout(minTimeout(connectTimeout, attemptTimeout));
+    conn.setReadTimeout(minTimeout(readTimeout, attemptTimeout));
     conn.setUseCaches(false);
-    conn.setFixedLengthStreamingMode(bytes.length);
-    conn.setRequestMethod("POST");
-    conn.setRequestProperty("Content-Type", contentType);
-    conn.setRequestProperty("Authorization", "key=" + key);
-    OutputStream out = conn.getOutputStream();
-    try {
-      out.write(bytes);
-    } finally {
-      close(out);
+    if (body != null) {
+      conn.setDoOutput(true);
+      conn.setFixedLengthStreamingMode(length);
+    }
+    conn.setRequestMethod(method);
+    for (Map.Entry<String, String> header : headers.entrySet()) {
+      conn.setRequestProperty(header.getKey(), header.getValue());
+    }
+    conn.setRequestProperty("Authorization", authorization);
+    long start = System.nanoTime();
+    conn.connect();
+    getMetrics().connected(System.nanoTime() - start);
+    if (body != null) {
+      OutputStream out = conn.getOutputStream();
+      try {
+        out.write(body, offset, length);
+      } finally {
+        close(out);
+      }
     }
     return conn;
   }
 
+  // 0 means no timeout
+  private static int minTimeout(int timeout1, int timeout2) {
+    return timeout1 == 0 || timeout2 != 0 && timeout2 < timeout1 ?
+        timeout2 : timeout1;
+  }
+
+  /**
+   * Transport that posts requests using {@link #getConnection(String)}, relying
+   * on the JDK's Keep-Alive cache to reuse connections.
+   */
+  private final class ConnectionTransport implements GcmTransport {
+
+    public Response post(String url, String contentType, String authorization,
+        byte[] body, int offset, int length) throws IOException {
+      return read(connect("POST", url, authorization,
+          Collections.singletonMap("Content-Type", contentType), body, offset,
+          length));
+    }
+
+    public Response request(String method, String url, String authorization,
+        Map<String, String> headers, byte[] body) throws IOException {
+      return read(connect(method, url, authorization, headers, body, 0,
+          body == null ? 0 : body.length));
+    }
+
+    private Response read(HttpURLConnection conn) throws IOException {
+      int status = conn.getResponseCode();
+      return new Response() {
+
+        public int getStatusCode() {
+          return status;
+        }
+
+        public String getHeader(String name) {
+          return conn.getHeaderField(name);
+        }
+
+        public InputStream getBody() throws IOException {
+          return status == 200 ? conn.getInputStream() : conn.getErrorStream();
+        }
+      };
+    }
+  }
+
   /**
    * Gets an {@link HttpURLConnection} given an URL.
    */
@@ -474,6 +2046,34 @@ public class Sender {
     return (HttpURLConnection) new URL(url).openConnection();
   }
 
+  /**
+   * Parses the value of a {@code Retry-After} header, which is either a number
+   * of seconds or an HTTP date.
+   *
+   * @return how long to wait, in milliseconds, or {@literal 0} if the value is
+   *         {@literal null}, invalid or in the past.
+   */
+  static long parseRetryAfter(String value, long now) {
+    if (value == null) {
+      return 0;
+    }
+    value = value.trim();
+    try {
+      long seconds = Long.parseLong(value);
+      return seconds <= 0 ? 0 : TimeUnit.SECONDS.toMillis(seconds);
+    } catch (NumberFormatException e) {
+      // not a number, so it should be a date
+    }
+    try {
+      long date = ZonedDateTime.parse(value,
+          DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+      return Math.max(0, date - now);
+    } catch (DateTimeParseException e) {
+      logger.fine("Invalid Retry-After header: " + value);
+      return 0;
+    }
+  }
+
   /**
    * Convenience method to convert an InputStream to a String.
    * <p>
@@ -519,6 +2119,29 @@ public class Sender {
     return argument;
   }
 
+  /**
+   * Lazily creates the executor shared by senders without one.
+   */
+  private static final class DefaultExecutorHolder {
+
+    static final ScheduledExecutorService EXECUTOR =
+        new ScheduledThreadPoolExecutor(
+            Math.max(2, Runtime.getRuntime().availableProcessors()),
+            newDaemonThreadFactory("gcm-sender-"));
+  }
+
+  /**
+   * Creates a factory of daemon threads named with the given prefix.
+   */
+  static ThreadFactory newDaemonThreadFactory(final String prefix) {
+    final AtomicInteger count = new AtomicInteger();
+    return runnable -> {
+      Thread thread = new Thread(runnable, prefix + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    };
+  }
+
   void sleep(long millis) {
     try {
       Thread.sleep(millis);
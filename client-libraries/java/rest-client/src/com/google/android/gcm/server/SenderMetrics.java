@@ -0,0 +1,115 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+/**
+ * Listener of the requests made by a {@link Sender}, used to feed a metrics
+ * library with timers, counters and histograms.
+ *
+ * <p>
+ * All methods do nothing by default, so implementations only override the
+ * events they care about. Methods are called on the thread making the
+ * request, and so must be thread-safe and should return quickly. Durations
+ * are in nanoseconds. Example:
+ *
+ * <pre><code>
+ * sender.setMetrics(new SenderMetrics() {
+ *   public void responseReceived(int status, long nanos) {
+ *     registry.timer("gcm.ttfb", "status", String.valueOf(status))
+ *         .record(nanos, TimeUnit.NANOSECONDS);
+ *   }
+ * });
+ * </code></pre>
+ */
+public interface SenderMetrics {
+
+  /**
+   * Metrics that ignore all events, used when none are set.
+   */
+  SenderMetrics NONE = new SenderMetrics() {};
+
+  /**
+   * Called when the JSON request of a message has been written.
+   *
+   * @param registrationIds number of devices in the request.
+   * @param bytes size of the request body.
+   * @param nanos time spent writing it.
+   */
+  default void requestSerialized(int registrationIds, int bytes, long nanos) {
+  }
+
+  /**
+   * Called when a connection to GCM has been opened; only reported when the
+   * requests are made with an {@link java.net.HttpURLConnection}.
+   *
+   * @param nanos time spent connecting.
+   */
+  default void connected(long nanos) {
+  }
+
+  /**
+   * Called when the status of a response has been received.
+   *
+   * @param status HTTP status code.
+   * @param nanos time since the request started being posted (time to first
+   *        byte).
+   */
+  default void responseReceived(int status, long nanos) {
+  }
+
+  /**
+   * Called when a request could not be posted, or its response could not be
+   * read.
+   */
+  default void requestFailed(Exception e) {
+  }
+
+  /**
+   * Called when the body of a successful response has been parsed.
+   *
+   * @param nanos time spent reading and parsing it.
+   */
+  default void responseParsed(long nanos) {
+  }
+
+  /**
+   * Called for each outcome found in a successful response.
+   *
+   * @param errorCode error code, such as {@link Constants#ERROR_UNAVAILABLE},
+   *        or {@literal null} for the messages that were sent.
+   * @param count number of devices with that outcome.
+   */
+  default void resultsReceived(String errorCode, int count) {
+  }
+
+  /**
+   * Called when a successful response contains canonical registration ids.
+   *
+   * @param count number of canonical ids.
+   */
+  default void canonicalIdsReceived(int count) {
+  }
+
+  /**
+   * Called before a message is retried.
+   *
+   * @param retry number of the retry, starting at {@literal 1}.
+   * @param delay delay before the retry, in milliseconds.
+   */
+  default void retried(int retry, long delay) {
+  }
+
+}
@@ -0,0 +1,465 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import static com.google.android.gcm.server.Constants.ERROR_QUOTA_EXCEEDED;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Pool of {@link Sender senders}, each bound to the API key of a GCM project,
+ * that routes each message either to the sender of a given project or to the
+ * next one in a weighted round-robin.
+ *
+ * <p>
+ * The health of each key is tracked from the responses of GCM: a key whose
+ * request was rejected as unauthorized (401), or that exceeded its quota
+ * (429, or {@link Constants#ERROR_QUOTA_EXCEEDED} results), is ejected for an
+ * {@link Builder#ejectTime(long, TimeUnit) eject time} that doubles while it
+ * keeps failing. Messages routed to an ejected key fail fast with a
+ * {@link RateLimitedException}, while round-robin messages skip it, and are
+ * sent with the next key if a key fails that way.
+ *
+ * <p>
+ * Registration ids are bound to the project that issued them, so round-robin
+ * only suits keys that can send to the same devices, such as topics shared
+ * by several keys of one project. This class is thread-safe. Example:
+ *
+ * <pre><code>
+ * SenderPool pool = new SenderPool.Builder()
+ *    .add("news", new Sender(newsKey))
+ *    .add("sports", new Sender(sportsKey), 2)
+ *    .build();
+ * MulticastResult result = pool.send("news", message, regIds, 5);
+ * </code></pre>
+ */
+public final class SenderPool {
+
+  private static final Logger logger =
+      Logger.getLogger(SenderPool.class.getName());
+
+  private final Map<String, Member> members;
+  // members in round-robin order, each appearing as many times as its weight
+  private final Member[] schedule;
+  private final AtomicInteger cursor = new AtomicInteger();
+  private final long ejectTime;
+  private final long maxEjectTime;
+  private final LongSupplier ticker;
+
+  public static final class Builder {
+
+    // optional parameters
+    private final Map<String, Member> members =
+        new LinkedHashMap<String, Member>();
+    private long ejectTime = TimeUnit.SECONDS.toNanos(30);
+    private long maxEjectTime = TimeUnit.MINUTES.toNanos(10);
+    private LongSupplier ticker = System::nanoTime;
+
+    /**
+     * Adds the sender of a project, with a round-robin weight of
+     * {@literal 1}.
+     *
+     * @param name name of the project, used to route messages to it.
+     * @param sender sender bound to the API key of the project.
+     */
+    public Builder add(String name, Sender sender) {
+      return add(name, sender, 1);
+    }
+
+    /**
+     * Adds the sender of a project.
+     *
+     * @param name name of the project, used to route messages to it.
+     * @param sender sender bound to the API key of the project.
+     * @param weight share of the round-robin messages sent with it, relative
+     *        to the other senders, or {@literal 0} to only send the messages
+     *        routed to it.
+     */
+    public Builder add(String name, Sender sender, int weight) {
+      if (weight < 0) {
+        throw new IllegalArgumentException("weight can not be negative");
+      }
+      if (members.containsKey(Sender.nonNull(name))) {
+        throw new IllegalArgumentException("duplicate sender: " + name);
+      }
+      members.put(name, new Member(name, Sender.nonNull(sender), weight));
+      return this;
+    }
+
+    /**
+     * Sets for how long a key is ejected the first time it fails (default is
+     * {@literal 30} seconds).
+     */
+    public Builder ejectTime(long value, TimeUnit unit) {
+      if (value <= 0) {
+        throw new IllegalArgumentException("time must be positive");
+      }
+      ejectTime = unit.toNanos(value);
+      return this;
+    }
+
+    /**
+     * Sets for how long a key can be ejected after failing several times in
+     * a row (default is {@literal 10} minutes).
+     */
+    public Builder maxEjectTime(long value, TimeUnit unit) {
+      if (value <= 0) {
+        throw new IllegalArgumentException("time must be positive");
+      }
+      maxEjectTime = unit.toNanos(value);
+      return this;
+    }
+
+    Builder ticker(LongSupplier value) {
+      ticker = Sender.nonNull(value);
+      return this;
+    }
+
+    /**
+     * @throws IllegalStateException if no sender was added, or none has a
+     *         positive weight, so round-robin messages could not be sent.
+     */
+    public SenderPool build() {
+      if (members.isEmpty()) {
+        throw new IllegalStateException("no sender added");
+      }
+      for (Member member : members.values()) {
+        if (member.weight > 0) {
+          return new SenderPool(this);
+        }
+      }
+      throw new IllegalStateException("no sender with a positive weight");
+    }
+  }
+
+  private SenderPool(Builder builder) {
+    members = Collections.unmodifiableMap(
+        new LinkedHashMap<String, Member>(builder.members));
+    ejectTime = builder.ejectTime;
+    maxEjectTime = Math.max(builder.maxEjectTime, ejectTime);
+    ticker = builder.ticker;
+    schedule = schedule(members.values());
+  }
+
+  /**
+   * Interleaves the members by weight, so consecutive messages are spread
+   * evenly (smooth weighted round-robin).
+   */
+  private static Member[] schedule(Iterable<Member> members) {
+    List<Member> weighted = new ArrayList<Member>();
+    int total = 0;
+    for (Member member : members) {
+      if (member.weight > 0) {
+        weighted.add(member);
+        total += member.weight;
+      }
+    }
+    Member[] schedule = new Member[total];
+    int[] current = new int[weighted.size()];
+    for (int i = 0; i < total; i++) {
+      int best = 0;
+      for (int j = 0; j < current.length; j++) {
+        current[j] += weighted.get(j).weight;
+        if (current[j] > current[best]) {
+          best = j;
+        }
+      }
+      current[best] -= total;
+      schedule[i] = weighted.get(best);
+    }
+    return schedule;
+  }
+
+  /**
+   * Sends a message with the next key in the round-robin that is not
+   * ejected, trying the next ones if it is found unhealthy.
+   *
+   * @return result of {@link Sender#send(Message, List, int)}.
+   *
+   * @throws RateLimitedException if all keys are ejected.
+   * @throws IOException as {@link Sender#send(Message, List, int)}.
+   */
+  public MulticastResult send(Message message, List<String> regIds,
+      int retries) throws IOException {
+    List<Member> tried = new ArrayList<Member>();
+    for (;;) {
+      Member member = next(tried);
+      if (member == null) {
+        throw rejection();
+      }
+      tried.add(member);
+      try {
+        return send(member, message, regIds, retries);
+      } catch (IOException e) {
+        if (getKeyFailure(e) == null) {
+          throw e;
+        }
+      }
+    }
+  }
+
+  /**
+   * Sends a message with the key of a project.
+   *
+   * @param name name of the project.
+   *
+   * @return result of {@link Sender#send(Message, List, int)}.
+   *
+   * @throws IllegalArgumentException if there is no project with that name.
+   * @throws RateLimitedException if its key is ejected.
+   * @throws IOException as {@link Sender#send(Message, List, int)}.
+   */
+  public MulticastResult send(String name, Message message,
+      List<String> regIds, int retries) throws IOException {
+    Member member = get(name);
+    if (member.isEjected(ticker.getAsLong())) {
+      throw rejection(member);
+    }
+    return send(member, message, regIds, retries);
+  }
+
+  private MulticastResult send(Member member, Message message,
+      List<String> regIds, int retries) throws IOException {
+    MulticastResult result;
+    try {
+      result = member.sender.send(message, regIds, retries);
+    } catch (IOException e) {
+      record(member, null, e);
+      throw e;
+    }
+    record(member, result, null);
+    return result;
+  }
+
+  /**
+   * Sends a message with the next key in the round-robin that is not
+   * ejected, without blocking the calling thread; it works like
+   * {@link #send(Message, List, int)}.
+   *
+   * @return future result of {@link Sender#sendAsync(Message, List, int)}.
+   */
+  public CompletableFuture<MulticastResult> sendAsync(Message message,
+      List<String> regIds, int retries) {
+    return sendAsync(message, regIds, retries, new ArrayList<Member>());
+  }
+
+  private CompletableFuture<MulticastResult> sendAsync(Message message,
+      List<String> regIds, int retries, List<Member> tried) {
+    Member member = next(tried);
+    if (member == null) {
+      return failed(rejection());
+    }
+    tried.add(member);
+    return sendAsync(member, message, regIds, retries)
+        .handle((result, e) -> {
+          Throwable cause = unwrap(e);
+          if (cause != null && getKeyFailure(cause) != null) {
+            return sendAsync(message, regIds, retries, tried);
+          }
+          return cause == null ? CompletableFuture.completedFuture(result) :
+              SenderPool.<MulticastResult>failed(cause);
+        })
+        .thenCompose(future -> future);
+  }
+
+  /**
+   * Sends a message with the key of a project, without blocking the calling
+   * thread; it works like {@link #send(String, Message, List, int)}.
+   *
+   * @return future result of {@link Sender#sendAsync(Message, List, int)}.
+   *
+   * @throws IllegalArgumentException if there is no project with that name.
+   */
+  public CompletableFuture<MulticastResult> sendAsync(String name,
+      Message message, List<String> regIds, int retries) {
+    Member member = get(name);
+    if (member.isEjected(ticker.getAsLong())) {
+      return failed(rejection(member));
+    }
+    return sendAsync(member, message, regIds, retries);
+  }
+
+  private CompletableFuture<MulticastResult> sendAsync(Member member,
+      Message message, List<String> regIds, int retries) {
+    return member.sender.sendAsync(message, regIds, retries)
+        .whenComplete((result, e) -> record(member, result, unwrap(e)));
+  }
+
+  /**
+   * Gets the sender of a project.
+   *
+   * @throws IllegalArgumentException if there is no project with that name.
+   */
+  public Sender getSender(String name) {
+    return get(name).sender;
+  }
+
+  /**
+   * Checks whether the key of a project is ejected.
+   *
+   * @throws IllegalArgumentException if there is no project with that name.
+   */
+  public boolean isEjected(String name) {
+    return get(name).isEjected(ticker.getAsLong());
+  }
+
+  private Member get(String name) {
+    Member member = members.get(Sender.nonNull(name));
+    if (member == null) {
+      throw new IllegalArgumentException("unknown sender: " + name);
+    }
+    return member;
+  }
+
+  /**
+   * Gets the next member in the round-robin that is not ejected nor tried.
+   */
+  private Member next(List<Member> tried) {
+    long now = ticker.getAsLong();
+    for (int i = 0; i < schedule.length; i++) {
+      Member member = schedule[
+          Math.floorMod(cursor.getAndIncrement(), schedule.length)];
+      if (!member.isEjected(now) && !tried.contains(member)) {
+        return member;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Creates the exception of a message that could not be sent with any of
+   * some keys, to be retried once the first of them is back.
+   */
+  private RateLimitedException rejection(Member[] candidates,
+      String message) {
+    long now = ticker.getAsLong();
+    long retryAfter = Long.MAX_VALUE;
+    for (Member member : candidates) {
+      if (member.isEjected(now)) {
+        retryAfter = Math.min(retryAfter, member.ejectedUntil - now);
+      }
+    }
+    return new RateLimitedException(message, retryAfter == Long.MAX_VALUE ?
+        0 : TimeUnit.NANOSECONDS.toMillis(retryAfter));
+  }
+
+  private RateLimitedException rejection(Member member) {
+    return rejection(new Member[] {member},
+        "key of " + member.name + " is ejected");
+  }
+
+  private RateLimitedException rejection() {
+    return rejection(schedule, "all keys are ejected");
+  }
+
+  /**
+   * Updates the health of a key from the outcome of a request.
+   */
+  private void record(Member member, MulticastResult result, Throwable e) {
+    if (e != null) {
+      InvalidRequestException failure = getKeyFailure(e);
+      if (failure != null) {
+        eject(member, failure.getMessage(), failure.getRetryAfter());
+      }
+    } else if (result.getIndexes(ERROR_QUOTA_EXCEEDED).length > 0) {
+      eject(member, ERROR_QUOTA_EXCEEDED, result.getRetryAfter());
+    } else {
+      member.failures.set(0);
+    }
+  }
+
+  private void eject(Member member, String reason, long retryAfter) {
+    int failures = member.failures.incrementAndGet();
+    long time = ejectTime;
+    for (int i = 1; i < failures && time < maxEjectTime; i++) {
+      time *= 2;
+    }
+    time = Math.max(Math.min(time, maxEjectTime),
+        TimeUnit.MILLISECONDS.toNanos(retryAfter));
+    member.ejectedUntil = ticker.getAsLong() + time;
+    member.ejected = true;
+    if (logger.isLoggable(Level.WARNING)) {
+      logger.warning("Ejecting key of " + member.name + " for " +
+          TimeUnit.NANOSECONDS.toMillis(time) + "ms after " + reason);
+    }
+  }
+
+  /**
+   * Gets the error of a request that failed because of its key, rather than
+   * the message or the network, which is either thrown by the sender or the
+   * cause of the exception thrown after its last retry.
+   *
+   * @return the error, or {@literal null} if it is not a failure of the key.
+   */
+  private static InvalidRequestException getKeyFailure(Throwable e) {
+    Throwable error = e instanceof InvalidRequestException ? e : e.getCause();
+    if (!(error instanceof InvalidRequestException)) {
+      return null;
+    }
+    int status = ((InvalidRequestException) error).getHttpStatusCode();
+    return status == 401 || status == 429 ?
+        (InvalidRequestException) error : null;
+  }
+
+  private static Throwable unwrap(Throwable e) {
+    return e instanceof CompletionException && e.getCause() != null ?
+        e.getCause() : e;
+  }
+
+  private static <T> CompletableFuture<T> failed(Throwable e) {
+    CompletableFuture<T> future = new CompletableFuture<T>();
+    future.completeExceptionally(e);
+    return future;
+  }
+
+  /**
+   * Sender of a project, and the health of its key.
+   */
+  private static final class Member {
+
+    final String name;
+    final Sender sender;
+    final int weight;
+    // failures in a row
+    final AtomicInteger failures = new AtomicInteger();
+    // in the ticker's nanoseconds
+    volatile long ejectedUntil;
+    volatile boolean ejected;
+
+    Member(String name, Sender sender, int weight) {
+      this.name = name;
+      this.sender = sender;
+      this.weight = weight;
+    }
+
+    boolean isEjected(long now) {
+      return ejected && ejectedUntil - now > 0;
+    }
+  }
+
+}
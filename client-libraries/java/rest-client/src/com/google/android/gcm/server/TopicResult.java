@@ -0,0 +1,88 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import java.io.Serializable;
+
+/**
+ * Result of a GCM message sent to a topic or to a condition on topics.
+ *
+ * <p>
+ * If GCM accepted the message, {@link #getMessageId()} returns the id it gave
+ * to the message, which is the same for all subscribers, and
+ * {@link #getErrorCodeName()} returns {@literal null}; otherwise,
+ * {@link #getMessageId()} returns {@literal null} and
+ * {@link #getErrorCodeName()} returns the code of the error, such as
+ * {@link Constants#ERROR_TOPICS_MESSAGE_RATE_EXCEEDED}.
+ */
+public final class TopicResult implements Serializable {
+
+  private final String messageId;
+  private final String errorCode;
+
+  public static final class Builder {
+
+    // optional parameters
+    private String messageId;
+    private String errorCode;
+
+    public Builder messageId(String value) {
+      messageId = value;
+      return this;
+    }
+
+    public Builder errorCode(String value) {
+      errorCode = value;
+      return this;
+    }
+
+    public TopicResult build() {
+      return new TopicResult(this);
+    }
+  }
+
+  private TopicResult(Builder builder) {
+    messageId = builder.messageId;
+    errorCode = builder.errorCode;
+  }
+
+  /**
+   * Gets the message id, if any.
+   */
+  public String getMessageId() {
+    return messageId;
+  }
+
+  /**
+   * Gets the error code, if any.
+   */
+  public String getErrorCodeName() {
+    return errorCode;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder builder = new StringBuilder("TopicResult(");
+    if (messageId != null) {
+      builder.append(" messageId=").append(messageId);
+    }
+    if (errorCode != null) {
+      builder.append(" errorCode=").append(errorCode);
+    }
+    return builder.append(" )").toString();
+  }
+
+}
@@ -0,0 +1,379 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Receiver of the messages that devices send upstream through CCS, which
+ * hands them to an {@link UpstreamHandler} on a pool of worker threads.
+ *
+ * <p>
+ * Each device is assigned to one worker, so its messages are handled in
+ * order, while messages from different devices are handled concurrently.
+ * A message is acknowledged to CCS once it is handled, and ACKs are written
+ * to each connection in batches. CCS delivers again the messages whose ACK
+ * it did not get, for instance because their connection was lost; messages
+ * whose id was seen from the same device within the
+ * {@link Builder#dedupeWindow(long, TimeUnit) dedupe window} are
+ * acknowledged again without being handled.
+ *
+ * <p>
+ * When the queue of a worker is full, new messages for it are dropped
+ * without being acknowledged, so CCS delivers them again later.
+ *
+ * <p>
+ * The dispatcher is set on the {@link CcsConnection.Builder builder} of the
+ * connections it receives messages from; without one, messages are
+ * acknowledged as soon as they are received, and ignored. This class is
+ * thread-safe. Example:
+ *
+ * <pre><code>
+ * UpstreamDispatcher dispatcher =
+ *    new UpstreamDispatcher.Builder(handler).build();
+ * CcsConnection connection = new CcsConnection.Builder(senderId, key)
+ *    .upstreamDispatcher(dispatcher)
+ *    .build();
+ * </code></pre>
+ */
+public final class UpstreamDispatcher implements Closeable {
+
+  private static final Logger logger =
+      Logger.getLogger(UpstreamDispatcher.class.getName());
+
+  private static final ThreadFactory THREAD_FACTORY =
+      Sender.newDaemonThreadFactory("gcm-upstream-");
+
+  // queued by close() to stop the workers
+  private static final Delivery CLOSE = new Delivery(null, null, 0);
+
+  private final UpstreamHandler handler;
+  private final List<BlockingQueue<Delivery>> queues;
+  private final List<Thread> workers;
+  private final int ackBatchSize;
+  private final long dedupeWindow;
+  private final LongSupplier ticker;
+  // deliveries by device and message id, in the order they were received
+  private final Map<String, Delivery> seen =
+      new LinkedHashMap<String, Delivery>();
+  // deliveries handled, waiting for their ACK to be written
+  private final ConcurrentLinkedQueue<Delivery> acks =
+      new ConcurrentLinkedQueue<Delivery>();
+  private final AtomicInteger ackCount = new AtomicInteger();
+  private final ScheduledExecutorService flusher;
+  private volatile boolean closed;
+
+  public static final class Builder {
+
+    // required parameters
+    private final UpstreamHandler handler;
+
+    // optional parameters
+    private int workers = Runtime.getRuntime().availableProcessors();
+    private int capacity = 1000;
+    private int ackBatchSize = 50;
+    private long ackInterval = 50;
+    private long dedupeWindow = TimeUnit.MINUTES.toNanos(5);
+    private LongSupplier ticker = System::nanoTime;
+
+    /**
+     * @param handler handler of the messages.
+     */
+    public Builder(UpstreamHandler handler) {
+      this.handler = Sender.nonNull(handler);
+    }
+
+    /**
+     * Sets the number of worker threads (default is the number of
+     * processors).
+     */
+    public Builder workers(int value) {
+      workers = positive(value);
+      return this;
+    }
+
+    /**
+     * Sets the number of messages that can be queued for each worker before
+     * new ones are dropped (default is {@literal 1000}).
+     */
+    public Builder capacity(int value) {
+      capacity = positive(value);
+      return this;
+    }
+
+    /**
+     * Sets the number of ACKs that are written as soon as they are ready,
+     * without waiting for the ACK interval (default is {@literal 50}); it
+     * should be lower than the {@literal 100} messages CCS sends on a
+     * connection before waiting for their ACKs.
+     */
+    public Builder ackBatchSize(int value) {
+      ackBatchSize = positive(value);
+      return this;
+    }
+
+    /**
+     * Sets how often the ACKs ready are written (default is every
+     * {@literal 50} milliseconds).
+     */
+    public Builder ackInterval(long value, TimeUnit unit) {
+      if (value <= 0) {
+        throw new IllegalArgumentException("interval must be positive");
+      }
+      ackInterval = unit.toMillis(value);
+      return this;
+    }
+
+    /**
+     * Sets for how long the id of a message is remembered, with its device,
+     * to detect the messages delivered again (default is {@literal 5} minutes).
+     */
+    public Builder dedupeWindow(long value, TimeUnit unit) {
+      if (value < 0) {
+        throw new IllegalArgumentException("time can not be negative");
+      }
+      dedupeWindow = unit.toNanos(value);
+      return this;
+    }
+
+    Builder ticker(LongSupplier value) {
+      ticker = Sender.nonNull(value);
+      return this;
+    }
+
+    /**
+     * Starts the worker threads.
+     */
+    public UpstreamDispatcher build() {
+      return new UpstreamDispatcher(this);
+    }
+
+    private static int positive(int value) {
+      if (value <= 0) {
+        throw new IllegalArgumentException("value must be positive");
+      }
+      return value;
+    }
+  }
+
+  private UpstreamDispatcher(Builder builder) {
+    handler = builder.handler;
+    ackBatchSize = builder.ackBatchSize;
+    dedupeWindow = builder.dedupeWindow;
+    ticker = builder.ticker;
+    queues = new ArrayList<BlockingQueue<Delivery>>(builder.workers);
+    workers = new ArrayList<Thread>(builder.workers);
+    for (int i = 0; i < builder.workers; i++) {
+      BlockingQueue<Delivery> queue =
+          new ArrayBlockingQueue<Delivery>(builder.capacity);
+      queues.add(queue);
+      workers.add(THREAD_FACTORY.newThread(() -> work(queue)));
+    }
+    for (Thread worker : workers) {
+      worker.start();
+    }
+    flusher = Executors.newSingleThreadScheduledExecutor(THREAD_FACTORY);
+    flusher.scheduleWithFixedDelay(this::flushAcks, builder.ackInterval,
+        builder.ackInterval, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Queues a message received on a connection for its worker.
+   */
+  void dispatch(CcsConnection connection, UpstreamMessage message) {
+    long now = ticker.getAsLong();
+    Delivery delivery = new Delivery(connection, message, now + dedupeWindow);
+    Delivery previous;
+    synchronized (seen) {
+      expire(now);
+      previous = seen.putIfAbsent(delivery.key, delivery);
+    }
+    if (previous != null) {
+      if (logger.isLoggable(Level.FINE)) {
+        logger.fine("Received again " + message);
+      }
+      // the ACK of one still being handled will be sent when it is done
+      if (previous.handled) {
+        ack(delivery);
+      }
+      return;
+    }
+    BlockingQueue<Delivery> queue = queues.get(
+        Math.floorMod(message.getFrom().hashCode(), queues.size()));
+    if (closed || !queue.offer(delivery)) {
+      logger.warning("Dropping " + message + ", as the " +
+          (closed ? "dispatcher is closed" : "queue is full"));
+      // so it is handled when CCS delivers it again
+      synchronized (seen) {
+        seen.remove(delivery.key, delivery);
+      }
+    }
+  }
+
+  /**
+   * Removes the message ids whose dedupe window ended.
+   */
+  private void expire(long now) {
+    // in the order they expire, as they all have the same window
+    for (Iterator<Delivery> iterator = seen.values().iterator();
+        iterator.hasNext();) {
+      if (iterator.next().expiration - now > 0) {
+        break;
+      }
+      iterator.remove();
+    }
+  }
+
+  /**
+   * Gets the number of message ids remembered to detect the messages
+   * delivered again.
+   */
+  int getSeenCount() {
+    synchronized (seen) {
+      expire(ticker.getAsLong());
+      return seen.size();
+    }
+  }
+
+  /**
+   * Handles the messages queued, and stops the worker threads once they are
+   * done, writing the last ACKs.
+   *
+   * <p>
+   * Messages received afterwards are dropped.
+   */
+  public void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    boolean interrupted = false;
+    for (int i = 0; i < workers.size(); i++) {
+      for (;;) {
+        try {
+          queues.get(i).put(CLOSE);
+          workers.get(i).join();
+          break;
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+    }
+    flusher.shutdown();
+    flushAcks();
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Body of the worker threads.
+   */
+  private void work(BlockingQueue<Delivery> queue) {
+    for (;;) {
+      Delivery delivery;
+      try {
+        delivery = queue.take();
+      } catch (InterruptedException e) {
+        logger.warning("Worker interrupted, stopping");
+        return;
+      }
+      if (delivery == CLOSE) {
+        return;
+      }
+      try {
+        handler.handle(delivery.message);
+      } catch (RuntimeException e) {
+        logger.log(Level.SEVERE, "Could not handle " + delivery.message, e);
+      }
+      delivery.handled = true;
+      ack(delivery);
+    }
+  }
+
+  private void ack(Delivery delivery) {
+    acks.add(delivery);
+    if (ackCount.incrementAndGet() >= ackBatchSize) {
+      flushAcks();
+    }
+  }
+
+  /**
+   * Writes the ACKs ready, grouped by the connection they are sent on.
+   */
+  private void flushAcks() {
+    Map<CcsConnection, List<UpstreamMessage>> batches =
+        new LinkedHashMap<CcsConnection, List<UpstreamMessage>>();
+    Delivery delivery;
+    while ((delivery = acks.poll()) != null) {
+      ackCount.decrementAndGet();
+      batches.computeIfAbsent(delivery.connection,
+          k -> new ArrayList<UpstreamMessage>()).add(delivery.message);
+    }
+    for (Map.Entry<CcsConnection, List<UpstreamMessage>> batch :
+        batches.entrySet()) {
+      try {
+        batch.getKey().sendAcks(batch.getValue());
+      } catch (IOException e) {
+        // CCS will deliver them again, and they will be acknowledged then
+        logger.log(Level.FINE, "Could not acknowledge " +
+            batch.getValue().size() + " messages", e);
+      }
+    }
+  }
+
+  /**
+   * Message received on a connection.
+   */
+  private static final class Delivery {
+
+    final CcsConnection connection;
+    final UpstreamMessage message;
+    // ids are chosen by each app, so they are only unique per device; XML
+    // has no NUL characters, so it can not be part of either
+    final String key;
+    // in the ticker's nanoseconds
+    final long expiration;
+    volatile boolean handled;
+
+    Delivery(CcsConnection connection, UpstreamMessage message,
+        long expiration) {
+      this.connection = connection;
+      this.message = message;
+      key = message == null ? null :
+          message.getFrom() + '\0' + message.getMessageId();
+      this.expiration = expiration;
+    }
+  }
+
+}
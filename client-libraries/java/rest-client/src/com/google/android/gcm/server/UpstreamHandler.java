@@ -0,0 +1,41 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+/**
+ * Handler of the messages sent by devices, called by an
+ * {@link UpstreamDispatcher}.
+ *
+ * <p>
+ * Messages from the same device are handled one at a time, in the order CCS
+ * delivered them, but messages from different devices are handled
+ * concurrently, so implementations must be thread-safe. Example:
+ *
+ * <pre><code>
+ * UpstreamDispatcher dispatcher = new UpstreamDispatcher.Builder(
+ *    message -&gt; store.save(message.getFrom(), message.getData()))
+ *    .build();
+ * </code></pre>
+ */
+public interface UpstreamHandler {
+
+  /**
+   * Handles a message; the message is acknowledged to CCS when it returns,
+   * even if it throws a {@link RuntimeException}.
+   */
+  void handle(UpstreamMessage message);
+
+}
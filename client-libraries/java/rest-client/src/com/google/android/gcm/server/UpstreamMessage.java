@@ -0,0 +1,78 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Message sent by a device to the sender through CCS.
+ *
+ * <p>
+ * Instances are immutable.
+ */
+public final class UpstreamMessage {
+
+  private final String from;
+  private final String messageId;
+  private final String category;
+  private final Map<String, String> data;
+
+  UpstreamMessage(String from, String messageId, String category,
+      Map<String, String> data) {
+    this.from = from;
+    this.messageId = messageId;
+    this.category = category;
+    this.data = data == null ? Collections.<String, String>emptyMap() :
+        Collections.unmodifiableMap(data);
+  }
+
+  /**
+   * Gets the registration id of the device that sent the message.
+   */
+  public String getFrom() {
+    return from;
+  }
+
+  /**
+   * Gets the id given to the message by the device, which is the same when
+   * CCS delivers it again.
+   */
+  public String getMessageId() {
+    return messageId;
+  }
+
+  /**
+   * Gets the package name of the application that sent the message, if any.
+   */
+  public String getCategory() {
+    return category;
+  }
+
+  /**
+   * Gets the payload of the message, which is empty if it has none.
+   */
+  public Map<String, String> getData() {
+    return data;
+  }
+
+  @Override
+  public String toString() {
+    return "UpstreamMessage(from=" + from + ", messageId=" + messageId +
+        ", category=" + category + ", data=" + data + ")";
+  }
+
+}
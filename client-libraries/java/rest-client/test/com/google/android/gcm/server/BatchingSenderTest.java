@@ -0,0 +1,298 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class BatchingSenderTest {
+
+  private final Message message =
+      new Message.Builder().addData("k", "v").build();
+  private final List<List<String>> sent = new ArrayList<List<String>>();
+
+  private Sender sender;
+  private BatchingSender batching;
+
+  @Before
+  public void setFixtures() {
+    sender = mock(Sender.class);
+    // each device gets its registration id as message id
+    doAnswer(new Answer<CompletableFuture<MulticastResult>>() {
+      public CompletableFuture<MulticastResult> answer(
+          InvocationOnMock invocation) {
+        @SuppressWarnings("unchecked")
+        List<String> regIds = (List<String>) invocation.getArguments()[1];
+        synchronized (sent) {
+          sent.add(new ArrayList<String>(regIds));
+        }
+        MulticastResult.Builder builder =
+            new MulticastResult.Builder(regIds.size(), 0, 0, 42);
+        for (String regId : regIds) {
+          builder.addResult(new Result.Builder().messageId(regId).build());
+        }
+        return CompletableFuture.completedFuture(builder.build());
+      }
+    }).when(sender).sendAsync(any(Message.class), anyListOf(String.class),
+        anyInt());
+  }
+
+  @After
+  public void close() {
+    if (batching != null) {
+      batching.close();
+    }
+  }
+
+  @Test
+  public void testSend_flushedWhenFull() throws Exception {
+    batching = new BatchingSender.Builder(sender, 5)
+        .batchSize(3)
+        .lingerTime(1, TimeUnit.HOURS)
+        .build();
+    List<CompletableFuture<Result>> results =
+        new ArrayList<CompletableFuture<Result>>();
+    for (int i = 0; i < 3; i++) {
+      // equal messages are coalesced, even if they are not the same
+      results.add(batching.send(
+          new Message.Builder().addData("k", "v").build(), "regId" + i));
+    }
+    for (int i = 0; i < 3; i++) {
+      assertEquals("regId" + i,
+          results.get(i).get(10, TimeUnit.SECONDS).getMessageId());
+    }
+    assertEquals(Arrays.asList(Arrays.asList("regId0", "regId1", "regId2")),
+        sent);
+    verify(sender).sendAsync(eq(message), anyListOf(String.class), eq(5));
+  }
+
+  @Test
+  public void testSend_flushedAfterLingerTime() throws Exception {
+    batching = new BatchingSender.Builder(sender, 5)
+        .lingerTime(5, TimeUnit.MILLISECONDS)
+        .build();
+    CompletableFuture<Result> result = batching.send(message, "4");
+    assertEquals("4", result.get(10, TimeUnit.SECONDS).getMessageId());
+    assertEquals(Arrays.asList(Arrays.asList("4")), sent);
+  }
+
+  @Test
+  public void testSend_differentMessages() throws Exception {
+    batching = new BatchingSender.Builder(sender, 5)
+        .lingerTime(1, TimeUnit.HOURS)
+        .build();
+    Message other = new Message.Builder().addData("k", "other").build();
+    CompletableFuture<Result> result1 = batching.send(message, "4");
+    CompletableFuture<Result> result2 = batching.send(other, "8");
+    CompletableFuture<Result> result3 = batching.send(message, "15");
+    assertFalse(result1.isDone());
+    // queued messages are sent when closed
+    batching.close();
+    assertEquals("4", result1.get(10, TimeUnit.SECONDS).getMessageId());
+    assertEquals("8", result2.get(10, TimeUnit.SECONDS).getMessageId());
+    assertEquals("15", result3.get(10, TimeUnit.SECONDS).getMessageId());
+    verify(sender).sendAsync(message, Arrays.asList("4", "15"), 5);
+    verify(sender).sendAsync(other, Arrays.asList("8"), 5);
+  }
+
+  @Test
+  public void testSend_failure() throws Exception {
+    IOException exception = new IOException();
+    CompletableFuture<MulticastResult> failed =
+        new CompletableFuture<MulticastResult>();
+    failed.completeExceptionally(exception);
+    doAnswer(invocation -> failed).when(sender).sendAsync(any(Message.class),
+        anyListOf(String.class), anyInt());
+    batching = new BatchingSender.Builder(sender, 5).batchSize(2).build();
+    CompletableFuture<Result> result1 = batching.send(message, "4");
+    CompletableFuture<Result> result2 = batching.send(message, "8");
+    for (CompletableFuture<Result> result : Arrays.asList(result1, result2)) {
+      try {
+        result.get(10, TimeUnit.SECONDS);
+        fail("Should have thrown ExecutionException");
+      } catch (ExecutionException e) {
+        assertSame(exception, e.getCause());
+      }
+    }
+  }
+
+  @Test
+  public void testSend_queueFull() throws Exception {
+    CountDownLatch sending = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    doAnswer(invocation -> {
+      sending.countDown();
+      release.await();
+      return new CompletableFuture<MulticastResult>();
+    }).when(sender).sendAsync(any(Message.class), anyListOf(String.class),
+        anyInt());
+    batching = new BatchingSender.Builder(sender, 5)
+        .capacity(1)
+        .batchSize(1)
+        .build();
+    batching.send(message, "4");
+    // the coalescer is blocked sending the first message
+    assertTrue(sending.await(10, TimeUnit.SECONDS));
+    batching.send(message, "8");
+    try {
+      batching.send(message, "15");
+      fail("Should have thrown RejectedExecutionException");
+    } catch (RejectedExecutionException e) {
+      // expected
+    }
+    release.countDown();
+  }
+
+  @Test
+  public void testSend_closed() throws Exception {
+    batching = new BatchingSender.Builder(sender, 5).build();
+    batching.close();
+    try {
+      batching.send(message, "4");
+      fail("Should have thrown RejectedExecutionException");
+    } catch (RejectedExecutionException e) {
+      // expected
+    }
+    verify(sender, never()).sendAsync(any(Message.class),
+        anyListOf(String.class), anyInt());
+  }
+
+  @Test
+  public void testSend_manyProducers() throws Exception {
+    batching = new BatchingSender.Builder(sender, 5)
+        .batchSize(100)
+        .lingerTime(1, TimeUnit.HOURS)
+        .build();
+    List<Thread> threads = new ArrayList<Thread>();
+    List<CompletableFuture<Result>> results =
+        new ArrayList<CompletableFuture<Result>>();
+    for (int i = 0; i < 4; i++) {
+      final int producer = i;
+      Thread thread = new Thread() {
+        @Override
+        public void run() {
+          for (int j = 0; j < 250; j++) {
+            CompletableFuture<Result> result =
+                batching.send(message, producer + "-" + j);
+            synchronized (results) {
+              results.add(result);
+            }
+          }
+        }
+      };
+      threads.add(thread);
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    for (CompletableFuture<Result> result : results) {
+      result.get(10, TimeUnit.SECONDS);
+    }
+    verify(sender, times(10)).sendAsync(any(Message.class),
+        anyListOf(String.class), anyInt());
+  }
+
+  @Test
+  public void testClose_concurrentSends() throws Exception {
+    // one message per request, so the queue fills up
+    batching = new BatchingSender.Builder(sender, 5)
+        .capacity(100)
+        .batchSize(1)
+        .build();
+    List<Thread> threads = new ArrayList<Thread>();
+    List<CompletableFuture<Result>> results =
+        new ArrayList<CompletableFuture<Result>>();
+    AtomicBoolean closed = new AtomicBoolean();
+    CountDownLatch started = new CountDownLatch(4);
+    for (int i = 0; i < 4; i++) {
+      final int producer = i;
+      Thread thread = new Thread() {
+        @Override
+        public void run() {
+          started.countDown();
+          for (int j = 0; !closed.get(); j++) {
+            try {
+              CompletableFuture<Result> result =
+                  batching.send(message, producer + "-" + j);
+              synchronized (results) {
+                results.add(result);
+              }
+            } catch (RejectedExecutionException e) {
+              // closed, or the queue is full
+            }
+          }
+        }
+      };
+      threads.add(thread);
+      thread.start();
+    }
+    started.await();
+    Thread.sleep(50);
+    batching.close();
+    closed.set(true);
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    // each accepted message is either sent or rejected
+    for (CompletableFuture<Result> result : results) {
+      try {
+        result.get(10, TimeUnit.SECONDS);
+      } catch (ExecutionException e) {
+        assertTrue(e.getCause() instanceof RejectedExecutionException);
+      }
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testBuilder_batchSizeTooLarge() {
+    new BatchingSender.Builder(sender, 5).batchSize(1001);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testBuilder_negativeLingerTime() {
+    new BatchingSender.Builder(sender, 5).lingerTime(-1, TimeUnit.SECONDS);
+  }
+}
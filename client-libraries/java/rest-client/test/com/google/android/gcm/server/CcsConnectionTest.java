@@ -0,0 +1,315 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import static com.google.android.gcm.server.Constants.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.json.simple.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.SocketFactory;
+import javax.net.ssl.SNIHostName;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+public class CcsConnectionTest {
+
+  private final Message message = new Message.Builder()
+      .collapseKey("108")
+      .addData("k1", "<v1 & v2>")
+      .build();
+
+  private FakeCcsServer server;
+  private CcsConnection connection;
+
+  @Before
+  public void setFixtures() throws Exception {
+    server = new FakeCcsServer();
+  }
+
+  @After
+  public void close() throws Exception {
+    if (connection != null) {
+      connection.close();
+    }
+    server.close();
+  }
+
+  @Test
+  public void testSend_ack() throws Exception {
+    connect(server.newBuilder(FakeCcsServer.KEY));
+    Result result =
+        connection.send(message, "4").get(10, TimeUnit.SECONDS);
+    JSONObject json = server.received.poll(10, TimeUnit.SECONDS);
+    assertEquals("4", json.get("to"));
+    assertEquals("108", json.get("collapse_key"));
+    assertEquals("<v1 & v2>", ((JSONObject) json.get("data")).get("k1"));
+    assertEquals(json.get("message_id"), result.getMessageId());
+    assertNull(result.getErrorCodeName());
+    assertEquals(0, connection.getPendingCount());
+    assertEquals(CCS_WINDOW_SIZE, connection.getAvailableWindow());
+  }
+
+  @Test
+  public void testSend_ackWithCanonicalId() throws Exception {
+    server.responder = json -> "{\"message_type\":\"ack\",\"from\":\"4\","
+        + "\"message_id\":\"" + json.get("message_id") + "\","
+        + "\"registration_id\":\"8\"}";
+    connect(server.newBuilder(FakeCcsServer.KEY));
+    Result result =
+        connection.send(message, "4").get(10, TimeUnit.SECONDS);
+    assertEquals("8", result.getCanonicalRegistrationId());
+  }
+
+  @Test
+  public void testSend_nack() throws Exception {
+    server.responder =
+        json -> FakeCcsServer.nack(json, (String) json.get("to"));
+    connect(server.newBuilder(FakeCcsServer.KEY));
+    CompletableFuture<Result> unregistered =
+        connection.send(message, "DEVICE_UNREGISTERED");
+    CompletableFuture<Result> invalidJson =
+        connection.send(message, "INVALID_JSON");
+    assertEquals(ERROR_NOT_REGISTERED, unregistered.get(10, TimeUnit.SECONDS)
+        .getErrorCodeName());
+    assertNull(unregistered.get().getMessageId());
+    // errors without equivalent are kept as they are
+    assertEquals("INVALID_JSON",
+        invalidJson.get(10, TimeUnit.SECONDS).getErrorCodeName());
+  }
+
+  @Test
+  public void testSend_windowFull() throws Exception {
+    server.responder = json -> null;
+    connect(server.newBuilder(FakeCcsServer.KEY).windowSize(2));
+    CompletableFuture<Result> first = connection.send(message, "4");
+    connection.send(message, "8");
+    assertEquals(0, connection.getAvailableWindow());
+    CompletableFuture<CompletableFuture<Result>> third =
+        CompletableFuture.supplyAsync(() -> {
+          try {
+            return connection.send(message, "15");
+          } catch (IOException e) {
+            throw new RuntimeException(e);
+          }
+        });
+    JSONObject json = server.received.poll(10, TimeUnit.SECONDS);
+    server.received.poll(10, TimeUnit.SECONDS);
+    // the third message waits for the ACK of one of the first two
+    assertNull(server.received.poll(100, TimeUnit.MILLISECONDS));
+    assertFalse(third.isDone());
+    server.last().send(FakeCcsServer.ack(json));
+    assertEquals(json.get("message_id"),
+        first.get(10, TimeUnit.SECONDS).getMessageId());
+    third.get(10, TimeUnit.SECONDS);
+    assertEquals("15",
+        server.received.poll(10, TimeUnit.SECONDS).get("to"));
+  }
+
+  @Test
+  public void testConnect_authenticationFailure() throws Exception {
+    connection = server.newBuilder("bad key").build();
+    try {
+      connection.connect();
+      fail("Should have thrown InvalidRequestException");
+    } catch (InvalidRequestException e) {
+      assertEquals(401, e.getHttpStatusCode());
+      assertEquals("not-authorized", e.getDescription());
+    }
+    assertTrue(connection.isClosed());
+  }
+
+  @Test
+  public void testConnect_verifiesHostName() throws Exception {
+    SSLSocket[] socket = new SSLSocket[1];
+    SocketFactory factory = new SocketFactory() {
+
+      @Override
+      public Socket createSocket() throws IOException {
+        return socket[0] =
+            (SSLSocket) SSLSocketFactory.getDefault().createSocket();
+      }
+
+      @Override
+      public Socket createSocket(String host, int port) {
+        throw new UnsupportedOperationException();
+      }
+
+      @Override
+      public Socket createSocket(String host, int port,
+          InetAddress localHost, int localPort) {
+        throw new UnsupportedOperationException();
+      }
+
+      @Override
+      public Socket createSocket(InetAddress host, int port) {
+        throw new UnsupportedOperationException();
+      }
+
+      @Override
+      public Socket createSocket(InetAddress address, int port,
+          InetAddress localAddress, int localPort) {
+        throw new UnsupportedOperationException();
+      }
+    };
+    // nothing listens on the port, so it can not connect
+    ServerSocket closed = new ServerSocket(0);
+    closed.close();
+    connection = new CcsConnection.Builder(FakeCcsServer.SENDER_ID, "key")
+        .address("localhost", closed.getLocalPort())
+        .socketFactory(factory)
+        .build();
+    try {
+      connection.connect();
+      fail("Should have thrown IOException");
+    } catch (IOException e) {
+      // expected
+    }
+    SSLParameters parameters = socket[0].getSSLParameters();
+    assertEquals("HTTPS", parameters.getEndpointIdentificationAlgorithm());
+    assertEquals(Collections.singletonList(new SNIHostName("localhost")),
+        parameters.getServerNames());
+  }
+
+  @Test
+  public void testConnectionDraining() throws Exception {
+    connect(server.newBuilder(FakeCcsServer.KEY));
+    server.last().send("{\"message_type\":\"control\","
+        + "\"control_type\":\"CONNECTION_DRAINING\"}");
+    // messages are handled in order
+    server.last().send(upstream("m-1"));
+    server.acks.poll(10, TimeUnit.SECONDS);
+    assertTrue(connection.isDraining());
+    try {
+      connection.send(message, "4");
+      fail("Should have thrown IOException");
+    } catch (IOException e) {
+      // expected
+    }
+    assertEquals(CCS_WINDOW_SIZE, connection.getAvailableWindow());
+  }
+
+  @Test
+  public void testSend_nackConnectionDraining() throws Exception {
+    server.responder =
+        json -> FakeCcsServer.nack(json, "CONNECTION_DRAINING");
+    connect(server.newBuilder(FakeCcsServer.KEY));
+    assertFailed(connection.send(message, "4"));
+    assertTrue(connection.isDraining());
+    assertEquals(0, connection.getPendingCount());
+  }
+
+  @Test
+  public void testUpstream_acked() throws Exception {
+    connect(server.newBuilder(FakeCcsServer.KEY));
+    server.last().send(upstream("m-1"));
+    JSONObject ack = server.acks.poll(10, TimeUnit.SECONDS);
+    assertEquals("16", ack.get("to"));
+    assertEquals("m-1", ack.get("message_id"));
+  }
+
+  @Test
+  public void testPing() throws Exception {
+    connect(server.newBuilder(FakeCcsServer.KEY));
+    server.last().write("<iq from=\"gcm.googleapis.com\" id=\"ping-1\""
+        + " type=\"get\"><ping xmlns=\"urn:xmpp:ping\"/></iq>");
+    assertEquals("iq result", server.others.poll(10, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void testClose_failsPending() throws Exception {
+    server.responder = json -> null;
+    connect(server.newBuilder(FakeCcsServer.KEY));
+    CompletableFuture<Result> result = connection.send(message, "4");
+    server.received.poll(10, TimeUnit.SECONDS);
+    connection.close();
+    assertFailed(result);
+    assertTrue(connection.isClosed());
+    try {
+      connection.send(message, "8");
+      fail("Should have thrown IOException");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testConnectionLost_failsPending() throws Exception {
+    server.responder = json -> null;
+    connect(server.newBuilder(FakeCcsServer.KEY));
+    CompletableFuture<Result> result = connection.send(message, "4");
+    server.received.poll(10, TimeUnit.SECONDS);
+    server.last().close();
+    assertFailed(result);
+    assertTrue(connection.isClosed());
+  }
+
+  @Test
+  public void testToErrorCode() {
+    assertEquals(ERROR_INVALID_REGISTRATION,
+        CcsConnection.toErrorCode("BAD_REGISTRATION"));
+    assertEquals(ERROR_DEVICE_MESSAGE_RATE_EXCEEDED,
+        CcsConnection.toErrorCode("DEVICE_MESSAGE_RATE_EXCEEDED"));
+    assertEquals(ERROR_UNAVAILABLE,
+        CcsConnection.toErrorCode("SERVICE_UNAVAILABLE"));
+    assertEquals(ERROR_QUOTA_EXCEEDED,
+        CcsConnection.toErrorCode("QUOTA_TRAFFIC_EXCEEDED"));
+    assertEquals("BAD_ACK", CcsConnection.toErrorCode("BAD_ACK"));
+    assertEquals(ERROR_INTERNAL_SERVER_ERROR, CcsConnection.toErrorCode(null));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testBuilder_windowTooLarge() {
+    new CcsConnection.Builder("4", "key").windowSize(CCS_WINDOW_SIZE + 1);
+  }
+
+  private void connect(CcsConnection.Builder builder) throws IOException {
+    connection = builder.build();
+    connection.connect();
+  }
+
+  private static String upstream(String messageId) {
+    return "{\"category\":\"com.example\",\"data\":{\"k\":\"v\"},"
+        + "\"message_id\":\"" + messageId + "\",\"from\":\"16\"}";
+  }
+
+  private static void assertFailed(CompletableFuture<Result> result)
+      throws Exception {
+    try {
+      result.get(10, TimeUnit.SECONDS);
+      fail("Should have thrown ExecutionException");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof IOException);
+    }
+  }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.json.simple.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+public class CcsPoolTest {
+
+  private final Message message = new Message.Builder().build();
+
+  private FakeCcsServer server;
+  private CcsPool pool;
+
+  @Before
+  public void setFixtures() throws Exception {
+    server = new FakeCcsServer();
+  }
+
+  @After
+  public void close() throws Exception {
+    if (pool != null) {
+      pool.close();
+    }
+    server.close();
+  }
+
+  @Test
+  public void testSend_spreadsAcrossConnections() throws Exception {
+    server.responder = json -> null;
+    pool = new CcsPool.Builder(
+        server.newBuilder(FakeCcsServer.KEY).windowSize(1), 2).build();
+    CompletableFuture<Result> first = pool.send(message, "4");
+    CompletableFuture<Result> second = pool.send(message, "8");
+    CompletableFuture<Result> third = pool.send(message, "15");
+    JSONObject json1 = server.received.poll(10, TimeUnit.SECONDS);
+    JSONObject json2 = server.received.poll(10, TimeUnit.SECONDS);
+    // the connections may be read in any order
+    if ("8".equals(json1.get("to"))) {
+      JSONObject json = json1;
+      json1 = json2;
+      json2 = json;
+    }
+    assertEquals("4", json1.get("to"));
+    assertEquals("8", json2.get("to"));
+    assertEquals(2, server.connections.size());
+    assertEquals(1, server.connections.get(0).messages.size());
+    assertEquals(1, server.connections.get(1).messages.size());
+    // both windows are full
+    assertNull(server.received.poll(100, TimeUnit.MILLISECONDS));
+    FakeCcsServer.Connection connection =
+        server.connections.get(0).messages.contains(json2) ?
+            server.connections.get(0) : server.connections.get(1);
+    connection.send(FakeCcsServer.ack(json2));
+    assertEquals(json2.get("message_id"),
+        second.get(10, TimeUnit.SECONDS).getMessageId());
+    JSONObject json3 = server.received.poll(10, TimeUnit.SECONDS);
+    assertEquals("15", json3.get("to"));
+    assertTrue(connection.messages.contains(json3));
+    connection.send(FakeCcsServer.ack(json3));
+    third.get(10, TimeUnit.SECONDS);
+    assertFalse(first.isDone());
+  }
+
+  @Test
+  public void testSend_connectionDrainedAndClosed() throws Exception {
+    // only the new connection acks messages
+    server.responder = json ->
+        server.connections.size() == 1 ? null : FakeCcsServer.ack(json);
+    pool = new CcsPool.Builder(server.newBuilder(FakeCcsServer.KEY), 1)
+        .reconnectDelay(10, TimeUnit.MILLISECONDS)
+        .build();
+    CompletableFuture<Result> result = pool.send(message, "4");
+    server.received.poll(10, TimeUnit.SECONDS);
+    FakeCcsServer.Connection drained = server.last();
+    drained.send("{\"message_type\":\"control\","
+        + "\"control_type\":\"CONNECTION_DRAINING\"}");
+    // messages are handled in order
+    drained.send("{\"message_id\":\"m-1\",\"from\":\"16\"}");
+    server.acks.poll(10, TimeUnit.SECONDS);
+    // the pool only opens the new connection when it has messages to send
+    CompletableFuture<Result> next = pool.send(message, "8");
+    assertEquals("8", server.received.poll(10, TimeUnit.SECONDS).get("to"));
+    assertEquals(2, server.connections.size());
+    next.get(10, TimeUnit.SECONDS);
+    // the message that was not acked is sent on the new connection
+    drained.close();
+    JSONObject json = server.received.poll(10, TimeUnit.SECONDS);
+    assertEquals("4", json.get("to"));
+    assertTrue(server.last().messages.contains(json));
+    assertEquals(json.get("message_id"),
+        result.get(10, TimeUnit.SECONDS).getMessageId());
+  }
+
+  @Test
+  public void testSend_nackConnectionDraining() throws Exception {
+    // only the new connection acks messages
+    server.responder = json -> server.connections.size() == 1 ?
+        FakeCcsServer.nack(json, "CONNECTION_DRAINING") :
+        FakeCcsServer.ack(json);
+    pool = new CcsPool.Builder(server.newBuilder(FakeCcsServer.KEY), 1)
+        .reconnectDelay(10, TimeUnit.MILLISECONDS)
+        .build();
+    CompletableFuture<Result> result = pool.send(message, "4");
+    server.received.poll(10, TimeUnit.SECONDS);
+    JSONObject json = server.received.poll(10, TimeUnit.SECONDS);
+    assertEquals("4", json.get("to"));
+    assertEquals(json.get("message_id"),
+        result.get(10, TimeUnit.SECONDS).getMessageId());
+    assertEquals(2, server.connections.size());
+  }
+
+  @Test
+  public void testSend_maxAttempts() throws Exception {
+    server.responder =
+        json -> FakeCcsServer.nack(json, "CONNECTION_DRAINING");
+    pool = new CcsPool.Builder(server.newBuilder(FakeCcsServer.KEY), 1)
+        .maxAttempts(1)
+        .build();
+    CompletableFuture<Result> result = pool.send(message, "4");
+    try {
+      result.get(10, TimeUnit.SECONDS);
+      fail("Should have thrown ExecutionException");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof IOException);
+    }
+  }
+
+  @Test
+  public void testClose() throws Exception {
+    server.responder = json -> null;
+    pool = new CcsPool.Builder(
+        server.newBuilder(FakeCcsServer.KEY).windowSize(1), 1).build();
+    pool.send(message, "4");
+    CompletableFuture<Result> queued = pool.send(message, "8");
+    server.received.poll(10, TimeUnit.SECONDS);
+    pool.close();
+    try {
+      queued.get(10, TimeUnit.SECONDS);
+      fail("Should have thrown ExecutionException");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof RejectedExecutionException);
+    }
+    try {
+      pool.send(message, "15");
+      fail("Should have thrown RejectedExecutionException");
+    } catch (RejectedExecutionException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testSend_queueFull() throws Exception {
+    server.responder = json -> null;
+    pool = new CcsPool.Builder(
+        server.newBuilder(FakeCcsServer.KEY).windowSize(1), 1)
+        .capacity(1)
+        .build();
+    pool.send(message, "4");
+    server.received.poll(10, TimeUnit.SECONDS);
+    // the dispatcher holds the second message until the window has room
+    pool.send(message, "8");
+    while (pool.getQueuedCount() > 0) {
+      Thread.sleep(10);
+    }
+    pool.send(message, "15");
+    try {
+      pool.send(message, "16");
+      fail("Should have thrown RejectedExecutionException");
+    } catch (RejectedExecutionException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testBuild_authenticationFailure() throws Exception {
+    try {
+      new CcsPool.Builder(server.newBuilder("bad key"), 2).build();
+      fail("Should have thrown InvalidRequestException");
+    } catch (InvalidRequestException e) {
+      assertEquals(401, e.getHttpStatusCode());
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testBuilder_noConnections() {
+    new CcsPool.Builder(server.newBuilder(FakeCcsServer.KEY), 0);
+  }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class CircuitBreakerTest {
+
+  private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  private final AtomicLong now = new AtomicLong(-1000000 * MS);
+
+  @Test
+  public void testOpensOnFailureRate() throws Exception {
+    CircuitBreaker breaker = newBuilder().build();
+    record(breaker, 5, true);
+    record(breaker, 4, false);
+    // not enough requests yet
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    record(breaker, 1, false);
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    try {
+      breaker.acquire();
+      fail("Should have thrown CircuitOpenException");
+    } catch (CircuitOpenException e) {
+      assertEquals(1000, e.getRetryAfter());
+    }
+  }
+
+  @Test
+  public void testStaysClosedBelowFailureRate() throws Exception {
+    CircuitBreaker breaker = newBuilder().build();
+    record(breaker, 6, true);
+    record(breaker, 4, false);
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+  }
+
+  @Test
+  public void testWindowSlides() throws Exception {
+    CircuitBreaker breaker = newBuilder().build();
+    record(breaker, 5, false);
+    // the failures leave the window
+    now.addAndGet(1000 * MS);
+    record(breaker, 5, true);
+    record(breaker, 4, false);
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    now.addAndGet(100 * MS);
+    record(breaker, 1, false);
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+  }
+
+  @Test
+  public void testOpensOnSlowCallRate() throws Exception {
+    CircuitBreaker breaker = newBuilder()
+        .slowCallThreshold(100, TimeUnit.MILLISECONDS)
+        .slowCallRateThreshold(0.8)
+        .build();
+    for (int i = 0; i < 7; i++) {
+      breaker.acquire();
+      breaker.record(true, 100 * MS);
+    }
+    record(breaker, 2, true);
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    breaker.acquire();
+    breaker.record(true, 200 * MS);
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+  }
+
+  @Test
+  public void testHalfOpen_probesSucceed() throws Exception {
+    CircuitBreaker breaker = newBuilder().probes(2).build();
+    record(breaker, 10, false);
+    now.addAndGet(1000 * MS);
+    assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+    breaker.acquire();
+    breaker.acquire();
+    // only a trickle of probes is let through
+    try {
+      breaker.acquire();
+      fail("Should have thrown CircuitOpenException");
+    } catch (CircuitOpenException e) {
+      assertEquals(0, e.getRetryAfter());
+    }
+    breaker.record(true, MS);
+    assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+    breaker.record(true, MS);
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    // the failures before opening are forgotten
+    record(breaker, 9, false);
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+  }
+
+  @Test
+  public void testHalfOpen_probeFails() throws Exception {
+    CircuitBreaker breaker = newBuilder().build();
+    record(breaker, 10, false);
+    now.addAndGet(1000 * MS);
+    breaker.acquire();
+    breaker.record(false, MS);
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    now.addAndGet(999 * MS);
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    now.addAndGet(MS);
+    assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testBuilder_invalidRate() {
+    new CircuitBreaker.Builder().failureRateThreshold(0);
+  }
+
+  private CircuitBreaker.Builder newBuilder() {
+    return new CircuitBreaker.Builder()
+        .minimumRequests(10)
+        .window(1, TimeUnit.SECONDS)
+        .openTime(1, TimeUnit.SECONDS)
+        .ticker(now::get);
+  }
+
+  private static void record(CircuitBreaker breaker, int count,
+      boolean success) throws CircuitOpenException {
+    for (int i = 0; i < count; i++) {
+      breaker.acquire();
+      breaker.record(success, MS);
+    }
+  }
+}
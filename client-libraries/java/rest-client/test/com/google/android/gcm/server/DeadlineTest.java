@@ -0,0 +1,74 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class DeadlineTest {
+
+  private final AtomicLong now = new AtomicLong(42);
+
+  @Test
+  public void testGetRemaining() {
+    Deadline deadline =
+        new Deadline(TimeUnit.SECONDS.toNanos(2), () -> now.get());
+    assertEquals(2000, deadline.getRemaining(TimeUnit.MILLISECONDS));
+    now.addAndGet(TimeUnit.MILLISECONDS.toNanos(1500));
+    assertEquals(500, deadline.getRemaining(TimeUnit.MILLISECONDS));
+    assertFalse(deadline.isExpired());
+    now.addAndGet(TimeUnit.MILLISECONDS.toNanos(500));
+    assertEquals(0, deadline.getRemaining(TimeUnit.MILLISECONDS));
+    assertTrue(deadline.isExpired());
+    assertFalse(deadline.isCancelled());
+  }
+
+  @Test
+  public void testCancel() {
+    Deadline deadline = Deadline.after(1, TimeUnit.HOURS);
+    assertFalse(deadline.isExpired());
+    deadline.cancel();
+    assertTrue(deadline.isCancelled());
+    assertTrue(deadline.isExpired());
+    assertEquals(0, deadline.getRemaining(TimeUnit.MILLISECONDS));
+  }
+
+  @Test
+  public void testUnbounded() {
+    Deadline deadline = Deadline.unbounded();
+    assertEquals(Long.MAX_VALUE, deadline.getRemaining(TimeUnit.SECONDS));
+    assertFalse(deadline.isExpired());
+    deadline.cancel();
+    assertTrue(deadline.isExpired());
+  }
+
+  @Test
+  public void testAfter_large() {
+    Deadline deadline = Deadline.after(Long.MAX_VALUE, TimeUnit.DAYS);
+    assertFalse(deadline.isExpired());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testAfter_negative() {
+    Deadline.after(-1, TimeUnit.SECONDS);
+  }
+}
@@ -0,0 +1,322 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import static com.google.android.gcm.server.Constants.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.stubbing.Stubber;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class DeviceGroupManagerTest {
+
+  private static final String KEY_RESPONSE =
+      "{ \"notification_key\": \"APA91bGHXQBB\" }";
+
+  private final JSONParser jsonParser = new JSONParser();
+  private final List<ByteArrayOutputStream> requests =
+      new ArrayList<ByteArrayOutputStream>();
+
+  private DeviceGroupManager manager;
+  private ExecutorService executor;
+
+  @Before
+  public void setFixtures() {
+    manager = spy(new DeviceGroupManager("4815162342", "42"));
+    // batches are posted by the calling thread, in order
+    manager.setExecutor(Runnable::run);
+  }
+
+  @After
+  public void shutdownExecutor() {
+    if (executor != null) {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testConstructor_nullSenderId() {
+    new DeviceGroupManager("4815162342", null);
+  }
+
+  @Test
+  public void testCreate() throws Exception {
+    HttpURLConnection conn = setResponseExpectations(
+        GCM_NOTIFICATION_ENDPOINT, newConnection(200, KEY_RESPONSE));
+    assertEquals("APA91bGHXQBB",
+        manager.create("appUser-Chris", Arrays.asList("4", "8")));
+    verify(conn).setRequestMethod("POST");
+    verify(conn).setRequestProperty("Authorization", "key=4815162342");
+    verify(conn).setRequestProperty("project_id", "42");
+    verify(conn).setRequestProperty("Content-Type", "application/json");
+    JSONObject json = getRequest(0);
+    assertEquals("create", json.get(JSON_OPERATION));
+    assertEquals("appUser-Chris", json.get(JSON_NOTIFICATION_KEY_NAME));
+    assertNull(json.get(JSON_NOTIFICATION_KEY));
+    assertEquals(Arrays.asList("4", "8"), json.get(JSON_REGISTRATION_IDS));
+    // the key is cached
+    assertEquals("APA91bGHXQBB", manager.getNotificationKey("appUser-Chris"));
+    verify(manager, times(1)).getConnection(anyString());
+  }
+
+  @Test
+  public void testCreate_batches() throws Exception {
+    manager.setBatchSize(2);
+    setResponseExpectations(GCM_NOTIFICATION_ENDPOINT,
+        newConnection(200, KEY_RESPONSE), newConnection(200, KEY_RESPONSE),
+        newConnection(200, KEY_RESPONSE));
+    assertEquals("APA91bGHXQBB", manager.create("appUser-Chris",
+        Arrays.asList("4", "8", "15", "16", "23")));
+    JSONObject create = getRequest(0);
+    assertEquals("create", create.get(JSON_OPERATION));
+    assertEquals(Arrays.asList("4", "8"), create.get(JSON_REGISTRATION_IDS));
+    // the other batches are added to the group
+    JSONObject add = getRequest(1);
+    assertEquals("add", add.get(JSON_OPERATION));
+    assertEquals("APA91bGHXQBB", add.get(JSON_NOTIFICATION_KEY));
+    assertEquals(Arrays.asList("15", "16"), add.get(JSON_REGISTRATION_IDS));
+    assertEquals(Arrays.asList("23"),
+        getRequest(2).get(JSON_REGISTRATION_IDS));
+  }
+
+  @Test
+  public void testAdd_concurrentBatches() throws Exception {
+    executor = Executors.newFixedThreadPool(4);
+    manager.setExecutor(executor);
+    manager.setBatchSize(3);
+    setResponseExpectations(GCM_NOTIFICATION_ENDPOINT +
+        "?notification_key_name=appUser-Chris",
+        newConnection(200, KEY_RESPONSE));
+    List<String> registrationIds = new ArrayList<String>();
+    HttpURLConnection[] conns = new HttpURLConnection[34];
+    for (int i = 0; i < conns.length; i++) {
+      conns[i] = newConnection(200, KEY_RESPONSE);
+    }
+    for (int i = 0; i < 100; i++) {
+      registrationIds.add("regId" + i);
+    }
+    setResponseExpectations(GCM_NOTIFICATION_ENDPOINT, conns);
+    assertEquals("APA91bGHXQBB",
+        manager.add("appUser-Chris", registrationIds));
+    assertEquals(35, requests.size());
+    Set<Object> added = new HashSet<Object>();
+    for (int i = 1; i < requests.size(); i++) {
+      JSONObject json = getRequest(i);
+      assertEquals("add", json.get(JSON_OPERATION));
+      added.addAll((List<?>) json.get(JSON_REGISTRATION_IDS));
+    }
+    assertEquals(new HashSet<Object>(registrationIds), added);
+  }
+
+  @Test
+  public void testRemove_rejected() throws Exception {
+    manager.setBatchSize(1);
+    setResponseExpectations(GCM_NOTIFICATION_ENDPOINT,
+        newConnection(200, KEY_RESPONSE));
+    manager.create("appUser-Chris", Arrays.asList("4"));
+    setResponseExpectations(GCM_NOTIFICATION_ENDPOINT,
+        newConnection(200, KEY_RESPONSE),
+        newConnection(400, "{\"error\":\"notification_key not found\"}"),
+        newConnection(200, KEY_RESPONSE));
+    try {
+      manager.remove("appUser-Chris", Arrays.asList("4", "8", "15"));
+      fail("Should have thrown InvalidRequestException");
+    } catch (InvalidRequestException e) {
+      assertEquals(400, e.getHttpStatusCode());
+      assertEquals("{\"error\":\"notification_key not found\"}",
+          e.getDescription());
+    }
+    assertEquals(4, requests.size());
+    // the key is looked up again
+    HttpURLConnection lookup = setResponseExpectations(
+        GCM_NOTIFICATION_ENDPOINT + "?notification_key_name=appUser-Chris",
+        newConnection(200, "{\"notification_key\":\"APA91bHPRgkF\"}"));
+    assertEquals("APA91bHPRgkF", manager.getNotificationKey("appUser-Chris"));
+    verify(lookup).setRequestMethod("GET");
+    verify(lookup).setRequestProperty("project_id", "42");
+  }
+
+  @Test
+  public void testGetNotificationKey() throws Exception {
+    String url = GCM_NOTIFICATION_ENDPOINT +
+        "?notification_key_name=app+User%2FChris";
+    setResponseExpectations(url, newConnection(200, KEY_RESPONSE));
+    assertEquals("APA91bGHXQBB", manager.getNotificationKey("app User/Chris"));
+    assertEquals("APA91bGHXQBB", manager.getNotificationKey("app User/Chris"));
+    verify(manager, times(1)).getConnection(url);
+    manager.invalidate("app User/Chris");
+    setResponseExpectations(url, newConnection(200, KEY_RESPONSE));
+    manager.getNotificationKey("app User/Chris");
+    verify(manager, times(2)).getConnection(url);
+  }
+
+  @Test
+  public void testGetNotificationKey_notFound() throws Exception {
+    setResponseExpectations(
+        GCM_NOTIFICATION_ENDPOINT + "?notification_key_name=appUser-Chris",
+        newConnection(400, "{\"error\":\"notification_key not found\"}"));
+    try {
+      manager.getNotificationKey("appUser-Chris");
+      fail("Should have thrown InvalidRequestException");
+    } catch (InvalidRequestException e) {
+      assertEquals(400, e.getHttpStatusCode());
+    }
+  }
+
+  @Test
+  public void testCreate_emptyRegistrationIds() throws Exception {
+    try {
+      manager.create("appUser-Chris", Collections.<String>emptyList());
+      fail("Should have thrown IllegalArgumentException");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+    verify(manager, never()).getConnection(anyString());
+  }
+
+  @Test
+  public void testGetNotificationKey_sender() throws Exception {
+    Sender sender = new Sender("4815162342");
+    List<String> requested = new ArrayList<String>();
+    sender.setTransport(new GcmTransport() {
+
+      public Response post(String url, String contentType,
+          String authorization, byte[] body, int offset, int length) {
+        throw new AssertionError("not a message");
+      }
+
+      public Response request(String method, String url,
+          String authorization, Map<String, String> headers, byte[] body) {
+        requested.add(method + " " + url + " " + authorization + " " +
+            headers + " " + body);
+        return new Response() {
+
+          public int getStatusCode() {
+            return 200;
+          }
+
+          public String getHeader(String name) {
+            return null;
+          }
+
+          public InputStream getBody() {
+            return new ByteArrayInputStream(KEY_RESPONSE.getBytes());
+          }
+        };
+      }
+    });
+    manager = new DeviceGroupManager(sender, "42");
+    assertEquals("APA91bGHXQBB", manager.getNotificationKey("appUser-Chris"));
+    assertEquals(Arrays.asList("GET " + GCM_NOTIFICATION_ENDPOINT +
+        "?notification_key_name=appUser-Chris key=4815162342 " +
+        "{project_id=42} null"), requested);
+  }
+
+  @Test
+  public void testCreate_senderCircuitOpen() throws Exception {
+    Sender sender = new Sender("4815162342");
+    sender.setTransport(new GcmTransport() {
+
+      public Response post(String url, String contentType,
+          String authorization, byte[] body, int offset, int length) {
+        throw new AssertionError("not a message");
+      }
+
+      public Response request(String method, String url,
+          String authorization, Map<String, String> headers, byte[] body) {
+        throw new AssertionError("circuit is open");
+      }
+    });
+    CircuitBreaker breaker = new CircuitBreaker.Builder()
+        .minimumRequests(1)
+        .build();
+    breaker.record(false, 0);
+    sender.setCircuitBreaker(breaker);
+    manager = new DeviceGroupManager(sender, "42");
+    try {
+      manager.create("appUser-Chris", Arrays.asList("4"));
+      fail("Should have thrown CircuitOpenException");
+    } catch (CircuitOpenException e) {
+      // expected
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testSetBatchSize_invalid() {
+    manager.setBatchSize(0);
+  }
+
+  private HttpURLConnection newConnection(int status, String response)
+      throws IOException {
+    HttpURLConnection conn = mock(HttpURLConnection.class);
+    when(conn.getResponseCode()).thenReturn(status);
+    ByteArrayInputStream stream = new ByteArrayInputStream(response.getBytes());
+    if (status == 200) {
+      when(conn.getInputStream()).thenReturn(stream);
+    } else {
+      when(conn.getErrorStream()).thenReturn(stream);
+    }
+    ByteArrayOutputStream request = new ByteArrayOutputStream();
+    synchronized (requests) {
+      requests.add(request);
+    }
+    when(conn.getOutputStream()).thenReturn(request);
+    return conn;
+  }
+
+  private HttpURLConnection setResponseExpectations(String url,
+      HttpURLConnection... conns) throws IOException {
+    Stubber stubber = doReturn(conns[0]);
+    for (int i = 1; i < conns.length; i++) {
+      stubber = stubber.doReturn(conns[i]);
+    }
+    stubber.when(manager).getConnection(url);
+    return conns[0];
+  }
+
+  private JSONObject getRequest(int index) throws Exception {
+    return (JSONObject) jsonParser.parse(requests.get(index).toString());
+  }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+public class DeviceGroupResultTest {
+
+  @Test
+  public void testRequiredParameters() {
+    DeviceGroupResult result = new DeviceGroupResult.Builder(4, 8).build();
+    assertEquals(4, result.getSuccess());
+    assertEquals(8, result.getFailure());
+    assertTrue(result.getFailedRegistrationIds().isEmpty());
+  }
+
+  @Test
+  public void testOptionalParameters() {
+    DeviceGroupResult result = new DeviceGroupResult.Builder(1, 2)
+        .failedRegistrationIds(Arrays.asList("15", "16"))
+        .build();
+    assertEquals(Arrays.asList("15", "16"), result.getFailedRegistrationIds());
+    String toString = result.toString();
+    assertTrue(toString.contains("success=1"));
+    assertTrue(toString.contains("failure=2"));
+    assertTrue(toString.contains("15"));
+  }
+
+  @Test(expected = UnsupportedOperationException.class)
+  public void testFailedRegistrationIdsIsImmutable() {
+    new DeviceGroupResult.Builder(1, 2).build().getFailedRegistrationIds()
+        .clear();
+  }
+}
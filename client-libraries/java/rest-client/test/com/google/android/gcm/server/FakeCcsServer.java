@@ -0,0 +1,240 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Function;
+
+import javax.net.SocketFactory;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Local stand-in for CCS, which speaks just enough XMPP over plain sockets to
+ * authenticate senders and exchange messages with them.
+ *
+ * <p>
+ * Downstream messages are answered by the {@link #responder}, which acks
+ * them by default; messages acknowledged by the client are queued apart.
+ */
+final class FakeCcsServer implements Closeable {
+
+  static final String SENDER_ID = "4815162342";
+  static final String KEY = "key";
+
+  private static final String STREAM_START = "<stream:stream"
+      + " from=\"gcm.googleapis.com\" id=\"1\" version=\"1.0\""
+      + " xmlns=\"jabber:client\""
+      + " xmlns:stream=\"http://etherx.jabber.org/streams\">";
+
+  private final ServerSocket serverSocket;
+  final List<Connection> connections = new CopyOnWriteArrayList<Connection>();
+  // downstream messages, and ACKs of upstream messages
+  final BlockingQueue<JSONObject> received =
+      new LinkedBlockingQueue<JSONObject>();
+  final BlockingQueue<JSONObject> acks = new LinkedBlockingQueue<JSONObject>();
+  // stanzas other than messages
+  final BlockingQueue<String> others = new LinkedBlockingQueue<String>();
+  // reply to each downstream message, or null to hold it
+  volatile Function<JSONObject, String> responder = FakeCcsServer::ack;
+
+  FakeCcsServer() throws IOException {
+    serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+    Thread acceptor = new Thread(() -> {
+      try {
+        for (;;) {
+          Connection connection = new Connection(serverSocket.accept());
+          connections.add(connection);
+          Thread thread = new Thread(connection::run);
+          thread.setDaemon(true);
+          thread.start();
+        }
+      } catch (IOException e) {
+        // closed
+      }
+    });
+    acceptor.setDaemon(true);
+    acceptor.start();
+  }
+
+  /**
+   * Creates a builder of connections to this server.
+   */
+  CcsConnection.Builder newBuilder(String key) {
+    return new CcsConnection.Builder(SENDER_ID, key)
+        .address(serverSocket.getInetAddress().getHostAddress(),
+            serverSocket.getLocalPort())
+        .socketFactory(SocketFactory.getDefault());
+  }
+
+  static String ack(JSONObject message) {
+    return "{\"message_type\":\"ack\",\"from\":\"" + message.get("to")
+        + "\",\"message_id\":\"" + message.get("message_id") + "\"}";
+  }
+
+  static String nack(JSONObject message, String error) {
+    return "{\"message_type\":\"nack\",\"from\":\"" + message.get("to")
+        + "\",\"message_id\":\"" + message.get("message_id")
+        + "\",\"error\":\"" + error + "\"}";
+  }
+
+  /**
+   * Gets the last connection accepted.
+   */
+  Connection last() {
+    return connections.get(connections.size() - 1);
+  }
+
+  public void close() throws IOException {
+    serverSocket.close();
+    for (Connection connection : connections) {
+      connection.close();
+    }
+  }
+
+  final class Connection {
+
+    private final Socket socket;
+    private OutputStream out;
+    // downstream messages received on this connection
+    final List<JSONObject> messages = new CopyOnWriteArrayList<JSONObject>();
+
+    Connection(Socket socket) {
+      this.socket = socket;
+    }
+
+    void run() {
+      try {
+        InputStream in = socket.getInputStream();
+        out = socket.getOutputStream();
+        XMLStreamReader reader = openStream(in);
+        write(STREAM_START + "<stream:features><mechanisms"
+            + " xmlns=\"urn:ietf:params:xml:ns:xmpp-sasl\">"
+            + "<mechanism>X-OAUTH2</mechanism><mechanism>PLAIN</mechanism>"
+            + "</mechanisms></stream:features>");
+        reader.nextTag();
+        String credentials = new String(Base64.getDecoder().decode(
+            reader.getElementText()), StandardCharsets.UTF_8);
+        if (!credentials.equals("\0" + SENDER_ID + "@gcm.googleapis.com\0"
+            + KEY)) {
+          write("<failure xmlns=\"urn:ietf:params:xml:ns:xmpp-sasl\">"
+              + "<not-authorized/></failure>");
+          close();
+          return;
+        }
+        write("<success xmlns=\"urn:ietf:params:xml:ns:xmpp-sasl\"/>");
+        reader = openStream(in);
+        write(STREAM_START + "<stream:features><bind"
+            + " xmlns=\"urn:ietf:params:xml:ns:xmpp-bind\"/>"
+            + "</stream:features>");
+        reader.nextTag();
+        String id = reader.getAttributeValue(null, "id");
+        skip(reader);
+        write("<iq id=\"" + id + "\" type=\"result\"><bind"
+            + " xmlns=\"urn:ietf:params:xml:ns:xmpp-bind\"><jid>" + SENDER_ID
+            + "@gcm.googleapis.com/1</jid></bind></iq>");
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+          if (!"message".equals(reader.getLocalName())) {
+            others.add(reader.getLocalName() + " " +
+                reader.getAttributeValue(null, "type"));
+            skip(reader);
+            continue;
+          }
+          reader.nextTag();
+          JSONObject json =
+              (JSONObject) JSONValue.parse(reader.getElementText());
+          reader.nextTag();
+          if ("ack".equals(json.get("message_type"))) {
+            acks.add(json);
+            continue;
+          }
+          messages.add(json);
+          received.add(json);
+          String reply = responder.apply(json);
+          if (reply != null) {
+            send(reply);
+          }
+        }
+      } catch (IOException | XMLStreamException e) {
+        // closed
+      }
+      close();
+    }
+
+    /**
+     * Sends a message with a JSON payload to the client.
+     */
+    void send(String json) throws IOException {
+      write("<message><gcm xmlns=\"google:mobile:data\">"
+          + json.replace("&", "&amp;").replace("<", "&lt;")
+          + "</gcm></message>");
+    }
+
+    synchronized void write(String xml) throws IOException {
+      out.write(xml.getBytes(StandardCharsets.UTF_8));
+      out.flush();
+    }
+
+    void close() {
+      try {
+        socket.close();
+      } catch (IOException e) {
+        // ignore
+      }
+    }
+  }
+
+  private static XMLStreamReader openStream(InputStream in)
+      throws XMLStreamException {
+    XMLStreamReader reader =
+        XMLInputFactory.newFactory().createXMLStreamReader(in, "UTF-8");
+    reader.nextTag();
+    return reader;
+  }
+
+  /**
+   * Skips the element whose start was just read.
+   */
+  private static void skip(XMLStreamReader reader) throws XMLStreamException {
+    int depth = 1;
+    while (depth > 0) {
+      int event = reader.next();
+      if (event == XMLStreamConstants.START_ELEMENT) {
+        depth++;
+      } else if (event == XMLStreamConstants.END_ELEMENT) {
+        depth--;
+      }
+    }
+  }
+
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class FileRegistrationIdStoreTest {
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testLoad_noFile() throws Exception {
+    RegistrationIdStore store =
+        new FileRegistrationIdStore(new File(folder.getRoot(), "ids.txt"));
+    Map<String, String> canonicalIds = new HashMap<String, String>();
+    Map<String, String> tombstones = new HashMap<String, String>();
+    store.load(canonicalIds, tombstones);
+    assertTrue(canonicalIds.isEmpty());
+    assertTrue(tombstones.isEmpty());
+  }
+
+  @Test
+  public void testAppendAndLoad() throws Exception {
+    File file = new File(folder.getRoot(), "ids.txt");
+    RegistrationIdStore store = new FileRegistrationIdStore(file);
+    store.append(Collections.singletonMap("4", "8"),
+        Collections.singletonMap("15", Constants.ERROR_NOT_REGISTERED));
+    // later changes override the previous ones
+    store.append(Collections.singletonMap("15", "16"),
+        Collections.singletonMap("4", Constants.ERROR_INVALID_REGISTRATION));
+    store.append(Collections.singletonMap("23", "42"),
+        Collections.<String, String>emptyMap());
+    Map<String, String> canonicalIds = new HashMap<String, String>();
+    Map<String, String> tombstones = new HashMap<String, String>();
+    new FileRegistrationIdStore(file).load(canonicalIds, tombstones);
+    Map<String, String> expectedCanonicalIds = new HashMap<String, String>();
+    expectedCanonicalIds.put("15", "16");
+    expectedCanonicalIds.put("23", "42");
+    assertEquals(expectedCanonicalIds, canonicalIds);
+    assertEquals(Collections.singletonMap("4",
+        Constants.ERROR_INVALID_REGISTRATION), tombstones);
+  }
+
+  @Test
+  public void testLoad_ignoresInvalidLines() throws Exception {
+    File file = new File(folder.getRoot(), "ids.txt");
+    OutputStream out = new FileOutputStream(file);
+    out.write(("C\t4\t8\nX\t15\t16\nC\t23\n\nT\t\t42\nC\t42\t108\nC\t1\t2")
+        .getBytes(StandardCharsets.UTF_8));
+    out.close();
+    Map<String, String> canonicalIds = new HashMap<String, String>();
+    Map<String, String> tombstones = new HashMap<String, String>();
+    new FileRegistrationIdStore(file).load(canonicalIds, tombstones);
+    Map<String, String> expectedCanonicalIds = new HashMap<String, String>();
+    expectedCanonicalIds.put("4", "8");
+    expectedCanonicalIds.put("42", "108");
+    // the last line is incomplete
+    assertEquals(expectedCanonicalIds, canonicalIds);
+    assertTrue(tombstones.isEmpty());
+  }
+
+  @Test
+  public void testLoad_truncatesIncompleteLine() throws Exception {
+    File file = new File(folder.getRoot(), "ids.txt");
+    OutputStream out = new FileOutputStream(file);
+    out.write("C\t4\t8\nC\t1".getBytes(StandardCharsets.UTF_8));
+    out.close();
+    RegistrationIdStore store = new FileRegistrationIdStore(file);
+    store.load(new HashMap<String, String>(), new HashMap<String, String>());
+    assertEquals(6, file.length());
+    store.append(Collections.singletonMap("15", "16"),
+        Collections.<String, String>emptyMap());
+    Map<String, String> canonicalIds = new HashMap<String, String>();
+    store.load(canonicalIds, new HashMap<String, String>());
+    Map<String, String> expectedCanonicalIds = new HashMap<String, String>();
+    expectedCanonicalIds.put("4", "8");
+    expectedCanonicalIds.put("15", "16");
+    assertEquals(expectedCanonicalIds, canonicalIds);
+  }
+
+  @Test
+  public void testLoad_latestLast() throws Exception {
+    File file = new File(folder.getRoot(), "ids.txt");
+    RegistrationIdStore store = new FileRegistrationIdStore(file);
+    store.append(Collections.singletonMap("4", "8"),
+        Collections.<String, String>emptyMap());
+    store.append(Collections.singletonMap("15", "16"),
+        Collections.<String, String>emptyMap());
+    store.append(Collections.singletonMap("4", "23"),
+        Collections.<String, String>emptyMap());
+    Map<String, String> canonicalIds = new LinkedHashMap<String, String>();
+    store.load(canonicalIds, new HashMap<String, String>());
+    assertEquals(Arrays.asList("15", "4"),
+        new ArrayList<String>(canonicalIds.keySet()));
+  }
+
+  @Test
+  public void testReplace() throws Exception {
+    File file = new File(folder.getRoot(), "ids.txt");
+    RegistrationIdStore store = new FileRegistrationIdStore(file);
+    store.append(Collections.singletonMap("4", "8"),
+        Collections.singletonMap("15", Constants.ERROR_NOT_REGISTERED));
+    store.replace(Collections.singletonMap("23", "42"),
+        Collections.<String, String>emptyMap());
+    assertEquals("C\t23\t42\n", new String(Files.readAllBytes(file.toPath()),
+        StandardCharsets.UTF_8));
+    assertEquals(1, folder.getRoot().list().length);
+  }
+
+}
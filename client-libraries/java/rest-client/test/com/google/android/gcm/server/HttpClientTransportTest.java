@@ -0,0 +1,230 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class HttpClientTransportTest {
+
+  private final AtomicReference<String> requestBody =
+      new AtomicReference<String>();
+  private final AtomicReference<String> requestAuthorization =
+      new AtomicReference<String>();
+  private final AtomicReference<String> requestContentType =
+      new AtomicReference<String>();
+  private final AtomicReference<String> requestMethod =
+      new AtomicReference<String>();
+  private final AtomicReference<String> requestProjectId =
+      new AtomicReference<String>();
+  private final AtomicReference<InetSocketAddress> requestAddress =
+      new AtomicReference<InetSocketAddress>();
+  private HttpServer server;
+  private String url;
+  private int responseStatus = 200;
+
+  @Before
+  public void startServer() throws IOException {
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.setExecutor(Executors.newCachedThreadPool());
+    server.createContext("/gcm/send", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        requestBody.set(read(exchange.getRequestBody()));
+        requestAuthorization.set(
+            exchange.getRequestHeaders().getFirst("Authorization"));
+        requestContentType.set(
+            exchange.getRequestHeaders().getFirst("Content-Type"));
+        requestMethod.set(exchange.getRequestMethod());
+        requestAddress.set(exchange.getRemoteAddress());
+        requestProjectId.set(
+            exchange.getRequestHeaders().getFirst("project_id"));
+        byte[] response = ("response to " + requestBody.get()).getBytes("UTF-8");
+        exchange.getResponseHeaders().add("Retry-After", "108");
+        exchange.sendResponseHeaders(responseStatus, response.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(response);
+        out.close();
+      }
+    });
+    server.start();
+    url = "http://127.0.0.1:" + server.getAddress().getPort() + "/gcm/send";
+  }
+
+  @After
+  public void stopServer() {
+    server.stop(0);
+  }
+
+  @Test
+  public void testPost() throws Exception {
+    GcmTransport transport = new HttpClientTransport.Builder().build();
+    byte[] body = "[req]".getBytes("UTF-8");
+    GcmTransport.Response response =
+        transport.post(url, "application/json", "key=42", body, 1, 3);
+    assertEquals(200, response.getStatusCode());
+    assertEquals("108", response.getHeader("Retry-After"));
+    assertNull(response.getHeader("X-Not-There"));
+    assertEquals("response to req", read(response.getBody()));
+    assertEquals("req", requestBody.get());
+    assertEquals("key=42", requestAuthorization.get());
+    assertEquals("application/json", requestContentType.get());
+  }
+
+  @Test
+  public void testPost_errorStatus() throws Exception {
+    responseStatus = 401;
+    GcmTransport transport = new HttpClientTransport.Builder().build();
+    byte[] body = "req".getBytes("UTF-8");
+    GcmTransport.Response response =
+        transport.post(url, "application/json", "key=42", body, 0, 3);
+    assertEquals(401, response.getStatusCode());
+    assertEquals("response to req", read(response.getBody()));
+  }
+
+  @Test
+  public void testRequest_get() throws Exception {
+    HttpClientTransport transport = new HttpClientTransport.Builder().build();
+    GcmTransport.Response response = transport.request("GET", url, "key=42",
+        Collections.singletonMap("project_id", "108"), null);
+    assertEquals(200, response.getStatusCode());
+    assertEquals("response to ", read(response.getBody()));
+    assertEquals("GET", requestMethod.get());
+    assertEquals("key=42", requestAuthorization.get());
+    assertEquals("108", requestProjectId.get());
+    assertNull(requestContentType.get());
+    // released when the body is closed
+    assertEquals(1, transport.getConnectionCount(url));
+  }
+
+  @Test
+  public void testPost_reusesIdleConnection() throws Exception {
+    HttpClientTransport transport = new HttpClientTransport.Builder().build();
+    byte[] body = "req".getBytes("UTF-8");
+    for (int i = 0; i < 5; i++) {
+      read(transport.post(url, "text/plain", "key=42", body, 0, 3).getBody());
+    }
+    assertEquals(1, transport.getConnectionCount(url));
+  }
+
+  @Test
+  public void testPost_opensConnectionWhenBusy() throws Exception {
+    HttpClientTransport transport = new HttpClientTransport.Builder()
+        .maxConnectionsPerRoute(2)
+        .build();
+    byte[] body = "req".getBytes("UTF-8");
+    GcmTransport.Response response1 =
+        transport.post(url, "text/plain", "key=42", body, 0, 3);
+    GcmTransport.Response response2 =
+        transport.post(url, "text/plain", "key=42", body, 0, 3);
+    assertEquals(2, transport.getConnectionCount(url));
+    read(response1.getBody());
+    read(response2.getBody());
+  }
+
+  @Test
+  public void testPost_blocksWhenPoolIsExhausted() throws Exception {
+    final HttpClientTransport transport = new HttpClientTransport.Builder()
+        .maxConnectionsPerRoute(1)
+        .maxRequestsPerConnection(1)
+        .build();
+    final byte[] body = "req".getBytes("UTF-8");
+    GcmTransport.Response response =
+        transport.post(url, "text/plain", "key=42", body, 0, 3);
+    final CountDownLatch posted = new CountDownLatch(1);
+    Thread thread = new Thread() {
+      @Override
+      public void run() {
+        try {
+          read(transport.post(url, "text/plain", "key=42", body, 0, 3)
+              .getBody());
+          posted.countDown();
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    };
+    thread.start();
+    assertFalse(posted.await(200, TimeUnit.MILLISECONDS));
+    // releases the only connection
+    read(response.getBody());
+    assertTrue(posted.await(5, TimeUnit.SECONDS));
+    assertEquals(1, transport.getConnectionCount(url));
+  }
+
+  @Test
+  public void testPost_evictsIdleConnections() throws Exception {
+    HttpClientTransport transport = new HttpClientTransport.Builder()
+        .idleTimeout(1, TimeUnit.MILLISECONDS)
+        .build();
+    byte[] body = "req".getBytes("UTF-8");
+    read(transport.post(url, "text/plain", "key=42", body, 0, 3).getBody());
+    InetSocketAddress evicted = requestAddress.get();
+    Thread.sleep(10);
+    assertEquals(0, transport.getConnectionCount(url));
+    // the next request opens a new socket
+    read(transport.post(url, "text/plain", "key=42", body, 0, 3).getBody());
+    assertFalse(evicted.equals(requestAddress.get()));
+  }
+
+  @Test(expected = IOException.class)
+  public void testPost_connectionRefused() throws Exception {
+    server.stop(0);
+    GcmTransport transport = new HttpClientTransport.Builder()
+        .connectTimeout(1, TimeUnit.SECONDS)
+        .build();
+    transport.post(url, "text/plain", "key=42", new byte[0], 0, 0);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testBuilder_invalidMaxConnections() {
+    new HttpClientTransport.Builder().maxConnectionsPerRoute(0);
+  }
+
+  private static String read(InputStream stream) throws IOException {
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buffer = new byte[1024];
+      int read;
+      while ((read = stream.read(buffer)) != -1) {
+        out.write(buffer, 0, read);
+      }
+      return new String(out.toByteArray(), "UTF-8");
+    } finally {
+      stream.close();
+    }
+  }
+}
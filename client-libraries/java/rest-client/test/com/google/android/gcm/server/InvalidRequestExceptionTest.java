@@ -16,6 +16,7 @@
 package com.google.android.gcm.server;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
@@ -43,4 +44,22 @@ public class InvalidRequestExceptionTest {
     assertTrue(exception.getMessage().contains("401"));
     assertTrue(exception.getMessage().contains("D'OH!"));
   }
+
+  @Test
+  public void testGetters_retryAfter() {
+    InvalidRequestException exception =
+        new InvalidRequestException(503, "D'OH!", 108000);
+    assertEquals(503, exception.getHttpStatusCode());
+    assertEquals(108000, exception.getRetryAfter());
+    assertEquals(0, new InvalidRequestException(503).getRetryAfter());
+  }
+
+  @Test
+  public void testIsRetryable() {
+    assertTrue(new InvalidRequestException(500).isRetryable());
+    assertTrue(new InvalidRequestException(503).isRetryable());
+    assertTrue(new InvalidRequestException(429).isRetryable());
+    assertFalse(new InvalidRequestException(400).isRetryable());
+    assertFalse(new InvalidRequestException(401).isRetryable());
+  }
 }
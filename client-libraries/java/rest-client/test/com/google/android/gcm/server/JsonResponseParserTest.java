@@ -0,0 +1,328 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+
+public class JsonResponseParserTest {
+
+  @Test
+  public void testParse() throws Exception {
+    MulticastResult multicastResult = parse("{"
+        + "  'multicast_id': 8419543185418574651,"
+        + "  'success': 2,"
+        + "  'failure': 1,"
+        + "  'canonical_ids': 1,"
+        + "  'results': ["
+        + "    {'message_id': '0:1351'},"
+        + "    {'error': 'NotRegistered'},"
+        + "    {'message_id': '0:1352', 'registration_id': '42'}"
+        + "  ]"
+        + "}");
+    assertEquals(8419543185418574651L, multicastResult.getMulticastId());
+    assertEquals(2, multicastResult.getSuccess());
+    assertEquals(1, multicastResult.getFailure());
+    assertEquals(1, multicastResult.getCanonicalIds());
+    List<Result> results = multicastResult.getResults();
+    assertEquals(3, results.size());
+    assertResult(results.get(0), "0:1351", null, null);
+    assertResult(results.get(1), null, "NotRegistered", null);
+    assertResult(results.get(2), "0:1352", null, "42");
+  }
+
+  @Test
+  public void testParse_internsErrorCodes() throws Exception {
+    String unavailable = new String(Constants.ERROR_UNAVAILABLE);
+    MulticastResult multicastResult = parse("{"
+        + "  'multicast_id': 1, 'success': 0, 'failure': 2,"
+        + "  'canonical_ids': 0, 'results': ["
+        + "    {'error': '" + unavailable + "'}, {'error': 'DOH!'}"
+        + "  ]"
+        + "}");
+    List<Result> results = multicastResult.getResults();
+    assertSame(Constants.ERROR_UNAVAILABLE, results.get(0).getErrorCodeName());
+    assertEquals("DOH!", results.get(1).getErrorCodeName());
+    assertNotSame(Constants.ERROR_UNAVAILABLE,
+        results.get(1).getErrorCodeName());
+  }
+
+  @Test
+  public void testParse_trailingCommas() throws Exception {
+    MulticastResult multicastResult = parse("{"
+        + "  'multicast_id': 1, 'success': 1, 'failure': 0,"
+        + "  'canonical_ids': 0, 'results': [{'message_id': '4815162342',}, ],"
+        + "}");
+    assertEquals(1, multicastResult.getResults().size());
+    assertEquals("4815162342",
+        multicastResult.getResults().get(0).getMessageId());
+  }
+
+  @Test
+  public void testParse_countersAfterResults() throws Exception {
+    MulticastResult multicastResult = parse("{"
+        + "  'results': [{'message_id': '16'}, {'message_id': '23'}],"
+        + "  'multicast_id': 108, 'success': 2, 'failure': 0,"
+        + "  'canonical_ids': 0"
+        + "}");
+    assertEquals(108, multicastResult.getMulticastId());
+    assertEquals(2, multicastResult.getResults().size());
+    assertEquals("23", multicastResult.getResults().get(1).getMessageId());
+  }
+
+  @Test
+  public void testParse_skipsUnknownMembers() throws Exception {
+    MulticastResult multicastResult = parse("{"
+        + "  'unknown': {'a': [1, -2.5e3, true, false, null, 'x', {}, []]},"
+        + "  'multicast_id': 1, 'success': 1, 'failure': 0,"
+        + "  'canonical_ids': 0, 'results': [{'extra': [{'b': 'c'}],"
+        + "  'message_id': '16', 'error': null}]"
+        + "}");
+    assertResult(multicastResult.getResults().get(0), "16", null, null);
+  }
+
+  @Test
+  public void testParse_noResults() throws Exception {
+    MulticastResult multicastResult = parse("{'multicast_id': 1,"
+        + " 'success': 0, 'failure': 0, 'canonical_ids': 0, 'results': null}");
+    assertEquals(0, multicastResult.getResults().size());
+  }
+
+  @Test
+  public void testParse_fractionalNumber() throws Exception {
+    MulticastResult multicastResult = parse("{'multicast_id': -1,"
+        + " 'success': 2.0, 'failure': 1E0, 'canonical_ids': 0}");
+    assertEquals(-1, multicastResult.getMulticastId());
+    assertEquals(2, multicastResult.getSuccess());
+    assertEquals(1, multicastResult.getFailure());
+  }
+
+  @Test
+  public void testParse_escapesAndUnicode() throws Exception {
+    String messageId = "q\" b\\ s/ \b\f\n\r\t \u00e9\u20ac\ud83d\ude00"
+        + "\ud83d\ude00";
+    // raw UTF-8 of 2, 3 and 4 bytes, then escaped chars
+    String json = "{'multicast_id': 1, 'success': 1, 'failure': 0,"
+        + " 'canonical_ids': 0, 'results': [{'message_id':"
+        + " 'q\\\" b\\\\ s\\/ \\b\\f\\n\\r\\t \u00e9\u20ac\ud83d\ude00"
+        + "\\ud83d\\ude00'}]}";
+    MulticastResult multicastResult = parse(json);
+    assertEquals(messageId, multicastResult.getResults().get(0).getMessageId());
+  }
+
+  @Test
+  public void testParse_bufferBoundaries() throws Exception {
+    StringBuilder json = new StringBuilder("{'multicast_id': 1,"
+        + " 'success': 1000, 'failure': 0, 'canonical_ids': 0, 'results': [");
+    for (int i = 0; i < 1000; i++) {
+      json.append("{'message_id': '0:\u00e9").append(i).append("'},");
+    }
+    json.append("]}");
+    byte[] bytes = json.toString().replace('\'', '"').getBytes("UTF-8");
+    // reads a single byte at a time
+    InputStream in = new FilterInputStream(new ByteArrayInputStream(bytes)) {
+      @Override
+      public int read(byte[] buffer, int offset, int length)
+          throws IOException {
+        return super.read(buffer, offset, Math.min(1, length));
+      }
+    };
+    MulticastResult multicastResult =
+        new JsonResponseParser(in, 16).parseMulticastResult().build();
+    assertEquals(1000, multicastResult.getResults().size());
+    assertEquals("0:\u00e9999",
+        multicastResult.getResults().get(999).getMessageId());
+  }
+
+  @Test
+  public void testParse_missingField() throws Exception {
+    assertMalformed("{'multicast_id': 1, 'success': 1, 'failure': 0}",
+        "Missing field: canonical_ids");
+  }
+
+  @Test
+  public void testParse_notANumber() throws Exception {
+    assertMalformed("{'multicast_id': '1', 'success': 1, 'failure': 0,"
+        + " 'canonical_ids': 0}", "Field multicast_id does not contain a number");
+  }
+
+  @Test
+  public void testParse_outOfRange() throws Exception {
+    assertMalformed("{'multicast_id': 9223372036854775808, 'success': 1,"
+        + " 'failure': 0, 'canonical_ids': 0}",
+        "Field multicast_id is out of range");
+  }
+
+  @Test
+  public void testParse_invalidJson() throws Exception {
+    assertMalformed("", null);
+    assertMalformed("bad json", null);
+    assertMalformed("{'multicast_id': 1", null);
+    assertMalformed("{'results': [{'message_id': 'unterminated}]}", null);
+    assertMalformed("{'results': [{'message_id': 42}]}", null);
+    assertMalformed("{'results': [{'message_id': '42'} {}]}", null);
+    assertMalformed("{'results': [{'message_id': nil}]}", null);
+  }
+
+  @Test(expected = JsonResponseParser.MalformedJsonException.class)
+  public void testParse_nullStream() throws Exception {
+    new JsonResponseParser(null).parseMulticastResult().build();
+  }
+
+  @Test
+  public void testParse_readFailure() throws Exception {
+    InputStream in = new InputStream() {
+      @Override
+      public int read() throws IOException {
+        throw new IOException("read failure");
+      }
+    };
+    try {
+      new JsonResponseParser(in).parseMulticastResult().build();
+      fail("Should have thrown IOException");
+    } catch (IOException e) {
+      assertFalse(e instanceof JsonResponseParser.MalformedJsonException);
+    }
+  }
+
+  @Test
+  public void testParseTopicResult() throws Exception {
+    assertEquals("6345", newParser("{'message_id': 6345}")
+        .parseTopicResult().build().getMessageId());
+    assertEquals("0:42", newParser("{'message_id': '0:42', 'x': 1}")
+        .parseTopicResult().build().getMessageId());
+    TopicResult result = newParser("{'error': 'TopicsMessageRateExceeded'}")
+        .parseTopicResult().build();
+    assertNull(result.getMessageId());
+    assertSame(Constants.ERROR_TOPICS_MESSAGE_RATE_EXCEEDED,
+        result.getErrorCodeName());
+  }
+
+  @Test(expected = JsonResponseParser.MalformedJsonException.class)
+  public void testParseTopicResult_empty() throws Exception {
+    newParser("{}").parseTopicResult();
+  }
+
+  @Test
+  public void testParseDeviceGroupResult() throws Exception {
+    DeviceGroupResult result = newParser("{'success': 1, 'failure': 2,"
+        + " 'failed_registration_ids': ['4', '8']}")
+        .parseDeviceGroupResult().build();
+    assertEquals(1, result.getSuccess());
+    assertEquals(2, result.getFailure());
+    assertEquals(Arrays.asList("4", "8"), result.getFailedRegistrationIds());
+    result = newParser("{'success': 2, 'failure': 0}")
+        .parseDeviceGroupResult().build();
+    assertEquals(2, result.getSuccess());
+    assertTrue(result.getFailedRegistrationIds().isEmpty());
+  }
+
+  @Test(expected = JsonResponseParser.MalformedJsonException.class)
+  public void testParseDeviceGroupResult_noCounters() throws Exception {
+    newParser("{'failed_registration_ids': []}").parseDeviceGroupResult();
+  }
+
+  @Test
+  public void testParseNotificationKey() throws Exception {
+    assertEquals("APA91bGHXQBB", newParser(
+        "{'notification_key': 'APA91bGHXQBB', 'extra': [1]}")
+        .parseNotificationKey());
+  }
+
+  @Test(expected = JsonResponseParser.MalformedJsonException.class)
+  public void testParseNotificationKey_missing() throws Exception {
+    newParser("{'notification_key': null}").parseNotificationKey();
+  }
+
+  @Test
+  public void testParseCcsMessage_nack() throws Exception {
+    CcsMessage message = newParser("{'message_type': 'nack', 'from': '4',"
+        + " 'message_id': 'm-1', 'error': 'BAD_REGISTRATION',"
+        + " 'error_description': 'Invalid token', 'extra': {'k': [1]}}")
+        .parseCcsMessage();
+    assertEquals("nack", message.messageType);
+    assertEquals("4", message.from);
+    assertEquals("m-1", message.messageId);
+    assertEquals("BAD_REGISTRATION", message.error);
+    assertEquals("Invalid token", message.errorDescription);
+    assertNull(message.controlType);
+  }
+
+  @Test
+  public void testParseCcsMessage_control() throws Exception {
+    CcsMessage message = newParser("{'message_type': 'control',"
+        + " 'control_type': 'CONNECTION_DRAINING'}").parseCcsMessage();
+    assertEquals("control", message.messageType);
+    assertEquals("CONNECTION_DRAINING", message.controlType);
+    assertNull(message.messageId);
+  }
+
+  @Test
+  public void testParseCcsMessage_upstream() throws Exception {
+    CcsMessage message = newParser("{'category': 'com.example',"
+        + " 'data': {'k1': 'v1', 'k2': null}, 'message_id': 'm-1',"
+        + " 'from': '4'}").parseCcsMessage();
+    assertNull(message.messageType);
+    assertEquals("com.example", message.category);
+    assertEquals("v1", message.data.get("k1"));
+    assertTrue(message.data.containsKey("k2"));
+    assertEquals(2, message.data.size());
+  }
+
+  private static JsonResponseParser newParser(String json) throws IOException {
+    byte[] bytes = json.replace('\'', '"').getBytes("UTF-8");
+    return new JsonResponseParser(new ByteArrayInputStream(bytes));
+  }
+
+  private static MulticastResult parse(String json) throws IOException {
+    byte[] bytes = json.replace('\'', '"').getBytes("UTF-8");
+    return new JsonResponseParser(new ByteArrayInputStream(bytes))
+        .parseMulticastResult().build();
+  }
+
+  private static void assertMalformed(String json, String message)
+      throws IOException {
+    try {
+      parse(json);
+      fail("Should have thrown MalformedJsonException: " + json);
+    } catch (JsonResponseParser.MalformedJsonException e) {
+      if (message != null) {
+        assertEquals(message, e.getMessage());
+      }
+    }
+  }
+
+  private static void assertResult(Result result, String messageId,
+      String error, String canonicalRegistrationId) {
+    assertEquals(messageId, result.getMessageId());
+    assertEquals(error, result.getErrorCodeName());
+    assertEquals(canonicalRegistrationId, result.getCanonicalRegistrationId());
+  }
+}
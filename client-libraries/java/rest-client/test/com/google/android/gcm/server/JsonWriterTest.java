@@ -0,0 +1,140 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import static org.junit.Assert.assertEquals;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+public class JsonWriterTest {
+
+  private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+  private final JsonWriter writer = new JsonWriter(out);
+
+  @Test
+  public void testStructure() throws Exception {
+    writer.beginObject()
+        .name("s").value("v")
+        .name("n").value(-108L)
+        .name("b").value(true)
+        .name("a").beginArray().value("4").value(8L).value(false).endArray()
+        .name("o").beginObject().name("nested").value((String) null).endObject()
+        .name("e").beginArray().endArray()
+        .endObject()
+        .flush();
+    assertEquals("{\"s\":\"v\",\"n\":-108,\"b\":true,\"a\":[\"4\",8,false],"
+        + "\"o\":{\"nested\":null},\"e\":[]}", written());
+  }
+
+  @Test
+  public void testOptional() throws Exception {
+    writer.beginObject()
+        .optional("s", (String) null)
+        .optional("n", (Integer) null)
+        .optional("b", (Boolean) null)
+        .optional("a", (Iterable<String>) null)
+        .optional("s2", "v")
+        .optional("n2", 42)
+        .optional("b2", Boolean.FALSE)
+        .optional("a2", Arrays.asList("x", "y"))
+        .endObject()
+        .flush();
+    assertEquals("{\"s2\":\"v\",\"n2\":42,\"b2\":false,\"a2\":[\"x\",\"y\"]}",
+        written());
+  }
+
+  @Test
+  public void testNullName() throws Exception {
+    writer.beginObject().name(null).value("v").endObject().flush();
+    assertEquals("{\"null\":\"v\"}", written());
+  }
+
+  @Test
+  public void testNumbers() throws Exception {
+    writer.beginArray().value(0L).value(Long.MAX_VALUE).value(Long.MIN_VALUE)
+        .endArray().flush();
+    assertEquals("[0," + Long.MAX_VALUE + "," + Long.MIN_VALUE + "]",
+        written());
+  }
+
+  @Test
+  public void testEscaping() throws Exception {
+    String value = "quote\" backslash\\ slash/ \n\r\t\b\u0001 "
+        + "\u00e9\u20ac\ud83d\ude00 \u2028 \ud800";
+    writer.beginObject().name("k\"").value(value).endObject().flush();
+    JSONObject json = (JSONObject) new JSONParser().parse(written());
+    assertEquals(value, json.get("k\""));
+    assertEquals(-1, written().indexOf('\u2028'));
+  }
+
+  @Test
+  public void testLargeDocument() throws Exception {
+    StringBuilder longValue = new StringBuilder();
+    for (int i = 0; i < 5000; i++) {
+      longValue.append("\u00e9x");
+    }
+    writer.beginArray();
+    for (int i = 0; i < 1000; i++) {
+      writer.value(longValue.toString());
+    }
+    writer.endArray().flush();
+    JSONArray json = (JSONArray) new JSONParser().parse(written());
+    assertEquals(1000, json.size());
+    assertEquals(longValue.toString(), json.get(999));
+  }
+
+  @Test
+  public void testMembers() throws Exception {
+    writer.beginObject()
+        .members(new byte[0])
+        .members("\"a\":1,\"b\":2".getBytes("UTF-8"))
+        .name("c").value(3L)
+        .endObject()
+        .flush();
+    assertEquals("{\"a\":1,\"b\":2,\"c\":3}", written());
+  }
+
+  @Test
+  public void testMembers_largerThanBuffer() throws Exception {
+    JsonWriter small = new JsonWriter(out, 64);
+    StringBuilder members = new StringBuilder("\"a\":\"");
+    for (int i = 0; i < 100; i++) {
+      members.append('x');
+    }
+    members.append('"');
+    small.beginObject().name("z").value(0L)
+        .members(members.toString().getBytes("UTF-8"))
+        .endObject()
+        .flush();
+    assertEquals("{\"z\":0," + members + "}", written());
+  }
+
+  @Test
+  public void testEmptyDocument() throws Exception {
+    writer.flush();
+    assertEquals("", written());
+  }
+
+  private String written() throws Exception {
+    return new String(out.toByteArray(), "UTF-8");
+  }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.List;
+
+public class MessageSpoolTest {
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private final Message message = new Message.Builder()
+      .collapseKey("108")
+      .addData("k1", "v1")
+      .notification(new Notification.Builder("icon").title("title").build())
+      .build();
+
+  @Test
+  public void testAppendAndRecover() throws Exception {
+    MessageSpool spool = open(1024 * 1024);
+    long id1 = spool.append(message, Arrays.asList("4", "8", "15"));
+    long id2 = spool.append(message, Arrays.asList("16", "23"));
+    long id3 = spool.append(message, Arrays.asList("42"));
+    spool.checkpoint(id1, new int[] { 0, 2 });
+    spool.complete(id2);
+    spool.close();
+    List<MessageSpool.Entry> pending = open(1024 * 1024).getPending();
+    assertEquals(2, pending.size());
+    MessageSpool.Entry entry = pending.get(0);
+    assertEquals(id1, entry.getId());
+    assertEquals(message, entry.getMessage());
+    assertEquals(Arrays.asList("4", "8", "15"), entry.getRegistrationIds());
+    assertEquals(Arrays.asList("8"), entry.getPendingRegistrationIds());
+    assertArrayEquals(new int[] { 1 }, entry.getPendingPositions());
+    assertEquals(id3, pending.get(1).getId());
+  }
+
+  @Test
+  public void testCheckpoint_allCompleted() throws Exception {
+    MessageSpool spool = open(1024 * 1024);
+    long id = spool.append(message, Arrays.asList("4", "8"));
+    spool.checkpoint(id, new int[] { 1 });
+    spool.checkpoint(id, new int[] { 0 });
+    assertTrue(spool.getPending().isEmpty());
+    spool.close();
+    assertTrue(open(1024 * 1024).getPending().isEmpty());
+  }
+
+  @Test
+  public void testRecover_partialRecord() throws Exception {
+    MessageSpool spool = open(1024 * 1024);
+    long id = spool.append(message, Arrays.asList("4", "8"));
+    spool.checkpoint(id, new int[] { 0 });
+    spool.close();
+    // corrupts the last byte of the checkpoint, as if it was partially
+    // written
+    File segment = getSegments()[0];
+    RandomAccessFile file = new RandomAccessFile(segment, "rw");
+    try {
+      long end = 0;
+      int length;
+      while ((length = readInt(file, end)) > 0) {
+        end += 8 + length;
+      }
+      file.seek(end - 1);
+      int last = file.read();
+      file.seek(end - 1);
+      file.write(last ^ 0xff);
+    } finally {
+      file.close();
+    }
+    spool = open(1024 * 1024);
+    assertEquals(Arrays.asList("4", "8"),
+        spool.getPending().get(0).getPendingRegistrationIds());
+    // the next records replace it
+    spool.checkpoint(id, new int[] { 1 });
+    spool.close();
+    assertEquals(Arrays.asList("4"), open(1024 * 1024).getPending().get(0)
+        .getPendingRegistrationIds());
+  }
+
+  @Test
+  public void testRoll() throws Exception {
+    MessageSpool spool = open(1024);
+    long pendingId = spool.append(message, Arrays.asList("4", "8", "15"));
+    spool.checkpoint(pendingId, new int[] { 1 });
+    for (int i = 0; i < 100; i++) {
+      long id = spool.append(message, Arrays.asList("regId" + i));
+      spool.complete(id);
+    }
+    // older segments are deleted
+    assertEquals(1, getSegments().length);
+    spool.close();
+    List<MessageSpool.Entry> pending = open(1024).getPending();
+    assertEquals(1, pending.size());
+    assertEquals(pendingId, pending.get(0).getId());
+    assertEquals(Arrays.asList("4", "15"),
+        pending.get(0).getPendingRegistrationIds());
+  }
+
+  @Test
+  public void testCompact() throws Exception {
+    MessageSpool spool = open(1024 * 1024);
+    long id = spool.append(message, Arrays.asList("4", "8"));
+    spool.checkpoint(id, new int[] { 0 });
+    File before = getSegments()[0];
+    spool.compact();
+    File[] segments = getSegments();
+    assertEquals(1, segments.length);
+    assertTrue(!before.equals(segments[0]));
+    // new ids do not collide with the previous ones
+    long next = spool.append(message, Arrays.asList("15"));
+    assertTrue(next > id);
+    spool.close();
+    List<MessageSpool.Entry> pending = open(1024 * 1024).getPending();
+    assertEquals(2, pending.size());
+    assertEquals(Arrays.asList("8"),
+        pending.get(0).getPendingRegistrationIds());
+  }
+
+  @Test
+  public void testClosed() throws Exception {
+    MessageSpool spool = open(1024 * 1024);
+    spool.close();
+    try {
+      spool.append(message, Arrays.asList("4"));
+      fail("Should have thrown IOException");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testBuilder_segmentTooSmall() {
+    new MessageSpool.Builder(folder.getRoot()).segmentSize(1023);
+  }
+
+  private MessageSpool open(int segmentSize) throws IOException {
+    return new MessageSpool.Builder(new File(folder.getRoot(), "spool"))
+        .segmentSize(segmentSize)
+        .build();
+  }
+
+  private File[] getSegments() {
+    return new File(folder.getRoot(), "spool").listFiles();
+  }
+
+  private static int readInt(RandomAccessFile file, long position)
+      throws IOException {
+    file.seek(position);
+    return file.readInt();
+  }
+}
@@ -15,15 +15,21 @@
  */
 package com.google.android.gcm.server;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.runners.MockitoJUnitRunner;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.util.Map;
 
 @RunWith(MockitoJUnitRunner.class)
@@ -82,4 +88,63 @@ public class MessageTest {
     Message message = new Message.Builder().build();
     message.getData().clear();
   }
+
+  @Test
+  public void testPayloadDataIsCopied() {
+    Message.Builder builder = new Message.Builder().addData("k1", "v1");
+    Message message = builder.build();
+    builder.addData("k2", "v2");
+    assertEquals(1, message.getData().size());
+  }
+
+  @Test
+  public void testJsonFields() throws Exception {
+    Message message = new Message.Builder()
+        .timeToLive(42)
+        .addData("k1", "v1")
+        .build();
+    byte[] fields = message.getJsonFields();
+    assertEquals("\"time_to_live\":42,\"data\":{\"k1\":\"v1\"}",
+        new String(fields, "UTF-8"));
+    assertSame(fields, message.getJsonFields());
+  }
+
+  @Test
+  public void testJsonFields_empty() {
+    assertEquals(0, new Message.Builder().build().getJsonFields().length);
+  }
+
+  @Test
+  public void testJsonFields_serialized() throws Exception {
+    Message message = new Message.Builder().collapseKey("108").build();
+    byte[] fields = message.getJsonFields();
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ObjectOutputStream out = new ObjectOutputStream(bytes);
+    out.writeObject(message);
+    out.close();
+    Message copy = (Message) new ObjectInputStream(
+        new ByteArrayInputStream(bytes.toByteArray())).readObject();
+    assertArrayEquals(fields, copy.getJsonFields());
+  }
+
+  @Test
+  public void testEquals() {
+    Message message = new Message.Builder()
+        .collapseKey("108")
+        .addData("k1", "v1")
+        .notification(new Notification.Builder("icon").title("title").build())
+        .build();
+    Message same = new Message.Builder()
+        .collapseKey("108")
+        .addData("k1", "v1")
+        .notification(new Notification.Builder("icon").title("title").build())
+        .build();
+    assertEquals(message, same);
+    assertEquals(message.hashCode(), same.hashCode());
+    assertFalse(message.equals(new Message.Builder()
+        .collapseKey("108")
+        .addData("k1", "v2")
+        .build()));
+    assertFalse(message.equals(null));
+  }
 }
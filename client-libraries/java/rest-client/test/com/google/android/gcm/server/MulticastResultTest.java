@@ -15,13 +15,20 @@
  */
 package com.google.android.gcm.server;
 
+import static com.google.android.gcm.server.Constants.*;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.runners.MockitoJUnitRunner;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.util.Arrays;
 import java.util.List;
 
@@ -38,6 +45,8 @@ public class MulticastResultTest {
     assertEquals(16, multicastResult.getMulticastId());
     assertTrue(multicastResult.getResults().isEmpty());
     assertTrue(multicastResult.getRetryMulticastIds().isEmpty());
+    assertEquals(0, multicastResult.getRetryAfter());
+    assertTrue(multicastResult.getRetryDelays().isEmpty());
   }
 
   @Test
@@ -67,6 +76,8 @@ public class MulticastResultTest {
   public void testOptionalParameters() {
     MulticastResult multicastResult = new MulticastResult.Builder(4, 8, 15, 16)
         .retryMulticastIds(Arrays.asList(23L, 42L))
+        .retryAfter(108)
+        .retryDelays(Arrays.asList(500L, 1500L))
         .build();
     assertEquals(4, multicastResult.getSuccess());
     assertEquals(8, multicastResult.getFailure());
@@ -77,6 +88,8 @@ public class MulticastResultTest {
     assertEquals(2, retryMulticastIds.size());
     assertEquals(23L, retryMulticastIds.get(0).longValue());
     assertEquals(42L, retryMulticastIds.get(1).longValue());
+    assertEquals(108, multicastResult.getRetryAfter());
+    assertEquals(Arrays.asList(500L, 1500L), multicastResult.getRetryDelays());
   }
 
   @Test(expected = UnsupportedOperationException.class)
@@ -90,4 +103,86 @@ public class MulticastResultTest {
     MulticastResult result = new MulticastResult.Builder(1, 2, 3, 4).build();
     result.getRetryMulticastIds().clear();
   }
+
+  @Test
+  public void testColumns() {
+    MulticastResult multicastResult = newResult();
+    assertEquals("23", multicastResult.getMessageId(0));
+    assertNull(multicastResult.getErrorCodeName(0));
+    assertNull(multicastResult.getCanonicalRegistrationId(0));
+    assertNull(multicastResult.getMessageId(1));
+    assertEquals(ERROR_NOT_REGISTERED, multicastResult.getErrorCodeName(1));
+    assertEquals("", multicastResult.getMessageId(2));
+    assertEquals("108", multicastResult.getCanonicalRegistrationId(2));
+    assertEquals("D'OH!", multicastResult.getErrorCodeName(3));
+    assertNull(multicastResult.getMessageId(3));
+    assertEquals(ERROR_NOT_REGISTERED, multicastResult.getErrorCodeName(4));
+    assertEquals(Arrays.asList(
+        new Result.Builder().messageId("23").build(),
+        new Result.Builder().errorCode(ERROR_NOT_REGISTERED).build(),
+        new Result.Builder().messageId("").canonicalRegistrationId("108")
+            .build(),
+        new Result.Builder().errorCode("D'OH!").build(),
+        new Result.Builder().errorCode(ERROR_NOT_REGISTERED).build()),
+        multicastResult.getResults());
+  }
+
+  @Test(expected = IndexOutOfBoundsException.class)
+  public void testColumns_outOfBounds() {
+    newResult().getMessageId(5);
+  }
+
+  @Test
+  public void testGetIndexes() {
+    MulticastResult multicastResult = newResult();
+    assertArrayEquals(new int[] { 1, 4 },
+        multicastResult.getIndexes(ERROR_NOT_REGISTERED));
+    assertArrayEquals(new int[] { 3 }, multicastResult.getIndexes("D'OH!"));
+    assertArrayEquals(new int[] { 0, 2 }, multicastResult.getIndexes(null));
+    assertArrayEquals(new int[0],
+        multicastResult.getIndexes(ERROR_UNAVAILABLE));
+    assertArrayEquals(new int[] { 2 },
+        multicastResult.getCanonicalIdIndexes());
+  }
+
+  @Test
+  public void testAddResults() {
+    MulticastResult original = newResult();
+    MulticastResult.Builder builder = new MulticastResult.Builder(2, 3, 1, 42)
+        .addResult(original, 3)
+        .addResult(original, 2)
+        .addResults(original);
+    List<Result> results = builder.build().getResults();
+    assertEquals(7, results.size());
+    assertEquals(original.getResults().get(3), results.get(0));
+    assertEquals(original.getResults().get(2), results.get(1));
+    assertEquals(original.getResults(), results.subList(2, 7));
+  }
+
+  @Test
+  public void testSerializable() throws Exception {
+    MulticastResult multicastResult = newResult();
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ObjectOutputStream out = new ObjectOutputStream(bytes);
+    out.writeObject(multicastResult);
+    out.close();
+    ObjectInputStream in = new ObjectInputStream(
+        new ByteArrayInputStream(bytes.toByteArray()));
+    MulticastResult copy = (MulticastResult) in.readObject();
+    assertEquals(multicastResult.getResults(), copy.getResults());
+    assertEquals(multicastResult.toString(), copy.toString());
+  }
+
+  private static MulticastResult newResult() {
+    return new MulticastResult.Builder(2, 3, 1, 16)
+        .addResult(new Result.Builder().messageId("23").build())
+        .addResult(new Result.Builder().errorCode(ERROR_NOT_REGISTERED)
+            .build())
+        .addResult(new Result.Builder().messageId("")
+            .canonicalRegistrationId("108").build())
+        .addResult(new Result.Builder().errorCode("D'OH!").build())
+        .addResult(new Result.Builder().errorCode(ERROR_NOT_REGISTERED)
+            .build())
+        .build();
+  }
 }
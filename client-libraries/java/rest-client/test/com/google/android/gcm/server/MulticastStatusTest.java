@@ -0,0 +1,132 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import static com.google.android.gcm.server.Constants.*;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+public class MulticastStatusTest {
+
+  private final List<String> regIds = Arrays.asList("4", "8", "15", "8");
+
+  @Test
+  public void testUpdate() {
+    MulticastStatus status = new MulticastStatus(regIds);
+    assertSame(regIds, status.getPendingRegistrationIds());
+    Set<String> retryErrors = new HashSet<String>();
+    status.update(new MulticastResult.Builder(1, 3, 0, 42)
+        .addResult(new Result.Builder().errorCode(ERROR_UNAVAILABLE).build())
+        .addResult(new Result.Builder().messageId("16").build())
+        .addResult(new Result.Builder().errorCode(ERROR_NOT_REGISTERED)
+            .build())
+        .addResult(new Result.Builder()
+            .errorCode(ERROR_INTERNAL_SERVER_ERROR).build())
+        .build(), RetryPolicy.DEFAULT, retryErrors);
+    assertEquals(2, status.getPendingCount());
+    assertEquals(Arrays.asList("4", "8"), status.getPendingRegistrationIds());
+    assertArrayEquals(new int[] { 0, 3 }, status.getPendingPositions());
+    assertEquals(new HashSet<String>(Arrays.asList(ERROR_UNAVAILABLE,
+        ERROR_INTERNAL_SERVER_ERROR)), retryErrors);
+  }
+
+  @Test
+  public void testToBuilder() {
+    MulticastStatus status = new MulticastStatus(regIds);
+    status.update(new MulticastResult.Builder(1, 3, 0, 42)
+        .addResult(new Result.Builder().errorCode(ERROR_UNAVAILABLE).build())
+        .addResult(new Result.Builder().messageId("16").build())
+        .addResult(new Result.Builder().errorCode(ERROR_NOT_REGISTERED)
+            .build())
+        .addResult(new Result.Builder().errorCode(ERROR_UNAVAILABLE).build())
+        .build(), RetryPolicy.DEFAULT, new HashSet<String>());
+    status.update(new MulticastResult.Builder(2, 0, 1, 108)
+        .addResult(new Result.Builder().messageId("23").build())
+        .addResult(new Result.Builder().messageId("42")
+            .canonicalRegistrationId("16").build())
+        .build(), RetryPolicy.DEFAULT, new HashSet<String>());
+    assertEquals(0, status.getPendingCount());
+    MulticastResult result = status.toBuilder().build();
+    assertEquals(42, result.getMulticastId());
+    assertEquals(3, result.getSuccess());
+    assertEquals(1, result.getFailure());
+    assertEquals(1, result.getCanonicalIds());
+    // each copy of a duplicated registration id keeps its own result
+    assertEquals(Arrays.asList(
+        new Result.Builder().messageId("23").build(),
+        new Result.Builder().messageId("16").build(),
+        new Result.Builder().errorCode(ERROR_NOT_REGISTERED).build(),
+        new Result.Builder().messageId("42").canonicalRegistrationId("16")
+            .build()),
+        result.getResults());
+  }
+
+  @Test
+  public void testToBuilder_pendingError() {
+    MulticastStatus status = new MulticastStatus(regIds);
+    status.update(new MulticastResult.Builder(1, 3, 0, 42)
+        .addResult(new Result.Builder().errorCode(ERROR_UNAVAILABLE).build())
+        .addResult(new Result.Builder().messageId("16").build())
+        .addResult(new Result.Builder().errorCode(ERROR_NOT_REGISTERED)
+            .build())
+        .addResult(new Result.Builder().errorCode(ERROR_UNAVAILABLE).build())
+        .build(), RetryPolicy.DEFAULT, new HashSet<String>());
+    MulticastResult result =
+        status.toBuilder(ERROR_DEADLINE_EXCEEDED).build();
+    assertEquals(42, result.getMulticastId());
+    assertEquals(1, result.getSuccess());
+    assertEquals(3, result.getFailure());
+    assertEquals(Arrays.asList(
+        new Result.Builder().errorCode(ERROR_DEADLINE_EXCEEDED).build(),
+        new Result.Builder().messageId("16").build(),
+        new Result.Builder().errorCode(ERROR_NOT_REGISTERED).build(),
+        new Result.Builder().errorCode(ERROR_DEADLINE_EXCEEDED).build()),
+        result.getResults());
+  }
+
+  @Test
+  public void testToBuilder_noAttempts_pendingError() {
+    MulticastResult result = new MulticastStatus(regIds)
+        .toBuilder(ERROR_DEADLINE_EXCEEDED).build();
+    assertEquals(0, result.getMulticastId());
+    assertEquals(0, result.getSuccess());
+    assertEquals(4, result.getFailure());
+    assertArrayEquals(new int[] { 0, 1, 2, 3 },
+        result.getIndexes(ERROR_DEADLINE_EXCEEDED));
+  }
+
+  @Test(expected = RuntimeException.class)
+  public void testUpdate_sizesDoNotMatch() {
+    new MulticastStatus(regIds).update(
+        new MulticastResult.Builder(1, 0, 0, 42)
+            .addResult(new Result.Builder().messageId("16").build())
+            .build(), RetryPolicy.DEFAULT, new HashSet<String>());
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testToBuilder_noAttempts() {
+    new MulticastStatus(Collections.singletonList("4")).toBuilder();
+  }
+}
@@ -118,4 +118,16 @@ public class NotificationTest {
     Notification notification = builder.build();
     notification.getTitleLocArgs().clear();
   }
+
+  @Test
+  public void testLocArgsAreCopied() {
+    ArrayList<String> args = new ArrayList<String>(Arrays.asList("one"));
+    Notification notification = new Notification.Builder("myicon")
+        .bodyLocArgs(args)
+        .titleLocArgs(args)
+        .build();
+    args.add("two");
+    assertEquals(Arrays.asList("one"), notification.getBodyLocArgs());
+    assertEquals(Arrays.asList("one"), notification.getTitleLocArgs());
+  }
 }
@@ -0,0 +1,267 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import static com.google.android.gcm.server.Constants.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class RateLimiterTest {
+
+  private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  // starts far from 0 so negative times are handled
+  private final AtomicLong now = new AtomicLong(-1000000 * MS);
+
+  @Test
+  public void testGlobalRate() throws Exception {
+    RateLimiter limiter = builder().globalRate(10, 3).build();
+    List<String> regIds = Arrays.asList("4");
+    for (int i = 0; i < 3; i++) {
+      assertEquals(0, limiter.acquire(regIds).getDelay());
+    }
+    assertRateLimited(limiter, regIds, 100);
+    now.addAndGet(40 * MS);
+    assertRateLimited(limiter, regIds, 60);
+    now.addAndGet(60 * MS);
+    assertEquals(0, limiter.acquire(regIds).getDelay());
+    assertRateLimited(limiter, regIds, 100);
+  }
+
+  @Test
+  public void testGlobalRate_largerThanBurst() throws Exception {
+    RateLimiter limiter = builder().globalRate(1000, 10).build();
+    List<String> regIds = newRegIds(100);
+    RateLimiter.Admission admission = limiter.acquire(regIds);
+    assertEquals(0, admission.getDelay());
+    assertSame(regIds, admission.getRegistrationIds());
+    // the debt of 90 messages is paid by the next ones
+    assertRateLimited(limiter, regIds, 91);
+    now.addAndGet(91 * MS);
+    assertEquals(0, limiter.acquire(regIds).getDelay());
+  }
+
+  @Test
+  public void testGlobalRate_maxDelay() throws Exception {
+    RateLimiter limiter = builder().globalRate(10, 1)
+        .maxDelay(150, TimeUnit.MILLISECONDS).build();
+    List<String> regIds = Arrays.asList("4");
+    assertEquals(0, limiter.acquire(regIds).getDelay());
+    assertEquals(100, limiter.acquire(regIds).getDelay());
+    assertRateLimited(limiter, regIds, 200);
+  }
+
+  @Test
+  public void testDeviceRate() throws Exception {
+    RateLimiter limiter = builder().deviceRate(1, 2).build();
+    assertEquals(2, limiter.acquire(Arrays.asList("4", "8"))
+        .getRegistrationIds().size());
+    assertEquals(2, limiter.acquire(Arrays.asList("4", "8"))
+        .getRegistrationIds().size());
+    RateLimiter.Admission admission =
+        limiter.acquire(Arrays.asList("4", "15", "8", "16"));
+    assertEquals(Arrays.asList("15", "16"), admission.getRegistrationIds());
+    MulticastResult result = admission.merge(new MulticastResult.Builder(
+        1, 1, 0, 42)
+        .addResult(new Result.Builder().messageId("23").build())
+        .addResult(new Result.Builder().errorCode("DOH!").build())
+        .build());
+    assertEquals(42, result.getMulticastId());
+    assertEquals(1, result.getSuccess());
+    assertEquals(3, result.getFailure());
+    List<Result> results = result.getResults();
+    assertEquals(ERROR_DEVICE_MESSAGE_RATE_EXCEEDED,
+        results.get(0).getErrorCodeName());
+    assertEquals("23", results.get(1).getMessageId());
+    assertEquals(ERROR_DEVICE_MESSAGE_RATE_EXCEEDED,
+        results.get(2).getErrorCodeName());
+    assertEquals("DOH!", results.get(3).getErrorCodeName());
+    assertRateLimited(limiter, Arrays.asList("4", "8"), 1000);
+    now.addAndGet(1000 * MS);
+    assertEquals(2, limiter.acquire(Arrays.asList("4", "8"))
+        .getRegistrationIds().size());
+  }
+
+  @Test
+  public void testDeviceRate_releasedWhenGlobalRateExceeded()
+      throws Exception {
+    RateLimiter limiter = builder().globalRate(1, 1).deviceRate(1, 1).build();
+    limiter.acquire(Arrays.asList("4"));
+    assertRateLimited(limiter, Arrays.asList("8"), 1000);
+    now.addAndGet(1000 * MS);
+    // 8 did not use its token
+    assertEquals(Arrays.asList("8"),
+        limiter.acquire(Arrays.asList("8")).getRegistrationIds());
+  }
+
+  @Test
+  public void testDeviceRate_eviction() throws Exception {
+    RateLimiter limiter = builder().deviceRate(1, 1).maxDevices(16).build();
+    limiter.acquire(Arrays.asList("4"));
+    now.addAndGet(MS);
+    List<String> regIds = newRegIds(1000);
+    assertEquals(1000, limiter.acquire(regIds).getRegistrationIds().size());
+    // only the last devices are remembered
+    assertTrue(limiter.acquire(regIds).getRegistrationIds().size() >= 984);
+    assertEquals(Arrays.asList("4"),
+        limiter.acquire(Arrays.asList("4")).getRegistrationIds());
+  }
+
+  @Test
+  public void testOnQuotaExceeded() throws Exception {
+    RateLimiter limiter = builder().globalRate(100, 1)
+        .recoveryTime(10, TimeUnit.SECONDS).build();
+    assertEquals(100, limiter.getRate(), 0);
+    limiter.onQuotaExceeded();
+    assertEquals(50, limiter.getRate(), 0);
+    // at most once per second
+    limiter.onQuotaExceeded();
+    assertEquals(50, limiter.getRate(), 0);
+    now.addAndGet(1000 * MS);
+    assertEquals(55, limiter.getRate(), 1e-9);
+    limiter.onQuotaExceeded();
+    assertEquals(27.5, limiter.getRate(), 1e-9);
+    for (int i = 0; i < 10; i++) {
+      now.addAndGet(1000 * MS);
+      limiter.onQuotaExceeded();
+    }
+    assertEquals(10, limiter.getRate(), 1e-9);
+    now.addAndGet(10000 * MS);
+    assertEquals(100, limiter.getRate(), 0);
+  }
+
+  @Test
+  public void testOnQuotaExceeded_lowersInterval() throws Exception {
+    RateLimiter limiter = builder().globalRate(10, 1).build();
+    limiter.onQuotaExceeded();
+    List<String> regIds = Arrays.asList("4");
+    limiter.acquire(regIds);
+    assertRateLimited(limiter, regIds, 200);
+  }
+
+  @Test
+  public void testOnQuotaExceeded_notAdaptive() throws Exception {
+    RateLimiter limiter = builder().globalRate(10, 1).adaptive(false).build();
+    limiter.onQuotaExceeded();
+    assertEquals(10, limiter.getRate(), 0);
+  }
+
+  @Test
+  public void testOnResult() throws Exception {
+    RateLimiter limiter = builder().globalRate(10, 10).deviceRate(1, 5)
+        .build();
+    List<String> regIds = Arrays.asList("4", "8", "15");
+    limiter.onResult(regIds, new MulticastResult.Builder(1, 2, 0, 42)
+        .addResult(new Result.Builder().messageId("16").build())
+        .addResult(new Result.Builder()
+            .errorCode(ERROR_DEVICE_QUOTA_EXCEEDED).build())
+        .addResult(new Result.Builder()
+            .errorCode(ERROR_QUOTA_EXCEEDED).build())
+        .build());
+    assertEquals(5, limiter.getRate(), 0);
+    assertEquals(Arrays.asList("4", "15"),
+        limiter.acquire(regIds).getRegistrationIds());
+  }
+
+  @Test
+  public void testNoLimit() throws Exception {
+    RateLimiter limiter = builder().build();
+    List<String> regIds = newRegIds(1000);
+    for (int i = 0; i < 10; i++) {
+      RateLimiter.Admission admission = limiter.acquire(regIds);
+      assertEquals(0, admission.getDelay());
+      assertSame(regIds, admission.getRegistrationIds());
+    }
+    assertEquals(0, limiter.getRate(), 0);
+  }
+
+  @Test
+  public void testConcurrentAcquire() throws Exception {
+    final RateLimiter limiter = builder().globalRate(1, 1000).build();
+    final List<String> regIds = Collections.singletonList("4");
+    final AtomicLong acquired = new AtomicLong();
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int i = 0; i < 4; i++) {
+      Thread thread = new Thread() {
+        @Override
+        public void run() {
+          for (int j = 0; j < 1000; j++) {
+            try {
+              limiter.acquire(regIds);
+              acquired.incrementAndGet();
+            } catch (RateLimitedException e) {
+              // expected
+            }
+          }
+        }
+      };
+      threads.add(thread);
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertEquals(1000, acquired.get());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testBuilder_invalidRate() {
+    new RateLimiter.Builder().globalRate(0, 1);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testBuilder_invalidBurst() {
+    new RateLimiter.Builder().deviceRate(1, 0);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testBuilder_negativeDelay() {
+    new RateLimiter.Builder().maxDelay(-1, TimeUnit.SECONDS);
+  }
+
+  private RateLimiter.Builder builder() {
+    return new RateLimiter.Builder().ticker(now::get);
+  }
+
+  private static void assertRateLimited(RateLimiter limiter,
+      List<String> regIds, long retryAfter) {
+    try {
+      limiter.acquire(regIds);
+      fail("Should have thrown RateLimitedException");
+    } catch (RateLimitedException e) {
+      assertEquals(retryAfter, e.getRetryAfter());
+    }
+  }
+
+  private static List<String> newRegIds(int count) {
+    List<String> regIds = new ArrayList<String>(count);
+    for (int i = 0; i < count; i++) {
+      regIds.add("regId" + i);
+    }
+    return regIds;
+  }
+}
@@ -0,0 +1,332 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import static com.google.android.gcm.server.Constants.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+public class RegistrationIdResolverTest {
+
+  private final MemoryStore store = new MemoryStore();
+
+  @Test
+  public void testResolve() {
+    RegistrationIdResolver resolver = new RegistrationIdResolver.Builder()
+        .build();
+    String regId = new String("4");
+    assertSame(regId, resolver.resolve(regId));
+    resolver.addCanonicalId("4", "8");
+    resolver.addCanonicalId("8", "15");
+    resolver.addTombstone("16", ERROR_NOT_REGISTERED);
+    resolver.addCanonicalId("23", "16");
+    assertEquals("15", resolver.resolve("4"));
+    assertEquals("15", resolver.resolve("8"));
+    assertEquals("15", resolver.resolve("15"));
+    assertNull(resolver.resolve("16"));
+    assertNull(resolver.resolve("23"));
+    assertEquals(ERROR_NOT_REGISTERED, resolver.getErrorCode("23"));
+    assertNull(resolver.getErrorCode("4"));
+  }
+
+  @Test
+  public void testResolve_cycle() {
+    RegistrationIdResolver resolver = new RegistrationIdResolver.Builder()
+        .build();
+    resolver.addCanonicalId("4", "8");
+    resolver.addCanonicalId("8", "4");
+    assertEquals("4", resolver.resolve("4"));
+  }
+
+  @Test
+  public void testAddCanonicalId_same() {
+    RegistrationIdResolver resolver = new RegistrationIdResolver.Builder()
+        .build();
+    resolver.addCanonicalId("4", "4");
+    assertEquals(0, resolver.size());
+  }
+
+  @Test
+  public void testUpdate() {
+    RegistrationIdResolver resolver = new RegistrationIdResolver.Builder()
+        .build();
+    resolver.update(Arrays.asList("4", "8", "15", "16", "23"),
+        new MulticastResult.Builder(2, 3, 1, 42)
+            .addResult(new Result.Builder().messageId("1").build())
+            .addResult(new Result.Builder().messageId("2")
+                .canonicalRegistrationId("42").build())
+            .addResult(new Result.Builder()
+                .errorCode(ERROR_NOT_REGISTERED).build())
+            .addResult(new Result.Builder()
+                .errorCode(ERROR_INVALID_REGISTRATION).build())
+            .addResult(new Result.Builder()
+                .errorCode(ERROR_UNAVAILABLE).build())
+            .build());
+    assertEquals(3, resolver.size());
+    assertEquals("4", resolver.resolve("4"));
+    assertEquals("42", resolver.resolve("8"));
+    assertNull(resolver.resolve("15"));
+    assertEquals(ERROR_INVALID_REGISTRATION, resolver.getErrorCode("16"));
+    assertEquals("23", resolver.resolve("23"));
+  }
+
+  @Test
+  public void testMaxSize() {
+    RegistrationIdResolver resolver = new RegistrationIdResolver.Builder()
+        .maxSize(2).build();
+    resolver.addCanonicalId("4", "40");
+    resolver.addCanonicalId("8", "80");
+    resolver.addCanonicalId("4", "400");
+    resolver.addCanonicalId("15", "150");
+    assertEquals(2, resolver.size());
+    assertEquals("4", resolver.resolve("4"));
+    assertEquals("80", resolver.resolve("8"));
+    assertEquals("150", resolver.resolve("15"));
+  }
+
+  @Test
+  public void testResolveAll() {
+    RegistrationIdResolver resolver = new RegistrationIdResolver.Builder()
+        .build();
+    resolver.addCanonicalId("8", "42");
+    resolver.addTombstone("15", ERROR_NOT_REGISTERED);
+    RegistrationIdResolver.Resolution resolution =
+        resolver.resolveAll(Arrays.asList("4", "8", "15", "16"));
+    assertEquals(Arrays.asList("4", "42", "16"),
+        resolution.getRegistrationIds());
+    MulticastResult result = resolution.merge(
+        new MulticastResult.Builder(2, 1, 0, 108)
+            .addResult(new Result.Builder().messageId("1").build())
+            .addResult(new Result.Builder().messageId("2").build())
+            .addResult(new Result.Builder()
+                .errorCode(ERROR_UNAVAILABLE).build())
+            .retryAfter(1000)
+            .build());
+    assertEquals(108, result.getMulticastId());
+    assertEquals(2, result.getSuccess());
+    assertEquals(2, result.getFailure());
+    assertEquals(1, result.getCanonicalIds());
+    assertEquals(1000, result.getRetryAfter());
+    List<Result> results = result.getResults();
+    assertEquals("1", results.get(0).getMessageId());
+    assertNull(results.get(0).getCanonicalRegistrationId());
+    assertEquals("2", results.get(1).getMessageId());
+    assertEquals("42", results.get(1).getCanonicalRegistrationId());
+    assertEquals(ERROR_NOT_REGISTERED, results.get(2).getErrorCodeName());
+    assertEquals(ERROR_UNAVAILABLE, results.get(3).getErrorCodeName());
+  }
+
+  @Test
+  public void testResolveAll_sameCanonicalId() {
+    RegistrationIdResolver resolver = new RegistrationIdResolver.Builder()
+        .build();
+    resolver.addCanonicalId("4", "42");
+    resolver.addCanonicalId("8", "42");
+    RegistrationIdResolver.Resolution resolution =
+        resolver.resolveAll(Arrays.asList("4", "15", "8", "42"));
+    // each device is sent the message once
+    assertEquals(Arrays.asList("42", "15"), resolution.getRegistrationIds());
+    MulticastResult result = resolution.merge(
+        new MulticastResult.Builder(2, 0, 0, 108)
+            .addResult(new Result.Builder().messageId("1").build())
+            .addResult(new Result.Builder().messageId("2").build())
+            .build());
+    assertEquals(4, result.getSuccess());
+    assertEquals(0, result.getFailure());
+    assertEquals(2, result.getCanonicalIds());
+    List<Result> results = result.getResults();
+    assertEquals("1", results.get(0).getMessageId());
+    assertEquals("42", results.get(0).getCanonicalRegistrationId());
+    assertEquals("2", results.get(1).getMessageId());
+    assertNull(results.get(1).getCanonicalRegistrationId());
+    assertEquals("1", results.get(2).getMessageId());
+    assertEquals("42", results.get(2).getCanonicalRegistrationId());
+    assertEquals("1", results.get(3).getMessageId());
+    assertNull(results.get(3).getCanonicalRegistrationId());
+  }
+
+  @Test
+  public void testResolveAll_unchanged() {
+    RegistrationIdResolver resolver = new RegistrationIdResolver.Builder()
+        .build();
+    resolver.addCanonicalId("8", "42");
+    List<String> regIds = Arrays.asList("4", "15");
+    RegistrationIdResolver.Resolution resolution = resolver.resolveAll(regIds);
+    assertSame(regIds, resolution.getRegistrationIds());
+    MulticastResult result = new MulticastResult.Builder(0, 0, 0, 1).build();
+    assertSame(result, resolution.merge(result));
+  }
+
+  @Test
+  public void testResolveAll_allDead() {
+    RegistrationIdResolver resolver = new RegistrationIdResolver.Builder()
+        .build();
+    resolver.addTombstone("4", ERROR_NOT_REGISTERED);
+    RegistrationIdResolver.Resolution resolution =
+        resolver.resolveAll(Arrays.asList("4"));
+    assertTrue(resolution.getRegistrationIds().isEmpty());
+    MulticastResult result = resolution.merge(null);
+    assertEquals(0, result.getMulticastId());
+    assertEquals(1, result.getFailure());
+    assertEquals(ERROR_NOT_REGISTERED,
+        result.getResults().get(0).getErrorCodeName());
+  }
+
+  @Test
+  public void testStore() throws Exception {
+    store.canonicalIds.put("4", "8");
+    store.tombstones.put("15", ERROR_NOT_REGISTERED);
+    RegistrationIdResolver resolver = new RegistrationIdResolver.Builder()
+        .store(store).flushInterval(1, TimeUnit.HOURS).build();
+    assertEquals("8", resolver.resolve("4"));
+    assertNull(resolver.resolve("15"));
+    resolver.addCanonicalId("16", "23");
+    resolver.addTombstone("42", ERROR_INVALID_REGISTRATION);
+    assertEquals(0, store.appends.size());
+    resolver.flush();
+    assertEquals(1, store.appends.size());
+    assertEquals("23", store.canonicalIds.get("16"));
+    assertEquals(ERROR_INVALID_REGISTRATION, store.tombstones.get("42"));
+    // nothing pending
+    resolver.flush();
+    assertEquals(1, store.appends.size());
+    resolver.addCanonicalId("108", "4");
+    resolver.close();
+    assertEquals(2, store.appends.size());
+    assertEquals("4", store.canonicalIds.get("108"));
+  }
+
+  @Test
+  public void testStore_compact() throws Exception {
+    store.canonicalIds.put("4", "8");
+    store.canonicalIds.put("15", "16");
+    store.tombstones.put("23", ERROR_NOT_REGISTERED);
+    RegistrationIdResolver resolver = new RegistrationIdResolver.Builder()
+        .maxSize(2).store(store).flushInterval(1, TimeUnit.HOURS).build();
+    // compacted when loaded
+    assertEquals(1, store.replaces.size());
+    assertEquals(2, store.canonicalIds.size() + store.tombstones.size());
+    resolver.addCanonicalId("42", "108");
+    resolver.addCanonicalId("108", "4");
+    resolver.flush();
+    assertEquals(1, store.appends.size());
+    // the store would hold more than twice the maximum size
+    resolver.addCanonicalId("1", "2");
+    resolver.flush();
+    assertEquals(1, store.appends.size());
+    assertEquals(2, store.replaces.size());
+    Map<String, String> expected = new HashMap<String, String>();
+    expected.put("108", "4");
+    expected.put("1", "2");
+    assertEquals(expected, store.canonicalIds);
+    assertTrue(store.tombstones.isEmpty());
+    resolver.close();
+  }
+
+  @Test
+  public void testStore_failure() throws Exception {
+    RegistrationIdResolver resolver = new RegistrationIdResolver.Builder()
+        .store(store).flushInterval(1, TimeUnit.HOURS).build();
+    resolver.addCanonicalId("4", "8");
+    store.fail = true;
+    try {
+      resolver.flush();
+      fail("Should have thrown IOException");
+    } catch (IOException e) {
+      // expected
+    }
+    store.fail = false;
+    resolver.close();
+    assertEquals("8", store.canonicalIds.get("4"));
+  }
+
+  @Test
+  public void testStore_loadFailure() throws Exception {
+    store.fail = true;
+    RegistrationIdResolver resolver = new RegistrationIdResolver.Builder()
+        .store(store).build();
+    assertEquals(0, resolver.size());
+    store.fail = false;
+    // the changes that could not be read are kept
+    assertTrue(store.replaces.isEmpty());
+    resolver.close();
+  }
+
+  @Test
+  public void testStore_background() throws Exception {
+    RegistrationIdResolver resolver = new RegistrationIdResolver.Builder()
+        .store(store).flushInterval(10, TimeUnit.MILLISECONDS).build();
+    resolver.addCanonicalId("4", "8");
+    for (int i = 0; i < 500 && store.appends.isEmpty(); i++) {
+      Thread.sleep(10);
+    }
+    assertEquals("8", store.canonicalIds.get("4"));
+    resolver.close();
+  }
+
+  private static class MemoryStore implements RegistrationIdStore {
+
+    final Map<String, String> canonicalIds = new HashMap<String, String>();
+    final Map<String, String> tombstones = new HashMap<String, String>();
+    final List<Object> appends = new ArrayList<Object>();
+    final List<Object> replaces = new ArrayList<Object>();
+    volatile boolean fail;
+
+    public synchronized void load(Map<String, String> canonicalIds,
+        Map<String, String> tombstones) throws IOException {
+      if (fail) {
+        throw new IOException("load failed");
+      }
+      canonicalIds.putAll(this.canonicalIds);
+      tombstones.putAll(this.tombstones);
+    }
+
+    public synchronized void append(Map<String, String> canonicalIds,
+        Map<String, String> tombstones) throws IOException {
+      if (fail) {
+        throw new IOException("append failed");
+      }
+      appends.add(canonicalIds);
+      this.canonicalIds.putAll(canonicalIds);
+      this.tombstones.putAll(tombstones);
+    }
+
+    public synchronized void replace(Map<String, String> canonicalIds,
+        Map<String, String> tombstones) throws IOException {
+      if (fail) {
+        throw new IOException("replace failed");
+      }
+      replaces.add(canonicalIds);
+      this.canonicalIds.clear();
+      this.canonicalIds.putAll(canonicalIds);
+      this.tombstones.clear();
+      this.tombstones.putAll(tombstones);
+    }
+  }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class RegistrationIdSetTest {
+
+  @Test
+  public void testAdd() {
+    RegistrationIdSet set = new RegistrationIdSet(4);
+    assertEquals(0, set.add("4"));
+    assertEquals(1, set.add("8"));
+    assertEquals(0, set.add("4"));
+    assertEquals(2, set.add(null));
+    assertEquals(1, set.add(new String("8")));
+    assertEquals(2, set.add(null));
+    assertEquals(3, set.size());
+  }
+
+  @Test
+  public void testAdd_resize() {
+    RegistrationIdSet set = new RegistrationIdSet(0);
+    for (int i = 0; i < 100000; i++) {
+      assertEquals(i, set.add("regId" + i));
+    }
+    for (int i = 0; i < 100000; i++) {
+      assertEquals(i, set.add("regId" + i));
+    }
+    assertEquals(100000, set.size());
+  }
+
+  @Test
+  public void testDeduplicate() {
+    List<String> unique = new ArrayList<String>();
+    int[] positions = RegistrationIdSet.deduplicate(
+        Arrays.asList("4", "8", "4", null, "15", null, "8"), unique);
+    assertEquals(Arrays.asList("4", "8", null, "15"), unique);
+    assertArrayEquals(new int[] { 0, 1, 0, 2, 3, 2, 1 }, positions);
+  }
+
+  @Test
+  public void testDeduplicate_noDuplicates() {
+    List<String> unique = new ArrayList<String>();
+    assertNull(RegistrationIdSet.deduplicate(Arrays.asList("4", "8", "15"),
+        unique));
+    assertEquals(Arrays.asList("4", "8", "15"), unique);
+  }
+}
@@ -16,6 +16,7 @@
 package com.google.android.gcm.server;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
@@ -49,4 +50,16 @@ public class ResultTest {
     assertTrue(toString.contains("errorCode=D'OH!"));
     assertTrue(toString.contains("canonicalRegistrationId=108"));
   }
+
+  @Test
+  public void testEquals() {
+    Result result = new Result.Builder().messageId("42")
+        .canonicalRegistrationId("108").build();
+    assertEquals(result, new Result.Builder().messageId("42")
+        .canonicalRegistrationId("108").build());
+    assertEquals(result.hashCode(), new Result.Builder().messageId("42")
+        .canonicalRegistrationId("108").build().hashCode());
+    assertFalse(result.equals(new Result.Builder().messageId("42").build()));
+    assertFalse(result.equals(null));
+  }
 }
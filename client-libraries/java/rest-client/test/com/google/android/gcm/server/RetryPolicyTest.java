@@ -0,0 +1,127 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import static com.google.android.gcm.server.Constants.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.android.gcm.server.RetryPolicy.Backoff;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+public class RetryPolicyTest {
+
+  @Test
+  public void testDefault() {
+    RetryPolicy policy = RetryPolicy.DEFAULT;
+    assertTrue(policy.isRetryable(ERROR_UNAVAILABLE));
+    assertTrue(policy.isRetryable(ERROR_INTERNAL_SERVER_ERROR));
+    assertFalse(policy.isRetryable(ERROR_NOT_REGISTERED));
+    assertFalse(policy.isRetryable(ERROR_DEVICE_MESSAGE_RATE_EXCEEDED));
+    assertFalse(policy.isRetryable(null));
+    assertEquals(Long.MAX_VALUE, policy.getRetryBudget());
+    assertEquals(0, policy.getAttemptTimeout());
+    // same back-off as before policies existed
+    long backoff = Sender.BACKOFF_INITIAL_DELAY;
+    for (int retry = 1; retry <= 20; retry++) {
+      long delay = policy.getDelay(ERROR_UNAVAILABLE, retry, 0);
+      assertTrue(delay >= backoff / 2);
+      assertTrue(delay < backoff * 3 / 2);
+      if (2 * backoff < Sender.MAX_BACKOFF_DELAY) {
+        backoff *= 2;
+      }
+    }
+  }
+
+  @Test
+  public void testBuilder() {
+    RetryPolicy policy = new RetryPolicy.Builder()
+        .backoff(Backoff.fixed(1, TimeUnit.SECONDS))
+        .retry(ERROR_DEVICE_MESSAGE_RATE_EXCEEDED,
+            Backoff.fixed(1, TimeUnit.MINUTES))
+        .retry(ERROR_QUOTA_EXCEEDED)
+        .noRetry(ERROR_INTERNAL_SERVER_ERROR)
+        .retryBudget(1, TimeUnit.HOURS)
+        .attemptTimeout(20, TimeUnit.SECONDS)
+        .build();
+    assertTrue(policy.isRetryable(ERROR_UNAVAILABLE));
+    assertTrue(policy.isRetryable(ERROR_DEVICE_MESSAGE_RATE_EXCEEDED));
+    assertTrue(policy.isRetryable(ERROR_QUOTA_EXCEEDED));
+    assertFalse(policy.isRetryable(ERROR_INTERNAL_SERVER_ERROR));
+    assertEquals(1000, policy.getDelay(null, 1, 0));
+    assertEquals(1000, policy.getDelay(ERROR_UNAVAILABLE, 1, 0));
+    assertEquals(1000, policy.getDelay(ERROR_QUOTA_EXCEEDED, 1, 0));
+    assertEquals(60000,
+        policy.getDelay(ERROR_DEVICE_MESSAGE_RATE_EXCEEDED, 1, 0));
+    assertEquals(3600000, policy.getRetryBudget());
+    assertEquals(20000, policy.getAttemptTimeout());
+  }
+
+  @Test
+  public void testBuilder_isCopied() {
+    RetryPolicy.Builder builder = new RetryPolicy.Builder();
+    RetryPolicy policy = builder.build();
+    builder.noRetry(ERROR_UNAVAILABLE);
+    assertTrue(policy.isRetryable(ERROR_UNAVAILABLE));
+  }
+
+  @Test
+  public void testExponential() {
+    Backoff backoff = Backoff.exponential(100, 1000, TimeUnit.MILLISECONDS);
+    long[] backoffs = { 100, 200, 400, 800, 800 };
+    for (int retry = 1; retry <= backoffs.length; retry++) {
+      long delay = backoff.getDelay(retry, 0);
+      assertTrue(delay >= backoffs[retry - 1] / 2);
+      assertTrue(delay < backoffs[retry - 1] * 3 / 2);
+    }
+  }
+
+  @Test
+  public void testDecorrelatedJitter() {
+    Backoff backoff =
+        Backoff.decorrelatedJitter(100, 1000, TimeUnit.MILLISECONDS);
+    assertEquals(100, backoff.getDelay(1, 0));
+    long previous = 100;
+    for (int retry = 2; retry <= 50; retry++) {
+      long delay = backoff.getDelay(retry, previous);
+      assertTrue(delay >= 100);
+      assertTrue(delay <= Math.min(1000, 3 * previous));
+      previous = delay;
+    }
+  }
+
+  @Test
+  public void testFixed() {
+    Backoff backoff = Backoff.fixed(2, TimeUnit.SECONDS);
+    assertEquals(2000, backoff.getDelay(1, 0));
+    assertEquals(2000, backoff.getDelay(10, 2000));
+    assertEquals(0, Backoff.fixed(0, TimeUnit.SECONDS).getDelay(1, 0));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testExponential_invalidDelay() {
+    Backoff.exponential(0, 1000, TimeUnit.MILLISECONDS);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testBuilder_negativeBudget() {
+    new RetryPolicy.Builder().retryBudget(-1, TimeUnit.SECONDS);
+  }
+}
@@ -0,0 +1,288 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import static com.google.android.gcm.server.Constants.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class SenderPoolTest {
+
+  private final Message message = new Message.Builder().build();
+  private final List<String> regIds = Arrays.asList("4", "8");
+  private final AtomicLong now = new AtomicLong(-1000);
+  private final MulticastResult ok = newResult(null);
+
+  private Sender sender1;
+  private Sender sender2;
+
+  @Before
+  public void setFixtures() {
+    sender1 = mock(Sender.class);
+    sender2 = mock(Sender.class);
+  }
+
+  @Test
+  public void testSend_weightedRoundRobin() throws Exception {
+    Sender sender3 = mock(Sender.class);
+    SenderPool pool = newBuilder()
+        .add("a", sender1, 2)
+        .add("b", sender2)
+        .add("c", sender3, 0)
+        .build();
+    for (Sender sender : Arrays.asList(sender1, sender2)) {
+      when(sender.send(message, regIds, 5)).thenReturn(ok);
+    }
+    for (int i = 0; i < 6; i++) {
+      pool.send(message, regIds, 5);
+    }
+    verify(sender1, times(4)).send(message, regIds, 5);
+    verify(sender2, times(2)).send(message, regIds, 5);
+    verify(sender3, never()).send(message, regIds, 5);
+    assertSame(sender3, pool.getSender("c"));
+  }
+
+  @Test
+  public void testSend_byName() throws Exception {
+    SenderPool pool = newBuilder()
+        .add("a", sender1)
+        .add("b", sender2)
+        .build();
+    when(sender2.send(message, regIds, 5)).thenReturn(ok);
+    assertSame(ok, pool.send("b", message, regIds, 5));
+    verify(sender1, never()).send(message, regIds, 5);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testSend_unknownName() throws Exception {
+    newBuilder().add("a", sender1).build().send("b", message, regIds, 5);
+  }
+
+  @Test
+  public void testSend_unauthorizedEjectsKey() throws Exception {
+    AtomicInteger posts = new AtomicInteger();
+    SenderPool pool = newBuilder()
+        .add("a", newSender(posts, 401, null))
+        .add("b", newSender(new AtomicInteger(), 200, null))
+        .build();
+    // sent again with the next key
+    assertEquals(2, pool.send(message, regIds, 5).getSuccess());
+    assertEquals(1, posts.get());
+    assertTrue(pool.isEjected("a"));
+    assertFalse(pool.isEjected("b"));
+    assertEquals(2, pool.send(message, regIds, 5).getSuccess());
+    assertEquals(1, posts.get());
+    try {
+      pool.send("a", message, regIds, 5);
+      fail("Should have thrown RateLimitedException");
+    } catch (RateLimitedException e) {
+      assertEquals(30000, e.getRetryAfter());
+    }
+    now.addAndGet(TimeUnit.SECONDS.toNanos(30));
+    assertFalse(pool.isEjected("a"));
+    try {
+      pool.send("a", message, regIds, 5);
+      fail("Should have thrown InvalidRequestException");
+    } catch (InvalidRequestException e) {
+      assertEquals(401, e.getHttpStatusCode());
+    }
+    // ejected for twice as long after failing again
+    now.addAndGet(TimeUnit.SECONDS.toNanos(59));
+    assertTrue(pool.isEjected("a"));
+    now.addAndGet(TimeUnit.SECONDS.toNanos(1));
+    assertFalse(pool.isEjected("a"));
+  }
+
+  @Test
+  public void testSend_quotaExceededEjectsKey() throws Exception {
+    SenderPool pool = newBuilder()
+        .add("a", sender1)
+        .build();
+    when(sender1.send(message, regIds, 5))
+        .thenReturn(newResult(ERROR_QUOTA_EXCEEDED));
+    assertEquals(ERROR_QUOTA_EXCEEDED,
+        pool.send(message, regIds, 5).getErrorCodeName(0));
+    assertTrue(pool.isEjected("a"));
+    try {
+      pool.send(message, regIds, 5);
+      fail("Should have thrown RateLimitedException");
+    } catch (RateLimitedException e) {
+      assertEquals(30000, e.getRetryAfter());
+    }
+  }
+
+  @Test
+  public void testSend_tooManyRequestsEjectsForRetryAfter() throws Exception {
+    AtomicInteger posts = new AtomicInteger();
+    SenderPool pool = newBuilder()
+        .add("a", newSender(posts, 429, "120"))
+        .build();
+    try {
+      pool.send(message, regIds, 0);
+      fail("Should have thrown RateLimitedException");
+    } catch (RateLimitedException e) {
+      assertEquals(120000, e.getRetryAfter());
+    }
+    assertEquals(1, posts.get());
+    assertTrue(pool.isEjected("a"));
+  }
+
+  @Test
+  public void testSend_otherErrorsKeepKey() throws Exception {
+    SenderPool pool = newBuilder()
+        .add("a", sender1)
+        .add("b", sender2)
+        .build();
+    InvalidRequestException badRequest = new InvalidRequestException(400);
+    when(sender1.send(message, regIds, 5)).thenThrow(badRequest);
+    try {
+      pool.send(message, regIds, 5);
+      fail("Should have thrown InvalidRequestException");
+    } catch (InvalidRequestException e) {
+      assertSame(badRequest, e);
+    }
+    assertFalse(pool.isEjected("a"));
+    verify(sender2, never()).send(message, regIds, 5);
+  }
+
+  @Test
+  public void testSendAsync_unauthorizedEjectsKey() throws Exception {
+    SenderPool pool = newBuilder()
+        .add("a", newSender(new AtomicInteger(), 401, null))
+        .add("b", newSender(new AtomicInteger(), 200, null))
+        .build();
+    assertEquals(2, pool.sendAsync(message, regIds, 5).get().getSuccess());
+    assertTrue(pool.isEjected("a"));
+    try {
+      pool.sendAsync("a", message, regIds, 5).get();
+      fail("Should have thrown ExecutionException");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof RateLimitedException);
+    }
+  }
+
+  @Test
+  public void testSendAsync_failure() throws Exception {
+    SenderPool pool = newBuilder()
+        .add("a", sender1)
+        .build();
+    InvalidRequestException badRequest = new InvalidRequestException(400);
+    CompletableFuture<MulticastResult> failed =
+        new CompletableFuture<MulticastResult>();
+    failed.completeExceptionally(badRequest);
+    when(sender1.sendAsync(message, regIds, 5)).thenReturn(failed);
+    try {
+      pool.sendAsync(message, regIds, 5).get();
+      fail("Should have thrown ExecutionException");
+    } catch (ExecutionException e) {
+      assertSame(badRequest, e.getCause());
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testBuilder_duplicateName() {
+    newBuilder().add("a", sender1).add("a", sender2);
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testBuilder_empty() {
+    newBuilder().build();
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testBuilder_noPositiveWeight() {
+    newBuilder().add("a", sender1, 0).add("b", sender2, 0).build();
+  }
+
+  private SenderPool.Builder newBuilder() {
+    return new SenderPool.Builder().ticker(now::get);
+  }
+
+  /**
+   * Creates a sender whose requests always get the same response.
+   *
+   * @param posts incremented on each request.
+   */
+  private Sender newSender(AtomicInteger posts, int status,
+      String retryAfter) {
+    String body = status != 200 ? "" :
+        "{\"multicast_id\":42,\"success\":2,\"failure\":0,"
+        + "\"canonical_ids\":0,\"results\":"
+        + "[{\"message_id\":\"m-1\"},{\"message_id\":\"m-2\"}]}";
+    Sender sender = new Sender("key");
+    sender.setTransport(new GcmTransport() {
+
+      public Response post(String url, String contentType,
+          String authorization, byte[] request, int offset, int length) {
+        posts.incrementAndGet();
+        return new Response() {
+
+          public int getStatusCode() {
+            return status;
+          }
+
+          public String getHeader(String name) {
+            return "Retry-After".equals(name) ? retryAfter : null;
+          }
+
+          public InputStream getBody() {
+            return new ByteArrayInputStream(
+                body.getBytes(StandardCharsets.UTF_8));
+          }
+        };
+      }
+
+      public Response request(String method, String url,
+          String authorization, Map<String, String> headers, byte[] request) {
+        throw new AssertionError("not a message");
+      }
+    });
+    return sender;
+  }
+
+  private static MulticastResult newResult(String errorCode) {
+    return new MulticastResult.Builder(errorCode == null ? 1 : 0,
+        errorCode == null ? 0 : 1, 0, 42)
+        .addResult(new Result.Builder()
+            .messageId(errorCode == null ? "m-1" : null)
+            .errorCode(errorCode)
+            .build())
+        .build();
+  }
+}
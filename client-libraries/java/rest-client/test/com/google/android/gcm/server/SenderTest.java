@@ -16,17 +16,25 @@
 package com.google.android.gcm.server;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -34,23 +42,39 @@ import static org.mockito.Mockito.when;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
+import org.junit.After;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.Spy;
+import org.mockito.invocation.InvocationOnMock;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 @RunWith(MockitoJUnitRunner.class)
 public class SenderTest {
@@ -89,14 +113,23 @@ public class SenderTest {
   // creates a Mockito Spy so we can stub internal methods
   @Spy private Sender sender = new Sender(authKey);
 
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
   @Mock private HttpURLConnection mockedConn;
   private final ByteArrayOutputStream outputStream = 
       new ByteArrayOutputStream();
   private Result result;
+  private ImmediateScheduler scheduler;
 
   @Before
   public void setFixtures() {
     result = new Result.Builder().build();
+    scheduler = new ImmediateScheduler();
+  }
+
+  @After
+  public void shutdownScheduler() {
+    scheduler.shutdownNow();
   }
 
   @Test(expected = IllegalArgumentException.class)
@@ -171,6 +204,105 @@ public class SenderTest {
     }
   }
 
+  @Test
+  public void testSendAsync_retryOk() throws Exception {
+    doNotSleep();
+    doReturn(null) // fails 1st time
+        .doReturn(null) // fails 2nd time
+        .doReturn(result) // succeeds 3rd time
+        .when(sender).sendNoRetry(message, regId);
+    sender.setExecutor(scheduler);
+    assertEquals(result, sender.sendAsync(message, regId, 2).get());
+    verify(sender, times(3)).sendNoRetry(message, regId);
+    assertBackoff(scheduler.delays, 2);
+  }
+
+  @Test
+  public void testSendAsync_retryFails() throws Exception {
+    doNotSleep();
+    doReturn(null).when(sender).sendNoRetry(message, regId);
+    sender.setExecutor(scheduler);
+    try {
+      sender.sendAsync(message, regId, 2).get();
+      fail("Should have thrown ExecutionException");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof IOException);
+      assertTrue(e.getCause().getMessage().contains("3"));
+    }
+    verify(sender, times(3)).sendNoRetry(message, regId);
+  }
+
+  @Test
+  public void testSendAsync_noRetryException() throws Exception {
+    IOException gcmException = new IOException();
+    doThrow(gcmException).when(sender).sendNoRetry(message, regId);
+    sender.setExecutor(scheduler);
+    try {
+      sender.sendAsync(message, regId, 2).get();
+      fail("Should have thrown ExecutionException");
+    } catch (ExecutionException e) {
+      assertSame(gcmException, e.getCause());
+    }
+    verify(sender, times(1)).sendNoRetry(message, regId);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testSendAsync_noRegistrationId() throws Exception {
+    sender.sendAsync(message, (String) null, 0);
+  }
+
+  @Test
+  public void testSend_retryableStatus() throws Exception {
+    doNothing().when(sender).sleep(anyInt());
+    doThrow(new InvalidRequestException(503, "", 5000))
+        .doThrow(new InvalidRequestException(429, ""))
+        .doReturn(result)
+        .when(sender).sendNoRetry(message, regId);
+    assertSame(result, sender.send(message, regId, 2));
+    // the 1st retry waits as requested, the 2nd uses the regular back-off
+    verify(sender).sleep(5000);
+    verify(sender, times(2)).sleep(anyInt());
+    verify(sender, times(3)).sendNoRetry(message, regId);
+  }
+
+  @Test
+  public void testSend_retryableStatus_allAttemptsFail() throws Exception {
+    doNothing().when(sender).sleep(anyInt());
+    doThrow(new InvalidRequestException(500, "")).when(sender)
+        .sendNoRetry(message, regId);
+    try {
+      sender.send(message, regId, 1);
+      fail("Should have thrown InvalidRequestException");
+    } catch (InvalidRequestException e) {
+      assertEquals(500, e.getHttpStatusCode());
+    }
+    verify(sender, times(2)).sendNoRetry(message, regId);
+  }
+
+  @Test
+  public void testSend_nonRetryableStatus() throws Exception {
+    doNotSleep();
+    doThrow(new InvalidRequestException(401, "")).when(sender)
+        .sendNoRetry(message, regId);
+    try {
+      sender.send(message, regId, 2);
+      fail("Should have thrown InvalidRequestException");
+    } catch (InvalidRequestException e) {
+      assertEquals(401, e.getHttpStatusCode());
+    }
+    verify(sender, times(1)).sendNoRetry(message, regId);
+  }
+
+  @Test
+  public void testSendAsync_retryableStatus() throws Exception {
+    doThrow(new InvalidRequestException(503, "", 5000))
+        .doReturn(result)
+        .when(sender).sendNoRetry(message, regId);
+    sender.setExecutor(scheduler);
+    assertSame(result, sender.sendAsync(message, regId, 1).get());
+    assertEquals(Arrays.asList(5000L), scheduler.delays);
+  }
+
   @Test
   public void testSendNoRetry_ok() throws Exception {
     String json = replaceQuotes("\n"
@@ -271,6 +403,44 @@ public class SenderTest {
     assertNull(result);
   }
 
+  @Test
+  public void testSendNoRetry_customTransport() throws Exception {
+    String json = replaceQuotes("\n"
+            + "{"
+            + "  'multicast_id': 108,"
+            + "  'success': 1,"
+            + "  'failure': 0,"
+            + "  'canonical_ids': 0,"
+            + "  'results': ["
+            + "    {'message_id': '4815162342'}"
+            + "  ]"
+            + "}");
+    GcmTransport transport = mock(GcmTransport.class);
+    GcmTransport.Response response = mock(GcmTransport.Response.class);
+    when(response.getStatusCode()).thenReturn(200);
+    when(response.getBody())
+        .thenReturn(new ByteArrayInputStream(json.getBytes()));
+    ArgumentCaptor<byte[]> capturedBody = ArgumentCaptor.forClass(byte[].class);
+    when(transport.post(eq(Constants.GCM_SEND_ENDPOINT),
+        eq("application/json"), eq("key=" + authKey), capturedBody.capture(),
+        eq(0), anyInt())).thenReturn(response);
+    sender.setTransport(transport);
+    Result result = sender.sendNoRetry(message, regId);
+    assertEquals("4815162342", result.getMessageId());
+    String body = new String(capturedBody.getValue(), "UTF-8");
+    assertTrue(body, body.contains("\"registration_ids\":[\"" + regId + "\"]"));
+    verify(sender, never()).getConnection(anyString());
+  }
+
+  @Test
+  public void testSendNoRetry_customTransport_ioException() throws Exception {
+    GcmTransport transport = mock(GcmTransport.class);
+    when(transport.post(anyString(), anyString(), anyString(),
+        (byte[]) any(), anyInt(), anyInt())).thenThrow(new IOException());
+    sender.setTransport(transport);
+    assertNull(sender.sendNoRetry(message, regId));
+  }
+
   @Test
   public void testSendNoRetry_serviceUnavailable() throws Exception {
     setResponseExpectations(503, "");
@@ -283,6 +453,183 @@ public class SenderTest {
     }
   }
 
+  @Test
+  public void testSendNoRetry_serviceUnavailable_retryAfter() throws Exception {
+    setResponseExpectations(503, "");
+    when(mockedConn.getHeaderField("Retry-After")).thenReturn("108");
+    try {
+      sender.sendNoRetry(message, regId);
+      fail("Should have thrown InvalidRequestException");
+    } catch (InvalidRequestException e) {
+      assertEquals(503, e.getHttpStatusCode());
+      assertEquals(108000, e.getRetryAfter());
+      assertTrue(e.isRetryable());
+    }
+  }
+
+  @Test
+  public void testSendNoRetry_json_retryAfter() throws Exception {
+    setResponseExpectations(200, replaceQuotes("{'multicast_id': 108,"
+        + " 'success': 0, 'failure': 1, 'canonical_ids': 0,"
+        + " 'results': [{'error': 'Unavailable'}]}"));
+    when(mockedConn.getHeaderField("Retry-After")).thenReturn("42");
+    MulticastResult multicastResult =
+        sender.sendNoRetry(message, Arrays.asList("108"));
+    assertEquals(42000, multicastResult.getRetryAfter());
+  }
+
+  @Test
+  public void testSendNoRetry_json_rateLimiter() throws Exception {
+    setResponseExpectations(200, replaceQuotes("{'multicast_id': 108,"
+        + " 'success': 1, 'failure': 1, 'canonical_ids': 0, 'results':"
+        + " [{'message_id': '16'}, {'error': 'DeviceMessageRateExceeded'}]}"));
+    RateLimiter limiter = new RateLimiter.Builder().deviceRate(1, 1).build();
+    sender.setRateLimiter(limiter);
+    limiter.acquire(Arrays.asList("4"));
+    MulticastResult multicastResult =
+        sender.sendNoRetry(message, Arrays.asList("4", "8", "15"));
+    assertRequestJsonBody("8", "15");
+    assertEquals(1, multicastResult.getSuccess());
+    assertEquals(2, multicastResult.getFailure());
+    List<Result> results = multicastResult.getResults();
+    assertResult(results.get(0), null,
+        Constants.ERROR_DEVICE_MESSAGE_RATE_EXCEEDED, null);
+    assertResult(results.get(1), "16", null, null);
+    assertResult(results.get(2), null,
+        Constants.ERROR_DEVICE_MESSAGE_RATE_EXCEEDED, null);
+    // 15 got an error from GCM, so it is limited too
+    try {
+      sender.sendNoRetry(message, Arrays.asList("15"));
+      fail("Should have thrown RateLimitedException");
+    } catch (RateLimitedException e) {
+      assertTrue(e.getRetryAfter() > 0);
+    }
+  }
+
+  @Test
+  public void testSendNoRetry_json_rateLimiterDelay() throws Exception {
+    setResponseExpectations(200, replaceQuotes("{'multicast_id': 108,"
+        + " 'success': 1, 'failure': 0, 'canonical_ids': 0,"
+        + " 'results': [{'message_id': '16'}]}"));
+    doNothing().when(sender).sleep(anyInt());
+    RateLimiter limiter = new RateLimiter.Builder().globalRate(1, 1)
+        .maxDelay(1, TimeUnit.HOURS).build();
+    sender.setRateLimiter(limiter);
+    limiter.acquire(Arrays.asList("4"));
+    sender.sendNoRetry(message, Arrays.asList("8"));
+    ArgumentCaptor<Long> delay = ArgumentCaptor.forClass(Long.class);
+    verify(sender).sleep(delay.capture());
+    assertTrue(delay.getValue() > 900 && delay.getValue() <= 1000);
+  }
+
+  @Test
+  public void testSendAsync_json_rateLimiterDelay() throws Exception {
+    setResponseExpectations(200, replaceQuotes("{'multicast_id': 108,"
+        + " 'success': 1, 'failure': 0, 'canonical_ids': 0,"
+        + " 'results': [{'message_id': '16'}]}"));
+    doThrow(new AssertionError("Thou should not sleep!")).when(sender)
+        .sleep(anyLong());
+    RateLimiter limiter = new RateLimiter.Builder().globalRate(1, 1)
+        .maxDelay(1, TimeUnit.HOURS).build();
+    sender.setRateLimiter(limiter);
+    sender.setExecutor(scheduler);
+    limiter.acquire(Arrays.asList("4"));
+    MulticastResult multicastResult =
+        sender.sendAsync(message, Arrays.asList("8"), 0)
+            .get(10, TimeUnit.SECONDS);
+    assertEquals(1, multicastResult.getSuccess());
+    // scheduled instead of slept, without using a retry
+    assertEquals(1, scheduler.delays.size());
+    long delay = scheduler.delays.get(0);
+    assertTrue(delay > 900 && delay <= 1000);
+    assertTrue(multicastResult.getRetryDelays().isEmpty());
+    verify(sender, times(1)).getConnection(Constants.GCM_SEND_ENDPOINT);
+  }
+
+  @Test
+  public void testSendNoRetry_tooManyRequests_rateLimiter() throws Exception {
+    setResponseExpectations(429, "");
+    RateLimiter limiter = new RateLimiter.Builder().globalRate(100, 100)
+        .build();
+    sender.setRateLimiter(limiter);
+    try {
+      sender.sendNoRetry(message, Arrays.asList("4"));
+      fail("Should have thrown InvalidRequestException");
+    } catch (InvalidRequestException e) {
+      assertEquals(429, e.getHttpStatusCode());
+    }
+    assertTrue(limiter.getRate() < 100);
+  }
+
+  @Test
+  public void testSendNoRetry_json_metrics() throws Exception {
+    setResponseExpectations(200, replaceQuotes("{'multicast_id': 108,"
+        + " 'success': 2, 'failure': 2, 'canonical_ids': 1, 'results': ["
+        + " {'message_id': '16'}, {'error': 'Unavailable'},"
+        + " {'message_id': '23', 'registration_id': '42'},"
+        + " {'error': 'Unavailable'}]}"));
+    RecordingMetrics metrics = new RecordingMetrics();
+    sender.setMetrics(metrics);
+    sender.sendNoRetry(message, Arrays.asList("4", "8", "15", "16"));
+    assertEquals(Arrays.asList("requestSerialized 4 " + outputStream.size(),
+        "connected", "responseReceived 200", "responseParsed",
+        "resultsReceived null 2", "resultsReceived Unavailable 2",
+        "canonicalIdsReceived 1"), metrics.events);
+  }
+
+  @Test
+  public void testSendNoRetry_metrics_failure() throws Exception {
+    when(mockedConn.getOutputStream()).thenThrow(new IOException());
+    doReturn(mockedConn).when(sender)
+        .getConnection(Constants.GCM_SEND_ENDPOINT);
+    RecordingMetrics metrics = new RecordingMetrics();
+    sender.setMetrics(metrics);
+    assertNull(sender.sendNoRetry(message, Arrays.asList("4")));
+    assertEquals(Arrays.asList("requestSerialized 1 " + metrics.requestBytes,
+        "connected", "requestFailed"), metrics.events);
+  }
+
+  @Test
+  public void testSendNoRetry_json_registrationIdResolver() throws Exception {
+    setResponseExpectations(200, replaceQuotes("{'multicast_id': 108,"
+        + " 'success': 2, 'failure': 1, 'canonical_ids': 1, 'results': ["
+        + " {'message_id': '16'}, {'message_id': '23', 'registration_id': '4'},"
+        + " {'error': 'NotRegistered'}]}"));
+    RegistrationIdResolver resolver = new RegistrationIdResolver.Builder()
+        .build();
+    resolver.addCanonicalId("4", "42");
+    resolver.addTombstone("8", Constants.ERROR_INVALID_REGISTRATION);
+    sender.setRegistrationIdResolver(resolver);
+    MulticastResult multicastResult = sender.sendNoRetry(message,
+        Arrays.asList("4", "8", "15", "16"));
+    assertRequestJsonBody("42", "15", "16");
+    assertEquals(108, multicastResult.getMulticastId());
+    assertEquals(2, multicastResult.getSuccess());
+    assertEquals(2, multicastResult.getFailure());
+    assertEquals(2, multicastResult.getCanonicalIds());
+    List<Result> results = multicastResult.getResults();
+    assertResult(results.get(0), "16", null, "42");
+    assertResult(results.get(1), null,
+        Constants.ERROR_INVALID_REGISTRATION, null);
+    assertResult(results.get(2), "23", null, "4");
+    assertResult(results.get(3), null, Constants.ERROR_NOT_REGISTERED, null);
+    // learned from the response, 4 was already replaced by 42
+    assertEquals("42", resolver.resolve("15"));
+    assertNull(resolver.resolve("16"));
+  }
+
+  @Test
+  public void testSendNoRetry_registrationIdResolver_allDead()
+      throws Exception {
+    RegistrationIdResolver resolver = new RegistrationIdResolver.Builder()
+        .build();
+    resolver.addTombstone("4", Constants.ERROR_NOT_REGISTERED);
+    sender.setRegistrationIdResolver(resolver);
+    Result result = sender.sendNoRetry(message, "4");
+    assertResult(result, null, Constants.ERROR_NOT_REGISTERED, null);
+    verify(sender, never()).getConnection(anyString());
+  }
+
   @Test
   public void testSendNoRetry_internalServerError() throws Exception {
     setResponseExpectations(500, "");
@@ -387,6 +734,33 @@ public class SenderTest {
     verify(sender, times(1)).sendNoRetry(message, regIds);
   }
 
+  @Test
+  public void testSend_json_unauthorizedNotRetried() throws Exception {
+    doNotSleep();
+    List<String> regIds = Arrays.asList("108");
+    setResponseExpectations(401, "");
+    try {
+      sender.send(message, regIds, 5);
+      fail("Should have thrown InvalidRequestException");
+    } catch (InvalidRequestException e) {
+      assertEquals(401, e.getHttpStatusCode());
+    }
+    verify(sender, times(1)).sendNoRetry(message, regIds);
+  }
+
+  @Test
+  public void testSend_json_lastErrorIsCause() throws Exception {
+    List<String> regIds = Arrays.asList("108");
+    InvalidRequestException exception = new InvalidRequestException(429);
+    doThrow(exception).when(sender).sendNoRetry(message, regIds);
+    try {
+      sender.send(message, regIds, 0);
+      fail("Should have thrown IOException");
+    } catch (IOException e) {
+      assertSame(exception, e.getCause());
+    }
+  }
+
   @Test()
   public void testSend_json_allAttemptsFail() throws Exception {
     doNothing().when(sender).sleep(anyInt());
@@ -442,6 +816,434 @@ public class SenderTest {
     verify(sender, times(2)).sendNoRetry(message, regIds);
   }
 
+  @Test
+  public void testSend_json_spool() throws Exception {
+    doNothing().when(sender).sleep(anyInt());
+    final MessageSpool spool =
+        new MessageSpool.Builder(folder.getRoot()).build();
+    sender.setSpool(spool);
+    List<String> regIds = Arrays.asList("4", "8", "15");
+    doReturn(new MulticastResult.Builder(1, 2, 0, 100)
+        .addResult(new Result.Builder().messageId("16").build())
+        .addResult(new Result.Builder().errorCode("Unavailable").build())
+        .addResult(new Result.Builder().errorCode("NotRegistered").build())
+        .build()).when(sender).sendNoRetry(message, regIds);
+    doAnswer(new Answer<MulticastResult>() {
+      public MulticastResult answer(InvocationOnMock invocation) {
+        // the devices with a final result are checkpointed
+        List<MessageSpool.Entry> pending = spool.getPending();
+        assertEquals(1, pending.size());
+        assertEquals(regIds, pending.get(0).getRegistrationIds());
+        assertEquals(Arrays.asList("8"),
+            pending.get(0).getPendingRegistrationIds());
+        return new MulticastResult.Builder(1, 0, 0, 200)
+            .addResult(new Result.Builder().messageId("23").build())
+            .build();
+      }
+    }).when(sender).sendNoRetry(message, Arrays.asList("8"));
+    MulticastResult result = sender.send(message, regIds, 10);
+    assertEquals(2, result.getSuccess());
+    verify(sender).sendNoRetry(message, Arrays.asList("8"));
+    assertTrue(spool.getPending().isEmpty());
+  }
+
+  @Test
+  public void testSend_json_circuitBreakerOpens() throws Exception {
+    doNothing().when(sender).sleep(anyInt());
+    setResponseExpectations(503, "");
+    CircuitBreaker breaker = new CircuitBreaker.Builder()
+        .minimumRequests(2)
+        .build();
+    sender.setCircuitBreaker(breaker);
+    try {
+      sender.send(message, Arrays.asList("4"), 5);
+      fail("Should have thrown CircuitOpenException");
+    } catch (CircuitOpenException e) {
+      assertTrue(e.getRetryAfter() > 0);
+    }
+    // the retries left are not made
+    verify(sender, times(2)).getConnection(Constants.GCM_SEND_ENDPOINT);
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+  }
+
+  @Test
+  public void testSend_json_circuitOpen_spool() throws Exception {
+    MessageSpool spool = new MessageSpool.Builder(folder.getRoot()).build();
+    sender.setSpool(spool);
+    CircuitBreaker breaker = new CircuitBreaker.Builder()
+        .minimumRequests(1)
+        .build();
+    breaker.record(false, 0);
+    sender.setCircuitBreaker(breaker);
+    List<String> regIds = Arrays.asList("4", "8");
+    try {
+      sender.send(message, regIds, 5);
+      fail("Should have thrown CircuitOpenException");
+    } catch (CircuitOpenException e) {
+      // expected
+    }
+    verify(sender, never()).getConnection(anyString());
+    // left in the spool, to be resumed
+    List<MessageSpool.Entry> pending = spool.getPending();
+    assertEquals(1, pending.size());
+    assertEquals(regIds, pending.get(0).getPendingRegistrationIds());
+  }
+
+  @Test
+  public void testSend_json_circuitOpensBetweenAttempts() throws Exception {
+    doNothing().when(sender).sleep(anyInt());
+    List<String> regIds = Arrays.asList("4", "8");
+    doReturn(new MulticastResult.Builder(1, 1, 0, 100)
+        .addResult(new Result.Builder().messageId("16").build())
+        .addResult(new Result.Builder().errorCode("Unavailable").build())
+        .build()).when(sender).sendNoRetry(message, regIds);
+    doThrow(new CircuitOpenException("circuit is open", 1000))
+        .when(sender).sendNoRetry(message, Arrays.asList("8"));
+    MulticastResult result = sender.send(message, regIds, 5);
+    assertEquals(2, result.getTotal());
+    assertResult(result.getResults().get(0), "16", null, null);
+    assertResult(result.getResults().get(1), null, "Unavailable", null);
+    verify(sender).sendNoRetry(message, Arrays.asList("8"));
+  }
+
+  @Test
+  public void testSend_json_circuitOpensBetweenAttempts_spool()
+      throws Exception {
+    doNothing().when(sender).sleep(anyInt());
+    MessageSpool spool = new MessageSpool.Builder(folder.getRoot()).build();
+    sender.setSpool(spool);
+    List<String> regIds = Arrays.asList("4", "8");
+    doReturn(new MulticastResult.Builder(1, 1, 0, 100)
+        .addResult(new Result.Builder().messageId("16").build())
+        .addResult(new Result.Builder().errorCode("Unavailable").build())
+        .build()).when(sender).sendNoRetry(message, regIds);
+    doThrow(new CircuitOpenException("circuit is open", 1000))
+        .when(sender).sendNoRetry(message, Arrays.asList("8"));
+    sender.send(message, regIds, 5);
+    // left in the spool, to be resumed
+    List<MessageSpool.Entry> pending = spool.getPending();
+    assertEquals(1, pending.size());
+    assertEquals(Arrays.asList("8"),
+        pending.get(0).getPendingRegistrationIds());
+  }
+
+  @Test
+  public void testResume() throws Exception {
+    doNothing().when(sender).sleep(anyInt());
+    final MessageSpool spool =
+        new MessageSpool.Builder(folder.getRoot()).build();
+    long id = spool.append(message, Arrays.asList("4", "8", "15", "16"));
+    spool.checkpoint(id, new int[] { 0, 2 });
+    sender.setSpool(spool);
+    doReturn(new MulticastResult.Builder(1, 1, 0, 100)
+        .addResult(new Result.Builder().messageId("23").build())
+        .addResult(new Result.Builder().errorCode("Unavailable").build())
+        .build()).when(sender).sendNoRetry(message, Arrays.asList("8", "16"));
+    doAnswer(new Answer<MulticastResult>() {
+      public MulticastResult answer(InvocationOnMock invocation) {
+        // positions are mapped to the ones of the entry
+        assertEquals(Arrays.asList("16"),
+            spool.getPending().get(0).getPendingRegistrationIds());
+        return new MulticastResult.Builder(1, 0, 0, 200)
+            .addResult(new Result.Builder().messageId("42").build())
+            .build();
+      }
+    }).when(sender).sendNoRetry(message, Arrays.asList("16"));
+    MulticastResult result = sender.resume(spool.getPending().get(0), 10);
+    assertEquals(2, result.getTotal());
+    assertResult(result.getResults().get(0), "23", null, null);
+    assertResult(result.getResults().get(1), "42", null, null);
+    assertTrue(spool.getPending().isEmpty());
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testResume_noSpool() throws Exception {
+    MessageSpool spool = new MessageSpool.Builder(folder.getRoot()).build();
+    spool.append(message, Arrays.asList("4"));
+    sender.resume(spool.getPending().get(0), 10);
+  }
+
+  @Test
+  public void testSend_json_retryAfter() throws Exception {
+    doNothing().when(sender).sleep(anyInt());
+    Result unavailableResult =
+        new Result.Builder().errorCode("Unavailable").build();
+    MulticastResult mockedResult1 = new MulticastResult.Builder(0, 1, 0, 100)
+        .addResult(unavailableResult).retryAfter(7000).build();
+    MulticastResult mockedResult2 = new MulticastResult.Builder(0, 1, 0, 300)
+        .addResult(unavailableResult).retryAfter(9000).build();
+    List<String> regIds = Arrays.asList("108");
+    doReturn(mockedResult1)
+        .doThrow(new InvalidRequestException(503, "", 8000))
+        .doReturn(mockedResult2)
+        .when(sender).sendNoRetry(message, regIds);
+    MulticastResult actualResult = sender.send(message, regIds, 2);
+    assertEquals(Arrays.asList(7000L, 8000L), actualResult.getRetryDelays());
+    assertEquals(9000, actualResult.getRetryAfter());
+    verify(sender).sleep(7000);
+    verify(sender).sleep(8000);
+  }
+
+  @Test
+  public void testSendAsync_json_retryAfter() throws Exception {
+    Result unavailableResult =
+        new Result.Builder().errorCode("Unavailable").build();
+    MulticastResult mockedResult1 = new MulticastResult.Builder(0, 1, 0, 100)
+        .addResult(unavailableResult).retryAfter(7000).build();
+    List<String> regIds = Arrays.asList("108");
+    doReturn(mockedResult1)
+        .doReturn(newOkResult(regIds))
+        .when(sender).sendNoRetry(message, regIds);
+    sender.setExecutor(scheduler);
+    MulticastResult actualResult =
+        sender.sendAsync(message, regIds, 1).get();
+    assertEquals(Arrays.asList(7000L), scheduler.delays);
+    assertEquals(Arrays.asList(7000L), actualResult.getRetryDelays());
+    assertEquals(0, actualResult.getRetryAfter());
+  }
+
+  @Test
+  public void testSend_json_retryPolicy() throws Exception {
+    doNothing().when(sender).sleep(anyInt());
+    sender.setRetryPolicy(new RetryPolicy.Builder()
+        .retry(Constants.ERROR_DEVICE_MESSAGE_RATE_EXCEEDED,
+            RetryPolicy.Backoff.fixed(1, TimeUnit.MINUTES))
+        .noRetry(Constants.ERROR_INTERNAL_SERVER_ERROR)
+        .build());
+    Result rateExceededResult = new Result.Builder()
+        .errorCode(Constants.ERROR_DEVICE_MESSAGE_RATE_EXCEEDED).build();
+    Result internalServerErrorResult = new Result.Builder()
+        .errorCode(Constants.ERROR_INTERNAL_SERVER_ERROR).build();
+    List<String> regIds = Arrays.asList("4", "8");
+    doReturn(new MulticastResult.Builder(0, 2, 0, 100)
+        .addResult(rateExceededResult)
+        .addResult(internalServerErrorResult)
+        .build()).when(sender).sendNoRetry(message, regIds);
+    List<String> retriedRegIds = Arrays.asList("4");
+    doReturn(newOkResult(retriedRegIds)).when(sender)
+        .sendNoRetry(message, retriedRegIds);
+    MulticastResult actualResult = sender.send(message, regIds, 1);
+    assertEquals(1, actualResult.getSuccess());
+    assertResult(actualResult.getResults().get(1), null,
+        Constants.ERROR_INTERNAL_SERVER_ERROR, null);
+    assertEquals(Arrays.asList(60000L), actualResult.getRetryDelays());
+    verify(sender).sleep(60000);
+  }
+
+  @Test
+  public void testSend_rateLimited() throws Exception {
+    doNothing().when(sender).sleep(anyInt());
+    doThrow(new RateLimitedException("Global rate exceeded", 4200))
+        .doReturn(result).when(sender).sendNoRetry(message, regId);
+    assertSame(result, sender.send(message, regId, 1));
+    ArgumentCaptor<Long> delay = ArgumentCaptor.forClass(Long.class);
+    verify(sender).sleep(delay.capture());
+    assertTrue(delay.getValue() >= 4200);
+  }
+
+  @Test
+  public void testSend_json_rateLimited() throws Exception {
+    doNothing().when(sender).sleep(anyInt());
+    List<String> regIds = Arrays.asList("4", "8");
+    doThrow(new RateLimitedException("Global rate exceeded", 4200))
+        .doReturn(newOkResult(regIds)).when(sender)
+        .sendNoRetry(message, regIds);
+    MulticastResult multicastResult = sender.send(message, regIds, 1);
+    assertEquals(2, multicastResult.getSuccess());
+    assertTrue(multicastResult.getRetryDelays().get(0) >= 4200);
+  }
+
+  @Test
+  public void testSend_json_metrics() throws Exception {
+    doNothing().when(sender).sleep(anyInt());
+    sender.setRetryPolicy(new RetryPolicy.Builder()
+        .backoff(RetryPolicy.Backoff.fixed(1, TimeUnit.SECONDS)).build());
+    RecordingMetrics metrics = new RecordingMetrics();
+    sender.setMetrics(metrics);
+    List<String> regIds = Arrays.asList("4");
+    doReturn(null).doReturn(newOkResult(regIds)).when(sender)
+        .sendNoRetry(message, regIds);
+    sender.send(message, regIds, 1);
+    assertEquals(Arrays.asList("retried 1 1000"), metrics.events);
+  }
+
+  @Test
+  public void testSend_json_retryBudget() throws Exception {
+    doNothing().when(sender).sleep(anyInt());
+    sender.setRetryPolicy(new RetryPolicy.Builder()
+        .backoff(RetryPolicy.Backoff.fixed(1, TimeUnit.SECONDS))
+        .retryBudget(2500, TimeUnit.MILLISECONDS)
+        .build());
+    List<String> regIds = Arrays.asList("108");
+    doReturn(null).when(sender).sendNoRetry(message, regIds);
+    try {
+      sender.send(message, regIds, 10);
+      fail("Should have thrown IOException");
+    } catch (IOException e) {
+      // the 3rd retry would exceed the budget
+      verify(sender, times(3)).sendNoRetry(message, regIds);
+      verify(sender, times(2)).sleep(1000);
+    }
+  }
+
+  @Test
+  public void testSend_retryBudget_retryAfter() throws Exception {
+    doNotSleep();
+    sender.setRetryPolicy(new RetryPolicy.Builder()
+        .retryBudget(1, TimeUnit.MINUTES)
+        .build());
+    InvalidRequestException exception =
+        new InvalidRequestException(503, "", 120000);
+    doThrow(exception).when(sender).sendNoRetry(message, regId);
+    try {
+      sender.send(message, regId, 10);
+      fail("Should have thrown InvalidRequestException");
+    } catch (InvalidRequestException e) {
+      assertSame(exception, e);
+    }
+    verify(sender, times(1)).sendNoRetry(message, regId);
+  }
+
+  @Test
+  public void testPost_attemptTimeout() throws Exception {
+    setResponseExpectations(200, "");
+    sender.setRetryPolicy(new RetryPolicy.Builder()
+        .attemptTimeout(5, TimeUnit.SECONDS)
+        .build());
+    sender.setReadTimeout(10000);
+    sender.post(Constants.GCM_SEND_ENDPOINT, "text/plain", "body");
+    verify(mockedConn).setConnectTimeout(5000);
+    verify(mockedConn).setReadTimeout(5000);
+  }
+
+  @Test
+  public void testSend_json_deadline() throws Exception {
+    final AtomicLong now = new AtomicLong();
+    Deadline deadline = new Deadline(
+        TimeUnit.MILLISECONDS.toNanos(1500), () -> now.get());
+    doAnswer(new Answer<Void>() {
+      public Void answer(InvocationOnMock invocation) {
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(
+            (Long) invocation.getArguments()[0]));
+        return null;
+      }
+    }).when(sender).sleep(anyInt());
+    sender.setRetryPolicy(new RetryPolicy.Builder()
+        .backoff(RetryPolicy.Backoff.fixed(1, TimeUnit.SECONDS))
+        .build());
+    List<String> regIds = Arrays.asList("4", "8");
+    doReturn(new MulticastResult.Builder(1, 1, 0, 100)
+        .addResult(new Result.Builder().messageId("16").build())
+        .addResult(new Result.Builder().errorCode("Unavailable").build())
+        .build()).when(sender).sendNoRetry(message, regIds);
+    doReturn(new MulticastResult.Builder(0, 1, 0, 200)
+        .addResult(new Result.Builder().errorCode("Unavailable").build())
+        .build()).when(sender).sendNoRetry(message, Arrays.asList("8"));
+    MulticastResult result = sender.send(message, regIds, 10, deadline);
+    // the 2nd retry would outlast the deadline
+    verify(sender).sendNoRetry(message, Arrays.asList("8"));
+    verify(sender, times(1)).sleep(1000);
+    assertEquals(100, result.getMulticastId());
+    assertEquals(Arrays.asList(200L), result.getRetryMulticastIds());
+    assertEquals(1, result.getSuccess());
+    assertEquals(1, result.getFailure());
+    assertEquals("16", result.getResults().get(0).getMessageId());
+    assertEquals(Constants.ERROR_DEADLINE_EXCEEDED,
+        result.getResults().get(1).getErrorCodeName());
+  }
+
+  @Test
+  public void testSend_json_deadline_spool() throws Exception {
+    final AtomicLong now = new AtomicLong();
+    Deadline deadline = new Deadline(
+        TimeUnit.MILLISECONDS.toNanos(1500), () -> now.get());
+    doAnswer(new Answer<Void>() {
+      public Void answer(InvocationOnMock invocation) {
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(
+            (Long) invocation.getArguments()[0]));
+        return null;
+      }
+    }).when(sender).sleep(anyInt());
+    sender.setRetryPolicy(new RetryPolicy.Builder()
+        .backoff(RetryPolicy.Backoff.fixed(1, TimeUnit.SECONDS))
+        .build());
+    MessageSpool spool = new MessageSpool.Builder(folder.getRoot()).build();
+    sender.setSpool(spool);
+    List<String> regIds = Arrays.asList("4", "8", "15");
+    doReturn(new MulticastResult.Builder(1, 2, 0, 100)
+        .addResult(new Result.Builder().messageId("16").build())
+        .addResult(new Result.Builder().errorCode("Unavailable").build())
+        .addResult(new Result.Builder().errorCode("Unavailable").build())
+        .build()).when(sender).sendNoRetry(message, regIds);
+    doReturn(new MulticastResult.Builder(1, 1, 0, 200)
+        .addResult(new Result.Builder().messageId("23").build())
+        .addResult(new Result.Builder().errorCode("Unavailable").build())
+        .build()).when(sender).sendNoRetry(message, Arrays.asList("8", "15"));
+    MulticastResult result = sender.send(message, regIds, 10, deadline);
+    assertEquals(Constants.ERROR_DEADLINE_EXCEEDED,
+        result.getResults().get(2).getErrorCodeName());
+    // only the devices that got a result are checkpointed
+    List<MessageSpool.Entry> pending = spool.getPending();
+    assertEquals(1, pending.size());
+    assertEquals(Arrays.asList("15"),
+        pending.get(0).getPendingRegistrationIds());
+  }
+
+  @Test
+  public void testSend_json_deadlineCancelled() throws Exception {
+    Deadline deadline = Deadline.unbounded();
+    deadline.cancel();
+    List<String> regIds = Arrays.asList("4", "8");
+    MulticastResult result = sender.send(message, regIds, 10, deadline);
+    verify(sender, never()).sendNoRetry(message, regIds);
+    assertEquals(0, result.getMulticastId());
+    assertEquals(2, result.getFailure());
+    for (Result r : result.getResults()) {
+      assertEquals(Constants.ERROR_DEADLINE_EXCEEDED, r.getErrorCodeName());
+    }
+  }
+
+  @Test
+  public void testSendAsync_json_deadlineCancelled() throws Exception {
+    doNothing().when(sender).sleep(anyInt());
+    sender.setExecutor(scheduler);
+    final Deadline deadline = Deadline.unbounded();
+    List<String> regIds = Arrays.asList("108");
+    doAnswer(new Answer<MulticastResult>() {
+      public MulticastResult answer(InvocationOnMock invocation) {
+        // cancelled while the first attempt is made
+        deadline.cancel();
+        return null;
+      }
+    }).when(sender).sendNoRetry(message, regIds);
+    MulticastResult result = sender.sendAsync(message, regIds, 10, deadline)
+        .get(10, TimeUnit.SECONDS);
+    verify(sender, times(1)).sendNoRetry(message, regIds);
+    assertEquals(Constants.ERROR_DEADLINE_EXCEEDED,
+        result.getResults().get(0).getErrorCodeName());
+  }
+
+  @Test
+  public void testSend_json_deadlineTimeouts() throws Exception {
+    setResponseExpectations(200, replaceQuotes("{'multicast_id': 108,"
+        + "'success': 1, 'failure': 0, 'canonical_ids': 0,"
+        + "'results': [{'message_id': '16'}]}"));
+    sender.setConnectTimeout(1000);
+    sender.setReadTimeout(10000);
+    Deadline deadline =
+        new Deadline(TimeUnit.SECONDS.toNanos(2), () -> 0L);
+    MulticastResult result =
+        sender.send(message, Arrays.asList("4"), 0, deadline);
+    assertEquals(1, result.getSuccess());
+    verify(mockedConn).setConnectTimeout(1000);
+    verify(mockedConn).setReadTimeout(2000);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testSend_json_nullDeadline() throws Exception {
+    sender.send(message, Arrays.asList("4"), 0, null);
+  }
+
   @Test()
   public void testSend_json_ok() throws Exception {
     doNothing().when(sender).sleep(anyInt());
@@ -530,6 +1332,412 @@ public class SenderTest {
     verify(sender, times(5)).sendNoRetry(eq(message), anyListOf(String.class));
   }
 
+  @Test()
+  public void testSendAsync_json_secondAttemptOk() throws Exception {
+    doNotSleep();
+    Result unaivalableResult =
+        new Result.Builder().errorCode("Unavailable").build();
+    Result okResult =
+        new Result.Builder().messageId("42").build();
+    MulticastResult mockedResult1 = new MulticastResult.Builder(0, 0, 0, 100)
+        .addResult(okResult).addResult(unaivalableResult).build();
+    MulticastResult mockedResult2 = new MulticastResult.Builder(0, 0, 0, 200)
+        .addResult(okResult).build();
+    doReturn(mockedResult1).when(sender)
+        .sendNoRetry(message, Arrays.asList("4", "8"));
+    doReturn(mockedResult2).when(sender)
+        .sendNoRetry(message, Arrays.asList("8"));
+    sender.setExecutor(scheduler);
+    MulticastResult actualResult =
+        sender.sendAsync(message, Arrays.asList("4", "8"), 10).get();
+    assertEquals(2, actualResult.getTotal());
+    assertEquals(2, actualResult.getSuccess());
+    assertEquals(100, actualResult.getMulticastId());
+    assertEquals(Arrays.asList(200L), actualResult.getRetryMulticastIds());
+    assertResult(actualResult.getResults().get(0), "42", null, null);
+    assertResult(actualResult.getResults().get(1), "42", null, null);
+    assertBackoff(scheduler.delays, 1);
+  }
+
+  @Test()
+  public void testSendAsync_json_allAttemptsFail() throws Exception {
+    doNotSleep();
+    List<String> regIds = Arrays.asList("108");
+    doReturn(null).when(sender).sendNoRetry(message, regIds);
+    sender.setExecutor(scheduler);
+    try {
+      sender.sendAsync(message, regIds, 2).get();
+      fail("Should have thrown ExecutionException");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof IOException);
+    }
+    verify(sender, times(3)).sendNoRetry(message, regIds);
+    assertBackoff(scheduler.delays, 2);
+  }
+
+  @Test()
+  public void testSendAsync_json_cancelled() throws Exception {
+    List<String> regIds = Arrays.asList("108");
+    final CountDownLatch busy = new CountDownLatch(1);
+    sender.setExecutor(scheduler);
+    // keeps the only thread busy until the send is cancelled
+    scheduler.execute(new Runnable() {
+      public void run() {
+        try {
+          busy.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    });
+    sender.sendAsync(message, regIds, 2).cancel(false);
+    busy.countDown();
+    scheduler.shutdown();
+    assertTrue(scheduler.awaitTermination(1, TimeUnit.SECONDS));
+    verify(sender, never()).sendNoRetry(message, regIds);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testSendAsync_json_emptyRegIds() throws Exception {
+    sender.sendAsync(message, Collections.<String>emptyList(), 0);
+  }
+
+  @Test()
+  public void testSendBulk_chunks() throws Exception {
+    doNotSleep();
+    List<String> regIds = newRegIds(2500);
+    final List<Integer> chunkSizes =
+        Collections.synchronizedList(new ArrayList<Integer>());
+    doAnswer(new Answer<MulticastResult>() {
+      public MulticastResult answer(InvocationOnMock invocation) {
+        @SuppressWarnings("unchecked")
+        List<String> chunk = (List<String>) invocation.getArguments()[1];
+        chunkSizes.add(chunk.size());
+        return newOkResult(chunk);
+      }
+    }).when(sender).sendNoRetry(eq(message), anyListOf(String.class));
+    sender.setExecutor(scheduler);
+    MulticastResult actualResult = sender.sendBulk(message, regIds, 0, 2);
+    Collections.sort(chunkSizes);
+    assertEquals(Arrays.asList(500, 1000, 1000), chunkSizes);
+    assertEquals(2500, actualResult.getTotal());
+    assertEquals(2500, actualResult.getSuccess());
+    assertEquals(0, actualResult.getFailure());
+    assertEquals(2500, actualResult.getCanonicalIds());
+    assertEquals(2, actualResult.getRetryMulticastIds().size());
+    List<Result> results = actualResult.getResults();
+    assertEquals(2500, results.size());
+    for (int i = 0; i < regIds.size(); i++) {
+      assertResult(results.get(i), "msg-" + regIds.get(i), null,
+          "canonical-" + regIds.get(i));
+    }
+  }
+
+  @Test()
+  public void testSendBulk_parallelism() throws Exception {
+    doNotSleep();
+    final AtomicInteger inFlight = new AtomicInteger();
+    final AtomicInteger maxInFlight = new AtomicInteger();
+    doAnswer(new Answer<MulticastResult>() {
+      public MulticastResult answer(InvocationOnMock invocation)
+          throws InterruptedException {
+        int current = inFlight.incrementAndGet();
+        synchronized (maxInFlight) {
+          maxInFlight.set(Math.max(current, maxInFlight.get()));
+        }
+        Thread.sleep(10);
+        inFlight.decrementAndGet();
+        @SuppressWarnings("unchecked")
+        List<String> chunk = (List<String>) invocation.getArguments()[1];
+        return newOkResult(chunk);
+      }
+    }).when(sender).sendNoRetry(eq(message), anyListOf(String.class));
+    ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(8);
+    try {
+      sender.setExecutor(executor);
+      MulticastResult actualResult =
+          sender.sendBulk(message, newRegIds(10000), 0, 3);
+      assertEquals(10000, actualResult.getSuccess());
+      assertTrue("too many chunks in flight: " + maxInFlight,
+          maxInFlight.get() <= 3);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test()
+  public void testSendBulk_chunkFails() throws Exception {
+    doNotSleep();
+    final List<String> regIds = newRegIds(1500);
+    doAnswer(new Answer<MulticastResult>() {
+      public MulticastResult answer(InvocationOnMock invocation)
+          throws IOException {
+        @SuppressWarnings("unchecked")
+        List<String> chunk = (List<String>) invocation.getArguments()[1];
+        if (chunk.get(0).equals(regIds.get(0))) {
+          throw new IOException();
+        }
+        return newOkResult(chunk);
+      }
+    }).when(sender).sendNoRetry(eq(message), anyListOf(String.class));
+    sender.setExecutor(scheduler);
+    MulticastResult actualResult = sender.sendBulk(message, regIds, 0, 1);
+    assertEquals(1500, actualResult.getTotal());
+    assertEquals(500, actualResult.getSuccess());
+    assertEquals(1000, actualResult.getFailure());
+    List<Result> results = actualResult.getResults();
+    assertResult(results.get(0), null, "Unavailable", null);
+    assertResult(results.get(999), null, "Unavailable", null);
+    assertResult(results.get(1000), "msg-" + regIds.get(1000), null,
+        "canonical-" + regIds.get(1000));
+  }
+
+  @Test
+  public void testSendBulk_allChunksFail() throws Exception {
+    doNotSleep();
+    IOException error = new IOException();
+    doThrow(error).when(sender)
+        .sendNoRetry(eq(message), anyListOf(String.class));
+    sender.setExecutor(scheduler);
+    try {
+      sender.sendBulk(message, newRegIds(1500), 0, 2);
+      fail("Should have thrown IOException");
+    } catch (IOException e) {
+      // the error of the last chunk, caused by its last attempt
+      assertSame(error, e.getCause().getCause());
+    }
+  }
+
+  @Test
+  public void testSendBulk_chunkRejected() throws Exception {
+    doNotSleep();
+    InvalidRequestException rejected = new InvalidRequestException(401);
+    doThrow(rejected).when(sender)
+        .sendNoRetry(eq(message), anyListOf(String.class));
+    sender.setExecutor(scheduler);
+    try {
+      sender.sendBulk(message, newRegIds(2500), 0, 1);
+      fail("Should have thrown InvalidRequestException");
+    } catch (InvalidRequestException e) {
+      assertSame(rejected, e);
+    }
+    // the next chunks are not sent
+    verify(sender).sendNoRetry(eq(message), anyListOf(String.class));
+  }
+
+  @Test
+  public void testSendBulk_iteratorFails() throws Exception {
+    doNotSleep();
+    doAnswer(new Answer<MulticastResult>() {
+      public MulticastResult answer(InvocationOnMock invocation) {
+        @SuppressWarnings("unchecked")
+        List<String> chunk = (List<String>) invocation.getArguments()[1];
+        return newOkResult(chunk);
+      }
+    }).when(sender).sendNoRetry(eq(message), anyListOf(String.class));
+    sender.setExecutor(scheduler);
+    final RuntimeException error = new IllegalStateException();
+    final Iterator<String> regIds = newRegIds(1500).iterator();
+    // fails while reading the second chunk, after the first one is sent
+    Iterable<String> failing = () -> new Iterator<String>() {
+      int read;
+
+      public boolean hasNext() {
+        return regIds.hasNext();
+      }
+
+      public String next() {
+        if (++read > 1200) {
+          throw error;
+        }
+        return regIds.next();
+      }
+    };
+    try {
+      sender.sendBulkAsync(message, failing, 0, 1).get(10, TimeUnit.SECONDS);
+      fail("Should have thrown ExecutionException");
+    } catch (ExecutionException e) {
+      assertSame(error, e.getCause());
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testSendBulk_emptyRegIds() throws Exception {
+    sender.sendBulk(message, Collections.<String>emptyList(), 0, 1);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testSendBulk_noParallelism() throws Exception {
+    sender.sendBulk(message, Arrays.asList("108"), 0, 0);
+  }
+
+  @Test
+  public void testSend_deduplicate() throws Exception {
+    sender.setDeduplicate(true);
+    List<String> regIds = Arrays.asList("4", "8", "4", "15", "8");
+    List<String> unique = Arrays.asList("4", "8", "15");
+    MulticastResult result = new MulticastResult.Builder(2, 1, 1, 42)
+        .addResult(new Result.Builder().messageId("16").build())
+        .addResult(new Result.Builder().errorCode("DOH!").build())
+        .addResult(new Result.Builder().messageId("23")
+            .canonicalRegistrationId("108").build())
+        .build();
+    doReturn(result).when(sender).sendNoRetry(message, unique);
+    MulticastResult actualResult = sender.send(message, regIds, 0);
+    verify(sender).sendNoRetry(message, unique);
+    assertEquals(42, actualResult.getMulticastId());
+    assertEquals(5, actualResult.getTotal());
+    assertEquals(3, actualResult.getSuccess());
+    assertEquals(2, actualResult.getFailure());
+    assertEquals(1, actualResult.getCanonicalIds());
+    List<Result> results = actualResult.getResults();
+    assertResult(results.get(0), "16", null, null);
+    assertResult(results.get(1), null, "DOH!", null);
+    assertResult(results.get(2), "16", null, null);
+    assertResult(results.get(3), "23", null, "108");
+    assertResult(results.get(4), null, "DOH!", null);
+  }
+
+  @Test
+  public void testSend_deduplicate_noDuplicates() throws Exception {
+    sender.setDeduplicate(true);
+    List<String> regIds = Arrays.asList("4", "8");
+    doReturn(newOkResult(regIds)).when(sender).sendNoRetry(message, regIds);
+    MulticastResult actualResult = sender.send(message, regIds, 0);
+    verify(sender).sendNoRetry(message, regIds);
+    assertEquals(2, actualResult.getSuccess());
+  }
+
+  @Test
+  public void testSendBulk_deduplicate() throws Exception {
+    doNotSleep();
+    sender.setDeduplicate(true);
+    List<String> regIds = new ArrayList<String>(newRegIds(1500));
+    regIds.addAll(newRegIds(1500));
+    final List<Integer> chunkSizes =
+        Collections.synchronizedList(new ArrayList<Integer>());
+    doAnswer(new Answer<MulticastResult>() {
+      public MulticastResult answer(InvocationOnMock invocation) {
+        @SuppressWarnings("unchecked")
+        List<String> chunk = (List<String>) invocation.getArguments()[1];
+        chunkSizes.add(chunk.size());
+        return newOkResult(chunk);
+      }
+    }).when(sender).sendNoRetry(eq(message), anyListOf(String.class));
+    sender.setExecutor(scheduler);
+    MulticastResult actualResult = sender.sendBulk(message, regIds, 0, 2);
+    Collections.sort(chunkSizes);
+    assertEquals(Arrays.asList(500, 1000), chunkSizes);
+    assertEquals(3000, actualResult.getTotal());
+    assertEquals(3000, actualResult.getSuccess());
+    assertEquals(3000, actualResult.getCanonicalIds());
+    List<Result> results = actualResult.getResults();
+    for (int i = 0; i < regIds.size(); i++) {
+      assertResult(results.get(i), "msg-" + regIds.get(i), null,
+          "canonical-" + regIds.get(i));
+    }
+  }
+
+  @Test
+  public void testSendToTopic() throws Exception {
+    setResponseExpectations(200, "{\"message_id\":4815162342}");
+    TopicResult result = sender.sendToTopic(message, "news", 0);
+    assertEquals("4815162342", result.getMessageId());
+    assertNull(result.getErrorCodeName());
+    String body = new String(outputStream.toByteArray(), "UTF-8");
+    assertTrue(body, body.contains("\"to\":\"/topics/news\""));
+    assertFalse(body, body.contains("registration_ids"));
+  }
+
+  @Test
+  public void testSendToTopic_retryUnavailable() throws Exception {
+    doNothing().when(sender).sleep(anyInt());
+    GcmTransport transport = mock(GcmTransport.class);
+    GcmTransport.Response unavailable = mock(GcmTransport.Response.class);
+    when(unavailable.getStatusCode()).thenReturn(200);
+    when(unavailable.getBody()).thenReturn(new ByteArrayInputStream(
+        "{\"error\":\"Unavailable\"}".getBytes()));
+    GcmTransport.Response ok = mock(GcmTransport.Response.class);
+    when(ok.getStatusCode()).thenReturn(200);
+    when(ok.getBody()).thenReturn(new ByteArrayInputStream(
+        "{\"message_id\":42}".getBytes()));
+    when(transport.post(anyString(), anyString(), anyString(),
+        (byte[]) any(), anyInt(), anyInt()))
+        .thenReturn(unavailable).thenReturn(ok);
+    sender.setTransport(transport);
+    TopicResult result = sender.sendToTopic(message, "/topics/news", 1);
+    assertEquals("42", result.getMessageId());
+    verify(sender).sleep(anyInt());
+  }
+
+  @Test
+  public void testSendToTopic_rateExceeded() throws Exception {
+    setResponseExpectations(200,
+        "{\"error\":\"TopicsMessageRateExceeded\"}");
+    TopicResult result = sender.sendToTopic(message, "news", 2);
+    assertNull(result.getMessageId());
+    assertEquals(Constants.ERROR_TOPICS_MESSAGE_RATE_EXCEEDED,
+        result.getErrorCodeName());
+  }
+
+  @Test
+  public void testSendToTopic_metrics() throws Exception {
+    setResponseExpectations(200,
+        "{\"error\":\"TopicsMessageRateExceeded\"}");
+    RecordingMetrics metrics = new RecordingMetrics();
+    sender.setMetrics(metrics);
+    sender.sendToTopic(message, "news", 0);
+    assertEquals(Arrays.asList("requestSerialized 1 " + outputStream.size(),
+        "connected", "responseReceived 200", "responseParsed",
+        "resultsReceived TopicsMessageRateExceeded 1"), metrics.events);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testSendToTopic_invalidName() throws Exception {
+    sender.sendToTopic(message, "/topics/bad news", 0);
+  }
+
+  @Test
+  public void testSendToConditionAsync() throws Exception {
+    setResponseExpectations(200, "{\"message_id\":108}");
+    sender.setExecutor(scheduler);
+    TopicResult result = sender.sendToConditionAsync(message,
+        "'dogs' in topics || 'cats' in topics", 0).get();
+    assertEquals("108", result.getMessageId());
+    String body = new String(outputStream.toByteArray(), "UTF-8");
+    assertTrue(body, body.contains(
+        "\"condition\":\"'dogs' in topics || 'cats' in topics\""));
+  }
+
+  @Test
+  public void testSendToDeviceGroup() throws Exception {
+    setResponseExpectations(200, "{\"success\":1,\"failure\":2,"
+        + "\"failed_registration_ids\":[\"4\",\"8\"]}");
+    DeviceGroupResult result = sender.sendToDeviceGroup(message, "APA91", 2);
+    assertEquals(1, result.getSuccess());
+    assertEquals(2, result.getFailure());
+    assertEquals(Arrays.asList("4", "8"), result.getFailedRegistrationIds());
+    String body = new String(outputStream.toByteArray(), "UTF-8");
+    assertTrue(body, body.contains("\"to\":\"APA91\""));
+  }
+
+  @Test
+  public void testSendToDeviceGroup_metrics() throws Exception {
+    setResponseExpectations(200, "{\"success\":3,\"failure\":1,"
+        + "\"failed_registration_ids\":[\"4\"]}");
+    RecordingMetrics metrics = new RecordingMetrics();
+    sender.setMetrics(metrics);
+    sender.sendToDeviceGroup(message, "APA91", 0);
+    // failed devices have no error code
+    assertEquals("resultsReceived null 3",
+        metrics.events.get(metrics.events.size() - 1));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testSendToDeviceGroup_emptyKey() throws Exception {
+    sender.sendToDeviceGroup(message, "", 0);
+  }
+
   @Test(expected = IllegalArgumentException.class)
   public void testSendNoRetry_json_nullRegIds() throws Exception {
     sender.sendNoRetry(message, (List<String>) null);
@@ -632,6 +1840,17 @@ public class SenderTest {
     assertRequestJsonBody("4", "8", "15");
   }
 
+  @Test
+  public void testSendNoRetry_json_malformedResponse() throws Exception {
+    setResponseExpectations(200, replaceQuotes("{'multicast_id': 108}"));
+    try {
+      sender.sendNoRetry(message, Arrays.asList("4", "8", "15"));
+      fail("Should have thrown IOException");
+    } catch (IOException e) {
+      assertTrue(e.getMessage().contains("Missing field: success"));
+    }
+  }
+
   // replace ' by ", otherwise JSON strins would need to escape double-quotes
   private String replaceQuotes(String json) {
     return json.replaceAll("'", "\"");
@@ -645,11 +1864,10 @@ public class SenderTest {
   }
 
   private void assertRequestJsonBody(String...expectedRegIds) throws Exception {
-    ArgumentCaptor<String> capturedBody = ArgumentCaptor.forClass(String.class);
-    verify(sender).post(eq(Constants.GCM_SEND_ENDPOINT), eq("application/json"),
-        capturedBody.capture());
+    verify(mockedConn).setRequestProperty("Content-Type", "application/json");
+    verify(mockedConn).setRequestProperty("Authorization", "key=" + authKey);
     // parse body
-    String body = capturedBody.getValue();
+    String body = new String(outputStream.toByteArray(), "UTF-8");
     JSONObject json = (JSONObject) jsonParser.parse(body);
     assertEquals(ttl, ((Long) json.get("time_to_live")).intValue());
     assertEquals(collapseKey, json.get("collapse_key"));
@@ -702,6 +1920,21 @@ public class SenderTest {
     assertEquals("", Sender.getString(null));
   }
 
+  @Test
+  public void testParseRetryAfter() throws Exception {
+    long now = ZonedDateTime.parse("Wed, 21 Oct 2015 07:28:00 GMT",
+        DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+    assertEquals(0, Sender.parseRetryAfter(null, now));
+    assertEquals(120000, Sender.parseRetryAfter("120", now));
+    assertEquals(120000, Sender.parseRetryAfter(" 120 ", now));
+    assertEquals(0, Sender.parseRetryAfter("-1", now));
+    assertEquals(90000,
+        Sender.parseRetryAfter("Wed, 21 Oct 2015 07:29:30 GMT", now));
+    assertEquals(0,
+        Sender.parseRetryAfter("Wed, 21 Oct 2015 07:27:00 GMT", now));
+    assertEquals(0, Sender.parseRetryAfter("soon", now));
+  }
+
   @Test(expected = IllegalArgumentException.class)
   public void testPost_noUrl() throws Exception {
     sender.post(null, "whatever", "whatever");
@@ -732,6 +1965,21 @@ public class SenderTest {
     assertEquals(200, response.getResponseCode());
   }
 
+  @Test
+  public void testPost_timeouts() throws Exception {
+    setResponseExpectations(200, "resp");
+    sender.setConnectTimeout(4);
+    sender.setReadTimeout(8);
+    sender.post(Constants.GCM_SEND_ENDPOINT, "stuff", "req");
+    verify(mockedConn).setConnectTimeout(4);
+    verify(mockedConn).setReadTimeout(8);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testSetConnectTimeout_negative() {
+    sender.setConnectTimeout(-1);
+  }
+
   /**
    * Sets the expectations of the HTTP connection.
    */
@@ -750,6 +1998,111 @@ public class SenderTest {
         .getConnection(Constants.GCM_SEND_ENDPOINT);
   }
 
+  private List<String> newRegIds(int count) {
+    List<String> regIds = new ArrayList<String>(count);
+    for (int i = 0; i < count; i++) {
+      regIds.add("regId" + i);
+    }
+    return regIds;
+  }
+
+  private MulticastResult newOkResult(List<String> regIds) {
+    MulticastResult.Builder builder = new MulticastResult.Builder(
+        regIds.size(), 0, regIds.size(), regIds.get(0).hashCode());
+    for (String regId : regIds) {
+      builder.addResult(new Result.Builder().messageId("msg-" + regId)
+          .canonicalRegistrationId("canonical-" + regId).build());
+    }
+    return builder.build();
+  }
+
+  private void assertBackoff(List<Long> delays, int expectedRetries) {
+    assertEquals(expectedRetries, delays.size());
+    long backoffRange = Sender.BACKOFF_INITIAL_DELAY;
+    for (long value : delays) {
+      assertTrue(value >= backoffRange / 2);
+      assertTrue(value <= backoffRange * 3 / 2);
+      backoffRange *= 2;
+    }
+  }
+
+  /**
+   * Metrics that record the events they get, without durations.
+   */
+  private static class RecordingMetrics implements SenderMetrics {
+
+    final List<String> events = new ArrayList<String>();
+    int requestBytes;
+
+    @Override
+    public void requestSerialized(int registrationIds, int bytes, long nanos) {
+      assertTrue(nanos >= 0);
+      requestBytes = bytes;
+      events.add("requestSerialized " + registrationIds + " " + bytes);
+    }
+
+    @Override
+    public void connected(long nanos) {
+      assertTrue(nanos >= 0);
+      events.add("connected");
+    }
+
+    @Override
+    public void responseReceived(int status, long nanos) {
+      assertTrue(nanos >= 0);
+      events.add("responseReceived " + status);
+    }
+
+    @Override
+    public void requestFailed(Exception e) {
+      events.add("requestFailed");
+    }
+
+    @Override
+    public void responseParsed(long nanos) {
+      assertTrue(nanos >= 0);
+      events.add("responseParsed");
+    }
+
+    @Override
+    public void resultsReceived(String errorCode, int count) {
+      events.add("resultsReceived " + errorCode + " " + count);
+    }
+
+    @Override
+    public void canonicalIdsReceived(int count) {
+      events.add("canonicalIdsReceived " + count);
+    }
+
+    @Override
+    public void retried(int retry, long delay) {
+      events.add("retried " + retry + " " + delay);
+    }
+  }
+
+  /**
+   * Scheduler that records the requested delays but runs tasks right away.
+   */
+  private static class ImmediateScheduler extends ScheduledThreadPoolExecutor {
+
+    final List<Long> delays =
+        Collections.synchronizedList(new ArrayList<Long>());
+
+    ImmediateScheduler() {
+      super(1);
+    }
+
+    @Override
+    public ScheduledFuture<?> schedule(Runnable command, long delay,
+        TimeUnit unit) {
+      if (delay > 0) {
+        // execute() also goes through here, without delay
+        delays.add(unit.toMillis(delay));
+      }
+      return super.schedule(command, 0, unit);
+    }
+  }
+
   private void doNotSleep() {
     doThrow(new AssertionError("Thou should not sleep!")).when(sender)
         .sleep(anyInt());
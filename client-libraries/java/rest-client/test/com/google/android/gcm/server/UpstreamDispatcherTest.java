@@ -0,0 +1,245 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.json.simple.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class UpstreamDispatcherTest {
+
+  private final BlockingQueue<UpstreamMessage> handled =
+      new LinkedBlockingQueue<UpstreamMessage>();
+  private final AtomicLong now = new AtomicLong();
+
+  private FakeCcsServer server;
+  private UpstreamDispatcher dispatcher;
+  private CcsConnection connection;
+
+  @Before
+  public void setFixtures() throws Exception {
+    server = new FakeCcsServer();
+  }
+
+  @After
+  public void close() throws Exception {
+    if (connection != null) {
+      connection.close();
+    }
+    if (dispatcher != null) {
+      dispatcher.close();
+    }
+    server.close();
+  }
+
+  @Test
+  public void testDispatch() throws Exception {
+    connect(new UpstreamDispatcher.Builder(handled::add));
+    server.last().send("{\"category\":\"com.example\","
+        + "\"data\":{\"k\":\"<v>\"},\"message_id\":\"m-1\",\"from\":\"4\"}");
+    UpstreamMessage message = handled.poll(10, TimeUnit.SECONDS);
+    assertEquals("4", message.getFrom());
+    assertEquals("m-1", message.getMessageId());
+    assertEquals("com.example", message.getCategory());
+    assertEquals("<v>", message.getData().get("k"));
+    JSONObject ack = server.acks.poll(10, TimeUnit.SECONDS);
+    assertEquals("4", ack.get("to"));
+    assertEquals("m-1", ack.get("message_id"));
+  }
+
+  @Test
+  public void testDispatch_acksBatched() throws Exception {
+    connect(new UpstreamDispatcher.Builder(handled::add)
+        .ackBatchSize(3)
+        .ackInterval(1, TimeUnit.HOURS));
+    server.last().send(upstream("4", "m-1"));
+    server.last().send(upstream("8", "m-2"));
+    handled.poll(10, TimeUnit.SECONDS);
+    handled.poll(10, TimeUnit.SECONDS);
+    assertNull(server.acks.poll(100, TimeUnit.MILLISECONDS));
+    server.last().send(upstream("15", "m-3"));
+    Set<Object> acked = new HashSet<Object>();
+    for (int i = 0; i < 3; i++) {
+      acked.add(server.acks.poll(10, TimeUnit.SECONDS).get("message_id"));
+    }
+    assertEquals(new HashSet<Object>(Arrays.asList("m-1", "m-2", "m-3")),
+        acked);
+  }
+
+  @Test
+  public void testDispatch_inOrderPerDevice() throws Exception {
+    List<String> threads = new ArrayList<String>();
+    connect(new UpstreamDispatcher.Builder(message -> {
+      if (message.getFrom().equals("4")) {
+        threads.add(Thread.currentThread().getName());
+      }
+      handled.add(message);
+    }).workers(4));
+    for (int i = 0; i < 20; i++) {
+      server.last().send(upstream(i % 2 == 0 ? "4" : "8", "m-" + i));
+    }
+    List<String> order = new ArrayList<String>();
+    for (int i = 0; i < 20; i++) {
+      UpstreamMessage message = handled.poll(10, TimeUnit.SECONDS);
+      if (message.getFrom().equals("4")) {
+        order.add(message.getMessageId());
+      }
+    }
+    for (int i = 0; i < 10; i++) {
+      assertEquals("m-" + i * 2, order.get(i));
+      assertEquals(threads.get(0), threads.get(i));
+    }
+  }
+
+  @Test
+  public void testDispatch_duplicate() throws Exception {
+    connect(new UpstreamDispatcher.Builder(handled::add)
+        .ticker(now::get));
+    server.last().send(upstream("4", "m-1"));
+    handled.poll(10, TimeUnit.SECONDS);
+    server.acks.poll(10, TimeUnit.SECONDS);
+    // delivered again, as if its ACK was lost
+    server.last().send(upstream("4", "m-1"));
+    assertEquals("m-1",
+        server.acks.poll(10, TimeUnit.SECONDS).get("message_id"));
+    assertNull(handled.poll(100, TimeUnit.MILLISECONDS));
+    assertEquals(1, dispatcher.getSeenCount());
+  }
+
+  @Test
+  public void testDispatch_sameIdFromOtherDevice() throws Exception {
+    connect(new UpstreamDispatcher.Builder(handled::add));
+    server.last().send(upstream("4", "m-1"));
+    server.last().send(upstream("8", "m-1"));
+    Set<String> from = new HashSet<String>();
+    for (int i = 0; i < 2; i++) {
+      from.add(handled.poll(10, TimeUnit.SECONDS).getFrom());
+    }
+    assertEquals(new HashSet<String>(Arrays.asList("4", "8")), from);
+    assertEquals(2, dispatcher.getSeenCount());
+  }
+
+  @Test
+  public void testDispatch_dedupeWindowExpired() throws Exception {
+    connect(new UpstreamDispatcher.Builder(handled::add)
+        .dedupeWindow(1, TimeUnit.MINUTES)
+        .ticker(now::get));
+    server.last().send(upstream("4", "m-1"));
+    handled.poll(10, TimeUnit.SECONDS);
+    now.addAndGet(TimeUnit.MINUTES.toNanos(1));
+    assertEquals(0, dispatcher.getSeenCount());
+    server.last().send(upstream("4", "m-1"));
+    assertEquals("m-1", handled.poll(10, TimeUnit.SECONDS).getMessageId());
+  }
+
+  @Test
+  public void testDispatch_queueFull() throws Exception {
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    connect(new UpstreamDispatcher.Builder(message -> {
+      started.countDown();
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      handled.add(message);
+    }).workers(1).capacity(1).ackBatchSize(1));
+    server.last().send(upstream("4", "m-1"));
+    started.await(10, TimeUnit.SECONDS);
+    // the first one is being handled, the second is queued
+    server.last().send(upstream("4", "m-2"));
+    server.last().send(upstream("4", "m-3"));
+    while (dispatcher.getSeenCount() != 2) {
+      Thread.sleep(10);
+    }
+    release.countDown();
+    assertEquals("m-1", handled.poll(10, TimeUnit.SECONDS).getMessageId());
+    assertEquals("m-2", handled.poll(10, TimeUnit.SECONDS).getMessageId());
+    // the third was dropped without its ACK, and is handled when delivered
+    // again
+    server.last().send(upstream("4", "m-3"));
+    assertEquals("m-3", handled.poll(10, TimeUnit.SECONDS).getMessageId());
+    for (int i = 1; i <= 3; i++) {
+      assertEquals("m-" + i,
+          server.acks.poll(10, TimeUnit.SECONDS).get("message_id"));
+    }
+  }
+
+  @Test
+  public void testDispatch_handlerFails() throws Exception {
+    connect(new UpstreamDispatcher.Builder(message -> {
+      throw new IllegalStateException("failed");
+    }));
+    server.last().send(upstream("4", "m-1"));
+    assertEquals("m-1",
+        server.acks.poll(10, TimeUnit.SECONDS).get("message_id"));
+  }
+
+  @Test
+  public void testClose_handlesQueued() throws Exception {
+    CountDownLatch started = new CountDownLatch(1);
+    connect(new UpstreamDispatcher.Builder(message -> {
+      started.countDown();
+      try {
+        Thread.sleep(50);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      handled.add(message);
+    }).workers(1).ackInterval(1, TimeUnit.HOURS));
+    server.last().send(upstream("4", "m-1"));
+    server.last().send(upstream("4", "m-2"));
+    started.await(10, TimeUnit.SECONDS);
+    while (dispatcher.getSeenCount() != 2) {
+      Thread.sleep(10);
+    }
+    dispatcher.close();
+    assertEquals(2, handled.size());
+    assertEquals("m-1",
+        server.acks.poll(10, TimeUnit.SECONDS).get("message_id"));
+    assertEquals("m-2",
+        server.acks.poll(10, TimeUnit.SECONDS).get("message_id"));
+  }
+
+  private void connect(UpstreamDispatcher.Builder builder) throws Exception {
+    dispatcher = builder.build();
+    connection = server.newBuilder(FakeCcsServer.KEY)
+        .upstreamDispatcher(dispatcher)
+        .build();
+    connection.connect();
+  }
+
+  private static String upstream(String from, String messageId) {
+    return "{\"category\":\"com.example\",\"data\":{\"k\":\"v\"},"
+        + "\"message_id\":\"" + messageId + "\",\"from\":\"" + from + "\"}";
+  }
+}